@@ -21,7 +21,6 @@ import org.bytedeco.javacpp.opencv_core;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
-import org.bytedeco.javacv.OpenCVFrameConverter;
 import org.cripac.isee.alg.pedestrian.attr.DeepMARCaffe2;
 import org.cripac.isee.vpe.util.logging.ConsoleLogger;
 import org.cripac.isee.vpe.util.logging.Logger;
@@ -29,9 +28,17 @@ import org.cripac.isee.vpe.util.logging.Logger;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 
 import static org.bytedeco.javacpp.avutil.AV_LOG_QUIET;
 import static org.bytedeco.javacpp.avutil.av_log_set_level;
+import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
+import static org.bytedeco.javacpp.opencv_imgproc.INTER_AREA;
+import static org.bytedeco.javacpp.opencv_imgproc.resize;
 
 /**
  * The BasicTracker class is a JNI class of a pedestrian tracking algorithm used
@@ -55,8 +62,56 @@ public class BasicTracker implements Tracker {
         }
     }
 
+    /**
+     * Whether the native library provides {@link #feedFrameDirect(long, ByteBuffer)}.
+     * Libraries built before it was added only provide {@link #feedFrame(long, byte[])}.
+     */
+    private static volatile boolean directFeedSupported = true;
+
+    /**
+     * Whether the native library provides {@link #getFinishedTargets(long)}.
+     */
+    private static volatile boolean finishedTargetsSupported = true;
+
+    /**
+     * Marks the end of frames in the pipeline.
+     */
+    private static final ByteBuffer END_OF_FRAMES = ByteBuffer.allocateDirect(0);
+
     private byte[] conf;
     private Logger logger;
+    private DecodingOptions options;
+    // Reused across frames when frames have to be copied to the Java heap.
+    private byte[] heapFrame = null;
+
+    /**
+     * The DecodingOptions class controls how videos are decoded for tracking,
+     * trading tracking accuracy for throughput.
+     */
+    public static class DecodingOptions implements Serializable {
+
+        private static final long serialVersionUID = 4530316262416271468L;
+
+        /**
+         * Number of decoded frames buffered between a decoding thread and the tracking thread.
+         * Non-positive values mean decoding and tracking in turn in the calling thread.
+         */
+        public int pipelineDepth = 0;
+        /**
+         * Number of threads FFmpeg decodes each video with. 0 lets FFmpeg decide by the number of cores.
+         */
+        public int numDecoderThreads = 1;
+        /**
+         * Track on one frame in every frameStride frames. Skipped frames are still decoded,
+         * as later frames depend on them, but are not converted.
+         */
+        public int frameStride = 1;
+        /**
+         * Frames higher than this are downscaled to this height, keeping the aspect ratio, before tracking.
+         * Non-positive values mean tracking at the source resolution.
+         */
+        public int maxFrameHeight = 0;
+    }
 
     public BasicTracker(@Nonnull byte[] conf) {
         this(conf, null);
@@ -70,7 +125,27 @@ public class BasicTracker implements Tracker {
      */
     public BasicTracker(@Nonnull byte[] conf,
                         @Nullable Logger logger) {
+        this(conf, new DecodingOptions(), logger);
+    }
+
+    /**
+     * Construct a tracker with a configuration and options of decoding.
+     * <p>
+     * With a positive pipeline depth, videos are decoded in a separate thread while the tracker works
+     * on frames decoded before. Decoded frames are passed through a ring of pre-allocated buffers.
+     * When all of them are filled, the decoder waits for the tracker to consume one.
+     * <p>
+     * Tracklets are always reported in frame indices and coordinates of the source video,
+     * whatever frame stride and resolution the tracker works at.
+     *
+     * @param conf    The byte data of the configuration file.
+     * @param options Options of decoding.
+     */
+    public BasicTracker(@Nonnull byte[] conf,
+                        @Nonnull DecodingOptions options,
+                        @Nullable Logger logger) {
         this.conf = conf;
+        this.options = options;
         if (logger == null) {
             this.logger = new ConsoleLogger();
         } else {
@@ -87,21 +162,246 @@ public class BasicTracker implements Tracker {
     @Nonnull
     @Override
     public Tracklet[] track(@Nonnull InputStream videoStream) throws FrameGrabber.Exception {
-        FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoStream);
-        av_log_set_level(AV_LOG_QUIET);
-        frameGrabber.start();
-        logger.debug("Initialized video decoder!");
+        return track(videoStream, 0, -1);
+    }
+
+    /**
+     * Perform pedestrian tracking on a segment of a video.
+     * Tracklets are reported in frame indices of the whole video, and their serial numbers
+     * only identify them within the segment.
+     *
+     * @param videoStream the video stream to conduct tracking on.
+     * @param startFrame  index of the first frame of the segment.
+     * @param numFrames   number of frames of the segment. Non-positive values mean till the end of the video.
+     * @return a set of tracklets of pedestrians.
+     */
+    @Nonnull
+    public Tracklet[] track(@Nonnull InputStream videoStream,
+                            int startFrame,
+                            int numFrames) throws FrameGrabber.Exception {
+        return track(videoStream, startFrame, numFrames, 0, null);
+    }
+
+    /**
+     * Perform pedestrian tracking on a video, passing out tracklets of targets that have left
+     * while tracking continues, so that they need not be held till the end of the video.
+     * <p>
+     * Tracklets are numbered in the order they finish. Those passed out early do not know the total number
+     * of tracklets in the video, so their {@link Tracklet#numTracklets} are left as -1,
+     * while the tracklets returned at the end carry the total.
+     * The last finished tracklet is held back and returned at the end, so unless the video has no tracklet,
+     * at least one tracklet carrying the total is returned, and those passed out early are always numbered
+     * from 0 contiguously. Given the same video and options, the same tracklets are passed out in the same order.
+     * If the native library cannot report finished targets, all the tracklets are returned at the end.
+     *
+     * @param videoStream the video stream to conduct tracking on.
+     * @param pollFrames  number of frames tracked between polls of finished targets.
+     * @param onFinished  function called in the calling thread with each tracklet finished before the end.
+     * @return tracklets not passed out before the end.
+     */
+    @Nonnull
+    public Tracklet[] track(@Nonnull InputStream videoStream,
+                            int pollFrames,
+                            @Nonnull Consumer<Tracklet> onFinished) throws FrameGrabber.Exception {
+        return track(videoStream, 0, -1, pollFrames, onFinished);
+    }
+
+    @Nonnull
+    private Tracklet[] track(@Nonnull InputStream videoStream,
+                             int startFrame,
+                             int numFrames,
+                             int pollFrames,
+                             @Nullable Consumer<Tracklet> onFinished) throws FrameGrabber.Exception {
+        final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoStream);
+        try {
+            av_log_set_level(AV_LOG_QUIET);
+            frameGrabber.setVideoOption("threads", "" + options.numDecoderThreads);
+            frameGrabber.start();
+            final int srcHeight = frameGrabber.getImageHeight();
+            if (options.maxFrameHeight > 0 && srcHeight > options.maxFrameHeight) {
+                // The scaler converting decoded frames to BGR also resizes them.
+                final int width = frameGrabber.getImageWidth() * options.maxFrameHeight / srcHeight;
+                frameGrabber.setImageWidth(width - width % 2);
+                frameGrabber.setImageHeight(options.maxFrameHeight);
+            }
+            final double scale = (double) srcHeight / frameGrabber.getImageHeight();
+            if (startFrame > 0) {
+                // Seek to the key frame before, then decode till the start frame.
+                frameGrabber.setFrameNumber(startFrame);
+            }
+            final int firstFrame = frameGrabber.getFrameNumber();
+            final int stride = Math.max(1, options.frameStride);
+            final int maxFrames = numFrames > 0 ? (numFrames + stride - 1) / stride : Integer.MAX_VALUE;
+            logger.debug("Initialized video decoder!");
+
+            long trackerPointer = initialize(frameGrabber.getImageWidth(), frameGrabber.getImageHeight(), 3, conf);
+            logger.debug("Initialized tracker!");
+
+            final FinishedTargetEmitter emitter = onFinished != null && pollFrames > 0
+                    ? new FinishedTargetEmitter(pollFrames, onFinished, firstFrame, scale)
+                    : null;
+            final Tracklet[] targets;
+            try {
+                final int cnt = options.pipelineDepth > 0
+                        ? trackPipelined(frameGrabber, trackerPointer, maxFrames, emitter)
+                        : trackInTurn(frameGrabber, trackerPointer, maxFrames, emitter);
+
+                logger.debug("Totally processed " + cnt + " framed!");
+                logger.debug("Getting targets...");
+                targets = getTargets(trackerPointer);
+                logger.debug("Got " + targets.length + " targets!");
+            } finally {
+                free(trackerPointer);
+            }
+
+            final int numFinished = emitter == null ? 0 : emitter.numFinished;
+            for (int i = 0; i < targets.length; ++i) {
+                targets[i].id.serialNumber = numFinished + i;
+                toSourceGeometry(targets[i], firstFrame, scale);
+            }
+            if (emitter == null || emitter.heldBack == null) {
+                for (Tracklet target : targets) {
+                    target.numTracklets = targets.length;
+                }
+                return targets;
+            }
+
+            // Return the held back tracklet together with the remaining targets.
+            final Tracklet[] tracklets = new Tracklet[targets.length + 1];
+            tracklets[0] = emitter.heldBack;
+            System.arraycopy(targets, 0, tracklets, 1, targets.length);
+            for (Tracklet tracklet : tracklets) {
+                tracklet.numTracklets = numFinished + targets.length;
+            }
+            return tracklets;
+        } finally {
+            // Release the native decoder even if decoding fails.
+            frameGrabber.stop();
+            frameGrabber.release();
+        }
+    }
+
+    /**
+     * The FinishedTargetEmitter class polls the native tracker for finished targets periodically,
+     * and passes them out, except the last one, which is held back till the end of tracking.
+     */
+    private final class FinishedTargetEmitter {
+        private final int pollFrames;
+        private final Consumer<Tracklet> onFinished;
+        private final int firstFrame;
+        private final double scale;
+        /* Number of finished targets got, including the held back one. */
+        private int numFinished = 0;
+        @Nullable
+        private Tracklet heldBack = null;
+
+        FinishedTargetEmitter(int pollFrames, @Nonnull Consumer<Tracklet> onFinished, int firstFrame, double scale) {
+            this.pollFrames = pollFrames;
+            this.onFinished = onFinished;
+            this.firstFrame = firstFrame;
+            this.scale = scale;
+        }
+
+        /**
+         * Called after each frame is tracked.
+         *
+         * @param trackerPointer the pointer of the native tracker.
+         * @param numTracked     number of frames tracked so far.
+         */
+        void onFrameTracked(long trackerPointer, int numTracked) {
+            if (numTracked % pollFrames != 0 || !finishedTargetsSupported) {
+                return;
+            }
+            final Tracklet[] finished;
+            try {
+                finished = getFinishedTargets(trackerPointer);
+            } catch (UnsatisfiedLinkError e) {
+                logger.warn("Native tracker cannot report finished targets, so tracklets are got at the end", e);
+                finishedTargetsSupported = false;
+                return;
+            }
+            for (Tracklet tracklet : finished) {
+                tracklet.id.serialNumber = numFinished++;
+                tracklet.numTracklets = -1;
+                toSourceGeometry(tracklet, firstFrame, scale);
+                if (heldBack != null) {
+                    onFinished.accept(heldBack);
+                }
+                heldBack = tracklet;
+            }
+        }
+    }
 
-        long trackerPointer = initialize(frameGrabber.getImageWidth(), frameGrabber.getImageHeight(), 3, conf);
-        logger.debug("Initialized tracker!");
+    /**
+     * Grab the next frame to track, skipping frames according to the frame stride.
+     *
+     * @param skip whether to skip frames before grabbing, i.e., whether some frame has been grabbed before.
+     * @return the frame, or null at the end of the video.
+     * @throws FrameGrabber.Exception on failure decoding.
+     */
+    @Nullable
+    private Frame grabNext(@Nonnull FFmpegFrameGrabber frameGrabber, boolean skip) throws FrameGrabber.Exception {
+        for (int i = 1; skip && i < options.frameStride; ++i) {
+            if (frameGrabber.grabFrame(false, true, false, false) == null) {
+                return null;
+            }
+        }
+        return frameGrabber.grabImage();
+    }
 
+    /**
+     * Convert frame indices and bounding boxes of a tracklet from the frames the tracker worked on
+     * to the source video. Patches are resized along with their bounding boxes.
+     *
+     * @param tracklet   a tracklet from the tracker.
+     * @param firstFrame index of the first frame fed to the tracker in the source video.
+     * @param scale      ratio of the source resolution to the resolution tracked at.
+     */
+    private void toSourceGeometry(@Nonnull Tracklet tracklet, int firstFrame, double scale) {
+        if (options.frameStride > 1) {
+            tracklet.startFrameIndex *= options.frameStride;
+            tracklet.frameStride = options.frameStride;
+        }
+        tracklet.startFrameIndex += firstFrame;
+        if (scale == 1) {
+            return;
+        }
+        for (Tracklet.BoundingBox box : tracklet.locationSequence) {
+            final int width = (int) Math.round(box.width * scale);
+            final int height = (int) Math.round(box.height * scale);
+            if (box.hasPatch() && width > 0 && height > 0) {
+                final opencv_core.Mat patch = new opencv_core.Mat(height, width, CV_8UC3);
+                resize(box.getImage(), patch, new opencv_core.Size(width, height), 0, 0, INTER_AREA);
+                final byte[] patchData = new byte[width * height * 3];
+                patch.data().get(patchData);
+                box.patchData = patchData;
+            }
+            box.x = (int) Math.round(box.x * scale);
+            box.y = (int) Math.round(box.y * scale);
+            box.width = width;
+            box.height = height;
+        }
+    }
+
+    /**
+     * Decode frames and feed them into the tracker in turn in the calling thread.
+     *
+     * @param maxFrames maximum number of frames to track.
+     * @param emitter   emitter of finished targets, or null not to emit targets before the end.
+     * @return number of frames tracked.
+     */
+    private int trackInTurn(@Nonnull FFmpegFrameGrabber frameGrabber,
+                            long trackerPointer,
+                            int maxFrames,
+                            @Nullable FinishedTargetEmitter emitter) {
+        final FrameBuffer frameBuffer = new FrameBuffer();
         int cnt = 0;
         // Every time a frame is retrieved during decoding, it is immediately fed into the tracker,
         // so as to save runtime memory.
-        while (true) {
+        while (cnt < maxFrames) {
             Frame frame;
             try {
-                frame = frameGrabber.grabImage();
+                frame = grabNext(frameGrabber, cnt > 0);
             } catch (FrameGrabber.Exception e) {
                 logger.error("On grabImage: " + e);
                 break;
@@ -109,31 +409,178 @@ public class BasicTracker implements Tracker {
             if (frame == null) {
                 break;
             }
-            final byte[] buf = new byte[frame.imageHeight * frame.imageWidth * frame.imageChannels];
-            final opencv_core.Mat cvFrame = new OpenCVFrameConverter.ToMat().convert(frame);
-            cvFrame.data().get(buf);
-            int ret = feedFrame(trackerPointer, buf);
+            final int ret = feed(trackerPointer, frameBuffer.wrap(frame));
             if (ret != 0) {
                 break;
             }
             ++cnt;
+            if (emitter != null) {
+                emitter.onFrameTracked(trackerPointer, cnt);
+            }
             if (cnt % 1000 == 0) {
                 logger.debug("Tracked " + cnt + " frames!");
             }
         }
+        return cnt;
+    }
+
+    /**
+     * Decode frames in a separate thread, and feed them into the tracker in the calling thread.
+     *
+     * @param maxFrames maximum number of frames to track.
+     * @param emitter   emitter of finished targets, or null not to emit targets before the end.
+     * @return number of frames tracked.
+     */
+    private int trackPipelined(@Nonnull FFmpegFrameGrabber frameGrabber,
+                               long trackerPointer,
+                               int maxFrames,
+                               @Nullable FinishedTargetEmitter emitter) {
+        final int frameSize = frameGrabber.getImageWidth() * frameGrabber.getImageHeight() * 3;
+        final BlockingQueue<ByteBuffer> emptyBuffers = new ArrayBlockingQueue<>(options.pipelineDepth);
+        // One more slot for the end mark, so that the decoder never waits to put it.
+        final BlockingQueue<ByteBuffer> filledBuffers = new ArrayBlockingQueue<>(options.pipelineDepth + 1);
+        for (int i = 0; i < options.pipelineDepth; ++i) {
+            emptyBuffers.add(ByteBuffer.allocateDirect(frameSize));
+        }
+
+        final Thread decoder = new Thread(() -> {
+            try {
+                for (int numDecoded = 0; numDecoded < maxFrames; ++numDecoded) {
+                    final ByteBuffer buf = emptyBuffers.take();
+                    final Frame frame;
+                    try {
+                        frame = grabNext(frameGrabber, numDecoded > 0);
+                    } catch (FrameGrabber.Exception e) {
+                        logger.error("On grabImage: " + e);
+                        break;
+                    }
+                    if (frame == null) {
+                        break;
+                    }
+                    FrameBuffer.pack(frame, buf);
+                    filledBuffers.put(buf);
+                }
+            } catch (InterruptedException ignored) {
+                // The tracker has stopped consuming frames.
+            } catch (RuntimeException e) {
+                logger.error("During decoding", e);
+            } finally {
+                filledBuffers.offer(END_OF_FRAMES);
+            }
+        }, "basic-tracker-decoder");
+        decoder.setDaemon(true);
+        decoder.start();
+
+        int cnt = 0;
+        try {
+            while (true) {
+                final ByteBuffer buf = filledBuffers.take();
+                if (buf == END_OF_FRAMES) {
+                    break;
+                }
+                final int ret = feed(trackerPointer, buf);
+                emptyBuffers.put(buf);
+                if (ret != 0) {
+                    break;
+                }
+                ++cnt;
+                if (emitter != null) {
+                    emitter.onFrameTracked(trackerPointer, cnt);
+                }
+                if (cnt % 1000 == 0) {
+                    logger.debug("Tracked " + cnt + " frames!");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            decoder.interrupt();
+            try {
+                decoder.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return cnt;
+    }
 
-        logger.debug("Totally processed " + cnt + " framed!");
-        logger.debug("Getting targets...");
-        Tracklet[] targets = getTargets(trackerPointer);
-        logger.debug("Got " + targets.length + " targets!");
-        free(trackerPointer);
+    /**
+     * Feed a frame into the tracker through a direct buffer, or through a byte array
+     * if the native library does not support direct buffers.
+     *
+     * @param p     The pointer of an initialized tracker.
+     * @param frame A direct buffer whose whole capacity holds BGR bytes of a decoded frame.
+     * @return 0 on success and -1 on failure.
+     */
+    private int feed(long p, @Nonnull ByteBuffer frame) {
+        if (directFeedSupported) {
+            try {
+                return feedFrameDirect(p, frame);
+            } catch (UnsatisfiedLinkError e) {
+                logger.warn("Native tracker does not accept direct buffers, so frames are copied", e);
+                directFeedSupported = false;
+            }
+        }
+        if (heapFrame == null || heapFrame.length != frame.capacity()) {
+            heapFrame = new byte[frame.capacity()];
+        }
+        ((ByteBuffer) frame.duplicate().clear()).get(heapFrame);
+        return feedFrame(p, heapFrame);
+    }
+
+    /**
+     * The FrameBuffer class hands decoded BGR frames to the native tracker without allocating per frame.
+     * Frames whose rows are contiguous are passed as the buffer the decoder decoded them into.
+     * Otherwise, rows are packed into a direct buffer allocated once and reused for all frames of the same size.
+     * Either way, the buffer is only valid until the next frame is grabbed or wrapped.
+     */
+    static final class FrameBuffer {
+        private ByteBuffer packed = null;
 
-        for (int i = 0; i < targets.length; ++i) {
-            targets[i].numTracklets = targets.length;
-            targets[i].id.serialNumber = i;
+        /**
+         * Copy the rows of a frame into a buffer without padding.
+         *
+         * @param frame a frame of unsigned bytes grabbed by a {@link FFmpegFrameGrabber}.
+         * @param dst   a buffer whose capacity is exactly height * width * channels of the frame.
+         * @throws IllegalArgumentException if the buffer does not fit the frame.
+         */
+        static void pack(@Nonnull Frame frame, @Nonnull ByteBuffer dst) {
+            final int rowBytes = frame.imageWidth * frame.imageChannels;
+            if (dst.capacity() != rowBytes * frame.imageHeight) {
+                throw new IllegalArgumentException("Frame of " + frame.imageWidth + "x" + frame.imageHeight
+                        + "x" + frame.imageChannels + " does not fit in a buffer of " + dst.capacity() + " bytes");
+            }
+            final ByteBuffer image = ((ByteBuffer) frame.image[0]).duplicate();
+            dst.clear();
+            for (int row = 0; row < frame.imageHeight; ++row) {
+                image.limit(row * frame.imageStride + rowBytes);
+                image.position(row * frame.imageStride);
+                dst.put(image);
+            }
+            dst.flip();
         }
 
-        return targets;
+        /**
+         * @param frame a frame of unsigned bytes grabbed by a {@link FFmpegFrameGrabber}.
+         * @return a direct buffer whose whole capacity holds the height * width * channels bytes of the frame.
+         */
+        @Nonnull
+        ByteBuffer wrap(@Nonnull Frame frame) {
+            final int rowBytes = frame.imageWidth * frame.imageChannels;
+            final int size = rowBytes * frame.imageHeight;
+            final ByteBuffer image = (ByteBuffer) frame.image[0];
+            if (image.isDirect() && frame.imageStride == rowBytes) {
+                final ByteBuffer contiguous = image.duplicate();
+                contiguous.position(0);
+                contiguous.limit(size);
+                return contiguous.slice();
+            }
+            if (packed == null || packed.capacity() != size) {
+                packed = ByteBuffer.allocateDirect(size);
+            }
+            pack(frame, packed);
+            return packed;
+        }
     }
 
     /**
@@ -160,6 +607,20 @@ public class BasicTracker implements Tracker {
     private native int feedFrame(long p,
                                  @Nonnull byte[] frame);
 
+    /**
+     * Feed a frame into the tracker from native memory, without copying it to the Java heap.
+     * The tracker is expected to read the frame before returning, as the memory is reused for later frames.
+     * <p>
+     * It is not an overload of {@link #feedFrame(long, byte[])}, since the JVM binds overloads to the short
+     * JNI name first, which would pass the buffer to the byte array implementation of older libraries.
+     *
+     * @param p     The pointer of an initialized tracker.
+     * @param frame A direct buffer whose whole capacity holds BGR bytes of a decoded frame.
+     * @return 0 on success and -1 on failure.
+     */
+    private native int feedFrameDirect(long p,
+                                       @Nonnull ByteBuffer frame);
+
     /**
      * Get tracked targets in currently input frames.
      *
@@ -168,6 +629,15 @@ public class BasicTracker implements Tracker {
      */
     private native Tracklet[] getTargets(long p);
 
+    /**
+     * Get targets which have left, and release them in the tracker.
+     * Each target is returned only once, and not returned by {@link #getTargets(long)} any more.
+     *
+     * @param p the pointer of an initialized tracker the user has fed frames to.
+     * @return an array of tracklets, each representing a finished target.
+     */
+    private native Tracklet[] getFinishedTargets(long p);
+
     /**
      * Free the native tracker.
      *
@@ -23,6 +23,8 @@ import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -63,6 +65,12 @@ public class Tracklet implements Serializable, Cloneable {
      */
     @SerializedName("run-frame-index")
     public int startFrameIndex = -1;
+    /**
+     * Number of frames of the source video between consecutive bounding boxes,
+     * when the tracker only worked on some of the frames. Values below 2 mean every frame.
+     */
+    @SerializedName("frame-stride")
+    public int frameStride = 1;
     /**
      * A sequence of locations (as a form of BoundingBox) of the pedestrian
      * at each moment in the tracklet.
@@ -153,7 +161,7 @@ public class Tracklet implements Serializable, Cloneable {
             case 0:
                 // Clear all patch data.
                 for (BoundingBox box : locationSequence) {
-                    box.patchData = null;
+                    box.clearPatch();
                 }
                 break;
             default:
@@ -163,7 +171,7 @@ public class Tracklet implements Serializable, Cloneable {
                     final int start = (locationSequence.length - (numSamples - 1) * interval) / 2;
                     for (int i = 0; i < locationSequence.length; ++i) {
                         if (((i - start) % interval) != 0) {
-                            locationSequence[i].patchData = null;
+                            locationSequence[i].clearPatch();
                         }
                     }
                 }
@@ -174,7 +182,7 @@ public class Tracklet implements Serializable, Cloneable {
     public Collection<BoundingBox> getSamples() {
         List<BoundingBox> samples = new ArrayList<>();
         for (BoundingBox box : locationSequence) {
-            if (box.patchData != null) {
+            if (box.hasPatch()) {
                 samples.add(box);
             }
         }
@@ -224,6 +232,81 @@ public class Tracklet implements Serializable, Cloneable {
          */
         public byte[] patchData = null;
 
+        /**
+         * A read-only view of the patch bytes inside a received message.
+         * When it is set, {@link #patchData} is left as null and only filled on demand,
+         * so that patches are not copied out of the message unless they are really used.
+         */
+        private transient ByteBuffer patchSlice = null;
+
+        /**
+         * Let the bounding box use a slice of a buffer as its patch data without copying it.
+         * The content of the slice must not be modified afterwards.
+         *
+         * @param slice a buffer whose remaining bytes are the patch data.
+         */
+        public void wrapPatch(@Nonnull ByteBuffer slice) {
+            patchSlice = slice.slice().asReadOnlyBuffer();
+            patchData = null;
+        }
+
+        /**
+         * @return whether the bounding box contains patch data.
+         */
+        public boolean hasPatch() {
+            return patchData != null || patchSlice != null;
+        }
+
+        /**
+         * @return length of the patch data in bytes, or 0 if there is no patch data.
+         */
+        public int getPatchLength() {
+            if (patchData != null) {
+                return patchData.length;
+            }
+            return patchSlice == null ? 0 : patchSlice.remaining();
+        }
+
+        /**
+         * Get the patch data as a byte array. If the patch data is only held as a slice of a message,
+         * it is copied out at the first call.
+         *
+         * @return the patch data, or null if there is no patch data.
+         */
+        public byte[] getPatchData() {
+            if (patchData == null && patchSlice != null) {
+                patchData = new byte[patchSlice.remaining()];
+                patchSlice.duplicate().get(patchData);
+                patchSlice = null;
+            }
+            return patchData;
+        }
+
+        /**
+         * Clear the patch data.
+         */
+        public void clearPatch() {
+            patchData = null;
+            patchSlice = null;
+        }
+
+        /**
+         * Write the bounding box into a buffer in the format of {@link #toBytes()}.
+         *
+         * @param buf buffer with at least 16 + {@link #getPatchLength()} remaining bytes.
+         */
+        public void writeTo(@Nonnull ByteBuffer buf) {
+            buf.putInt(x);
+            buf.putInt(y);
+            buf.putInt(width);
+            buf.putInt(height);
+            if (patchData != null) {
+                buf.put(patchData);
+            } else if (patchSlice != null) {
+                buf.put(patchSlice.duplicate());
+            }
+        }
+
         /**
          * Transform the bounding box to a Json string.
          * The string contains location information only (no pixel data).
@@ -242,14 +325,8 @@ public class Tracklet implements Serializable, Cloneable {
          * then width * height * 3 bytes representing the pixels in the patch.
          */
         public byte[] toBytes() {
-            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 4 + (patchData == null ? 0 : patchData.length));
-            buf.putInt(x);
-            buf.putInt(y);
-            buf.putInt(width);
-            buf.putInt(height);
-            if (patchData != null) {
-                buf.put(patchData);
-            }
+            ByteBuffer buf = ByteBuffer.allocate(Integer.BYTES * 4 + getPatchLength());
+            writeTo(buf);
             return buf.array();
         }
 
@@ -258,13 +335,26 @@ public class Tracklet implements Serializable, Cloneable {
          * @return a OpenCV Mat (by Bytedeco) with CV_8SC3 data form.
          */
         public opencv_core.Mat getImage() {
-            if (patchData == null) {
+            if (!hasPatch()) {
                 throw new UnsupportedOperationException(
                         "This bounding box does not contain pixel data, so does not support transferring into image.");
             }
             opencv_core.Mat image = new opencv_core.Mat(height, width, CV_8UC3);
-            image.data().put(patchData);
+            if (patchData != null) {
+                image.data().put(patchData);
+            } else {
+                // Copy directly from the message into the image.
+                final BytePointer data = image.data();
+                data.capacity(patchSlice.remaining());
+                data.asByteBuffer().put(patchSlice.duplicate());
+            }
             return image;
         }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            // The slice is not serializable, so materialize it first.
+            getPatchData();
+            out.defaultWriteObject();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.alg.pedestrian.tracking;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The TrackletStitcher class joins tracklets tracked separately on consecutive segments of a video
+ * into tracklets of the whole video.
+ * <p>
+ * Consecutive segments are expected to overlap by some frames. A tracklet of a segment is joined with
+ * a tracklet of the previous segment if their bounding boxes in the common frames overlap enough
+ * on average, measured by intersection over union. Pairs are joined greedily from the best matching one,
+ * and each tracklet is joined at most once on each side, so a pedestrian crossing several segments
+ * is chained into one tracklet.
+ */
+public class TrackletStitcher {
+
+    /**
+     * Minimum mean intersection over union of bounding boxes in the common frames
+     * for two tracklets to be joined by default.
+     */
+    public static final double DEFAULT_MIN_IOU = 0.5;
+
+    private final double minIoU;
+
+    public TrackletStitcher() {
+        this(DEFAULT_MIN_IOU);
+    }
+
+    /**
+     * @param minIoU minimum mean intersection over union of bounding boxes in the common frames
+     *               for two tracklets to be joined.
+     */
+    public TrackletStitcher(double minIoU) {
+        this.minIoU = minIoU;
+    }
+
+    private static int strideOf(@Nonnull Tracklet tracklet) {
+        return Math.max(1, tracklet.frameStride);
+    }
+
+    private static int endFrameOf(@Nonnull Tracklet tracklet) {
+        return tracklet.startFrameIndex + (tracklet.locationSequence.length - 1) * strideOf(tracklet);
+    }
+
+    private static double iou(@Nonnull Tracklet.BoundingBox a, @Nonnull Tracklet.BoundingBox b) {
+        final long w = Math.min(a.x + a.width, b.x + b.width) - Math.max(a.x, b.x);
+        final long h = Math.min(a.y + a.height, b.y + b.height) - Math.max(a.y, b.y);
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
+        final long intersection = w * h;
+        return (double) intersection / ((long) a.width * a.height + (long) b.width * b.height - intersection);
+    }
+
+    /**
+     * Compute the mean intersection over union of bounding boxes of two tracklets in their common frames.
+     *
+     * @return the mean, or 0 if they have no common frame.
+     */
+    static double meanIoU(@Nonnull Tracklet earlier, @Nonnull Tracklet later) {
+        final int stride = strideOf(earlier);
+        if (strideOf(later) != stride) {
+            return 0;
+        }
+        double sum = 0;
+        int cnt = 0;
+        final int end = Math.min(endFrameOf(earlier), endFrameOf(later));
+        for (int frame = later.startFrameIndex; frame <= end; frame += stride) {
+            if (frame < earlier.startFrameIndex || (frame - earlier.startFrameIndex) % stride != 0) {
+                continue;
+            }
+            sum += iou(earlier.locationSequence[(frame - earlier.startFrameIndex) / stride],
+                    later.locationSequence[(frame - later.startFrameIndex) / stride]);
+            ++cnt;
+        }
+        return cnt == 0 ? 0 : sum / cnt;
+    }
+
+    /**
+     * Join a tracklet with a later one. Bounding boxes of the earlier tracklet in the common frames
+     * are replaced by those of the later one.
+     */
+    private static void join(@Nonnull Tracklet earlier, @Nonnull Tracklet later) {
+        final int numKept = Math.max(0, Math.min(earlier.locationSequence.length,
+                (later.startFrameIndex - earlier.startFrameIndex + strideOf(earlier) - 1) / strideOf(earlier)));
+        if (numKept == 0) {
+            earlier.startFrameIndex = later.startFrameIndex;
+        }
+        final Tracklet.BoundingBox[] boxes = Arrays.copyOf(earlier.locationSequence,
+                numKept + later.locationSequence.length);
+        System.arraycopy(later.locationSequence, 0, boxes, numKept, later.locationSequence.length);
+        earlier.locationSequence = boxes;
+    }
+
+    private static class Match {
+        final int earlierIdx;
+        final int laterIdx;
+        final double iou;
+
+        Match(int earlierIdx, int laterIdx, double iou) {
+            this.earlierIdx = earlierIdx;
+            this.laterIdx = laterIdx;
+            this.iou = iou;
+        }
+    }
+
+    /**
+     * Stitch tracklets of consecutive segments of a video.
+     * Tracklets are numbered by their start frames, and given the total number of them.
+     *
+     * @param segments tracklets of each segment in order of time, in frame indices of the whole video.
+     * @return tracklets of the whole video.
+     */
+    @Nonnull
+    public Tracklet[] stitch(@Nonnull List<Tracklet[]> segments) {
+        final List<Tracklet> stitched = new ArrayList<>();
+        // Stitched tracklets which the previous segment contributes to, indexed as its tracklets.
+        List<Tracklet> previous = new ArrayList<>();
+        for (Tracklet[] segment : segments) {
+            final List<Match> matches = new ArrayList<>();
+            for (int i = 0; i < previous.size(); ++i) {
+                for (int j = 0; j < segment.length; ++j) {
+                    if (segment[j].locationSequence.length == 0) {
+                        continue;
+                    }
+                    final double iou = meanIoU(previous.get(i), segment[j]);
+                    if (iou >= minIoU) {
+                        matches.add(new Match(i, j, iou));
+                    }
+                }
+            }
+            matches.sort(Comparator.comparingDouble((Match match) -> match.iou).reversed());
+
+            final Tracklet[] joinedTo = new Tracklet[segment.length];
+            final boolean[] earlierJoined = new boolean[previous.size()];
+            for (Match match : matches) {
+                if (earlierJoined[match.earlierIdx] || joinedTo[match.laterIdx] != null) {
+                    continue;
+                }
+                earlierJoined[match.earlierIdx] = true;
+                joinedTo[match.laterIdx] = previous.get(match.earlierIdx);
+                join(joinedTo[match.laterIdx], segment[match.laterIdx]);
+            }
+
+            final List<Tracklet> current = new ArrayList<>(segment.length);
+            for (int j = 0; j < segment.length; ++j) {
+                if (joinedTo[j] == null) {
+                    stitched.add(segment[j]);
+                    current.add(segment[j]);
+                } else {
+                    current.add(joinedTo[j]);
+                }
+            }
+            previous = current;
+        }
+
+        stitched.sort(Comparator.comparingInt(tracklet -> tracklet.startFrameIndex));
+        final Tracklet[] result = stitched.toArray(new Tracklet[stitched.size()]);
+        for (int i = 0; i < result.length; ++i) {
+            result[i].id.serialNumber = i;
+            result[i].numTracklets = result.length;
+        }
+        return result;
+    }
+}
@@ -33,4 +33,27 @@ public interface Factory<T> extends Serializable {
      */
     @Nonnull
     T produce() throws Exception;
+
+    /**
+     * Prepare an object produced for its first use, e.g. by loading models or running a dummy input.
+     * Called by {@link Singleton#warmUp()}. Does nothing by default.
+     *
+     * @param obj An object produced by this factory.
+     * @throws Exception On failure warming up the object.
+     */
+    default void warmUp(@Nonnull T obj) throws Exception {
+    }
+
+    /**
+     * Release resources of an object produced. Called by {@link Singleton#close()}.
+     * Closes the object if it is {@link AutoCloseable} by default.
+     *
+     * @param obj An object produced by this factory.
+     * @throws Exception On failure closing the object.
+     */
+    default void close(@Nonnull T obj) throws Exception {
+        if (obj instanceof AutoCloseable) {
+            ((AutoCloseable) obj).close();
+        }
+    }
 }
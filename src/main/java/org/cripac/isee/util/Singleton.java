@@ -18,12 +18,22 @@
 package org.cripac.isee.util;
 
 
+import javax.annotation.Nonnull;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The class Singleton manages singletons of any types.
+ * <p>
+ * Each singleton is identified by a {@link Key}: the class of the instance plus the configuration
+ * it is created with, so that singletons of the same class created with different configurations,
+ * e.g. loggers of different applications in the same JVM, do not collide.
+ * Getting an existing instance takes no lock. Instances of different keys can be created at the same time.
+ * <p>
+ * The time taken to create each instance is recorded, so that cold-start costs are visible
+ * (see {@link #getCreationLatencies()}). All the instances are closed on JVM shutdown.
  *
  * @param <T> The type of the object.
  * @author Ken Yu, CRIPAC, 2016
@@ -33,44 +43,112 @@ public class Singleton<T> implements Serializable {
     private static final long serialVersionUID = -7565726994857167434L;
 
     /**
-     * Lazy-evaluated instance pool of all the classes.
+     * The Key class identifies a singleton by its class and configuration.
+     * Configuration values should implement {@link Object#equals(Object)} and {@link Object#hashCode()}
+     * by value, like strings and boxed primitives.
      */
-    private static volatile Map<Class<?>, Object> instancePool = null;
+    public static final class Key implements Serializable {
+
+        private static final long serialVersionUID = 3151425407312693405L;
+
+        private final Class<?> type;
+        private final List<Object> config;
+        private final int hash;
+
+        Key(@Nonnull Class<?> type, @Nonnull Object[] config) {
+            this.type = type;
+            this.config = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(config)));
+            this.hash = 31 * type.hashCode() + this.config.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hash == key.hash && type.equals(key.type) && config.equals(key.config);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return config.isEmpty() ? type.getName() : type.getName() + config;
+        }
+    }
+
+    /**
+     * An instance in the pool, with the factory that produced it.
+     */
+    private static final class Entry {
+        final Object inst;
+        final Factory<?> factory;
+
+        Entry(Object inst, Factory<?> factory) {
+            this.inst = inst;
+            this.factory = factory;
+        }
+    }
+
+    /**
+     * Instance pool of all the keys.
+     */
+    private static final Map<Key, Entry> instancePool = new ConcurrentHashMap<>();
+
+    /**
+     * Locks for creating instances, one per key, so that instances of different keys
+     * can be created at the same time.
+     */
+    private static final Map<Key, Object> creationLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Time in milliseconds taken to create the instance of each key.
+     */
+    private static final Map<Key, Long> creationLatencies = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(Singleton::closeAll));
+    }
 
     /**
      * Factory for creating a new instance if there is not instance in the pool
-     * of class T.
+     * of the key.
      */
     private final Factory<? extends T> objFactory;
 
     /**
-     * Class T.
+     * Key of the instance.
      */
-    private final Class<? extends T> type;
+    private final Key key;
 
     /**
      * Create a singleton manager of specified class T.
      *
      * @param objFactory Factory to create new instance of class T when instance of it
      *                   does not exist.
+     * @param type       Class of the instance.
+     * @param config     Configuration values the factory creates the instance with. Managers of the same class
+     *                   and equal configuration values share the same instance.
      * @throws Exception On failure creating a new instance.
      */
-    public <U extends T> Singleton(Factory<U> objFactory, Class<U> type) throws Exception {
+    public <U extends T> Singleton(Factory<U> objFactory, Class<U> type, Object... config) throws Exception {
         this.objFactory = objFactory;
-        this.type = type;
+        this.key = new Key(type, config);
     }
 
     /**
-     * Check existence of the instance pool.
+     * @return The key identifying the instance.
      */
-    private void checkPool() {
-        if (instancePool == null) {
-            synchronized (Singleton.class) {
-                if (instancePool == null) {
-                    instancePool = new HashMap<>();
-                }
-            }
-        }
+    @Nonnull
+    public Key getKey() {
+        return key;
     }
 
     /**
@@ -80,18 +158,83 @@ public class Singleton<T> implements Serializable {
      * @throws Exception On failure creating a new instance.
      */
     public T getInst() throws Exception {
-        checkPool();
-
-        if (!instancePool.containsKey(type)) {
-            synchronized (Singleton.class) {
-                if (!instancePool.containsKey(type)) {
-                    System.out.println("Reinitializing instance of " + type.getName());
-                    instancePool.put(type, objFactory.produce());
+        Entry entry = instancePool.get(key);
+        if (entry == null) {
+            synchronized (creationLocks.computeIfAbsent(key, k -> new Object())) {
+                entry = instancePool.get(key);
+                if (entry == null) {
+                    final long start = System.nanoTime();
+                    entry = new Entry(objFactory.produce(), objFactory);
+                    final long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                    creationLatencies.put(key, latency);
+                    instancePool.put(key, entry);
+                    System.out.println("Initialized instance of " + key + " in " + latency + "ms");
                 }
             }
         }
 
         //noinspection unchecked
-        return (T) instancePool.get(type);
+        return (T) entry.inst;
+    }
+
+    /**
+     * Create the instance if it does not exist, and let the factory prepare it for the first use.
+     *
+     * @return The singleton instance.
+     * @throws Exception On failure creating or warming up the instance.
+     */
+    public T warmUp() throws Exception {
+        final T inst = getInst();
+        //noinspection unchecked
+        ((Factory<T>) objFactory).warmUp(inst);
+        return inst;
+    }
+
+    /**
+     * Remove the instance from the pool and let the factory that produced it release it.
+     * Later calls to {@link #getInst()} create a new instance.
+     *
+     * @throws Exception On failure closing the instance.
+     */
+    public void close() throws Exception {
+        final Entry entry;
+        synchronized (creationLocks.computeIfAbsent(key, k -> new Object())) {
+            entry = instancePool.remove(key);
+        }
+        if (entry != null) {
+            close(entry);
+        }
+    }
+
+    private static void close(Entry entry) throws Exception {
+        //noinspection unchecked
+        ((Factory<Object>) entry.factory).close(entry.inst);
+    }
+
+    /**
+     * Close all the instances in the pool.
+     */
+    public static void closeAll() {
+        final Iterator<Entry> iterator = instancePool.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            try {
+                close(entry);
+            } catch (Exception ignored) {
+                // Closing on shutdown. Nothing else to do.
+            }
+        }
+    }
+
+    /**
+     * @return Time in milliseconds taken to create the instance of each key created in this JVM,
+     * sorted by key.
+     */
+    @Nonnull
+    public static SortedMap<String, Long> getCreationLatencies() {
+        final SortedMap<String, Long> latencies = new TreeMap<>();
+        creationLatencies.forEach((key, latency) -> latencies.put(key.toString(), latency));
+        return latencies;
     }
 }
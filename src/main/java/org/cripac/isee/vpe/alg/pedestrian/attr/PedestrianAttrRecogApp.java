@@ -23,6 +23,7 @@ import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.cripac.isee.alg.pedestrian.attr.*;
 import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
 import org.cripac.isee.vpe.alg.pedestrian.tracking.TrackletOrURL;
+import org.cripac.isee.vpe.common.CircuitBreaker;
 import org.cripac.isee.vpe.common.DataType;
 import org.cripac.isee.vpe.common.RobustExecutor;
 import org.cripac.isee.vpe.common.SparkStreamingApp;
@@ -33,6 +34,7 @@ import org.cripac.isee.vpe.debug.FakeRecognizer;
 import org.cripac.isee.util.Singleton;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.xml.sax.SAXException;
+import scala.Tuple2;
 
 import javax.annotation.Nonnull;
 import javax.xml.parsers.ParserConfigurationException;
@@ -141,12 +143,17 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
         private static final long serialVersionUID = -4672941060404428484L;
 
         private final Singleton<Recognizer> recognizerSingleton;
+        /**
+         * Whether the recognizer calls an external server, whose calls should be guarded by a circuit breaker.
+         */
+        private final boolean externRecognizer;
 
         public RecogStream(AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
 
             loggerSingleton.getInst().debug("Using Kafka brokers: " + propCenter.kafkaBootstrapServers);
 
+            externRecognizer = propCenter.algorithm == Algorithm.EXT;
             switch (propCenter.algorithm) {
                 case EXT:
                     recognizerSingleton = new Singleton<>(
@@ -154,7 +161,9 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
                                     propCenter.externAttrRecogServerAddr,
                                     propCenter.externAttrRecogServerPort,
                                     loggerSingleton.getInst()),
-                            ExternRecognizer.class);
+                            ExternRecognizer.class,
+                            propCenter.externAttrRecogServerAddr,
+                            propCenter.externAttrRecogServerPort);
                     break;
 //                case DeepMARCaffeBytedeco:
 //                    recognizerSingleton = new Singleton<>(
@@ -169,7 +178,8 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
                 case DeepMARCaffe2Native:
                     recognizerSingleton = new Singleton<>(
                             () -> new DeepMARCaffe2Native(propCenter.caffeGPU, loggerSingleton.getInst()),
-                            DeepMARCaffe2Native.class
+                            DeepMARCaffe2Native.class,
+                            propCenter.caffeGPU
                     );
                     break;
                 case Fake:
@@ -187,61 +197,104 @@ public class PedestrianAttrRecogApp extends SparkStreamingApp {
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
             // Extract tracklets from the data.
             // Recognize attributes from the tracklets.
-            this.filter(globalStreamMap, TRACKLET_PORT)
-                    .foreachRDD(rdd -> rdd.glom().foreach(kvList -> {
-                        Logger logger = loggerSingleton.getInst();
-                        long startTime = System.currentTimeMillis();
-                        final long[] recognizerCostTime = {0};
-                        final int[] numSamples = {0};
-                        kvList.forEach(kv -> {
-                            try {
-                                final UUID taskID = kv._1();
-                                final TaskData taskData = kv._2();
-                                logger.debug("To recognize attributes for task " + taskID + "!");
-                                // Recognize attributes robustly.
-                                final Attributes attr = new RobustExecutor<>((Function<TrackletOrURL, Attributes>) tou -> {
-                                    final Tracklet t = tou.getTracklet();
-                                    long recogStartTime = System.currentTimeMillis();
-                                    final Attributes a = recognizerSingleton.getInst().recognize(t);
-                                    long recogEndTime = System.currentTimeMillis();
-                                    recognizerCostTime[0] += recogEndTime - recogStartTime;
-                                    numSamples[0] += t.getSamples().size();
-                                    a.trackletID = t.id;
-                                    return a;
-                                }).execute((TrackletOrURL) taskData.predecessorRes);
-                                logger.debug("Attributes retrieved for task " + taskID + "!");
+            forEachPartition(globalStreamMap, TRACKLET_PORT, this::recognize);
+        }
 
-                                // Find current node.
-                                final TaskData.ExecutionPlan.Node curNode = taskData.getDestNode(TRACKLET_PORT);
-                                // Get ports to output to.
-                                assert curNode != null;
-                                final List<TaskData.ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
-                                // Mark the current node as executed.
-                                curNode.markExecuted();
+        @Override
+        public Map<Port, DataHandler> getHandlers() {
+            return Collections.singletonMap(TRACKLET_PORT, this::recognize);
+        }
 
-                                output(outputPorts, taskData.executionPlan, attr, taskID);
-                            } catch (Exception e) {
-                                logger.error("During processing attributes.", e);
-                            }
-                        });
-                        if (kvList.size() > 0) {
-                            long endTime = System.currentTimeMillis();
-                            logger.info("Overall speed=" + ((endTime - startTime) / kvList.size())
-                                    + "ms per tracklet (totally " + kvList.size() + " tracklets)");
-                        }
-                        if (numSamples[0] > 0) {
-                            logger.info("Recognizer speed=" + (recognizerCostTime[0] / numSamples[0])
-                                    + "ms per sample (totally " + numSamples[0] + " samples)");
-                        }
-                    }));
+        @Override
+        public void warmUp() throws Exception {
+            super.warmUp();
+            recognizerSingleton.warmUp();
+        }
+
+        /**
+         * Recognize attributes of tracklets, and output the attributes.
+         *
+         * @param kvIter pairs of task IDs and TaskData containing tracklets.
+         * @throws Exception on failure getting the logger.
+         */
+        private void recognize(Iterator<Tuple2<UUID, TaskData>> kvIter) throws Exception {
+            final List<Tuple2<UUID, TaskData>> kvList = new ArrayList<>();
+            kvIter.forEachRemaining(kvList::add);
+            Logger logger = loggerSingleton.getInst();
+            long startTime = System.currentTimeMillis();
+            final long[] recognizerCostTime = {0};
+            final int[] numSamples = {0};
+            final OutputBatch outputBatch = new OutputBatch();
+            kvList.forEach(kv -> {
+                try {
+                    final UUID taskID = kv._1();
+                    final TaskData taskData = kv._2();
+                    logger.debug("To recognize attributes for task " + taskID + "!");
+                    // Recognize attributes robustly.
+                    final RobustExecutor<TrackletOrURL, Attributes> recogExecutor =
+                            new RobustExecutor<>((Function<TrackletOrURL, Attributes>) tou -> {
+                                final Tracklet t = tou.getTracklet();
+                                long recogStartTime = System.currentTimeMillis();
+                                final Attributes a = recognizerSingleton.getInst().recognize(t);
+                                long recogEndTime = System.currentTimeMillis();
+                                recognizerCostTime[0] += recogEndTime - recogStartTime;
+                                numSamples[0] += t.getSamples().size();
+                                a.trackletID = t.id;
+                                return a;
+                            });
+                    if (externRecognizer) {
+                        recogExecutor.withCircuitBreaker(CircuitBreaker.EXTERN_RECOGNIZER);
+                    }
+                    final Attributes attr = recogExecutor.execute((TrackletOrURL) taskData.predecessorRes);
+                    logger.debug("Attributes retrieved for task " + taskID + "!");
+
+                    // Find current node in a copy of the plan, so that the data stay intact to be diverted.
+                    final TaskData.ExecutionPlan plan = taskData.executionPlan.copy();
+                    final TaskData.ExecutionPlan.Node curNode =
+                            plan.getNode(taskData.getDestNode(TRACKLET_PORT).getID());
+                    // Get ports to output to.
+                    assert curNode != null;
+                    final List<TaskData.ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
+                    // Mark the current node as executed.
+                    curNode.markExecuted();
+
+                    outputBatch.output(outputPorts, plan, attr, taskID);
+                } catch (Exception e) {
+                    logger.error("During processing attributes.", e);
+                    divert(TRACKLET_PORT, kv._1(), kv._2());
+                }
+            });
+            try {
+                outputBatch.flush();
+            } catch (Exception e) {
+                logger.error("During outputting attributes.", e);
+                if (deadLetterQueue.isEnabled()) {
+                    // The attributes could not even be diverted, so fail rather than lose them.
+                    throw e;
+                }
+            }
+            if (kvList.size() > 0) {
+                long endTime = System.currentTimeMillis();
+                logger.info("Overall speed=" + ((endTime - startTime) / kvList.size())
+                        + "ms per tracklet (totally " + kvList.size() + " tracklets)");
+            }
+            if (numSamples[0] > 0) {
+                logger.info("Recognizer speed=" + (recognizerCostTime[0] / numSamples[0])
+                        + "ms per sample (totally " + numSamples[0] + " samples)");
+            }
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         /**
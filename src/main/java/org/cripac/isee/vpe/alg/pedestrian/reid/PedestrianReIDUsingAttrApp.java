@@ -30,13 +30,19 @@ import org.cripac.isee.vpe.common.DataType;
 import org.cripac.isee.vpe.common.RobustExecutor;
 import org.cripac.isee.vpe.common.SparkStreamingApp;
 import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.common.TrackletAffinityPartitioner;
+import org.cripac.isee.vpe.ctrl.Metrics;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.vpe.debug.FakePedestrianReIDerWithAttr;
+import org.cripac.isee.util.SerializationHelper;
 import org.cripac.isee.util.Singleton;
 import org.cripac.isee.vpe.util.logging.Logger;
+import org.cripac.isee.vpe.util.spark.SparkHelper;
 import scala.Tuple2;
 
+import javax.annotation.Nonnull;
+import java.io.Serializable;
 import java.util.*;
 
 /**
@@ -117,10 +123,30 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
 
         private Singleton<PedestrianReIDer> reidSingleton;
 
+        /**
+         * Partitioner for joining tracklets and attributes.
+         */
+        private final TrackletAffinityPartitioner joinPartitioner;
+        /**
+         * Whether input tracklets and attributes are already partitioned by {@link #joinPartitioner}.
+         */
+        private final boolean inputCoPartitioned;
+
         public ReIDStream(SystemPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
 
             bufDuration = propCenter.bufDuration;
+            joinPartitioner = new TrackletAffinityPartitioner(propCenter.kafkaNumPartitions);
+            final boolean affinityAligned = propCenter.isKafkaAffinityAligned()
+                    && propCenter.kafkaAffinityTypes.contains(DataType.TRACKLET)
+                    && propCenter.kafkaAffinityTypes.contains(DataType.ATTRIBUTES);
+            // Joining without shuffling pairs wrong data if Kafka places records by other partition numbers.
+            inputCoPartitioned = affinityAligned && joinPartitioner.matchesTopics(propCenter,
+                    loggerSingleton.getInst(), DataType.TRACKLET, DataType.ATTRIBUTES);
+            if (affinityAligned && !inputCoPartitioned) {
+                loggerSingleton.getInst().warn("Tracklets and attributes are joined with shuffling"
+                        + " since their topics are not partitioned as configured");
+            }
 
             reidSingleton = new Singleton<>(FakePedestrianReIDerWithAttr::new, FakePedestrianReIDerWithAttr.class);
         }
@@ -129,22 +155,30 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
-            final JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, TaskData> trackletDStream =
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+            JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, TaskData> trackletDStream =
                     filter(globalStreamMap, TRACKLET_PORT)
                             .mapToPair(kvPair -> new Tuple2<>(
                                     new Tuple2<>(kvPair._1(), ((Tracklet) kvPair._2().predecessorRes).id),
                                     kvPair._2()));
-            final JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, TaskData> attrDStream =
+            JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, TaskData> attrDStream =
                     filter(globalStreamMap, ATTR_PORT)
                             .mapToPair(kvPair -> new Tuple2<>(
                                     new Tuple2<>(kvPair._1(), ((Attributes) kvPair._2().predecessorRes).trackletID),
                                     kvPair._2()));
+            if (inputCoPartitioned) {
+                // Tracklets and attributes have been placed by Kafka in the partitions
+                // the join partitioner computes, so the joins below need no shuffling.
+                trackletDStream = trackletDStream.transformToPair(rdd ->
+                        SparkHelper.assumePartitioned(rdd, joinPartitioner));
+                attrDStream = attrDStream.transformToPair(rdd ->
+                        SparkHelper.assumePartitioned(rdd, joinPartitioner));
+            }
 
             // Read track with attribute bytes in parallel from Kafka.
             // Recover attributes from the bytes and extract the IDRANK of the track the
@@ -154,7 +188,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
 
             // Join the track globalStream and attribute globalStream, tolerating failure.
             final JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, Tuple2<Optional<TaskData>, Optional<TaskData>>>
-                    unsurelyJoinedDStream = trackletDStream.fullOuterJoin(attrDStream);
+                    unsurelyJoinedDStream = trackletDStream.fullOuterJoin(attrDStream, joinPartitioner);
 
             // Filter out instantly joined pairs.
             final JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, Tuple2<TaskData, TaskData>> instantlyJoinedDStream =
@@ -177,7 +211,7 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
                     unsurelyJoinedAttrDStream =
                     unjoinedTrackletDStream
                             .window(Durations.milliseconds(bufDuration))
-                            .rightOuterJoin(unjoinedAttrStream);
+                            .rightOuterJoin(unjoinedAttrStream, joinPartitioner);
 
             final JavaPairDStream<Tuple2<UUID, Tracklet.Identifier>, Tuple2<TaskData, TaskData>> lateAttrJoinedDStream =
                     unsurelyJoinedAttrDStream
@@ -189,57 +223,186 @@ public class PedestrianReIDUsingAttrApp extends SparkStreamingApp {
                             .join(unsurelyJoinedAttrDStream
                                     .filter(item -> (Boolean) (!item._2()._1().isPresent()))
                                     .mapValues(Tuple2::_2)
-                                    .window(Durations.milliseconds(bufDuration)));
+                                    .window(Durations.milliseconds(bufDuration)),
+                                    joinPartitioner);
 
             // Union the three track and attribute streams and assemble
             // their TaskData.
             final JavaPairDStream<UUID, TaskData> asmTrackletAttrDStream =
                     instantlyJoinedDStream.union(lateTrackletJoinedDStream)
                             .union(lateAttrJoinedDStream)
-                            .mapToPair(pack -> {
-                                UUID taskID = pack._1()._1();
-                                TaskData taskDataWithTracklet = pack._2()._1();
-                                TaskData taskDataWithAttr = pack._2()._2();
-
-                                taskDataWithTracklet.executionPlan.combine(taskDataWithAttr.executionPlan);
-                                TaskData asmTaskData = new TaskData(
-                                        taskDataWithTracklet.destPorts.values(),
-                                        taskDataWithTracklet.executionPlan,
-                                        new PedestrianInfo(
-                                                (TrackletOrURL) taskDataWithTracklet.predecessorRes,
-                                                (Attributes) taskDataWithAttr.predecessorRes));
-                                loggerSingleton.getInst().debug(
-                                        "Assembled track and attr of " + pack._1());
-                                return new Tuple2<>(taskID, asmTaskData);
-                            });
+                            .mapToPair(pack -> new Tuple2<>(pack._1()._1(),
+                                    assemble(pack._1()._1(), pack._2()._1(), pack._2()._2())));
 
             // Union the two track with attribute streams and perform ReID.
             integralTrackletAttrDStream.union(asmTrackletAttrDStream)
-                    .foreachRDD(rdd -> rdd.foreach(kv -> {
-                        final Logger logger = loggerSingleton.getInst();
-                        try {
-                            UUID taskID = kv._1();
-                            final TaskData taskData = kv._2();
-                            final PedestrianInfo trackletWithAttr = (PedestrianInfo) taskData.predecessorRes;
-
-                            // Perform ReID.
-                            final int[] idRank = new RobustExecutor<Void, int[]>(
-                                    (Function0<int[]>) () -> reidSingleton.getInst().reid(trackletWithAttr)
-                            ).execute();
-
-                            // Find current node.
-                            final TaskData.ExecutionPlan.Node curNode = taskData.getDestNode(getPorts());
-                            // Get ports to output to.
-                            final List<TaskData.ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
-                            // Mark the current node as executed in advance.
-                            curNode.markExecuted();
-
-                            // Send to all the successor nodes.
-                            output(outputPorts, taskData.executionPlan, idRank, taskID);
-                        } catch (Exception e) {
-                            logger.error("During ReID", e);
-                        }
-                    }));
+                    .foreachRDD(rdd -> rdd.foreachPartition(this::reid));
+        }
+
+        /**
+         * Assemble a tracklet and its attributes into one TaskData.
+         *
+         * @param taskID                ID of the task.
+         * @param taskDataWithTracklet  TaskData containing the tracklet.
+         * @param taskDataWithAttr      TaskData containing the attributes.
+         * @return TaskData containing both.
+         * @throws Exception on failure getting the logger.
+         */
+        private TaskData assemble(UUID taskID,
+                                  TaskData taskDataWithTracklet,
+                                  TaskData taskDataWithAttr) throws Exception {
+            // Combine in a copy of the plan, for the received data may be cached and read again on retries.
+            final TaskData.ExecutionPlan plan = taskDataWithTracklet.executionPlan.copy();
+            plan.combine(taskDataWithAttr.executionPlan);
+            TaskData asmTaskData = new TaskData(
+                    taskDataWithTracklet.destPorts.values(),
+                    plan,
+                    new PedestrianInfo(
+                            (TrackletOrURL) taskDataWithTracklet.predecessorRes,
+                            (Attributes) taskDataWithAttr.predecessorRes));
+            loggerSingleton.getInst().debug("Assembled track and attr of " + taskID);
+            return asmTaskData;
+        }
+
+        /**
+         * Perform ReID on tracklets with attributes, and output the ID ranks.
+         *
+         * @param kvIter pairs of task IDs and TaskData containing tracklets with attributes.
+         * @throws Exception on failure getting the logger.
+         */
+        private void reid(Iterator<Tuple2<UUID, TaskData>> kvIter) throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            final OutputBatch outputBatch = new OutputBatch();
+            kvIter.forEachRemaining(kv -> {
+                try {
+                    UUID taskID = kv._1();
+                    final TaskData taskData = kv._2();
+                    final PedestrianInfo trackletWithAttr = (PedestrianInfo) taskData.predecessorRes;
+
+                    // Perform ReID.
+                    final int[] idRank = new RobustExecutor<Void, int[]>(
+                            (Function0<int[]>) () -> reidSingleton.getInst().reid(trackletWithAttr)
+                    ).execute();
+
+                    // Find current node in a copy of the plan, so that the data stay intact to be diverted.
+                    final TaskData.ExecutionPlan plan = taskData.executionPlan.copy();
+                    final TaskData.ExecutionPlan.Node curNode =
+                            plan.getNode(taskData.getDestNode(getPorts()).getID());
+                    // Get ports to output to.
+                    final List<TaskData.ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
+                    // Mark the current node as executed in advance.
+                    curNode.markExecuted();
+
+                    // Send to all the successor nodes.
+                    outputBatch.output(outputPorts, plan, idRank, taskID);
+                } catch (Exception e) {
+                    logger.error("During ReID", e);
+                    divert(TRACKLET_ATTR_PORT, kv._1(), kv._2());
+                }
+            });
+            try {
+                outputBatch.flush();
+            } catch (Exception e) {
+                logger.error("During outputting ReID results", e);
+                if (deadLetterQueue.isEnabled()) {
+                    // The results could not even be diverted, so fail rather than lose them.
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * Tracklet or attributes waiting for the other to arrive in the continuous runtime.
+         */
+        private static class PendingJoin implements Serializable {
+            private static final long serialVersionUID = 2941737358318806651L;
+            TaskData taskDataWithTracklet = null;
+            TaskData taskDataWithAttr = null;
+            final long since = System.currentTimeMillis();
+        }
+
+        /**
+         * Buffer for joining tracklets and attributes in the continuous runtime,
+         * keyed by task ID and tracklet serial number.
+         */
+        private transient HashMap<Tuple2<UUID, Integer>, PendingJoin> joinBuffer = null;
+
+        /**
+         * Join tracklets or attributes with those buffered in the continuous runtime, and perform ReID on the joined.
+         * Data which cannot find the other part within the buffering duration are dropped,
+         * like in the windowed joins of Spark Streaming.
+         *
+         * @param kvIter      pairs of task IDs and TaskData containing tracklets or attributes.
+         * @param isTracklets whether the data contain tracklets rather than attributes.
+         * @throws Exception on failure getting the logger.
+         */
+        private void joinAndReID(Iterator<Tuple2<UUID, TaskData>> kvIter, boolean isTracklets) throws Exception {
+            final List<Tuple2<UUID, TaskData>> joined = new ArrayList<>();
+            synchronized (this) {
+                if (joinBuffer == null) {
+                    joinBuffer = new HashMap<>();
+                }
+                final long now = System.currentTimeMillis();
+                final int sizeBefore = joinBuffer.size();
+                joinBuffer.values().removeIf(pending -> now - pending.since > bufDuration);
+                Metrics.add("reid.join.expired", sizeBefore - joinBuffer.size());
+
+                while (kvIter.hasNext()) {
+                    final Tuple2<UUID, TaskData> kv = kvIter.next();
+                    final Serializable res = kv._2().predecessorRes;
+                    final int serialNumber;
+                    if (!isTracklets) {
+                        serialNumber = ((Attributes) res).trackletID.serialNumber;
+                    } else if (res instanceof Tracklet) {
+                        serialNumber = ((Tracklet) res).id.serialNumber;
+                    } else {
+                        serialNumber = ((TrackletOrURL) res).getSerialNumber();
+                    }
+                    final Tuple2<UUID, Integer> key = new Tuple2<>(kv._1(), serialNumber);
+                    final PendingJoin pending = joinBuffer.computeIfAbsent(key, k -> new PendingJoin());
+                    if (isTracklets) {
+                        pending.taskDataWithTracklet = kv._2();
+                    } else {
+                        pending.taskDataWithAttr = kv._2();
+                    }
+                    if (pending.taskDataWithTracklet != null && pending.taskDataWithAttr != null) {
+                        joinBuffer.remove(key);
+                        joined.add(new Tuple2<>(kv._1(),
+                                assemble(kv._1(), pending.taskDataWithTracklet, pending.taskDataWithAttr)));
+                    }
+                }
+            }
+            reid(joined.iterator());
+        }
+
+        @Override
+        public Map<Port, DataHandler> getHandlers() {
+            final Map<Port, DataHandler> handlers = new HashMap<>();
+            handlers.put(TRACKLET_PORT, kvIter -> joinAndReID(kvIter, true));
+            handlers.put(ATTR_PORT, kvIter -> joinAndReID(kvIter, false));
+            handlers.put(TRACKLET_ATTR_PORT, this::reid);
+            return handlers;
+        }
+
+        @Override
+        public void warmUp() throws Exception {
+            super.warmUp();
+            reidSingleton.warmUp();
+        }
+
+        @Override
+        public synchronized byte[] snapshotState() throws Exception {
+            return joinBuffer == null || joinBuffer.isEmpty() ? null : SerializationHelper.serialize(joinBuffer);
+        }
+
+        @Override
+        public synchronized void restoreState(@Nonnull byte[] state) throws Exception {
+            joinBuffer = SerializationHelper.deserialize(state);
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         /**
@@ -26,25 +26,31 @@ import org.apache.kafka.common.KafkaException;
 import org.apache.spark.TaskContext;
 import org.apache.spark.api.java.function.Function0;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.cripac.isee.alg.pedestrian.tracking.BasicTracker;
-import org.cripac.isee.alg.pedestrian.tracking.Tracker;
 import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.alg.pedestrian.tracking.TrackletStitcher;
 import org.cripac.isee.vpe.common.*;
+import org.cripac.isee.vpe.ctrl.Metrics;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
 import org.cripac.isee.util.Singleton;
 import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
+import org.cripac.isee.vpe.util.codec.PayloadCompression;
 import org.cripac.isee.vpe.util.hdfs.HadoopHelper;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.xml.parsers.ParserConfigurationException;
-import java.io.BufferedInputStream;
-import java.io.InputStream;
+import java.io.*;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * The PedestrianTrackingApp class takes in video URLs from Kafka, then process
@@ -93,6 +99,25 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
         private static final long serialVersionUID = -786439769732467646L;
 
         int numSamplesPerTracklet = -1;
+        /* Maximum estimated size (bytes) of a message carrying a tracklet inline, after compression if any.
+         * Larger tracklets are passed through HDFS. Non-positive values mean using kafka.send.max.size.
+         */
+        long maxInlineTrackletSize = -1;
+        /* Options of decoding videos for tracking. See {@link BasicTracker.DecodingOptions}. */
+        BasicTracker.DecodingOptions decodingOptions = new BasicTracker.DecodingOptions();
+        /* Videos longer than this number of frames are split into segments of this length, which are tracked
+         * in parallel and stitched afterwards. Consecutive segments overlap by segmentOverlapFrames frames.
+         * Non-positive values mean tracking each video as a whole.
+         */
+        int segmentFrames = 0;
+        int segmentOverlapFrames = 50;
+        /* Minimum mean IoU of bounding boxes in the overlapped frames for tracklets to be stitched. */
+        double stitchMinIoU = TrackletStitcher.DEFAULT_MIN_IOU;
+        /* Number of frames tracked between polls of tracklets finished before the end of the video,
+         * which are then output at once. Non-positive values mean outputting all the tracklets at the end.
+         * Not applicable to videos tracked in segments, whose tracklets are stitched at the end.
+         */
+        int finishedPollFrames = 0;
 
         public AppPropertyCenter(@Nonnull String[] args)
                 throws SAXException, ParserConfigurationException, URISyntaxException {
@@ -103,6 +128,33 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
                     case "vpe.num.sample.per.tracklet":
                         numSamplesPerTracklet = Integer.valueOf((String) entry.getValue());
                         break;
+                    case "vpe.tracklet.inline.max.size":
+                        maxInlineTrackletSize = Long.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.pipeline.depth":
+                        decodingOptions.pipelineDepth = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.decoder.threads":
+                        decodingOptions.numDecoderThreads = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.frame.stride":
+                        decodingOptions.frameStride = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.max.frame.height":
+                        decodingOptions.maxFrameHeight = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.segment.frames":
+                        segmentFrames = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.segment.overlap.frames":
+                        segmentOverlapFrames = Integer.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.stitch.min.iou":
+                        stitchMinIoU = Double.valueOf((String) entry.getValue());
+                        break;
+                    case "vpe.tracking.finished.poll.frames":
+                        finishedPollFrames = Integer.valueOf((String) entry.getValue());
+                        break;
                     default:
                         logger.warn("Unrecognized option: " + entry.getKey());
                         break;
@@ -122,141 +174,435 @@ public class PedestrianTrackingApp extends SparkStreamingApp {
         public static final Port VIDEO_URL_PORT =
                 new Port("hdfs-video-url-for-pedestrian-tracking", DataType.URL);
         private static final long serialVersionUID = -6738652169567844016L;
+        // This value is set according to resolution of DCI 4K.
+        private static final int BUFFER_SIZE = 4096 * 2160 * 3;
+        // Name of the file in the directory of a task recording the number of tracklets output before failure.
+        private static final String NUM_OUTPUT_FILE = "_num-output";
 
-        private class ConfCache extends HashMap<String, byte[]> {
+        private class ConfCache extends ConcurrentHashMap<String, byte[]> {
             private static final long serialVersionUID = -1243878282849738861L;
         }
 
+        /**
+         * The VideoSegment class carries a segment of a video through tracking to stitching.
+         * The tracking configuration and the output ports are read from the node before it is marked executed,
+         * which clears them. The node is marked in a copy of the plan, leaving the input data intact to be diverted.
+         */
+        static class VideoSegment implements Serializable {
+            private static final long serialVersionUID = 2880196283553462113L;
+
+            final UUID taskID;
+            final TaskData taskData;
+            final ExecutionPlan plan;
+            final List<ExecutionPlan.Node.Port> outputPorts;
+            final byte[] confBytes;
+            final int index;
+            final int startFrame;
+            final int numFrames;
+            Tracklet[] tracklets = null;
+            boolean failed = false;
+
+            VideoSegment(UUID taskID, TaskData taskData, ExecutionPlan plan,
+                         List<ExecutionPlan.Node.Port> outputPorts, byte[] confBytes,
+                         int index, int startFrame, int numFrames) {
+                this.taskID = taskID;
+                this.taskData = taskData;
+                this.plan = plan;
+                this.outputPorts = outputPorts;
+                this.confBytes = confBytes;
+                this.index = index;
+                this.startFrame = startFrame;
+                this.numFrames = numFrames;
+            }
+        }
+
         private final Singleton<ConfCache> confCacheSingleton;
         private final int numSamplesPerTracklet;
+        private final BasicTracker.DecodingOptions decodingOptions;
+        private final int segmentFrames;
+        private final int segmentOverlapFrames;
+        private final double stitchMinIoU;
+        private final int finishedPollFrames;
         private final String metadataDir;
+        private final TrackletRouter trackletRouter;
+        private final BoundedExecutor executor;
 
         public HDFSVideoTrackingStream(AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
 
             numSamplesPerTracklet = propCenter.numSamplesPerTracklet;
+            decodingOptions = propCenter.decodingOptions;
+            segmentFrames = propCenter.segmentFrames;
+            segmentOverlapFrames = propCenter.segmentOverlapFrames;
+            stitchMinIoU = propCenter.stitchMinIoU;
+            finishedPollFrames = propCenter.finishedPollFrames;
             metadataDir = propCenter.metadataDir;
+            trackletRouter = new TrackletRouter(propCenter.maxInlineTrackletSize > 0
+                    ? propCenter.maxInlineTrackletSize
+                    : propCenter.kafkaSendMaxSize,
+                    propCenter.payloadCompressions.getOrDefault(OUTPUT_TYPE, PayloadCompression.NONE));
             confCacheSingleton = new Singleton<>(ConfCache::new, ConfCache.class);
+            // Each thread runs a native tracker, so the number of threads bounds GPU and tracker memory usage.
+            executor = new BoundedExecutor(NAME, propCenter);
         }
 
         /**
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
+         * <p>
+         * If videos are to be tracked in segments, each video is split into segments, which are spread over
+         * the cluster and tracked in parallel, then tracklets of all the segments of a video are gathered
+         * and stitched in one task. Otherwise, each video is tracked as a whole in one task.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
-            this.filter(globalStreamMap, VIDEO_URL_PORT)
-                    .foreachRDD(rdd -> rdd.glom().foreach(kvList -> {
-                        final Logger logger = loggerSingleton.getInst();
-                        if (kvList.size() > 0) {
-                            logger.info("Partition " + TaskContext.getPartitionId()
-                                    + " got " + kvList.size()
-                                    + " videos in this batch.");
-                        }
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+            final JavaPairDStream<UUID, TaskData> videoURLStream = this.filter(globalStreamMap, VIDEO_URL_PORT);
+            if (segmentFrames > 0) {
+                videoURLStream.foreachRDD(rdd -> rdd
+                        .flatMap(kv -> split(kv._1(), kv._2()).iterator())
+                        .repartition(rdd.context().defaultParallelism())
+                        .mapPartitions(this::trackSegments)
+                        .groupBy(segment -> segment.taskID)
+                        .foreach(segments -> stitchAndOutput(segments._2())));
+                return;
+            }
+            videoURLStream.foreachRDD(rdd -> rdd.glom().foreach(kvList -> {
+                final Logger logger = loggerSingleton.getInst();
+                if (kvList.size() > 0) {
+                    logger.info("Partition " + TaskContext.getPartitionId()
+                            + " got " + kvList.size()
+                            + " videos in this batch.");
+                }
 
-                        long startTime = System.currentTimeMillis();
-                        synchronized (HDFSVideoTrackingStream.class) {
-                            ParallelExecutor.execute(kvList, kv -> {
-                                try {
-                                    final UUID taskID = kv._1();
-                                    final TaskData taskData = kv._2();
-
-                                    final String videoURL = (String) taskData.predecessorRes;
-                                    logger.debug("Received taskID=" + taskID + ", URL=" + videoURL);
-
-                                    final Path videoPath = new Path(videoURL);
-                                    String videoName = videoPath.getName();
-                                    videoName = videoName.substring(0, videoName.lastIndexOf('.'));
-
-                                    // Find current node.
-                                    final ExecutionPlan.Node curNode = taskData.getDestNode(VIDEO_URL_PORT);
-                                    // Get tracking configuration for this execution.
-                                    assert curNode != null;
-                                    final String confFile = (String) curNode.getExecData();
-                                    if (confFile == null) {
-                                        throw new IllegalArgumentException(
-                                                "Tracking configuration file is not specified for this node!");
-                                    }
-
-                                    // Get ports to output to.
-                                    final List<ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
-                                    // Mark the current node as executed in advance.
-                                    curNode.markExecuted();
-
-                                    // Load tracking configuration to create a tracker.
-                                    if (!confCacheSingleton.getInst().containsKey(confFile)) {
-                                        InputStream confStream = getClass().getResourceAsStream(
-                                                "/conf/" + APP_NAME + "/" + confFile);
-                                        if (confStream == null) {
-                                            throw new IllegalArgumentException(
-                                                    "Tracking configuration file not found in JAR!");
-                                        }
-                                        confCacheSingleton.getInst().put(confFile, IOUtils.toByteArray(confStream));
-                                    }
-                                    final byte[] confBytes = confCacheSingleton.getInst().get(confFile);
-                                    if (confBytes == null) {
-                                        logger.fatal("confPool contains key " + confFile + " but value is null!");
-                                        return;
-                                    }
-                                    final Tracker tracker = new BasicTracker(confBytes, logger);
-
-                                    final FileSystem hdfs = HDFSFactory.newInstance();
-
-                                    // Conduct tracking on video read from HDFS.
-                                    logger.debug("Performing tracking on " + videoName);
-                                    final Tracklet[] tracklets = new RobustExecutor<Void, Tracklet[]>(
-                                            (Function0<Tracklet[]>) () -> {
-                                                // This value is set according to resolution of DCI 4K.
-                                                final int BUFFER_SIZE = 4096 * 2160 * 3;
-                                                final InputStream videoStream =
-                                                        new BufferedInputStream(hdfs.open(videoPath), BUFFER_SIZE);
-                                                return tracker.track(videoStream);
-                                            }
-                                    ).execute();
-                                    logger.debug("Finished tracking on " + videoName);
-
-                                    // Set video IDs and Send tracklets.
-                                    for (Tracklet tracklet : tracklets) {
-                                        // Conduct sampling on the tracklets to save memory.
-                                        tracklet.sample(numSamplesPerTracklet);
-                                        tracklet.id.videoID = videoName;
-                                        try {
-                                            output(outputPorts, taskData.executionPlan,
-                                                    new TrackletOrURL(tracklet), taskID);
-                                        } catch (MessageSizeTooLargeException
-                                                | KafkaException
-                                                | FailedToSendMessageException e) {
-                                            // The tracklet's size exceeds the limit.
-                                            // Here we first store it into HDFS,
-                                            // then send its URL instead of the tracklet itself.
-                                            final String videoRoot = metadataDir + "/" + tracklet.id.videoID;
-                                            final String taskRoot = videoRoot + "/" + taskID;
-                                            final String storeDir = taskRoot + "/" + tracklet.id.serialNumber;
-                                            logger.debug("Tracklet " + tracklet.id
-                                                    + " is too long. Passing it through HDFS at \"" + storeDir + "\".");
-                                            HadoopHelper.storeTracklet(storeDir, tracklet, hdfs);
-                                            output(outputPorts,
-                                                    taskData.executionPlan,
-                                                    new TrackletOrURL(storeDir),
-                                                    taskID);
-                                        }
-                                    }
-
-                                    hdfs.close();
-                                } catch (Throwable e) {
-                                    logger.error("During tracking.", e);
-                                }
-                            });
-                        }
-                        if (kvList.size() > 0) {
-                            long endTime = System.currentTimeMillis();
-                            logger.info("Average cost time: " + ((endTime - startTime) / kvList.size()) + "ms");
+                long startTime = System.currentTimeMillis();
+                executor.execute(kvList, kv -> trackVideo(kv._1(), kv._2(), logger));
+                if (kvList.size() > 0) {
+                    long endTime = System.currentTimeMillis();
+                    logger.info("Average cost time: " + ((endTime - startTime) / kvList.size()) + "ms");
+                }
+            }));
+        }
+
+        /**
+         * Track a whole video and output its tracklets. Data failing to be processed are diverted as received.
+         */
+        void trackVideo(UUID taskID, TaskData taskData, Logger logger) {
+            try {
+                logger.debug("Received taskID=" + taskID + ", URL=" + taskData.predecessorRes);
+
+                // Find current node in a copy of the plan, so that the data stay intact to be diverted.
+                final ExecutionPlan plan = taskData.executionPlan.copy();
+                final ExecutionPlan.Node curNode = plan.getNode(taskData.getDestNode(VIDEO_URL_PORT).getID());
+                assert curNode != null;
+                // Get tracking configuration for this execution.
+                final byte[] confBytes = getConf(curNode);
+                // Get ports to output to.
+                final List<ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
+                // Mark the current node as executed in advance.
+                curNode.markExecuted();
+
+                // Conduct tracking on video read from HDFS.
+                trackAndOutput(taskID, taskData, plan, outputPorts, confBytes, logger);
+            } catch (Throwable e) {
+                logger.error("During tracking.", e);
+                divert(VIDEO_URL_PORT, taskID, taskData);
+            }
+        }
+
+        /**
+         * Track a whole video read from HDFS, outputting tracklets finished before the end while tracking continues.
+         * <p>
+         * Tracklets are output in the order of their serial numbers. Retries of tracking skip the tracklets
+         * output by former attempts. On failure, the number of tracklets output is recorded in the directory of
+         * the task, so that tracklets output before the video is diverted are skipped when it is replayed,
+         * and the record is removed once the video is tracked to the end.
+         * This relies on tracking the same video with the same configuration giving the same tracklets.
+         */
+        private void trackAndOutput(UUID taskID,
+                                    TaskData taskData,
+                                    ExecutionPlan plan,
+                                    List<ExecutionPlan.Node.Port> outputPorts,
+                                    byte[] confBytes,
+                                    Logger logger) throws Exception {
+            final FileSystem hdfs = HDFSFactory.get();
+            final Path numOutputPath = new Path(metadataDir + "/" + videoNameOf(taskData) + "/" + taskID,
+                    NUM_OUTPUT_FILE);
+            final int numOutputBefore = HadoopHelper.retrieveInt(numOutputPath, 0, hdfs);
+            final AtomicInteger numOutput = new AtomicInteger(numOutputBefore);
+            if (numOutputBefore > 0) {
+                logger.info("Skipping " + numOutputBefore + " tracklets of task " + taskID + " output before.");
+            }
+            final Consumer<Tracklet> outputOnce = tracklet -> {
+                if (tracklet.id.serialNumber < numOutput.get()) {
+                    return;
+                }
+                try {
+                    outputTracklets(taskID, taskData, plan, outputPorts, new Tracklet[]{tracklet}, logger);
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot output tracklet " + tracklet.id, e);
+                }
+                numOutput.set(tracklet.id.serialNumber + 1);
+            };
+            try {
+                final Tracklet[] tracklets = track(taskData, confBytes, 0, -1, outputOnce, logger);
+                for (Tracklet tracklet : tracklets) {
+                    outputOnce.accept(tracklet);
+                }
+            } catch (Throwable e) {
+                if (numOutput.get() > numOutputBefore) {
+                    try {
+                        HadoopHelper.storeInt(numOutputPath, numOutput.get(), hdfs);
+                    } catch (IOException ioe) {
+                        logger.error("Cannot record the number of tracklets output for task " + taskID, ioe);
+                    }
+                }
+                throw e;
+            }
+            if (numOutputBefore > 0) {
+                hdfs.delete(numOutputPath, false);
+            }
+        }
+
+        /**
+         * Get the tracking configuration of an execution.
+         *
+         * @param curNode the node being executed.
+         * @return bytes of the configuration file.
+         * @throws IllegalArgumentException if the configuration is not specified or not found.
+         */
+        byte[] getConf(ExecutionPlan.Node curNode) throws Exception {
+            final String confFile = (String) curNode.getExecData();
+            if (confFile == null) {
+                throw new IllegalArgumentException(
+                        "Tracking configuration file is not specified for this node!");
+            }
+            // Load tracking configuration to create a tracker.
+            return confCacheSingleton.getInst().computeIfAbsent(confFile, file -> {
+                InputStream confStream = getClass().getResourceAsStream("/conf/" + APP_NAME + "/" + file);
+                if (confStream == null) {
+                    throw new IllegalArgumentException("Tracking configuration file not found in JAR!");
+                }
+                try {
+                    return IOUtils.toByteArray(confStream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        @Nonnull
+        private static String videoNameOf(@Nonnull TaskData taskData) {
+            final String videoName = new Path((String) taskData.predecessorRes).getName();
+            return videoName.substring(0, videoName.lastIndexOf('.'));
+        }
+
+        /**
+         * Conduct tracking on a segment of a video read from HDFS.
+         *
+         * @param numFrames  number of frames of the segment, or non-positive to track till the end of the video.
+         * @param onFinished function called with each tracklet finished before the end of the segment,
+         *                   or null to return all the tracklets at the end.
+         *                   Only applicable to segments starting from the first frame.
+         * @return tracklets not passed to onFinished.
+         */
+        Tracklet[] track(TaskData taskData, byte[] confBytes, int startFrame, int numFrames,
+                         @Nullable Consumer<Tracklet> onFinished, Logger logger) throws Exception {
+            final Path videoPath = new Path((String) taskData.predecessorRes);
+            final BasicTracker tracker = new BasicTracker(confBytes, decodingOptions, logger);
+            final FileSystem hdfs = HDFSFactory.get();
+            logger.debug("Performing tracking on " + videoPath.getName() + " from frame " + startFrame);
+            final Tracklet[] tracklets = new RobustExecutor<Void, Tracklet[]>(
+                    (Function0<Tracklet[]>) () -> {
+                        try (InputStream videoStream = new BufferedInputStream(hdfs.open(videoPath), BUFFER_SIZE)) {
+                            if (onFinished != null && finishedPollFrames > 0) {
+                                assert startFrame == 0 && numFrames <= 0;
+                                return tracker.track(videoStream, finishedPollFrames, onFinished);
+                            }
+                            return tracker.track(videoStream, startFrame, numFrames);
                         }
-                    }));
+                    }
+            ).execute();
+            logger.debug("Finished tracking on " + videoPath.getName() + " from frame " + startFrame);
+            return tracklets;
+        }
+
+        /**
+         * Split a video into segments overlapping by some frames.
+         * Segments start at multiples of the frame stride, so that frames tracked in the overlap
+         * are the same in both segments. Videos whose length cannot be probed are not split.
+         * Data failing to be split are diverted.
+         */
+        private List<VideoSegment> split(UUID taskID, TaskData taskData) throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            try {
+                final int numFrames;
+                try (InputStream videoStream = HDFSFactory.get().open(new Path((String) taskData.predecessorRes))) {
+                    final FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(videoStream);
+                    try {
+                        frameGrabber.start();
+                        numFrames = frameGrabber.getLengthInFrames();
+                    } finally {
+                        frameGrabber.stop();
+                        frameGrabber.release();
+                    }
+                }
+
+                final List<VideoSegment> segments = split(taskID, taskData, numFrames);
+                logger.debug("Split video of task " + taskID + " (" + numFrames + " frames) into "
+                        + segments.size() + " segments");
+                Metrics.add("tracking.segments", segments.size());
+                return segments;
+            } catch (Throwable e) {
+                logger.error("During splitting video of task " + taskID, e);
+                divert(VIDEO_URL_PORT, taskID, taskData);
+                return Collections.emptyList();
+            }
+        }
+
+        /**
+         * Split a video of some frames into segments, and mark the current node as executed in a copy of the plan.
+         *
+         * @param numFrames number of frames of the video.
+         * @return the segments.
+         * @throws IllegalArgumentException if the tracking configuration is not specified or not found.
+         */
+        List<VideoSegment> split(UUID taskID, TaskData taskData, int numFrames) throws Exception {
+            final ExecutionPlan plan = taskData.executionPlan.copy();
+            final ExecutionPlan.Node curNode = plan.getNode(taskData.getDestNode(VIDEO_URL_PORT).getID());
+            assert curNode != null;
+            // Check the configuration before tracking any segment.
+            final byte[] confBytes = getConf(curNode);
+            // Get ports to output to.
+            final List<ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
+            curNode.markExecuted();
+
+            final int stride = Math.max(1, decodingOptions.frameStride);
+            final int step = Math.max(stride, (segmentFrames - segmentOverlapFrames) / stride * stride);
+            final List<VideoSegment> segments = new ArrayList<>();
+            if (numFrames <= segmentFrames) {
+                segments.add(new VideoSegment(taskID, taskData, plan, outputPorts, confBytes, 0, 0, -1));
+            } else {
+                for (int start = 0; start < numFrames; start += step) {
+                    // The last segment runs till the end, in case the length is underestimated.
+                    final boolean last = start + segmentFrames >= numFrames;
+                    segments.add(new VideoSegment(taskID, taskData, plan, outputPorts, confBytes,
+                            segments.size(), start, last ? -1 : segmentFrames));
+                    if (last) {
+                        break;
+                    }
+                }
+            }
+            return segments;
+        }
+
+        private Iterator<VideoSegment> trackSegments(Iterator<VideoSegment> segmentIter) throws Exception {
+            final List<VideoSegment> segments = new ArrayList<>();
+            segmentIter.forEachRemaining(segments::add);
+            trackSegments(segments, loggerSingleton.getInst());
+            return segments.iterator();
+        }
+
+        /**
+         * Track segments of a partition in parallel. Segments failing to be tracked are marked as failed.
+         */
+        void trackSegments(List<VideoSegment> segments, Logger logger) throws Exception {
+            executor.execute(segments, segment -> {
+                try {
+                    segment.tracklets = track(segment.taskData, segment.confBytes,
+                            segment.startFrame, segment.numFrames, null, logger);
+                } catch (Throwable e) {
+                    logger.error("During tracking segment " + segment.index + " of task " + segment.taskID, e);
+                    segment.failed = true;
+                }
+            });
+        }
+
+        private void stitchAndOutput(Iterable<VideoSegment> segmentIterable) throws Exception {
+            final List<VideoSegment> segments = new ArrayList<>();
+            segmentIterable.forEach(segments::add);
+            stitchAndOutput(segments, loggerSingleton.getInst());
+        }
+
+        /**
+         * Stitch tracklets of all the segments of a video, and output them.
+         * If any segment failed, the video is diverted as a whole.
+         */
+        void stitchAndOutput(List<VideoSegment> segments, Logger logger) {
+            segments.sort(Comparator.comparingInt(segment -> segment.index));
+            final VideoSegment first = segments.get(0);
+            try {
+                final List<Tracklet[]> segmentTracklets = new ArrayList<>(segments.size());
+                for (VideoSegment segment : segments) {
+                    if (segment.failed) {
+                        throw new IllegalStateException("Segment " + segment.index + " failed");
+                    }
+                    segmentTracklets.add(segment.tracklets);
+                }
+                final Tracklet[] tracklets = new TrackletStitcher(stitchMinIoU).stitch(segmentTracklets);
+                logger.debug("Stitched " + tracklets.length + " tracklets from " + segments.size()
+                        + " segments of task " + first.taskID);
+                outputTracklets(first.taskID, first.taskData, first.plan, first.outputPorts, tracklets, logger);
+            } catch (Throwable e) {
+                logger.error("During stitching tracklets of task " + first.taskID, e);
+                divert(VIDEO_URL_PORT, first.taskID, first.taskData);
+            }
+        }
+
+        /**
+         * Set video IDs of tracklets and send them.
+         *
+         * @param plan        the execution plan to output, in which the current node is marked executed.
+         * @param outputPorts ports to output to, read from the current node before it is marked executed.
+         */
+        void outputTracklets(UUID taskID,
+                             TaskData taskData,
+                             ExecutionPlan plan,
+                             List<ExecutionPlan.Node.Port> outputPorts,
+                             Tracklet[] tracklets,
+                             Logger logger) throws Exception {
+            final String videoName = videoNameOf(taskData);
+            final FileSystem hdfs = HDFSFactory.get();
+            for (Tracklet tracklet : tracklets) {
+                // Conduct sampling on the tracklets to save memory.
+                tracklet.sample(numSamplesPerTracklet);
+                tracklet.id.videoID = videoName;
+                boolean sent = false;
+                if (trackletRouter.route(tracklet) == TrackletRouter.Route.INLINE) {
+                    try {
+                        output(outputPorts, plan, new TrackletOrURL(tracklet), taskID);
+                        sent = true;
+                    } catch (MessageSizeTooLargeException
+                            | KafkaException
+                            | FailedToSendMessageException e) {
+                        // The size estimation leaves room for the rest of the message,
+                        // so this should rarely happen.
+                        Metrics.increment("tracklet-route.misestimated");
+                        logger.warn("Failed to send tracklet " + tracklet.id
+                                + " inline. Falling back to HDFS.", e);
+                    }
+                }
+                if (!sent) {
+                    // The tracklet is too large to pass through Kafka.
+                    // Here we first store it into HDFS,
+                    // then send its URL instead of the tracklet itself.
+                    final String videoRoot = metadataDir + "/" + tracklet.id.videoID;
+                    final String taskRoot = videoRoot + "/" + taskID;
+                    final String storeDir = taskRoot + "/" + tracklet.id.serialNumber;
+                    logger.debug("Tracklet " + tracklet.id
+                            + " is too long. Passing it through HDFS at \"" + storeDir + "\".");
+                    HadoopHelper.storeTracklet(storeDir, tracklet, hdfs);
+                    output(outputPorts, plan, new TrackletOrURL(storeDir), taskID);
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         @Override
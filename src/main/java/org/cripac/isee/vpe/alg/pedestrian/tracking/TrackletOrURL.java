@@ -23,6 +23,7 @@ import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
 import org.cripac.isee.vpe.util.hdfs.HadoopHelper;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Serializable;
 
 /**
@@ -79,4 +80,35 @@ public class TrackletOrURL implements Serializable {
     public Tracklet getTracklet() throws Exception {
         return tracklet != null ? tracklet : HadoopHelper.retrieveTracklet(URL);
     }
+
+    /**
+     * Get the tracklet held in this object, without retrieving it from HDFS.
+     *
+     * @return the tracklet held in this object, or null if it is only available through the URL.
+     */
+    @Nullable
+    public Tracklet peekTracklet() {
+        return tracklet;
+    }
+
+    /**
+     * Get the serial number of the tracklet, without retrieving it from HDFS.
+     * Tracklets are stored in directories named by their serial numbers.
+     *
+     * @return the serial number of the tracklet, or -1 if it cannot be determined.
+     */
+    public int getSerialNumber() {
+        if (tracklet != null) {
+            return tracklet.id.serialNumber;
+        }
+        if (URL != null) {
+            try {
+                final String dir = URL.endsWith("/") ? URL.substring(0, URL.length() - 1) : URL;
+                return Integer.parseInt(dir.substring(dir.lastIndexOf('/') + 1));
+            } catch (NumberFormatException ignored) {
+                // Not stored in a directory named by the serial number.
+            }
+        }
+        return -1;
+    }
 }
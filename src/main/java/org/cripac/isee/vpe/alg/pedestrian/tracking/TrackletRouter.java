@@ -0,0 +1,184 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.alg.pedestrian.tracking;
+
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.util.codec.PayloadCompression;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * The TrackletRouter class decides whether a tracklet is passed inline through Kafka,
+ * or first stored in HDFS and passed by URL (see {@link TrackletOrURL}).
+ * The decision is made before encoding, from an estimation of the encoded size of the tracklet,
+ * so that oversized tracklets do not pay for a failed send.
+ * <p>
+ * If messages of tracklets are compressed (see {@link PayloadCompression}), tracklets estimated to exceed
+ * the limit before compression have a few of their patches compressed to estimate the compression ratio,
+ * and are passed inline if they are estimated to fit after compression.
+ * Only sampling keeps the estimation cheap, since the messages are compressed again when encoded.
+ * <p>
+ * The number of tracklets taking each route is counted in {@link Metrics}
+ * under "tracklet-route.inline" and "tracklet-route.hdfs".
+ */
+public class TrackletRouter implements Serializable {
+
+    private static final long serialVersionUID = -4459130575193624582L;
+
+    /**
+     * Routes of tracklets.
+     */
+    public enum Route {
+        /**
+         * Pass the tracklet itself through Kafka.
+         */
+        INLINE,
+        /**
+         * Store the tracklet into HDFS and pass its URL through Kafka.
+         */
+        HDFS
+    }
+
+    /**
+     * Bytes reserved for parts of a message other than the tracklet, like the execution plan.
+     */
+    static final int MESSAGE_OVERHEAD = 4096;
+
+    /**
+     * Bytes of a bounding box in a message besides its patch.
+     */
+    private static final int BOUNDING_BOX_OVERHEAD = Integer.BYTES * 5;
+
+    /**
+     * Maximum number of patches compressed to estimate the compression ratio of a tracklet.
+     */
+    static final int MAX_SAMPLED_PATCHES = 4;
+
+    private final long maxInlineSize;
+    private final PayloadCompression compression;
+
+    /**
+     * Create a router for tracklets sent uncompressed.
+     *
+     * @param maxInlineSize maximum estimated size in bytes of a message carrying a tracklet inline.
+     */
+    public TrackletRouter(long maxInlineSize) {
+        this(maxInlineSize, PayloadCompression.NONE);
+    }
+
+    /**
+     * Create a router.
+     *
+     * @param maxInlineSize maximum estimated size in bytes of a message carrying a tracklet inline.
+     * @param compression   compression applied to messages carrying tracklets.
+     */
+    public TrackletRouter(long maxInlineSize, @Nonnull PayloadCompression compression) {
+        this.maxInlineSize = maxInlineSize;
+        this.compression = compression;
+    }
+
+    /**
+     * Estimate the size of a message carrying the tracklet inline, before any compression.
+     *
+     * @param tracklet the tracklet to estimate.
+     * @return estimated size in bytes.
+     */
+    public static long estimateEncodedSize(@Nonnull Tracklet tracklet) {
+        long size = MESSAGE_OVERHEAD;
+        if (tracklet.locationSequence != null) {
+            for (Tracklet.BoundingBox box : tracklet.locationSequence) {
+                size += BOUNDING_BOX_OVERHEAD;
+                if (box.hasPatch()) {
+                    size += (long) box.width * box.height * 3;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Check whether a message carrying the tracklet inline fits in a size limit after compression.
+     * Up to {@link #MAX_SAMPLED_PATCHES} patches evenly spread over the tracklet are compressed
+     * separately into a scratch buffer, and the ratio of their compressed size to their raw size
+     * is applied to all the patches. Compressing patches separately does not exploit the similarity
+     * between them, so the estimation tends to be conservative.
+     *
+     * @param tracklet the tracklet to check.
+     * @param maxSize  the size limit in bytes.
+     * @return whether the estimated size of the compressed message is within the limit.
+     */
+    boolean fitsCompressed(@Nonnull Tracklet tracklet, long maxSize) {
+        if (compression.method != PayloadCompression.Method.DEFLATE || tracklet.locationSequence == null) {
+            return false;
+        }
+        final List<Tracklet.BoundingBox> boxesWithPatch = new ArrayList<>();
+        long rawPatchSize = 0;
+        for (Tracklet.BoundingBox box : tracklet.locationSequence) {
+            if (box.hasPatch()) {
+                boxesWithPatch.add(box);
+                rawPatchSize += box.getPatchLength();
+            }
+        }
+        final long overhead = MESSAGE_OVERHEAD + (long) BOUNDING_BOX_OVERHEAD * tracklet.locationSequence.length;
+        if (boxesWithPatch.isEmpty()) {
+            return overhead <= maxSize;
+        }
+
+        final int numSamples = Math.min(MAX_SAMPLED_PATCHES, boxesWithPatch.size());
+        long sampledRawSize = 0;
+        long sampledCompressedSize = 0;
+        final Deflater deflater = new Deflater(compression.level);
+        final byte[] buf = new byte[65536];
+        try {
+            for (int i = 0; i < numSamples; ++i) {
+                final byte[] patch = boxesWithPatch.get(i * boxesWithPatch.size() / numSamples).getPatchData();
+                deflater.reset();
+                deflater.setInput(patch);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    sampledCompressedSize += deflater.deflate(buf);
+                }
+                sampledRawSize += patch.length;
+            }
+        } finally {
+            deflater.end();
+        }
+        final double ratio = sampledRawSize == 0 ? 1 : (double) sampledCompressedSize / sampledRawSize;
+        return overhead + (long) Math.ceil(rawPatchSize * ratio) <= maxSize;
+    }
+
+    /**
+     * Decide the route of a tracklet, and count the decision.
+     *
+     * @param tracklet the tracklet to route.
+     * @return the route for the tracklet.
+     */
+    @Nonnull
+    public Route route(@Nonnull Tracklet tracklet) {
+        final Route route = estimateEncodedSize(tracklet) <= maxInlineSize || fitsCompressed(tracklet, maxInlineSize)
+                ? Route.INLINE
+                : Route.HDFS;
+        Metrics.increment("tracklet-route." + route.name().toLowerCase());
+        return route;
+    }
+}
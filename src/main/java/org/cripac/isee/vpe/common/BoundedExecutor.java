@@ -0,0 +1,204 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The BoundedExecutor class runs work items of a stream on a thread pool shared by all the Spark tasks
+ * of the stream in the same JVM.
+ * <p>
+ * The number of threads bounds how many items of the stream are processed at the same time in a JVM,
+ * which keeps usage of native resources like GPUs and tracker memory within limits.
+ * Admission control bounds how many items can be submitted but not finished:
+ * a task submitting beyond the limit waits until earlier items finish. Tasks are admitted fairly,
+ * so that concurrent partitions all make progress.
+ * <p>
+ * Objects of this class only hold the configuration, and are serializable.
+ * The pools are created lazily in each JVM.
+ */
+public class BoundedExecutor implements Serializable {
+
+    private static final long serialVersionUID = -3318570915604381762L;
+
+    private static final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int numThreads;
+    private final int maxAdmitted;
+
+    private static class Pool {
+        final ExecutorService executor;
+        final Semaphore admission;
+
+        Pool(String name, int numThreads, int maxAdmitted) {
+            executor = Executors.newFixedThreadPool(numThreads, r -> {
+                final Thread thread = new Thread(r, name + "-executor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            admission = new Semaphore(maxAdmitted, true);
+        }
+    }
+
+    /**
+     * Create an executor with configuration of the stream.
+     *
+     * @param name       name of the stream.
+     * @param propCenter properties of the system,
+     *                   providing the number of threads ({@code vpe.stream.threads.<name>})
+     *                   and the admission limit ({@code vpe.stream.admission.<name>}) of the stream.
+     */
+    public BoundedExecutor(@Nonnull String name, @Nonnull SystemPropertyCenter propCenter) {
+        this(name, propCenter.getStreamThreads(name), propCenter.getStreamAdmission(name));
+    }
+
+    /**
+     * @param name        name of the pool.
+     * @param numThreads  number of threads in the pool.
+     * @param maxAdmitted maximum number of items submitted but not finished.
+     */
+    public BoundedExecutor(@Nonnull String name, int numThreads, int maxAdmitted) {
+        assert numThreads >= 1 && maxAdmitted >= numThreads;
+        this.name = name;
+        this.numThreads = numThreads;
+        this.maxAdmitted = maxAdmitted;
+    }
+
+    private Pool getPool() {
+        return pools.computeIfAbsent(name, n -> new Pool(n, numThreads, maxAdmitted));
+    }
+
+    /**
+     * Process items in the pool, and wait for all of them to finish.
+     *
+     * @param items    items to process.
+     * @param consumer function processing each item.
+     * @param <T>      type of items.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException   if processing of some items failed.
+     *                              The other items are still processed.
+     */
+    public <T> void execute(@Nonnull Iterator<T> items, @Nonnull Consumer<T> consumer)
+            throws InterruptedException, ExecutionException {
+        final Pool pool = getPool();
+        final List<Future<?>> futures = new ArrayList<>();
+        while (items.hasNext()) {
+            final T item = items.next();
+            if (!pool.admission.tryAcquire()) {
+                Metrics.increment("executor." + name + ".admission-waits");
+                pool.admission.acquire();
+            }
+            try {
+                futures.add(pool.executor.submit(() -> {
+                    try {
+                        consumer.accept(item);
+                    } finally {
+                        pool.admission.release();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                pool.admission.release();
+                throw e;
+            }
+        }
+        ExecutionException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Process items with asynchronous functions, and wait for all of them to finish.
+     * Items are admitted like in {@link #execute(Iterator, Consumer)}, but hold no thread of the pool:
+     * the function is called in the calling thread, and should return as soon as the processing is started,
+     * e.g. by composing {@link RobustExecutor#executeAsync(Object)}s.
+     *
+     * @param items   items to process.
+     * @param starter function starting the processing of each item.
+     * @param <T>     type of items.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException   if processing of some items failed.
+     *                              The other items are still processed.
+     */
+    public <T> void executeAsync(@Nonnull Iterator<T> items,
+                                 @Nonnull Function<T, ? extends CompletionStage<?>> starter)
+            throws InterruptedException, ExecutionException {
+        final Pool pool = getPool();
+        final List<CompletableFuture<?>> futures = new ArrayList<>();
+        while (items.hasNext()) {
+            final T item = items.next();
+            if (!pool.admission.tryAcquire()) {
+                Metrics.increment("executor." + name + ".admission-waits");
+                pool.admission.acquire();
+            }
+            CompletableFuture<?> future;
+            try {
+                future = starter.apply(item).toCompletableFuture();
+            } catch (Throwable t) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(t);
+            }
+            futures.add(future.whenComplete((ignored, t) -> pool.admission.release()));
+        }
+        ExecutionException failure = null;
+        for (CompletableFuture<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Process items in the pool, and wait for all of them to finish.
+     *
+     * @param items    items to process.
+     * @param consumer function processing each item.
+     * @param <T>      type of items.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws ExecutionException   if processing of some items failed.
+     */
+    public <T> void execute(@Nonnull Collection<T> items, @Nonnull Consumer<T> consumer)
+            throws InterruptedException, ExecutionException {
+        execute(items.iterator(), consumer);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.cripac.isee.vpe.ctrl.Metrics;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The CircuitBreaker class guards an external resource shared by all the {@link RobustExecutor}s
+ * of the current JVM.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures, the circuit opens, and calls fail fast
+ * with {@link OpenException} for {@link #OPEN_MS} milliseconds instead of waiting for the resource.
+ * Then a single trial call is let through: the circuit closes if it succeeds, and opens again otherwise.
+ * <p>
+ * Each breaker also holds a retry budget, so that retries cannot multiply the load on a struggling resource:
+ * up to {@link #MAX_RETRY_TOKENS} retries can be made in a burst, and each successful call earns
+ * {@link #RETRY_TOKENS_PER_SUCCESS} of a retry.
+ * <p>
+ * Counters:
+ * <ul>
+ * <li>circuit.&lt;resource&gt;.opened: times the circuit opened.</li>
+ * <li>circuit.&lt;resource&gt;.rejected: calls failed fast while the circuit was open.</li>
+ * <li>retry.&lt;resource&gt;.budget-exhausted: retries given up for lack of budget.</li>
+ * </ul>
+ */
+public class CircuitBreaker {
+
+    public static final String HDFS = "hdfs";
+    public static final String KAFKA = "kafka";
+    public static final String NEO4J = "neo4j";
+    public static final String EXTERN_RECOGNIZER = "extern-recognizer";
+
+    /**
+     * Consecutive failures to open the circuit.
+     */
+    public static final int FAILURE_THRESHOLD = 5;
+    /**
+     * Time in milliseconds the circuit stays open before a trial call.
+     */
+    public static final long OPEN_MS = 10000;
+    /**
+     * Max retries in a burst.
+     */
+    public static final double MAX_RETRY_TOKENS = 10;
+    /**
+     * Retries earned by each successful call.
+     */
+    public static final double RETRY_TOKENS_PER_SUCCESS = 0.1;
+
+    /**
+     * Retry tokens are counted in thousandths, so that they can be updated atomically.
+     */
+    private static final long TOKEN_UNIT = 1000;
+
+    private static final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * The OpenException is thrown by calls rejected because the circuit of their resource is open.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = -2619357340529135727L;
+
+        OpenException(String resource) {
+            super("Circuit of " + resource + " is open");
+        }
+    }
+
+    private final String resource;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean(false);
+    private final AtomicLong retryTokens = new AtomicLong((long) (MAX_RETRY_TOKENS * TOKEN_UNIT));
+    private volatile long openUntil = 0;
+
+    private CircuitBreaker(String resource) {
+        this.resource = resource;
+    }
+
+    /**
+     * Get the breaker of a resource, creating it on first use.
+     *
+     * @param resource name of the resource.
+     * @return the breaker shared by all the callers of the resource in this JVM.
+     */
+    @Nonnull
+    public static CircuitBreaker of(@Nonnull String resource) {
+        return breakers.computeIfAbsent(resource, CircuitBreaker::new);
+    }
+
+    /**
+     * @return name of the resource.
+     */
+    @Nonnull
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @return whether calls are currently rejected.
+     */
+    public boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether a call is allowed before making it.
+     *
+     * @throws OpenException if the circuit is open, or a trial call is already in flight.
+     */
+    public void acquire() throws OpenException {
+        if (openUntil == 0) {
+            return;
+        }
+        if (isOpen() || !trialInFlight.compareAndSet(false, true)) {
+            Metrics.increment("circuit." + resource + ".rejected");
+            throw new OpenException(resource);
+        }
+    }
+
+    /**
+     * Record a successful call.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (openUntil != 0) {
+            openUntil = 0;
+            trialInFlight.set(false);
+        }
+        final long max = (long) (MAX_RETRY_TOKENS * TOKEN_UNIT);
+        final long earned = (long) (RETRY_TOKENS_PER_SUCCESS * TOKEN_UNIT);
+        retryTokens.getAndUpdate(tokens -> Math.min(max, tokens + earned));
+    }
+
+    /**
+     * Record a failed call.
+     */
+    public void onFailure() {
+        if (openUntil != 0) {
+            // Calls made before the circuit opened do not extend it. Only a failed trial does.
+            if (trialInFlight.compareAndSet(true, false)) {
+                open();
+            }
+        } else if (consecutiveFailures.incrementAndGet() == FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + OPEN_MS;
+        Metrics.increment("circuit." + resource + ".opened");
+    }
+
+    /**
+     * Take a retry from the budget.
+     *
+     * @return whether a retry is allowed.
+     */
+    public boolean tryAcquireRetry() {
+        final long prev = retryTokens.getAndUpdate(tokens -> tokens >= TOKEN_UNIT ? tokens - TOKEN_UNIT : tokens);
+        if (prev < TOKEN_UNIT) {
+            Metrics.increment("retry." + resource + ".budget-exhausted");
+            return false;
+        }
+        return true;
+    }
+}
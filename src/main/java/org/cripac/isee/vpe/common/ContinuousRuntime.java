@@ -0,0 +1,261 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.RangeAssignor;
+import org.apache.kafka.common.errors.WakeupException;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.util.logging.Logger;
+import scala.Tuple2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The ContinuousRuntime class runs the streams of an application without micro-batches.
+ * A long-lived consumer loop polls Kafka, routes each record to the ports it is destined to
+ * like in Spark Streaming, and passes the records of each port to the handler the stream provides
+ * for it (see {@link Stream#getHandlers()}) as soon as they are polled.
+ * <p>
+ * Records are processed in the JVM of the application, one poll after another. Offsets are committed
+ * after the handlers return, so records are processed at least once. If offsets are to be committed
+ * on completion only (see {@link SystemPropertyCenter#offsetCommitMode}), the runtime stops without
+ * committing when a handler fails, so that restarting replays the poll.
+ * With a {@link StateStore}, states of the streams are saved periodically and restored before starting.
+ * Offsets are then only committed right after states are saved successfully, so that states restored
+ * after a crash never lag behind the committed offsets, and data processed since the last save are replayed.
+ * Partitions are assigned to the consumers of an application by ranges, so that data co-located
+ * by {@link org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner} in partitions of the same index
+ * of different topics are polled by the same consumer.
+ */
+public class ContinuousRuntime {
+
+    /**
+     * The Router interface routes a record from Kafka to the ports it is destined to.
+     */
+    @FunctionalInterface
+    public interface Router {
+        /**
+         * @param type data type of the record.
+         * @param rec  the key and value of the record.
+         * @return the ports to route to, each paired with the task ID and TaskData.
+         * @throws Exception on failure deserializing the record.
+         */
+        Iterator<Tuple2<Stream.Port, Tuple2<UUID, TaskData>>> route(DataType type, Tuple2<String, byte[]> rec)
+                throws Exception;
+    }
+
+    private final Collection<Stream> streams;
+    private final Map<Stream.Port, Stream.DataHandler> handlers = new HashMap<>();
+    private final Set<String> topics = new HashSet<>();
+    private final Map<String, Object> kafkaParams;
+    private final long pollMs;
+    private final Router router;
+    private final Logger logger;
+    @Nullable
+    private final StateStore stateStore;
+    private final long stateSaveIntervalMs;
+    private final boolean stopOnFailure;
+    private long lastStateSaveTime = System.currentTimeMillis();
+    private final Thread thread;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile boolean running = false;
+    private volatile KafkaConsumer<String, byte[]> consumer = null;
+
+    /**
+     * Create a runtime for the streams of an application.
+     *
+     * @param appName     name of the application.
+     * @param streams     streams of the application.
+     * @param kafkaParams Kafka parameters of the application.
+     * @param router      router of records.
+     * @param logger      logger of the application.
+     * @param stateStore  store to save states of the streams to, or null not to save states.
+     * @param propCenter  properties of the system, providing the poll timeout, the interval of saving states
+     *                    and the offset commit mode.
+     * @throws UnsupportedOperationException if some stream does not support continuous processing
+     *                                       on all its ports.
+     */
+    public ContinuousRuntime(@Nonnull String appName,
+                             @Nonnull Collection<Stream> streams,
+                             @Nonnull Map<String, Object> kafkaParams,
+                             @Nonnull Router router,
+                             @Nonnull Logger logger,
+                             @Nullable StateStore stateStore,
+                             @Nonnull SystemPropertyCenter propCenter) {
+        this.streams = streams;
+        for (Stream stream : streams) {
+            final Map<Stream.Port, Stream.DataHandler> streamHandlers = stream.getHandlers();
+            for (Stream.Port port : stream.getPorts()) {
+                final Stream.DataHandler handler = streamHandlers.get(port);
+                if (handler == null) {
+                    throw new UnsupportedOperationException("Stream " + stream.getName()
+                            + " cannot process data from port " + port + " continuously");
+                }
+                handlers.put(port, handler);
+                topics.add(port.inputType.name());
+            }
+        }
+        this.kafkaParams = new HashMap<>(kafkaParams);
+        this.kafkaParams.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, RangeAssignor.class.getName());
+        this.pollMs = propCenter.continuousPollMs;
+        this.router = router;
+        this.logger = logger;
+        this.stateStore = stateStore;
+        this.stateSaveIntervalMs = propCenter.stateSaveIntervalMs;
+        this.stopOnFailure = SparkStreamingApp.COMMIT_ON_COMPLETION.equals(propCenter.offsetCommitMode);
+        this.thread = new Thread(this::run, appName + "-continuous");
+        this.thread.setDaemon(true);
+    }
+
+    private void run() {
+        try (KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(kafkaParams)) {
+            this.consumer = consumer;
+            consumer.subscribe(topics);
+            while (running) {
+                final ConsumerRecords<String, byte[]> records;
+                try {
+                    records = consumer.poll(pollMs);
+                } catch (WakeupException e) {
+                    continue;
+                }
+                if (records.isEmpty()) {
+                    continue;
+                }
+
+                final long now = System.currentTimeMillis();
+                final Map<Stream.Port, List<Tuple2<UUID, TaskData>>> routed = new HashMap<>();
+                for (ConsumerRecord<String, byte[]> rec : records) {
+                    Metrics.increment("continuous." + rec.topic() + ".records");
+                    Metrics.add("continuous." + rec.topic() + ".wait-ms", now - rec.timestamp());
+                    try {
+                        router.route(DataType.valueOf(rec.topic()), new Tuple2<>(rec.key(), rec.value()))
+                                .forEachRemaining(route -> routed
+                                        .computeIfAbsent(route._1(), port -> new ArrayList<>())
+                                        .add(route._2()));
+                    } catch (Exception e) {
+                        logger.error("During routing record from " + rec.topic(), e);
+                        if (stopOnFailure) {
+                            throw e;
+                        }
+                    }
+                }
+                for (Map.Entry<Stream.Port, List<Tuple2<UUID, TaskData>>> entry : routed.entrySet()) {
+                    try {
+                        handlers.get(entry.getKey()).handle(entry.getValue().iterator());
+                    } catch (Exception e) {
+                        logger.error("During processing data from port " + entry.getKey(), e);
+                        if (stopOnFailure) {
+                            throw e;
+                        }
+                    }
+                }
+                if (stateStore == null) {
+                    consumer.commitSync();
+                } else if (System.currentTimeMillis() - lastStateSaveTime >= stateSaveIntervalMs && saveStates()) {
+                    consumer.commitSync();
+                }
+            }
+            if (stateStore != null && saveStates()) {
+                consumer.commitSync();
+            }
+        } catch (Exception e) {
+            logger.error("Continuous runtime stopped unexpectedly", e);
+        } finally {
+            running = false;
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * Restore states of the streams from the state store, if any.
+     *
+     * @throws Exception on failure reading or deserializing the states.
+     */
+    public void restoreStates() throws Exception {
+        if (stateStore == null) {
+            return;
+        }
+        for (Stream stream : streams) {
+            final byte[] state = stateStore.loadState(stream.getName());
+            if (state != null) {
+                stream.restoreState(state);
+                logger.info("Restored state of " + stream.getName() + " (" + state.length + " bytes)");
+            }
+        }
+    }
+
+    /**
+     * Save states of all the streams to the state store.
+     *
+     * @return whether the states of all the streams have been saved.
+     */
+    private boolean saveStates() {
+        assert stateStore != null;
+        lastStateSaveTime = System.currentTimeMillis();
+        boolean saved = true;
+        for (Stream stream : streams) {
+            try {
+                final byte[] state = stream.snapshotState();
+                if (state != null) {
+                    stateStore.saveState(stream.getName(), state);
+                }
+            } catch (Exception e) {
+                logger.error("During saving state of " + stream.getName() + ", offsets are not committed", e);
+                saved = false;
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Start the consumer loop.
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stop the consumer loop after the records being processed.
+     */
+    public void stop() {
+        running = false;
+        final KafkaConsumer<String, byte[]> consumer = this.consumer;
+        if (consumer != null) {
+            consumer.wakeup();
+        }
+    }
+
+    /**
+     * Wait until the consumer loop stops.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void awaitTermination() throws InterruptedException {
+        terminated.await();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.Properties;
+
+/**
+ * The DeadLetterQueue class diverts data which fail to be processed to a dead-letter topic
+ * of their data type, where they can be inspected and re-sent to the original topic.
+ * <p>
+ * Data are sent synchronously, so once {@link #send(DataType, String, byte[])} returns,
+ * the offsets of the original messages can be committed without losing the data.
+ */
+public class DeadLetterQueue implements Serializable {
+
+    private static final long serialVersionUID = 6208183710924591637L;
+
+    private final boolean enabled;
+    private final Properties producerProp;
+
+    /**
+     * @param propCenter properties of the system.
+     */
+    public DeadLetterQueue(@Nonnull SystemPropertyCenter propCenter) {
+        this.enabled = propCenter.deadLetterEnable;
+        this.producerProp = propCenter.getKafkaProducerProp(false);
+    }
+
+    /**
+     * Get the dead-letter topic of a data type.
+     *
+     * @param type the data type.
+     * @return name of the topic.
+     */
+    @Nonnull
+    public static String topicOf(@Nonnull DataType type) {
+        return type.name() + "_DEAD_LETTER";
+    }
+
+    /**
+     * Create dead-letter topics of all the data types if they do not exist.
+     *
+     * @param propCenter properties of the system.
+     */
+    public static void checkTopics(@Nonnull SystemPropertyCenter propCenter) {
+        for (DataType type : DataType.values()) {
+            KafkaHelper.createTopic(propCenter.zkConn,
+                    propCenter.zkSessionTimeoutMs,
+                    propCenter.zkConnectionTimeoutMS,
+                    topicOf(type),
+                    propCenter.kafkaNumPartitions,
+                    propCenter.kafkaReplFactor);
+        }
+    }
+
+    /**
+     * @return whether failed data should be sent to dead-letter topics.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Send data to the dead-letter topic of its type, and wait for the acknowledgement.
+     *
+     * @param type  data type of the data.
+     * @param key   key of the original message.
+     * @param value value of the original message.
+     * @throws Exception on failure sending the data.
+     */
+    public void send(@Nonnull DataType type, @Nonnull String key, @Nonnull byte[] value) throws Exception {
+        KafkaProducerPool.<String, byte[]>getProducer(producerProp)
+                .send(new ProducerRecord<>(topicOf(type), key, value))
+                .get();
+        Metrics.increment("dead-letter." + type.name());
+    }
+}
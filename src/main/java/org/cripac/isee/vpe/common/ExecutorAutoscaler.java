@@ -0,0 +1,328 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.util.logging.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ExecutorAutoscaler class scales the executors of a {@link SparkStreamingApp} between bounds
+ * according to how far its Kafka consumer group is behind.
+ * <p>
+ * The processing capacity of an executor is estimated on the driver from the number of records
+ * and the processing time of each batch. Periodically, the lag of the application (end offsets minus
+ * committed offsets of all its topics) and the arrival rate of records are sampled, and the executors
+ * needed to keep up with arrivals and drain the lag within {@link SystemPropertyCenter#autoscaleDrainMs},
+ * while staying below {@link SystemPropertyCenter#autoscaleUtilization} of each batch, are computed.
+ * Executors are added at once, up to {@link SystemPropertyCenter#autoscaleMaxStep} at a time,
+ * but removed one at a time and only after {@link SystemPropertyCenter#autoscaleScaleDownRounds}
+ * decisions in a row needing fewer, so that short pauses between bursts do not cause flapping.
+ * <p>
+ * Autoscalers live on the driver, and act on executors through an {@link ExecutorAllocator}.
+ */
+public class ExecutorAutoscaler {
+
+    /**
+     * Weight of the newest measurement when updating the capacity estimation.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * The LagSample class holds offsets summed over all the partitions of the topics of an application.
+     */
+    public static class LagSample {
+        final long endOffset;
+        final long committedOffset;
+
+        public LagSample(long endOffset, long committedOffset) {
+            this.endOffset = endOffset;
+            this.committedOffset = committedOffset;
+        }
+
+        public long getLag() {
+            return Math.max(0, endOffset - committedOffset);
+        }
+    }
+
+    /**
+     * The LagSource interface samples the offsets of an application.
+     */
+    @FunctionalInterface
+    public interface LagSource {
+        @Nonnull
+        LagSample sample() throws Exception;
+    }
+
+    /**
+     * The ExecutorAllocator interface adds and removes executors of an application.
+     */
+    public interface ExecutorAllocator {
+        /**
+         * @return number of executors currently registered.
+         */
+        int getNumExecutors();
+
+        /**
+         * @param num number of executors to add.
+         * @return whether the request is acknowledged.
+         */
+        boolean requestExecutors(int num);
+
+        /**
+         * @param num number of executors to remove.
+         * @return whether the request is acknowledged.
+         */
+        boolean killExecutors(int num);
+    }
+
+    private final String appName;
+    private final LagSource lagSource;
+    private final ExecutorAllocator allocator;
+    @Nullable
+    private final Logger logger;
+    private final int minExecutors;
+    private final int maxExecutors;
+    private final long intervalMs;
+    private final long drainMs;
+    private final double utilization;
+    private final int scaleDownRounds;
+    private final int maxStep;
+
+    // Estimated number of records an executor processes per millisecond, or negative if unknown.
+    private double capacityPerExecutor = -1;
+    private LagSample lastSample = null;
+    private long lastSampleTime = 0;
+    private int target;
+    private int roundsBelowTarget = 0;
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * Create an autoscaler of an application with configuration of the system.
+     *
+     * @param appName    name of the application.
+     * @param propCenter properties of the system.
+     * @param lagSource  source of offsets of the application.
+     * @param allocator  allocator of executors of the application.
+     * @param logger     logger of the application.
+     */
+    public ExecutorAutoscaler(@Nonnull String appName,
+                              @Nonnull SystemPropertyCenter propCenter,
+                              @Nonnull LagSource lagSource,
+                              @Nonnull ExecutorAllocator allocator,
+                              @Nullable Logger logger) {
+        this(appName, lagSource, allocator, logger,
+                propCenter.getAutoscaleMinExecutors(appName),
+                propCenter.getAutoscaleMaxExecutors(appName),
+                propCenter.numExecutors,
+                propCenter.autoscaleIntervalMs,
+                propCenter.autoscaleDrainMs,
+                propCenter.autoscaleUtilization,
+                propCenter.autoscaleScaleDownRounds,
+                propCenter.autoscaleMaxStep);
+    }
+
+    ExecutorAutoscaler(@Nonnull String appName,
+                       @Nonnull LagSource lagSource,
+                       @Nonnull ExecutorAllocator allocator,
+                       @Nullable Logger logger,
+                       int minExecutors,
+                       int maxExecutors,
+                       int initialExecutors,
+                       long intervalMs,
+                       long drainMs,
+                       double utilization,
+                       int scaleDownRounds,
+                       int maxStep) {
+        assert minExecutors >= 1 && maxExecutors >= minExecutors;
+        assert drainMs > 0 && utilization > 0 && maxStep >= 1;
+        this.appName = appName;
+        this.lagSource = lagSource;
+        this.allocator = allocator;
+        this.logger = logger;
+        this.minExecutors = minExecutors;
+        this.maxExecutors = maxExecutors;
+        this.intervalMs = intervalMs;
+        this.drainMs = drainMs;
+        this.utilization = utilization;
+        this.scaleDownRounds = scaleDownRounds;
+        this.maxStep = maxStep;
+        this.target = Math.max(minExecutors, Math.min(maxExecutors, initialExecutors));
+    }
+
+    /**
+     * Create a source sampling the offsets of the consumer group of an application in Kafka.
+     * The consumer only queries offsets, and never joins the group.
+     * The source is not thread-safe.
+     *
+     * @param kafkaParams Kafka parameters of the application, including its group ID.
+     * @param topics      topics the application consumes.
+     * @return the source.
+     */
+    public static LagSource kafkaLagSource(@Nonnull Map<String, Object> kafkaParams,
+                                           @Nonnull Collection<String> topics) {
+        final Map<String, Object> config = new HashMap<>(kafkaParams);
+        config.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        final KafkaConsumer<?, ?> consumer = new KafkaConsumer<>(config);
+        return () -> {
+            final List<TopicPartition> partitions = new ArrayList<>();
+            for (String topic : topics) {
+                for (PartitionInfo info : consumer.partitionsFor(topic)) {
+                    partitions.add(new TopicPartition(topic, info.partition()));
+                }
+            }
+            long endOffset = 0;
+            long committedOffset = 0;
+            for (Map.Entry<TopicPartition, Long> entry : consumer.endOffsets(partitions).entrySet()) {
+                final OffsetAndMetadata committed = consumer.committed(entry.getKey());
+                endOffset += entry.getValue();
+                // Partitions never committed are not counted as behind.
+                committedOffset += committed == null ? entry.getValue() : committed.offset();
+            }
+            return new LagSample(endOffset, committedOffset);
+        };
+    }
+
+    /**
+     * Update the capacity estimation with a completed batch. Called on the driver.
+     *
+     * @param numRecords   number of records in the batch.
+     * @param processingMs processing time of the batch in milliseconds.
+     */
+    public synchronized void onBatchCompleted(long numRecords, long processingMs) {
+        if (numRecords <= 0 || processingMs <= 0) {
+            return;
+        }
+        final int numExecutors = Math.max(1, allocator.getNumExecutors());
+        final double measured = (double) numRecords / processingMs / numExecutors;
+        capacityPerExecutor = capacityPerExecutor < 0
+                ? measured
+                : SMOOTHING * measured + (1 - SMOOTHING) * capacityPerExecutor;
+    }
+
+    /**
+     * Sample the lag, and add or remove executors if needed.
+     *
+     * @param now current time in milliseconds.
+     * @return the target number of executors after the decision.
+     * @throws Exception on failure sampling the lag.
+     */
+    public synchronized int update(long now) throws Exception {
+        final LagSample sample = lagSource.sample();
+        final LagSample last = lastSample;
+        final long elapsedMs = now - lastSampleTime;
+        lastSample = sample;
+        lastSampleTime = now;
+        if (last == null || elapsedMs <= 0) {
+            return target;
+        }
+
+        final long lag = sample.getLag();
+        final int desired;
+        if (capacityPerExecutor <= 0) {
+            // No batch has been measured yet. Add an executor only if falling behind.
+            desired = lag > last.getLag() ? target + 1 : target;
+        } else {
+            final double arrivalRate = Math.max(0, (double) (sample.endOffset - last.endOffset) / elapsedMs);
+            final double neededRate = arrivalRate + (double) lag / drainMs;
+            desired = (int) Math.ceil(neededRate / (capacityPerExecutor * utilization));
+        }
+        final int bounded = Math.max(minExecutors, Math.min(maxExecutors, desired));
+
+        if (bounded > target) {
+            final int numToAdd = Math.min(maxStep, bounded - target);
+            roundsBelowTarget = 0;
+            if (allocator.requestExecutors(numToAdd)) {
+                target += numToAdd;
+                Metrics.add("autoscale." + appName + ".added", numToAdd);
+                log("Requested " + numToAdd + " executors (target " + target + ", lag " + lag + ")");
+            }
+        } else if (bounded < target) {
+            if (++roundsBelowTarget >= scaleDownRounds) {
+                roundsBelowTarget = 0;
+                if (allocator.killExecutors(1)) {
+                    --target;
+                    Metrics.increment("autoscale." + appName + ".removed");
+                    log("Removed an executor (target " + target + ", lag " + lag + ")");
+                }
+            }
+        } else {
+            roundsBelowTarget = 0;
+        }
+        return target;
+    }
+
+    private void log(String message) {
+        if (logger != null) {
+            logger.info("Autoscaler of " + appName + ": " + message);
+        }
+    }
+
+    /**
+     * @return the target number of executors.
+     */
+    public synchronized int getTarget() {
+        return target;
+    }
+
+    /**
+     * Start updating periodically in a daemon thread.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, appName + "-autoscaler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                update(System.currentTimeMillis());
+            } catch (Exception e) {
+                Metrics.increment("autoscale." + appName + ".failed");
+                if (logger != null) {
+                    logger.error("During autoscaling " + appName, e);
+                }
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop updating.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
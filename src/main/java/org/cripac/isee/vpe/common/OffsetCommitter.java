@@ -0,0 +1,125 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.spark.streaming.kafka010.CanCommitOffsets;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.util.logging.Logger;
+import scala.Tuple2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The OffsetCommitter class commits Kafka offsets of a batch only after all the output operations
+ * of the batch, i.e. the processing of all the streams, have finished successfully.
+ * <p>
+ * Once a batch fails, no offsets are committed any more, and the failure handler is called,
+ * which is expected to stop the application. A restart then replays from the failed batch, or
+ * from a batch before it whose commit has not reached Kafka yet, since Spark sends commits
+ * when generating the next batch. Replays are thus bounded by the batches in flight.
+ * <p>
+ * Committers live on the driver, and are found by application name in closures
+ * of the streaming graph, like {@link StreamRateController}s.
+ */
+public class OffsetCommitter {
+
+    private static final Map<String, OffsetCommitter> committers = new ConcurrentHashMap<>();
+
+    private final Map<Long, List<Tuple2<CanCommitOffsets, OffsetRange[]>>> received = new ConcurrentHashMap<>();
+    private final Logger logger;
+    private final Runnable failureHandler;
+    private volatile boolean failed = false;
+
+    /**
+     * Create a committer for an application, replacing the one created before for the same application.
+     *
+     * @param appName        name of the application.
+     * @param logger         logger of the application.
+     * @param failureHandler called once when the first failed batch completes.
+     */
+    public OffsetCommitter(@Nonnull String appName, @Nonnull Logger logger, @Nonnull Runnable failureHandler) {
+        this.logger = logger;
+        this.failureHandler = failureHandler;
+        committers.put(appName, this);
+    }
+
+    /**
+     * Get the committer of an application.
+     *
+     * @param appName name of the application.
+     * @return the committer, or null if offsets of the application are committed on receiving.
+     */
+    @Nullable
+    public static OffsetCommitter get(@Nonnull String appName) {
+        return committers.get(appName);
+    }
+
+    /**
+     * Record the offset ranges a Kafka input stream provides to a batch.
+     * Called on the driver when the batch is generated.
+     *
+     * @param batchTime    time of the batch in milliseconds.
+     * @param stream       the input stream to commit the offsets through.
+     * @param offsetRanges offset ranges of the batch.
+     */
+    public void onBatchReceived(long batchTime, @Nonnull CanCommitOffsets stream, @Nonnull OffsetRange[] offsetRanges) {
+        received.computeIfAbsent(batchTime, time -> new ArrayList<>())
+                .add(new Tuple2<>(stream, offsetRanges));
+    }
+
+    /**
+     * Commit the offsets of a batch if it has succeeded.
+     *
+     * @param batchTime time of the batch in milliseconds.
+     * @param failures  failure reasons of output operations of the batch, empty if none failed.
+     */
+    public synchronized void onBatchCompleted(long batchTime, @Nonnull List<String> failures) {
+        final List<Tuple2<CanCommitOffsets, OffsetRange[]>> toCommit = received.remove(batchTime);
+        if (failed) {
+            return;
+        }
+        if (!failures.isEmpty()) {
+            failed = true;
+            Metrics.increment("offsets.failed-batches");
+            logger.error("Batch " + batchTime + " failed, so no more offsets are committed: " + failures);
+            failureHandler.run();
+            return;
+        }
+        if (toCommit == null) {
+            return;
+        }
+        for (Tuple2<CanCommitOffsets, OffsetRange[]> commit : toCommit) {
+            long numMessages = 0;
+            for (OffsetRange range : commit._2()) {
+                numMessages += range.count();
+            }
+            commit._1().commitAsync(commit._2(), (offsets, e) -> {
+                if (e != null) {
+                    logger.error("During committing offsets of batch " + batchTime, e);
+                }
+            });
+            Metrics.add("offsets.committed-messages", numMessages);
+        }
+    }
+}
@@ -17,39 +17,352 @@ package org.cripac.isee.vpe.common;/*
  * Created by ken.yu on 17-3-10.
  */
 
-import java.util.ArrayList;
+import org.cripac.isee.vpe.ctrl.Metrics;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Objects;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * The ParallelExecutor class processes items of an iterator in parallel on a dedicated thread pool.
+ * <p>
+ * Up to {@code parallelism} items are in flight at any time: as soon as one item finishes,
+ * the next one is taken from the iterator, so a slow item does not hold back the others.
+ * Items are taken from the iterator in the calling thread only, so iterators that are not
+ * thread-safe (like those of Spark partitions) can be used directly.
+ * <p>
+ * The pool is not shared with parallel streams, so long items do not starve
+ * the common {@link ForkJoinPool}.
+ */
 public class ParallelExecutor {
-    public static <T> void execute(Collection<T> items, Consumer<T> consumer) {
-        execute(items.iterator(), consumer);
+
+    private static final AtomicInteger threadCnt = new AtomicInteger(0);
+
+    private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "parallel-executor-" + threadCnt.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The Cancellation class is a handle for cancelling executions from other threads.
+     * Once cancelled, no more items are taken from the iterators, and the threads processing
+     * in-flight items are interrupted. A cancellation can be shared by multiple executions.
+     */
+    public static class Cancellation {
+        private volatile boolean cancelled = false;
+        private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+        /**
+         * Cancel the executions using this handle.
+         */
+        public void cancel() {
+            cancelled = true;
+            listeners.forEach(Runnable::run);
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void register(Runnable listener) {
+            listeners.add(listener);
+            if (cancelled) {
+                listener.run();
+            }
+        }
+
+        private void unregister(Runnable listener) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * The Stats class records the processing time of each item of an execution.
+     */
+    public static class Stats {
+        private long[] latencies = new long[16];
+        private int count = 0;
+        private int numFailed = 0;
+        private final long startTime = System.nanoTime();
+        private long endTime = -1;
+
+        private synchronized void record(long nanos, boolean failed) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (failed) {
+                ++numFailed;
+            }
+        }
+
+        private synchronized void finish() {
+            endTime = System.nanoTime();
+        }
+
+        /**
+         * @return number of items processed, including failed ones.
+         */
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * @return number of items whose processing threw an exception.
+         */
+        public synchronized int getNumFailed() {
+            return numFailed;
+        }
+
+        /**
+         * @return mean processing time of items in nanoseconds, or 0 if no item has been processed.
+         */
+        public synchronized double getMeanNanos() {
+            if (count == 0) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = 0; i < count; ++i) {
+                sum += latencies[i];
+            }
+            return (double) sum / count;
+        }
+
+        /**
+         * @param percentile a value in [0, 100].
+         * @return the processing time in nanoseconds at the percentile, or 0 if no item has been processed.
+         */
+        public synchronized long getPercentileNanos(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+
+        /**
+         * @return maximum processing time of items in nanoseconds.
+         */
+        public long getMaxNanos() {
+            return getPercentileNanos(100);
+        }
+
+        /**
+         * @return time from the start to the end of the execution in nanoseconds,
+         * or till now if the execution has not ended.
+         */
+        public synchronized long getWallNanos() {
+            return (endTime < 0 ? System.nanoTime() : endTime) - startTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d items (%d failed) in %.1fms, mean %.1fms, p99 %.1fms, max %.1fms",
+                    getCount(), getNumFailed(), getWallNanos() / 1e6,
+                    getMeanNanos() / 1e6, getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+        }
+    }
+
+    public static <T> Stats execute(Collection<T> items, Consumer<T> consumer) {
+        return execute(items.iterator(), consumer);
+    }
+
+    public static <T> Stats execute(Collection<T> items, int parallelism, Consumer<T> consumer) {
+        return execute(items.iterator(), parallelism, consumer);
     }
 
-    public static <T> void execute(Collection<T> items, int parallelism, Consumer<T> consumer) {
-        execute(items.iterator(), parallelism, consumer);
+    public static <T> Stats execute(Iterator<T> items, Consumer<T> consumer) {
+        return execute(items, Runtime.getRuntime().availableProcessors(), consumer);
     }
 
-    public static <T> void execute(Iterator<T> items, Consumer<T> consumer) {
-        execute(items, Runtime.getRuntime().availableProcessors(), consumer);
+    public static <T> Stats execute(Iterator<T> items, int parallelism, Consumer<T> consumer) {
+        return execute(items, parallelism, consumer, new Cancellation());
     }
 
-    public static <T> void execute(Iterator<T> items, int parallelism, Consumer<T> consumer) {
+    /**
+     * Process items in parallel, and wait for all of them to finish.
+     * <p>
+     * If processing of an item throws an exception, no more items are taken,
+     * and the exception is rethrown after the in-flight items finish.
+     *
+     * @param items        items to process.
+     * @param parallelism  maximum number of items processed at the same time.
+     * @param consumer     function processing each item.
+     * @param cancellation handle for cancelling the execution.
+     * @param <T>          type of items.
+     * @return processing time statistics of the items.
+     * @throws CancellationException if the execution is cancelled or the calling thread is interrupted.
+     *                               In-flight items have stopped when it is thrown.
+     */
+    public static <T> Stats execute(@Nonnull Iterator<T> items,
+                                    int parallelism,
+                                    @Nonnull Consumer<T> consumer,
+                                    @Nonnull Cancellation cancellation) {
         assert parallelism >= 1;
-        ArrayList<T> dataBuf = new ArrayList<>(parallelism);
-        if (items.hasNext()) {
-            for (int i = 0; i < parallelism && items.hasNext(); ++i) {
-                dataBuf.add(items.next());
+        final Stats stats = new Stats();
+        final Semaphore window = new Semaphore(parallelism);
+        final Set<Thread> workers = ConcurrentHashMap.newKeySet();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Runnable interrupter = () -> workers.forEach(Thread::interrupt);
+        cancellation.register(interrupter);
+        boolean interrupted = false;
+        try {
+            while (failure.get() == null && !cancellation.isCancelled() && items.hasNext()) {
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    cancellation.cancel();
+                    break;
+                }
+                if (failure.get() != null || cancellation.isCancelled()) {
+                    window.release();
+                    break;
+                }
+                final T item = items.next();
+                try {
+                    pool.execute(() -> {
+                        workers.add(Thread.currentThread());
+                        final long start = System.nanoTime();
+                        boolean failed = false;
+                        try {
+                            if (!cancellation.isCancelled()) {
+                                consumer.accept(item);
+                            }
+                        } catch (Throwable t) {
+                            failed = true;
+                            failure.compareAndSet(null, t);
+                        } finally {
+                            workers.remove(Thread.currentThread());
+                            // Clear interruption before the thread returns to the pool.
+                            Thread.interrupted();
+                            final long latency = System.nanoTime() - start;
+                            stats.record(latency, failed);
+                            Metrics.increment("parallel-executor.items");
+                            Metrics.add("parallel-executor.item-time-ms", latency / 1000000);
+                            window.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    window.release();
+                    throw e;
+                }
             }
-            dataBuf.parallelStream().forEach(consumer);
+            // Wait for in-flight items.
+            window.acquireUninterruptibly(parallelism);
+        } finally {
+            cancellation.unregister(interrupter);
+            stats.finish();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (cancellation.isCancelled()) {
+            // Failures of interrupted items are consequences of the cancellation.
+            throw new CancellationException("Cancelled after " + stats.getCount() + " items");
         }
-        while (items.hasNext()) {
-            for (int i = 0; i < parallelism; ++i) {
-                dataBuf.set(i, items.hasNext() ? items.next() : null);
+        rethrow(failure.get());
+        return stats;
+    }
+
+    /**
+     * Process items with asynchronous functions, and wait for all of them to finish.
+     * <p>
+     * Up to {@code parallelism} items are in flight at any time, but an item holds no thread while it waits,
+     * e.g. for a retry of {@link RobustExecutor#executeAsync(Object)}.
+     * The function is called in the calling thread, and should return as soon as the processing is started.
+     * If processing of an item fails, no more items are started,
+     * and the failure is rethrown after the in-flight items finish.
+     *
+     * @param items       items to process.
+     * @param parallelism maximum number of items processed at the same time.
+     * @param starter     function starting the processing of each item.
+     * @param <T>         type of items.
+     * @return processing time statistics of the items.
+     * @throws CancellationException if the calling thread is interrupted.
+     *                               In-flight items have finished when it is thrown.
+     */
+    public static <T> Stats executeAsync(@Nonnull Iterator<T> items,
+                                         int parallelism,
+                                         @Nonnull Function<T, ? extends CompletionStage<?>> starter) {
+        assert parallelism >= 1;
+        final Stats stats = new Stats();
+        final Semaphore window = new Semaphore(parallelism);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        boolean interrupted = false;
+        try {
+            while (failure.get() == null && items.hasNext()) {
+                try {
+                    window.acquire();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+                if (failure.get() != null) {
+                    window.release();
+                    break;
+                }
+                final T item = items.next();
+                final long start = System.nanoTime();
+                CompletionStage<?> stage;
+                try {
+                    stage = starter.apply(item);
+                } catch (Throwable t) {
+                    final CompletableFuture<?> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(t);
+                    stage = failed;
+                }
+                stage.whenComplete((ignored, t) -> {
+                    if (t != null) {
+                        failure.compareAndSet(null,
+                                t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                    }
+                    final long latency = System.nanoTime() - start;
+                    stats.record(latency, t != null);
+                    Metrics.increment("parallel-executor.items");
+                    Metrics.add("parallel-executor.item-time-ms", latency / 1000000);
+                    window.release();
+                });
             }
-            dataBuf.parallelStream().filter(Objects::nonNull).forEach(consumer);
+            // Wait for in-flight items.
+            window.acquireUninterruptibly(parallelism);
+        } finally {
+            stats.finish();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted after " + stats.getCount() + " items");
+        }
+        rethrow(failure.get());
+        return stats;
+    }
+
+    public static <T> Stats executeAsync(Collection<T> items,
+                                         int parallelism,
+                                         Function<T, ? extends CompletionStage<?>> starter) {
+        return executeAsync(items.iterator(), parallelism, starter);
+    }
+
+    private static void rethrow(Throwable t) {
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new CompletionException(t);
         }
     }
 }
@@ -0,0 +1,88 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The RetryPolicy interface decides whether and when a {@link RobustExecutor} retries after a failure.
+ */
+@FunctionalInterface
+public interface RetryPolicy extends Serializable {
+
+    /**
+     * Default base delay in milliseconds of {@link #backoff(int)}.
+     */
+    long DEFAULT_BASE_DELAY_MS = 100;
+
+    /**
+     * Default max delay in milliseconds of {@link #backoff(int)}.
+     */
+    long DEFAULT_MAX_DELAY_MS = 5000;
+
+    /**
+     * Get the delay before a retry.
+     *
+     * @param retryCnt number of retries done so far.
+     * @return delay in milliseconds before the next retry, or a negative value not to retry any more.
+     */
+    long delayMs(int retryCnt);
+
+    /**
+     * Create a policy retrying after a fixed interval.
+     *
+     * @param maxRetries    max times of retrying.
+     * @param retryInterval interval (ms) between retries.
+     * @return the policy.
+     */
+    static RetryPolicy fixed(int maxRetries, long retryInterval) {
+        return retryCnt -> retryCnt < maxRetries ? retryInterval : -1;
+    }
+
+    /**
+     * Create a policy retrying after exponentially growing delays with jitter. The delay before the n-th retry
+     * is drawn uniformly from [d/2, d], where d = min(maxDelayMs, baseDelayMs * 2^n), so that callers failing
+     * at the same time do not retry in lock-step.
+     *
+     * @param maxRetries  max times of retrying.
+     * @param baseDelayMs delay (ms) before the first retry, before jittering.
+     * @param maxDelayMs  max delay (ms) before a retry, before jittering.
+     * @return the policy.
+     */
+    static RetryPolicy backoff(int maxRetries, long baseDelayMs, long maxDelayMs) {
+        return retryCnt -> {
+            if (retryCnt >= maxRetries) {
+                return -1;
+            }
+            final long delay = Math.min(maxDelayMs, baseDelayMs << Math.min(retryCnt, 30));
+            return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        };
+    }
+
+    /**
+     * Create a policy retrying after exponentially growing delays with jitter,
+     * starting from {@link #DEFAULT_BASE_DELAY_MS} and capped at {@link #DEFAULT_MAX_DELAY_MS}.
+     *
+     * @param maxRetries max times of retrying.
+     * @return the policy.
+     */
+    static RetryPolicy backoff(int maxRetries) {
+        return backoff(maxRetries, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+}
@@ -23,24 +23,56 @@ import org.apache.log4j.Logger;
 import org.apache.spark.api.java.function.Function;
 import org.apache.spark.api.java.function.Function0;
 import org.apache.spark.api.java.function.VoidFunction;
+import org.cripac.isee.vpe.ctrl.Metrics;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The class RobustExecutor execute functions and automatically retry on failure.
  * It is recommended to only wrap codes that can easily fail,
  * and retrying might possibly fix the problem.
+ * <p>
+ * When to retry is decided by a {@link RetryPolicy}. Calls to an external resource should be guarded
+ * by the {@link CircuitBreaker} of the resource (see {@link #withCircuitBreaker(String)}),
+ * so that they fail fast while the resource is down, and retries are limited by the budget of the resource.
+ * Retries are counted as retry.&lt;resource&gt;, or retry.other for unguarded calls.
+ * <p>
+ * {@link #execute(Object)} sleeps in the calling thread between retries, while {@link #executeAsync(Object)}
+ * returns at once, and schedules retries without holding any thread, so that steps on different resources
+ * can be composed with {@link CompletableFuture#thenCompose}.
  */
 public class RobustExecutor<T, R> {
 
-    private final int maxRetries;
-    private final int retryInterval;
+    private static final AtomicInteger threadCnt = new AtomicInteger(0);
+
+    /**
+     * Pool running attempts of asynchronous executions by default.
+     */
+    private static final ExecutorService asyncPool = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "robust-executor-" + threadCnt.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Scheduler of retries of asynchronous executions.
+     */
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "robust-executor-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RetryPolicy retryPolicy;
     private Function<T, R> onceFunction;
     private List<Class<?>> noRetryThrowables;
+    @Nullable
+    private CircuitBreaker circuitBreaker = null;
 
     public interface VoidFunction0 {
         void call() throws Exception;
@@ -48,7 +80,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      *
      * @param onceFunction function to be executed each time.
@@ -59,7 +91,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      *
      * @param onceFunction function to be executed each time.
@@ -73,7 +105,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      * Note that be careful when simplifying the lambda expression for the function here,
      * you may not get the correct function type as expected, resulting in null return value.
@@ -86,7 +118,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      * Note that be careful when simplifying the lambda expression for the function here,
      * you may not get the correct function type as expected, resulting in null return value.
@@ -99,7 +131,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure.
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}).
      * Note that be careful when simplifying the lambda expression for the function here,
      * you may not get the correct function type as expected, resulting in null return value.
      *
@@ -107,7 +139,7 @@ public class RobustExecutor<T, R> {
      * @param maxRetries   max times of retrying.
      */
     public RobustExecutor(Function<T, R> onceFunction, int maxRetries) {
-        this(onceFunction, maxRetries, 0);
+        this(onceFunction, RetryPolicy.backoff(maxRetries), Collections.emptyList());
     }
 
     /**
@@ -125,7 +157,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      *
      * @param onceFunction      function to be executed each time.
@@ -137,7 +169,7 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      *
      * @param onceFunction      function to be executed each time.
@@ -152,14 +184,14 @@ public class RobustExecutor<T, R> {
 
     /**
      * Create a RobustExecutor specifying the retrying behaviour.
-     * The executor retries immediately after failure,
+     * The executor retries after a jittered exponential backoff (see {@link RetryPolicy#backoff(int)}),
      * and may retry up to 2 times (totally executing 3 times).
      *
      * @param onceFunction      function to be executed each time.
      * @param noRetryThrowables exceptions that are not able to be solved by retrying.
      */
     public RobustExecutor(Function<T, R> onceFunction, List<Class<?>> noRetryThrowables) {
-        this(onceFunction, 2, 0, noRetryThrowables);
+        this(onceFunction, RetryPolicy.backoff(2), noRetryThrowables);
     }
 
     /**
@@ -175,14 +207,49 @@ public class RobustExecutor<T, R> {
                           int maxRetries,
                           int retryInterval,
                           List<Class<?>> noRetryThrowables) {
+        this(onceFunction, RetryPolicy.fixed(maxRetries, retryInterval), noRetryThrowables);
         assert maxRetries >= 0;
         assert retryInterval >= 0;
+    }
+
+    /**
+     * Create a RobustExecutor specifying the retrying behaviour.
+     * Note that be careful when simplifying the lambda expression for the function here,
+     * you may not get the correct function type as expected, resulting in null return value.
+     *
+     * @param retryPolicy       policy deciding whether and when to retry.
+     * @param noRetryThrowables exceptions that are not able to be solved by retrying.
+     */
+    public RobustExecutor(Function<T, R> onceFunction,
+                          RetryPolicy retryPolicy,
+                          List<Class<?>> noRetryThrowables) {
         this.onceFunction = onceFunction;
-        this.maxRetries = maxRetries;
-        this.retryInterval = retryInterval;
+        this.retryPolicy = retryPolicy;
         this.noRetryThrowables = noRetryThrowables;
     }
 
+    /**
+     * Replace the retry policy of this executor.
+     *
+     * @param retryPolicy policy deciding whether and when to retry.
+     * @return this executor.
+     */
+    public RobustExecutor<T, R> withRetryPolicy(@Nonnull RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Guard the executions by the circuit breaker of an external resource.
+     *
+     * @param resource name of the resource, e.g. {@link CircuitBreaker#HDFS}.
+     * @return this executor.
+     */
+    public RobustExecutor<T, R> withCircuitBreaker(@Nonnull String resource) {
+        this.circuitBreaker = CircuitBreaker.of(resource);
+        return this;
+    }
+
     /**
      * Execute the specified function with no parameter robustly.
      * When catching exceptions from the function, retry the execution.
@@ -200,31 +267,150 @@ public class RobustExecutor<T, R> {
     /**
      * Execute the specified function robustly.
      * When catching exceptions from the function, retry the execution.
-     * When reaching the max retrying times, throw the exception to handle outside.
+     * When the retry policy or the retry budget gives up, throw the exception to handle outside.
      * Note that be careful when simplifying the lambda expression for the function here,
      * you may not get the correct function type as expected, resulting in null return value.
      *
-     * @throws Exception On failure that cannot be handled by retrying.
+     * @throws CircuitBreaker.OpenException if the circuit of the resource guarding this executor is open.
+     * @throws Exception                    On failure that cannot be handled by retrying.
      */
     @Nonnull
     public R execute(@Nullable T param) throws Exception {
         int retryCnt = 0;
         while (true) {
+            if (circuitBreaker != null) {
+                circuitBreaker.acquire();
+            }
             try {
-                return onceFunction.call(param);
-            } catch (Throwable t) {
-                for (Class<?> throwableClass : noRetryThrowables) {
-                    if (throwableClass.isInstance(t)) {
-                        throw t;
-                    }
+                final R result = onceFunction.call(param);
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
                 }
-                if (retryCnt >= maxRetries) {
+                return result;
+            } catch (Throwable t) {
+                final long delay = delayBeforeRetry(t, retryCnt);
+                if (delay < 0) {
                     throw t;
                 }
-                Logger.getLogger(this.getClass()).error("To retry " + retryCnt + "/" + maxRetries, t);
-                TimeUnit.MILLISECONDS.sleep(retryInterval);
+                TimeUnit.MILLISECONDS.sleep(delay);
                 ++retryCnt;
             }
         }
     }
+
+    /**
+     * Execute the specified function with no parameter robustly and asynchronously.
+     *
+     * @return a future of the result.
+     * @see #executeAsync(Object, Executor)
+     */
+    @Nonnull
+    public CompletableFuture<R> executeAsync() {
+        return executeAsync(null);
+    }
+
+    /**
+     * Execute the specified function robustly and asynchronously in a pool shared by all the executors.
+     *
+     * @param param parameter of the function.
+     * @return a future of the result.
+     * @see #executeAsync(Object, Executor)
+     */
+    @Nonnull
+    public CompletableFuture<R> executeAsync(@Nullable T param) {
+        return executeAsync(param, asyncPool);
+    }
+
+    /**
+     * Execute the specified function robustly and asynchronously.
+     * Each attempt runs in the given executor. Retries are scheduled on a shared scheduler
+     * after the delays of the retry policy, so no thread is held while waiting to retry.
+     * Cancelling the future stops further retries.
+     *
+     * @param param    parameter of the function.
+     * @param executor executor to run attempts in.
+     * @return a future of the result, completed exceptionally with the last failure
+     * when the retry policy or the retry budget gives up,
+     * or with {@link CircuitBreaker.OpenException} if the circuit of the resource is open.
+     */
+    @Nonnull
+    public CompletableFuture<R> executeAsync(@Nullable T param, @Nonnull Executor executor) {
+        final CompletableFuture<R> future = new CompletableFuture<>();
+        submitAttempt(param, executor, 0, future);
+        return future;
+    }
+
+    private void submitAttempt(@Nullable T param,
+                               @Nonnull Executor executor,
+                               int retryCnt,
+                               @Nonnull CompletableFuture<R> future) {
+        try {
+            executor.execute(() -> attempt(param, executor, retryCnt, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void attempt(@Nullable T param,
+                         @Nonnull Executor executor,
+                         int retryCnt,
+                         @Nonnull CompletableFuture<R> future) {
+        if (future.isDone()) {
+            return;
+        }
+        final R result;
+        try {
+            if (circuitBreaker != null) {
+                circuitBreaker.acquire();
+            }
+        } catch (CircuitBreaker.OpenException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        try {
+            result = onceFunction.call(param);
+        } catch (Throwable t) {
+            final long delay = delayBeforeRetry(t, retryCnt);
+            if (delay < 0) {
+                future.completeExceptionally(t);
+            } else {
+                retryScheduler.schedule(() -> submitAttempt(param, executor, retryCnt + 1, future),
+                        delay, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.onSuccess();
+        }
+        future.complete(result);
+    }
+
+    /**
+     * Record a failed attempt, and decide whether and when to retry.
+     *
+     * @param t        the failure.
+     * @param retryCnt number of retries done so far.
+     * @return delay in milliseconds before the next retry, or a negative value not to retry.
+     */
+    private long delayBeforeRetry(@Nonnull Throwable t, int retryCnt) {
+        for (Class<?> throwableClass : noRetryThrowables) {
+            if (throwableClass.isInstance(t)) {
+                // The resource responded, but the call cannot succeed.
+                if (circuitBreaker != null) {
+                    circuitBreaker.onSuccess();
+                }
+                return -1;
+            }
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.onFailure();
+        }
+        final long delay = retryPolicy.delayMs(retryCnt);
+        if (delay < 0 || (circuitBreaker != null && !circuitBreaker.tryAcquireRetry())) {
+            return -1;
+        }
+        Metrics.increment("retry." + (circuitBreaker == null ? "other" : circuitBreaker.getResource()));
+        Logger.getLogger(this.getClass()).error("To retry " + retryCnt + " after " + delay + "ms", t);
+        return delay;
+    }
 }
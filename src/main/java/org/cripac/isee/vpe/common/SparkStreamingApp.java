@@ -21,24 +21,31 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkException;
 import org.apache.spark.TaskContext;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.storage.StorageLevel;
 import org.apache.spark.streaming.Durations;
 import org.apache.spark.streaming.api.java.JavaInputDStream;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
 import org.apache.spark.streaming.api.java.JavaStreamingContext;
 import org.apache.spark.streaming.kafka010.*;
+import org.cripac.isee.vpe.ctrl.ExecutionPlanRegistry;
+import org.cripac.isee.vpe.ctrl.Metrics;
 import org.cripac.isee.vpe.ctrl.MonitorThread;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.ctrl.TaskController;
 import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.util.Singleton;
+import org.cripac.isee.vpe.util.codec.TaskDataCodecHelper;
 import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
+import org.cripac.isee.vpe.util.spark.SparkHelper;
 import scala.Tuple2;
 
 import javax.annotation.Nonnull;
@@ -47,10 +54,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
-import static org.cripac.isee.util.SerializationHelper.deserialize;
-
 /**
  * The SparkStreamingApp class wraps a whole Spark Streaming application,
  * including driver code and executor code. After initialized, it can be used
@@ -62,6 +68,25 @@ import static org.cripac.isee.util.SerializationHelper.deserialize;
 public abstract class SparkStreamingApp implements Serializable {
 
     private static final long serialVersionUID = 3098753124157119358L;
+
+    /**
+     * Values of {@link SystemPropertyCenter#runtime}.
+     */
+    public static final String SPARK_RUNTIME = "spark";
+    public static final String CONTINUOUS_RUNTIME = "continuous";
+
+    /**
+     * Values of {@link SystemPropertyCenter#restartMode}.
+     */
+    public static final String CHECKPOINT_RESTART = "checkpoint";
+    public static final String EXTERNAL_RESTART = "external";
+
+    /**
+     * Values of {@link SystemPropertyCenter#offsetCommitMode}.
+     */
+    public static final String COMMIT_ON_RECEIVE = "on-receive";
+    public static final String COMMIT_ON_COMPLETION = "on-completion";
+
     @Nonnull
     private SystemPropertyCenter propCenter;
     @Nonnull
@@ -81,7 +106,8 @@ public abstract class SparkStreamingApp implements Serializable {
         this.kafkaParams = propCenter.getKafkaParams(appName);
         this.loggerSingleton = new Singleton<>(
                 new SynthesizedLoggerFactory(appName, propCenter),
-                SynthesizedLogger.class);
+                SynthesizedLogger.class,
+                appName);
         this.monitorSingleton = new Singleton<>(() -> {
             MonitorThread monitorThread = new MonitorThread(loggerSingleton.getInst(), propCenter);
             monitorThread.start();
@@ -94,6 +120,13 @@ public abstract class SparkStreamingApp implements Serializable {
                 return taskController;
             }, TaskController.class);
         }
+        if (propCenter.planRegistryEnable) {
+            final String planDir = ExecutionPlanRegistry.getPlanDir(propCenter);
+            final long planTTLMs = propCenter.planTTLMs;
+            this.planRegistrySingleton = new Singleton<>(() -> new ExecutionPlanRegistry(planDir, planTTLMs),
+                    ExecutionPlanRegistry.class);
+        }
+        this.deadLetterQueue = new DeadLetterQueue(propCenter);
     }
 
     /**
@@ -101,6 +134,20 @@ public abstract class SparkStreamingApp implements Serializable {
      */
     private transient JavaStreamingContext jssc = null;
 
+    /**
+     * Runtime of the streams in continuous mode, or null in Spark Streaming mode.
+     */
+    private transient ContinuousRuntime continuousRuntime = null;
+    /**
+     * Autoscaler of executors of the application. Null if autoscaling is disabled.
+     */
+    private transient ExecutorAutoscaler autoscaler = null;
+
+    /**
+     * Time in milliseconds each phase of startup took, in order.
+     */
+    private transient Map<String, Long> startupBreakdown = new LinkedHashMap<>();
+
     @Nonnull
     protected final Singleton<Logger> loggerSingleton;
 
@@ -113,6 +160,18 @@ public abstract class SparkStreamingApp implements Serializable {
     @Nullable
     private Singleton<TaskController> taskController = null;
 
+    /**
+     * Registry for resolving execution plans referred to by ID, or null if plan registry is disabled.
+     */
+    @Nullable
+    protected Singleton<ExecutionPlanRegistry> planRegistrySingleton = null;
+
+    /**
+     * Queue of records which cannot be routed.
+     */
+    @Nonnull
+    private final DeadLetterQueue deadLetterQueue;
+
     protected void registerStreams(Collection<Stream> streams) {
         this.streams.addAll(streams);
     }
@@ -130,18 +189,29 @@ public abstract class SparkStreamingApp implements Serializable {
     protected JavaPairDStream<DataType, Tuple2<String, byte[]>>
     buildDirectStream(@Nonnull Collection<DataType> acceptingTypes,
                       int repartition) throws SparkException {
+        final List<String> topics = acceptingTypes.stream().map(Enum::name).collect(Collectors.toList());
+        // Resume from the offsets saved by the state store if restarting externally,
+        // or from those committed to Kafka otherwise.
+        final StateStore stateStore = StateStore.get(appName);
+        final Map<TopicPartition, Long> fromOffsets =
+                stateStore == null ? Collections.emptyMap() : stateStore.getOffsets(topics);
         final JavaInputDStream<ConsumerRecord<String, byte[]>> inputDStream =
                 KafkaUtils.createDirectStream(jssc,
                         propCenter.kafkaLocationStrategy.equals("PreferBrokers") ?
                                 LocationStrategies.PreferBrokers() :
                                 LocationStrategies.PreferConsistent(),
-                        ConsumerStrategies.Subscribe(
-                                acceptingTypes.stream().map(Enum::name).collect(Collectors.toList()),
-                                kafkaParams));
+                        ConsumerStrategies.Subscribe(topics, kafkaParams, fromOffsets),
+                        // Rates of topics are decided by the rate controller of the application on the driver.
+                        new StreamRateController.PartitionConfig(appName));
+
+        // Merge partitions of the same Kafka partition index, so that data co-located by
+        // KeyAffinityPartitioner stays together without shuffling.
+        final boolean alignByKafkaPartition = !propCenter.kafkaAffinityTypes.isEmpty() && repartition < 0;
+        final int numKafkaPartitions = propCenter.kafkaNumPartitions;
 
         JavaPairDStream<DataType, Tuple2<String, byte[]>> stream = inputDStream
                 // Manipulate offsets.
-                .transform(rdd -> {
+                .transform((rdd, time) -> {
                     final Logger logger = loggerSingleton.getInst();
                     if (!monitorSingleton.getInst().isAlive()) {
                         logger.error("Monitor is dead!");
@@ -150,8 +220,26 @@ public abstract class SparkStreamingApp implements Serializable {
                     // Store offsets.
                     final OffsetRange[] offsetRanges = ((HasOffsetRanges) rdd.rdd()).offsetRanges();
 
-                    // Directly commit the offsets, since data has been checkpointed in Spark Streaming.
-                    ((CanCommitOffsets) inputDStream.inputDStream()).commitAsync(offsetRanges);
+                    final OffsetCommitter offsetCommitter = OffsetCommitter.get(appName);
+                    if (offsetCommitter != null) {
+                        // Commit the offsets after all the streams have processed the batch.
+                        offsetCommitter.onBatchReceived(time.milliseconds(),
+                                (CanCommitOffsets) inputDStream.inputDStream(), offsetRanges);
+                    } else {
+                        // Directly commit the offsets, since data has been checkpointed in Spark Streaming.
+                        ((CanCommitOffsets) inputDStream.inputDStream()).commitAsync(offsetRanges);
+                    }
+
+                    // Let the rate controller know the sizes of this batch.
+                    final StreamRateController rateController = StreamRateController.get(appName);
+                    if (rateController != null) {
+                        rateController.onBatchReceived(time.milliseconds(), offsetRanges);
+                    }
+                    // Let the state store know which offsets to save when this batch completes.
+                    final StateStore batchStateStore = StateStore.get(appName);
+                    if (batchStateStore != null) {
+                        batchStateStore.onBatchReceived(time.milliseconds(), offsetRanges);
+                    }
 
                     // Find offsets which indicate new messages have been received.
                     rdd.foreachPartition(consumerRecords -> {
@@ -176,7 +264,9 @@ public abstract class SparkStreamingApp implements Serializable {
                     } else {
                         logger.debug("Received " + numNewMessages + " messages totally.");
                     }
-                    return rdd;
+                    return alignByKafkaPartition
+                            ? SparkHelper.alignByKafkaPartition(rdd, offsetRanges, numKafkaPartitions)
+                            : rdd;
                 })
                 .mapToPair(rec -> new Tuple2<>(DataType.valueOf(rec.topic()),
                         new Tuple2<>(rec.key(), rec.value())));
@@ -208,94 +298,401 @@ public abstract class SparkStreamingApp implements Serializable {
      * Actions that take {@link TaskData} as input should be implemented in the
      * {@link Stream#addToGlobalStream(Map)}, in order to save time of deserialization.
      * Note that existence of Kafka topics used in this method is not automatically checked.
+     * This method is only called in Spark Streaming mode.
      */
     public abstract void addToContext() throws Exception;
 
+    /**
+     * Deserialize a record from Kafka and route it to the accepting ports it is destined to.
+     * If the record is destined to more than one of the ports, each extra port receives
+     * a separately deserialized copy, since streams modify the execution plans.
+     *
+     * @param rec            the key and value of the record.
+     * @param acceptingPorts ports of all the streams in the application.
+     * @return the ports to route to, each paired with the task ID and TaskData.
+     * @throws Exception on failure deserializing the record.
+     */
+    Iterator<Tuple2<Stream.Port, Tuple2<UUID, TaskData>>>
+    route(Tuple2<String, byte[]> rec, Set<Stream.Port> acceptingPorts) throws Exception {
+        final UUID taskID = KeyAffinityPartitioner.taskIDOf(rec._1());
+        if (taskController != null && taskController.getInst().termSigPool.contains(taskID)) {
+            return Collections.emptyIterator();
+        }
+        final ExecutionPlanRegistry planRegistry =
+                planRegistrySingleton == null ? null : planRegistrySingleton.getInst();
+        final TaskData taskData = TaskDataCodecHelper.decode(rec._2(), planRegistry);
+        final List<Stream.Port> ports = taskData.destPorts.keySet().stream()
+                .filter(acceptingPorts::contains)
+                .collect(Collectors.toList());
+        final List<Tuple2<Stream.Port, Tuple2<UUID, TaskData>>> routes = new ArrayList<>(ports.size());
+        for (int i = 0; i < ports.size(); ++i) {
+            routes.add(new Tuple2<>(ports.get(i), new Tuple2<>(taskID,
+                    i == 0 ? taskData : TaskDataCodecHelper.decode(rec._2(), planRegistry))));
+        }
+        return routes.iterator();
+    }
+
+    /**
+     * Route a record like {@link #route(Tuple2, Set)}. If the record cannot be deserialized,
+     * it is diverted to the dead-letter topic of its data type when dead letters are enabled.
+     *
+     * @param type           data type of the record.
+     * @param rec            the key and value of the record.
+     * @param acceptingPorts ports of all the streams in the application.
+     * @return the ports to route to, each paired with the task ID and TaskData.
+     * @throws Exception on failure deserializing the record with dead letters disabled,
+     *                   or on failure diverting the record.
+     */
+    Iterator<Tuple2<Stream.Port, Tuple2<UUID, TaskData>>>
+    routeOrDivert(DataType type, Tuple2<String, byte[]> rec, Set<Stream.Port> acceptingPorts) throws Exception {
+        try {
+            return route(rec, acceptingPorts);
+        } catch (Exception e) {
+            if (!deadLetterQueue.isEnabled()) {
+                throw e;
+            }
+            loggerSingleton.getInst().error("Diverting record " + rec._1() + " of " + type
+                    + " to dead letters on failure routing it", e);
+            deadLetterQueue.send(type, rec._1(), rec._2());
+            return Collections.emptyIterator();
+        }
+    }
+
+    /**
+     * Record the time a phase of startup took.
+     *
+     * @param phase      name of the phase.
+     * @param startNanos start time of the phase from {@link System#nanoTime()}.
+     * @return end time of the phase, which starts the next phase.
+     */
+    private long endPhase(String phase, long startNanos) {
+        final long endNanos = System.nanoTime();
+        final long ms = (endNanos - startNanos) / 1000000;
+        startupBreakdown.put(phase, ms);
+        Metrics.add("startup." + phase + "-ms", ms);
+        return endNanos;
+    }
+
+    /**
+     * @return time in milliseconds each phase of startup took, in order.
+     */
+    @Nonnull
+    public Map<String, Long> getStartupBreakdown() {
+        return Collections.unmodifiableMap(startupBreakdown);
+    }
+
+    /**
+     * Create the singletons of streams in parallel in this JVM.
+     *
+     * @param streams streams to warm up.
+     */
+    private static void warmUp(List<Stream> streams) {
+        if (streams.isEmpty()) {
+            return;
+        }
+        ParallelExecutor.execute(streams, streams.size(), stream -> {
+            try {
+                stream.warmUp();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * Failure of warm-up does not stop the application, since singletons are created again on demand.
+     */
+    private void logWarmUpFailure(Exception e) {
+        try {
+            loggerSingleton.getInst().warn("Warm-up of " + appName + " failed", e);
+        } catch (Exception e1) {
+            e1.printStackTrace();
+        }
+    }
+
+    /**
+     * Create a new streaming context with the streaming graph of the application.
+     *
+     * @param acceptingTypes data types the streams accept.
+     * @return the context.
+     * @throws Exception on failure building the streaming graph.
+     */
+    private JavaStreamingContext createContext(Collection<DataType> acceptingTypes) throws Exception {
+        // Load default Spark configurations.
+        SparkConf sparkConf = new SparkConf(true)
+                .set("spark.executor.memory", propCenter.executorMem)
+                .set("spark.executor.instances", "" + propCenter.numExecutors)
+                // Register custom classes with Kryo.
+                .registerKryoClasses(new Class[]{TaskData.class, DataType.class});
+        if (propCenter.maxRatePerPartition != null) {
+            // Set maximum number of messages per second that each partition will accept
+            // in the direct Kafka input stream.
+            sparkConf = sparkConf
+                    .set("spark.streaming.kafka.maxRatePerPartition", "" + propCenter.maxRatePerPartition);
+        }
+        // Create contexts.
+        JavaSparkContext jsc = new JavaSparkContext(sparkConf);
+        jsc.setLocalProperty("spark.scheduler.pool", "vpe");
+        jssc = new JavaStreamingContext(jsc, Durations.milliseconds(propCenter.batchDuration));
+
+        addToContext();
+
+        if (!acceptingTypes.isEmpty()) {
+            final Set<Stream.Port> acceptingPorts = streams.stream()
+                    .flatMap(stream -> stream.getPorts().stream())
+                    .collect(Collectors.toCollection(HashSet::new));
+            // Deserialize each record once and route it to all the ports it is destined to in a single pass.
+            // The routed records are cached, so that streams reading from different ports
+            // do not read and deserialize the records from Kafka again.
+            // The cache keeps the deserialized objects, which retries of tasks read again,
+            // so streams must not change the TaskData they receive, but mark nodes executed in a copy of the plan
+            // (see ExecutionPlan#copy()).
+            final JavaPairDStream<Stream.Port, Tuple2<UUID, TaskData>> routedStream =
+                    buildDirectStream(acceptingTypes)
+                            .flatMapToPair(rec -> routeOrDivert(rec._1(), rec._2(), acceptingPorts))
+                            .persist(StorageLevel.MEMORY_AND_DISK());
+            Map<Stream.Port, JavaPairDStream<UUID, TaskData>> streamMap = new HashMap<>();
+            for (Stream.Port port : acceptingPorts) {
+                streamMap.put(port, routedStream
+                        .filter(rec -> (Boolean) rec._1().equals(port))
+                        .mapToPair(Tuple2::_2));
+            }
+            streams.forEach(stream -> stream.addToGlobalStream(streamMap));
+        }
+        return jssc;
+    }
+
     /**
      * Initialize the application.
      */
     public void initialize() {
+        long phaseStart = System.nanoTime();
         KafkaHelper.checkTopics(propCenter.zkConn,
                 propCenter.zkSessionTimeoutMs,
                 propCenter.zkConnectionTimeoutMS,
                 propCenter.kafkaNumPartitions,
                 propCenter.kafkaReplFactor);
+        if (propCenter.deadLetterEnable) {
+            DeadLetterQueue.checkTopics(propCenter);
+        }
+        phaseStart = endPhase("check-topics", phaseStart);
+
+        final StateStore stateStore;
+        if (EXTERNAL_RESTART.equals(propCenter.restartMode)) {
+            try {
+                stateStore = new StateStore(appName, propCenter);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot open state store of " + appName, e);
+            }
+            phaseStart = endPhase("open-state-store", phaseStart);
+        } else if (CHECKPOINT_RESTART.equals(propCenter.restartMode)) {
+            stateStore = null;
+        } else {
+            throw new IllegalArgumentException("Unknown restart mode: " + propCenter.restartMode);
+        }
+
+        if (CONTINUOUS_RUNTIME.equals(propCenter.runtime)) {
+            final Set<Stream.Port> acceptingPorts = streams.stream()
+                    .flatMap(stream -> stream.getPorts().stream())
+                    .collect(Collectors.toCollection(HashSet::new));
+            try {
+                // Offsets are committed to Kafka after processing, so only states need restoring.
+                continuousRuntime = new ContinuousRuntime(appName, streams, kafkaParams,
+                        (type, rec) -> routeOrDivert(type, rec, acceptingPorts),
+                        loggerSingleton.getInst(),
+                        stateStore,
+                        propCenter);
+                phaseStart = endPhase("create-runtime", phaseStart);
+                continuousRuntime.restoreStates();
+                phaseStart = endPhase("restore-states", phaseStart);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot run " + appName + " continuously", e);
+            }
+            if (propCenter.warmUpEnable) {
+                try {
+                    warmUp(streams);
+                } catch (RuntimeException e) {
+                    logWarmUpFailure(e);
+                }
+                endPhase("warm-up", phaseStart);
+            }
+            return;
+        } else if (!SPARK_RUNTIME.equals(propCenter.runtime)) {
+            throw new IllegalArgumentException("Unknown runtime: " + propCenter.runtime);
+        }
 
         final Collection<DataType> acceptingTypes = streams.stream()
                 .flatMap(stream -> stream.getPorts().stream().map(port -> port.inputType))
                 .collect(Collectors.toList());
 
-        String checkpointDir = propCenter.checkpointRootDir + "/" + appName;
-        jssc = JavaStreamingContext.getOrCreate(checkpointDir, () -> {
-            // Load default Spark configurations.
-            SparkConf sparkConf = new SparkConf(true)
-                    .set("spark.executor.memory", propCenter.executorMem)
-                    .set("spark.executor.instances", "" + propCenter.numExecutors)
-                    // Register custom classes with Kryo.
-                    .registerKryoClasses(new Class[]{TaskData.class, DataType.class});
-            if (propCenter.maxRatePerPartition != null) {
-                // Set maximum number of messages per second that each partition will accept
-                // in the direct Kafka input stream.
-                sparkConf = sparkConf
-                        .set("spark.streaming.kafka.maxRatePerPartition", "" + propCenter.maxRatePerPartition);
+        final StreamRateController rateController = new StreamRateController(appName, streams, propCenter);
+
+        final OffsetCommitter offsetCommitter;
+        if (COMMIT_ON_COMPLETION.equals(propCenter.offsetCommitMode)) {
+            try {
+                // Stop on the first failed batch, so that restarting replays it. Stopping blocks until
+                // listeners finish, so it cannot be called from the listener thread.
+                offsetCommitter = new OffsetCommitter(appName, loggerSingleton.getInst(),
+                        () -> new Thread(() -> jssc.stop(true, false), appName + "-stopper").start());
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot create offset committer of " + appName, e);
             }
-            // Create contexts.
-            JavaSparkContext jsc = new JavaSparkContext(sparkConf);
-            jsc.setLocalProperty("spark.scheduler.pool", "vpe");
-            jssc = new JavaStreamingContext(jsc, Durations.milliseconds(propCenter.batchDuration));
-
-            addToContext();
-
-            if (!acceptingTypes.isEmpty()) {
-                JavaPairDStream<DataType, Tuple2<UUID, byte[]>> inputStream =
-                        buildDirectStream(acceptingTypes)
-                                .mapValues(tuple -> new Tuple2<>(UUID.fromString(tuple._1()), tuple._2()));
-                if (taskController != null) {
-                    inputStream = inputStream.filter(kv ->
-                            (Boolean) !taskController.getInst().termSigPool.contains(kv._2()._1()));
+        } else if (COMMIT_ON_RECEIVE.equals(propCenter.offsetCommitMode)) {
+            offsetCommitter = null;
+        } else {
+            throw new IllegalArgumentException("Unknown offset commit mode: " + propCenter.offsetCommitMode);
+        }
+
+        if (stateStore != null) {
+            // Rebuild the streaming graph instead of recovering it, and resume from the saved offsets.
+            try {
+                jssc = createContext(acceptingTypes);
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot create streaming context of " + appName, e);
+            }
+            phaseStart = endPhase("create-context", phaseStart);
+        } else {
+            String checkpointDir = propCenter.checkpointRootDir + "/" + appName;
+            jssc = JavaStreamingContext.getOrCreate(checkpointDir, () -> {
+                createContext(acceptingTypes);
+
+                try {
+                    if (propCenter.sparkMaster.contains("local")) {
+                        File dir = new File(checkpointDir);
+                        //noinspection ResultOfMethodCallIgnored
+                        dir.delete();
+                        //noinspection ResultOfMethodCallIgnored
+                        dir.mkdirs();
+                    } else {
+                        FileSystem fs = FileSystem.get(new Configuration());
+                        Path dir = new Path(checkpointDir);
+                        fs.delete(dir, true);
+                        fs.mkdirs(dir);
+                    }
+                    jssc.checkpoint(checkpointDir);
+                } catch (IllegalArgumentException | IOException e) {
+                    e.printStackTrace();
+                }
+                return jssc;
+            }, new Configuration(), true);
+            phaseStart = endPhase("create-or-recover-context", phaseStart);
+        }
+
+        if (propCenter.rateControlEnable) {
+            // Adjust rates of streams by the processing time of their output operations in each batch.
+            SparkHelper.onBatchCompleted(jssc, (batchTime, outputOpDurations) -> {
+                rateController.onBatchCompleted(batchTime, outputOpDurations);
+                try {
+                    loggerSingleton.getInst().debug("Rates of batches after " + batchTime + ": "
+                            + rateController.getRates());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        if (offsetCommitter != null) {
+            SparkHelper.onBatchCompletedWithFailures(jssc, offsetCommitter::onBatchCompleted);
+        }
+        if (stateStore != null) {
+            // Save offsets of each batch after all its output operations have finished,
+            // unless some batch has failed and is to be replayed.
+            SparkHelper.onBatchCompletedWithFailures(jssc, (batchTime, failures) -> {
+                try {
+                    if (!stateStore.onBatchCompleted(batchTime, failures) && !failures.isEmpty()) {
+                        loggerSingleton.getInst().warn("Batch " + batchTime
+                                + " failed, so its offsets are not saved: " + failures);
+                    }
+                } catch (Exception e) {
+                    try {
+                        loggerSingleton.getInst().error("During saving offsets of batch " + batchTime, e);
+                    } catch (Exception e1) {
+                        e1.printStackTrace();
+                    }
                 }
-                Map<DataType, JavaPairDStream<UUID, TaskData>> streamMap = new HashMap<>();
-                for (DataType type : acceptingTypes) {
-                    streamMap.put(type,
-                            inputStream.filter(rec -> (Boolean) (Objects.equals(rec._1(), type)))
-                                    .mapToPair(rec -> new Tuple2<>(rec._2()._1(), deserialize(rec._2()._2()))));
+            });
+        }
+
+        if (propCenter.autoscaleEnable && !acceptingTypes.isEmpty()) {
+            if (propCenter.sparkMaster.contains("local")) {
+                try {
+                    loggerSingleton.getInst().warn("Executors of " + appName + " cannot be scaled locally");
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
-                streams.forEach(stream -> stream.addToGlobalStream(streamMap));
+            } else {
+                final List<String> topics = acceptingTypes.stream().map(Enum::name).distinct()
+                        .collect(Collectors.toList());
+                try {
+                    autoscaler = new ExecutorAutoscaler(appName, propCenter,
+                            ExecutorAutoscaler.kafkaLagSource(kafkaParams, topics),
+                            SparkHelper.executorAllocator(jssc),
+                            loggerSingleton.getInst());
+                } catch (Exception e) {
+                    throw new IllegalStateException("Cannot create autoscaler of " + appName, e);
+                }
+                SparkHelper.onBatchProcessed(jssc, autoscaler::onBatchCompleted);
+                phaseStart = endPhase("create-autoscaler", phaseStart);
             }
+        }
 
+        if (propCenter.warmUpEnable && !streams.isEmpty()) {
+            // Run a task on each core, so that each executor is likely to get some, and warm up its JVM.
+            final JavaSparkContext jsc = jssc.sparkContext();
+            final int numTasks = jsc.defaultParallelism();
+            final List<Integer> seeds = new ArrayList<>(numTasks);
+            for (int i = 0; i < numTasks; ++i) {
+                seeds.add(i);
+            }
+            final List<Stream> streamsToWarmUp = new ArrayList<>(streams);
             try {
-                if (propCenter.sparkMaster.contains("local")) {
-                    File dir = new File(checkpointDir);
-                    //noinspection ResultOfMethodCallIgnored
-                    dir.delete();
-                    //noinspection ResultOfMethodCallIgnored
-                    dir.mkdirs();
-                } else {
-                    FileSystem fs = FileSystem.get(new Configuration());
-                    Path dir = new Path(checkpointDir);
-                    fs.delete(dir, true);
-                    fs.mkdirs(dir);
-                }
-                jssc.checkpoint(checkpointDir);
-            } catch (IllegalArgumentException | IOException e) {
-                e.printStackTrace();
+                jsc.parallelize(seeds, numTasks).foreachPartition(ignored -> warmUp(streamsToWarmUp));
+            } catch (RuntimeException e) {
+                logWarmUpFailure(e);
             }
-            return jssc;
-        }, new Configuration(), true);
+            endPhase("warm-up", phaseStart);
+        }
     }
 
     /**
      * Start the application.
      */
     public void start() {
-        jssc.start();
+        final long phaseStart = System.nanoTime();
+        if (continuousRuntime != null) {
+            continuousRuntime.start();
+        } else {
+            jssc.start();
+            if (autoscaler != null) {
+                autoscaler.start();
+            }
+        }
+        endPhase("start", phaseStart);
+
+        long totalMs = 0;
+        final StringBuilder breakdown = new StringBuilder();
+        for (Map.Entry<String, Long> phase : startupBreakdown.entrySet()) {
+            totalMs += phase.getValue();
+            breakdown.append(", ").append(phase.getKey()).append('=').append(phase.getValue()).append("ms");
+        }
+        try {
+            loggerSingleton.getInst().info("Started " + appName + " in " + totalMs + "ms" + breakdown);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 
     /**
      * Stop the application.
      */
     public void stop() {
-        jssc.stop();
+        if (continuousRuntime != null) {
+            continuousRuntime.stop();
+        } else {
+            if (autoscaler != null) {
+                autoscaler.stop();
+            }
+            jssc.stop();
+        }
     }
 
     /**
@@ -303,7 +700,11 @@ public abstract class SparkStreamingApp implements Serializable {
      */
     public void awaitTermination() {
         try {
-            jssc.awaitTermination();
+            if (continuousRuntime != null) {
+                continuousRuntime.awaitTermination();
+            } else {
+                jssc.awaitTermination();
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,222 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The StateStore class saves what an application needs to restart without Spark checkpoints:
+ * the Kafka offsets up to which batches have been processed, and states of streams.
+ * <p>
+ * Each entry is a small file under the state directory of the application, on the local file system
+ * if Spark runs locally, or on HDFS otherwise. Entries are written to temporary files and then renamed,
+ * so a crash while saving leaves the previous version readable.
+ * <p>
+ * If offsets are to be committed on completion only (see {@link SystemPropertyCenter#offsetCommitMode}),
+ * offsets are no more saved once a batch fails, like in {@link OffsetCommitter}, so that a restart
+ * resumes from the failed batch.
+ * <p>
+ * Stores live on the driver, and are found by application name in closures
+ * of the streaming graph, like {@link StreamRateController}s.
+ */
+public class StateStore {
+
+    private static final String OFFSETS = "offsets";
+    private static final String STATE_PREFIX = "state-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final Map<String, StateStore> stores = new ConcurrentHashMap<>();
+
+    private final FileSystem fs;
+    private final Path dir;
+    private final Map<Long, OffsetRange[]> received = new ConcurrentHashMap<>();
+    private final Map<TopicPartition, Long> offsets = new HashMap<>();
+    private final boolean stopOnFailure;
+    private volatile boolean failed = false;
+
+    /**
+     * Open the store of an application, replacing the one opened before for the same application.
+     *
+     * @param appName    name of the application.
+     * @param propCenter properties of the system.
+     * @throws IOException on failure accessing the file system.
+     */
+    public StateStore(@Nonnull String appName, @Nonnull SystemPropertyCenter propCenter) throws IOException {
+        final Configuration conf = new Configuration();
+        this.fs = propCenter.sparkMaster.contains("local") ? FileSystem.getLocal(conf) : FileSystem.get(conf);
+        this.dir = new Path(propCenter.stateRootDir + "/" + appName);
+        this.stopOnFailure = SparkStreamingApp.COMMIT_ON_COMPLETION.equals(propCenter.offsetCommitMode);
+        fs.mkdirs(dir);
+        offsets.putAll(loadOffsets());
+        stores.put(appName, this);
+    }
+
+    /**
+     * Get the store of an application.
+     *
+     * @param appName name of the application.
+     * @return the store, or null if it has not been opened in this JVM.
+     */
+    @Nullable
+    public static StateStore get(@Nonnull String appName) {
+        return stores.get(appName);
+    }
+
+    private synchronized void write(String name, byte[] bytes) throws IOException {
+        final Path path = new Path(dir, name);
+        final Path tmp = new Path(dir, name + TMP_SUFFIX);
+        try (FSDataOutputStream out = fs.create(tmp, true)) {
+            out.write(bytes);
+            out.hsync();
+        }
+        fs.delete(path, false);
+        if (!fs.rename(tmp, path)) {
+            throw new IOException("Cannot rename " + tmp + " to " + path);
+        }
+    }
+
+    @Nullable
+    private synchronized byte[] read(String name) throws IOException {
+        Path path = new Path(dir, name);
+        if (!fs.exists(path)) {
+            // Crashed between deleting the old version and renaming the new one.
+            path = new Path(dir, name + TMP_SUFFIX);
+            if (!fs.exists(path)) {
+                return null;
+            }
+        }
+        try (InputStream in = fs.open(path)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Nonnull
+    private Map<TopicPartition, Long> loadOffsets() throws IOException {
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        final byte[] bytes = read(OFFSETS);
+        if (bytes == null) {
+            return offsets;
+        }
+        final Properties props = new Properties();
+        props.load(new StringReader(new String(bytes, StandardCharsets.UTF_8)));
+        for (String key : props.stringPropertyNames()) {
+            final int sepIdx = key.lastIndexOf('-');
+            offsets.put(new TopicPartition(key.substring(0, sepIdx), Integer.parseInt(key.substring(sepIdx + 1))),
+                    Long.parseLong(props.getProperty(key)));
+        }
+        return offsets;
+    }
+
+    /**
+     * Get the offsets to resume consumption of some topics from.
+     *
+     * @param topics topics to consume.
+     * @return the saved offsets of partitions of the topics, empty if none has been saved.
+     */
+    @Nonnull
+    public synchronized Map<TopicPartition, Long> getOffsets(@Nonnull Collection<String> topics) {
+        final Map<TopicPartition, Long> topicOffsets = new HashMap<>();
+        offsets.forEach((tp, offset) -> {
+            if (topics.contains(tp.topic())) {
+                topicOffsets.put(tp, offset);
+            }
+        });
+        return topicOffsets;
+    }
+
+    /**
+     * Record the offset ranges of a batch. Called on the driver when the batch is generated.
+     *
+     * @param batchTime    time of the batch in milliseconds.
+     * @param offsetRanges offset ranges of the batch.
+     */
+    public void onBatchReceived(long batchTime, @Nonnull OffsetRange[] offsetRanges) {
+        received.put(batchTime, offsetRanges);
+    }
+
+    /**
+     * Save the end offsets of a batch, after all its output operations have finished.
+     * Batches are completed in order, so later batches resume after this one.
+     *
+     * @param batchTime time of the batch in milliseconds.
+     * @param failures  failure reasons of output operations of the batch, empty if none failed.
+     * @return whether the offsets are saved.
+     * @throws IOException on failure writing the store.
+     */
+    public synchronized boolean onBatchCompleted(long batchTime, @Nonnull List<String> failures)
+            throws IOException {
+        final OffsetRange[] offsetRanges = received.remove(batchTime);
+        received.keySet().removeIf(time -> time < batchTime);
+        if (stopOnFailure && !failures.isEmpty()) {
+            failed = true;
+        }
+        if (failed || offsetRanges == null) {
+            return false;
+        }
+        for (OffsetRange range : offsetRanges) {
+            offsets.put(range.topicPartition(), range.untilOffset());
+        }
+        final Properties props = new Properties();
+        offsets.forEach((tp, offset) -> props.setProperty(tp.topic() + "-" + tp.partition(), "" + offset));
+        final StringWriter writer = new StringWriter();
+        props.store(writer, "Offsets after batch " + batchTime);
+        write(OFFSETS, writer.toString().getBytes(StandardCharsets.UTF_8));
+        return true;
+    }
+
+    /**
+     * Save the state of a stream.
+     *
+     * @param streamName name of the stream.
+     * @param state      serialized state of the stream.
+     * @throws IOException on failure writing the store.
+     */
+    public void saveState(@Nonnull String streamName, @Nonnull byte[] state) throws IOException {
+        write(STATE_PREFIX + streamName, state);
+    }
+
+    /**
+     * Load the state of a stream.
+     *
+     * @param streamName name of the stream.
+     * @return serialized state of the stream, or null if it has not been saved.
+     * @throws IOException on failure reading the store.
+     */
+    @Nullable
+    public byte[] loadState(@Nonnull String streamName) throws IOException {
+        return read(STATE_PREFIX + streamName);
+    }
+}
@@ -18,21 +18,36 @@ package org.cripac.isee.vpe.common;
 
 import kafka.common.FailedToSendMessageException;
 import kafka.common.MessageSizeTooLargeException;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.RecordTooLargeException;
 import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.cripac.isee.alg.pedestrian.attr.Attributes;
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.TrackletOrURL;
+import org.cripac.isee.vpe.ctrl.Metrics;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.ctrl.TaskData;
 import org.cripac.isee.util.Singleton;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducer;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducerFactory;
+import org.cripac.isee.vpe.util.codec.TaskDataCodec;
+import org.cripac.isee.vpe.util.codec.TaskDataCodecHelper;
 import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
+import org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLoggerFactory;
+import scala.Tuple2;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A Stream is a flow of DStreams. Each stream outputs at most one type of data.
@@ -41,8 +56,20 @@ import java.util.*;
  */
 public abstract class Stream implements Serializable {
     private static final long serialVersionUID = 7965952554107861881L;
-    private final Singleton<ByteArrayProducer> producerSingleton;
+    private final Properties producerProp;
     private final boolean verbose;
+    private final TaskDataCodec codec;
+    private final boolean outputWaitAck;
+    private final EnumSet<DataType> affinityTypes;
+    /**
+     * Queue of data which failed to be processed.
+     */
+    protected final DeadLetterQueue deadLetterQueue;
+
+    /**
+     * Max times of re-sending a record which failed to be sent in an {@link OutputBatch}.
+     */
+    private static final int MAX_OUTPUT_RETRIES = 2;
 
     protected void
     output(Collection<TaskData.ExecutionPlan.Node.Port> outputPorts,
@@ -52,27 +79,255 @@ public abstract class Stream implements Serializable {
         new RobustExecutor<Void, Void>(
                 () -> {
                     if (verbose) {
-                        KafkaHelper.sendWithLog(taskID.toString(),
+                        KafkaHelper.sendWithLog(recordKey(taskID, outputPorts, result),
                                 new TaskData(outputPorts, executionPlan, result),
-                                producerSingleton.getInst(),
+                                getProducer(),
+                                codec,
                                 loggerSingleton.getInst());
                     } else {
-                        KafkaHelper.send(taskID.toString(),
+                        KafkaHelper.send(recordKey(taskID, outputPorts, result),
                                 new TaskData(outputPorts, executionPlan, result),
-                                producerSingleton.getInst());
+                                getProducer(),
+                                codec);
                     }
                 },
                 Arrays.asList(
                         MessageSizeTooLargeException.class,
                         KafkaException.class,
                         FailedToSendMessageException.class)
-        ).execute();
+        ).withCircuitBreaker(CircuitBreaker.KAFKA).execute();
+    }
+
+    /**
+     * The OutputBatch class sends results to Kafka without blocking on each record.
+     * Results are encoded and handed to the producer immediately.
+     * Call {@link #flush()} once after all the results of a partition have been output,
+     * which waits for all the records to be acknowledged and re-sends only those which failed.
+     * <p>
+     * An OutputBatch is meant to be created on executors, and can be used by multiple threads.
+     */
+    protected class OutputBatch {
+
+        private final KafkaProducer<String, byte[]> producer;
+        private final List<PendingRecord> pendingRecords = new ArrayList<>();
+
+        private class PendingRecord {
+            final ProducerRecord<String, byte[]> record;
+            Future<RecordMetadata> future;
+
+            PendingRecord(ProducerRecord<String, byte[]> record) {
+                this.record = record;
+                send();
+            }
+
+            void send() {
+                future = producer.send(record);
+            }
+        }
+
+        /**
+         * Create a batch using a shared producer of the stream.
+         */
+        public OutputBatch() {
+            producer = getProducer();
+        }
+
+        /**
+         * Send a result to all the output ports without waiting for the acknowledgement,
+         * unless the stream is configured to wait for acknowledgements of each record.
+         *
+         * @param outputPorts   ports to output to.
+         * @param executionPlan the execution plan of the task.
+         * @param result        the result to output.
+         * @param taskID        ID of the task.
+         * @return a future of the metadata of the record sent.
+         * @throws Exception on failure encoding the result.
+         */
+        public Future<RecordMetadata> output(Collection<TaskData.ExecutionPlan.Node.Port> outputPorts,
+                                             TaskData.ExecutionPlan executionPlan,
+                                             Serializable result,
+                                             UUID taskID) throws Exception {
+            final TaskData taskData = new TaskData(outputPorts, executionPlan, result);
+            final PendingRecord pendingRecord = new PendingRecord(
+                    new ProducerRecord<>(taskData.outputType.name(),
+                            recordKey(taskID, outputPorts, result),
+                            codec.encode(taskData)));
+            synchronized (pendingRecords) {
+                pendingRecords.add(pendingRecord);
+            }
+            if (outputWaitAck) {
+                try {
+                    pendingRecord.future.get();
+                } catch (ExecutionException ignored) {
+                    // The record is re-sent on flushing.
+                }
+            }
+            return pendingRecord.future;
+        }
+
+        /**
+         * Wait for all the records output so far to be acknowledged.
+         * Records which failed to be sent are re-sent up to {@link #MAX_OUTPUT_RETRIES} times,
+         * and then diverted to dead-letter topics if enabled.
+         *
+         * @throws IOException if some records still fail after retrying, and cannot be diverted.
+         * @throws Exception   on failure getting the logger.
+         */
+        public void flush() throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            List<PendingRecord> toCheck;
+            synchronized (pendingRecords) {
+                toCheck = new ArrayList<>(pendingRecords);
+                pendingRecords.clear();
+            }
+            int numFailed = 0;
+            Throwable lastFailure = null;
+            for (int attempt = 0; !toCheck.isEmpty(); ++attempt) {
+                producer.flush();
+                final List<PendingRecord> toRetry = new ArrayList<>();
+                for (PendingRecord pendingRecord : toCheck) {
+                    try {
+                        final RecordMetadata metadata = pendingRecord.future.get();
+                        if (verbose) {
+                            logger.debug("Sent to Kafka <" + metadata.topic() + "-" + metadata.partition()
+                                    + "-" + metadata.offset() + ">\t" + pendingRecord.record.key());
+                        }
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause() == null ? e : e.getCause();
+                        if (attempt < MAX_OUTPUT_RETRIES && !(cause instanceof RecordTooLargeException)) {
+                            logger.debug("Re-sending record of task " + pendingRecord.record.key()
+                                    + " to " + pendingRecord.record.topic() + " on failure: " + cause);
+                            Metrics.increment("kafka.output.retried");
+                            pendingRecord.send();
+                            toRetry.add(pendingRecord);
+                        } else {
+                            logger.error("Failed to send record of task " + pendingRecord.record.key()
+                                    + " to " + pendingRecord.record.topic(), cause);
+                            Metrics.increment("kafka.output.failed");
+                            if (deadLetterQueue.isEnabled()) {
+                                try {
+                                    deadLetterQueue.send(DataType.valueOf(pendingRecord.record.topic()),
+                                            pendingRecord.record.key(), pendingRecord.record.value());
+                                    continue;
+                                } catch (Exception e1) {
+                                    logger.error("Failed to divert record of task " + pendingRecord.record.key()
+                                            + " to dead letters", e1);
+                                }
+                            }
+                            ++numFailed;
+                            lastFailure = cause;
+                        }
+                    }
+                }
+                toCheck = toRetry;
+            }
+            if (numFailed > 0) {
+                throw new IOException(numFailed + " records failed to be sent to Kafka", lastFailure);
+            }
+        }
+    }
+
+    /**
+     * Generate the Kafka record key of a result.
+     * Results of tracklets of data types configured for affinity partitioning
+     * are given affinity keys (see {@link KeyAffinityPartitioner}). Others are keyed by the task ID only.
+     *
+     * @param taskID      ID of the task.
+     * @param outputPorts ports to output to, which all accept the same data type.
+     * @param result      the result to output.
+     * @return the record key.
+     */
+    private String recordKey(UUID taskID,
+                             Collection<TaskData.ExecutionPlan.Node.Port> outputPorts,
+                             Serializable result) {
+        if (!affinityTypes.isEmpty() && !outputPorts.isEmpty()
+                && affinityTypes.contains(outputPorts.iterator().next().prototype.inputType)) {
+            final int serialNumber;
+            if (result instanceof TrackletOrURL) {
+                serialNumber = ((TrackletOrURL) result).getSerialNumber();
+            } else if (result instanceof Tracklet) {
+                serialNumber = ((Tracklet) result).id.serialNumber;
+            } else if (result instanceof Attributes && ((Attributes) result).trackletID != null) {
+                serialNumber = ((Attributes) result).trackletID.serialNumber;
+            } else {
+                serialNumber = -1;
+            }
+            if (serialNumber >= 0) {
+                return KeyAffinityPartitioner.affinityKey(taskID, serialNumber);
+            }
+        }
+        return taskID.toString();
+    }
+
+    /**
+     * Get a producer for outputting data, which is shared with other users in the same JVM.
+     * The producer must not be closed.
+     *
+     * @return a pooled producer.
+     */
+    protected KafkaProducer<String, byte[]> getProducer() {
+        return KafkaProducerPool.getProducer(producerProp);
+    }
+
+    /**
+     * Divert data which failed to be processed to the dead-letter topic of the data type of a port,
+     * if dead letters are enabled. Failures should be logged by the caller.
+     *
+     * @param port     the port the data are destined to.
+     * @param taskID   ID of the task.
+     * @param taskData the data.
+     * @throws IllegalStateException if the data cannot be diverted, which should fail the processing
+     *                               rather than lose the data.
+     */
+    protected void divert(@Nonnull Port port, @Nonnull UUID taskID, @Nonnull TaskData taskData) {
+        if (!deadLetterQueue.isEnabled()) {
+            return;
+        }
+        try {
+            deadLetterQueue.send(port.inputType, taskID.toString(), codec.encode(taskData));
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot divert data of task " + taskID + " to dead letters", e);
+        }
     }
 
+    /**
+     * Get the stream of data destined to a port.
+     *
+     * @param streamMap the global stream map.
+     * @param port      an input port of this stream.
+     * @return the stream of data destined to the port.
+     */
     protected JavaPairDStream<UUID, TaskData>
-    filter(Map<DataType, JavaPairDStream<UUID, TaskData>> streamMap, Port port) {
-        return streamMap.get(port.inputType)
-                .filter(rec -> (Boolean) rec._2().destPorts.containsKey(port));
+    filter(Map<Port, JavaPairDStream<UUID, TaskData>> streamMap, Port port) {
+        return streamMap.get(port);
+    }
+
+    /**
+     * The DataHandler interface processes data destined to a port of a stream,
+     * either a partition of a batch in Spark Streaming or a poll in the {@link ContinuousRuntime}.
+     */
+    @FunctionalInterface
+    public interface DataHandler extends Serializable {
+        /**
+         * Process data destined to a port.
+         *
+         * @param data pairs of task IDs and TaskData.
+         * @throws Exception on failure not handled by the handler itself.
+         */
+        void handle(@Nonnull Iterator<Tuple2<UUID, TaskData>> data) throws Exception;
+    }
+
+    /**
+     * Process each partition of the stream of data destined to a port with a handler.
+     *
+     * @param streamMap the global stream map.
+     * @param port      an input port of this stream.
+     * @param handler   the handler of the partitions.
+     */
+    protected void forEachPartition(Map<Port, JavaPairDStream<UUID, TaskData>> streamMap,
+                                    Port port,
+                                    DataHandler handler) {
+        filter(streamMap, port).foreachRDD(rdd -> rdd.foreachPartition(handler::handle));
     }
 
     protected final Singleton<Logger> loggerSingleton;
@@ -86,22 +341,76 @@ public abstract class Stream implements Serializable {
      */
     public Stream(String appName, SystemPropertyCenter propCenter) throws Exception {
         this.verbose = propCenter.verbose;
+        this.codec = TaskDataCodecHelper.getCodec(propCenter);
+        this.outputWaitAck = propCenter.outputWaitAck;
+        this.affinityTypes = propCenter.kafkaAffinityTypes;
+        this.deadLetterQueue = new DeadLetterQueue(propCenter);
 
-        this.loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(appName, propCenter), SynthesizedLogger.class);
+        this.loggerSingleton = new Singleton<>(new SynthesizedLoggerFactory(appName, propCenter),
+                SynthesizedLogger.class,
+                appName);
 
-        Properties producerProp = propCenter.getKafkaProducerProp(false);
-        producerSingleton = new Singleton<>(new ByteArrayProducerFactory(producerProp), ByteArrayProducer.class);
+        this.producerProp = propCenter.getKafkaProducerProp(false);
     }
 
     /**
      * Add streaming actions to the global {@link TaskData} stream.
      * This global stream contains pre-deserialized TaskData messages, so as to save time.
      *
-     * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-     *                        which must be one of the {@link DataType}.
-     *                        The value is a filtered stream.
+     * @param globalStreamMap A map of streams. The key of an entry is an input port
+     *                        of the streams in the application.
+     *                        The value is the stream of data destined to the port.
+     */
+    public abstract void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap);
+
+    /**
+     * Get handlers of data destined to each input port, which let the stream run in the {@link ContinuousRuntime}
+     * with the same processing as in {@link #addToGlobalStream(Map)}.
+     * Streams that cannot process data without micro-batches return an empty map.
+     *
+     * @return handlers of all the input ports, or an empty map.
+     */
+    public Map<Port, DataHandler> getHandlers() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Create the singletons the stream uses, so that the first data do not wait for them.
+     * Subclasses with singletons of their own should override this method and call it.
+     *
+     * @throws Exception on failure creating singletons.
+     */
+    public void warmUp() throws Exception {
+        loggerSingleton.warmUp();
+        getProducer();
+    }
+
+    /**
+     * Get the state the stream keeps across inputs in this JVM, to be restored after restart.
+     *
+     * @return serialized state, or null if the stream keeps no state.
+     * @throws Exception on failure serializing the state.
+     */
+    @Nullable
+    public byte[] snapshotState() throws Exception {
+        return null;
+    }
+
+    /**
+     * Restore the state saved by {@link #snapshotState()}.
+     *
+     * @param state serialized state.
+     * @throws Exception on failure deserializing the state.
+     */
+    public void restoreState(@Nonnull byte[] state) throws Exception {
+    }
+
+    /**
+     * Get the name of the stream, which identifies the stream in configurations.
+     *
+     * @return name of the stream.
      */
-    public abstract void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap);
+    public abstract String getName();
 
     /**
      * Get input ports of the stream.
@@ -0,0 +1,263 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.apache.spark.streaming.kafka010.PerPartitionConfig;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The StreamRateController class decides how many messages each Kafka partition of each topic provides
+ * to a batch of a {@link SparkStreamingApp}, according to limits and processing speeds of the streams.
+ * <p>
+ * Each stream is limited by its maximum rate (see {@link SystemPropertyCenter#getStreamMaxRate(String)}).
+ * When rate control is enabled, the processing time of each stream in each batch is measured on the driver.
+ * Per-message costs are estimated from these timings, and the rate of each stream is then set so that
+ * its next batch is expected to be processed within its share of the batch duration.
+ * A topic accepted by several streams is limited by the slowest one.
+ * <p>
+ * Controllers live on the driver. Spark Streaming checkpoints the {@link PartitionConfig}s
+ * of input streams, which only refer to the controllers by application name.
+ */
+public class StreamRateController {
+
+    /**
+     * Rate meaning not limited. Spark computes offset ranges by adding rates to offsets,
+     * so larger values may overflow.
+     */
+    static final long UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * Weight of the newest measurement when updating estimations.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private static final Map<String, StreamRateController> controllers = new ConcurrentHashMap<>();
+
+    private static class StreamState {
+        final String className;
+        final Set<String> topics;
+        final long maxRate;
+        // Estimated processing time of a batch without messages, and of each message, in milliseconds.
+        double overheadMs = 0;
+        double costPerMessageMs = -1;
+
+        StreamState(Stream stream, long maxRate) {
+            this.className = stream.getClass().getName();
+            this.topics = new HashSet<>();
+            for (Stream.Port port : stream.getPorts()) {
+                topics.add(port.inputType.name());
+            }
+            this.maxRate = maxRate > 0 ? maxRate : UNLIMITED;
+        }
+    }
+
+    private final List<StreamState> streams = new ArrayList<>();
+    private final boolean enabled;
+    private final long batchDurationMs;
+    private final double utilization;
+    private final long minRate;
+    private final int numPartitions;
+    private final long defaultRate;
+    private final Map<String, Long> topicRates = new ConcurrentHashMap<>();
+    private final Map<Long, Map<String, Long>> received = new ConcurrentHashMap<>();
+
+    /**
+     * Create a controller for an application, replacing the one created before for the same application.
+     *
+     * @param appName    name of the application.
+     * @param streams    streams of the application.
+     * @param propCenter properties of the system.
+     */
+    public StreamRateController(@Nonnull String appName,
+                                @Nonnull Collection<Stream> streams,
+                                @Nonnull SystemPropertyCenter propCenter) {
+        this.enabled = propCenter.rateControlEnable;
+        this.batchDurationMs = propCenter.batchDuration;
+        this.utilization = propCenter.rateControlUtilization;
+        this.minRate = Math.max(1, propCenter.rateControlMinRate);
+        this.numPartitions = propCenter.kafkaNumPartitions;
+        final long globalRate = propCenter.maxRatePerPartition == null
+                ? 0 : Long.parseLong(propCenter.maxRatePerPartition);
+        this.defaultRate = globalRate > 0 ? globalRate : UNLIMITED;
+        for (Stream stream : streams) {
+            this.streams.add(new StreamState(stream, propCenter.getStreamMaxRate(stream.getName())));
+        }
+        for (StreamState stream : this.streams) {
+            for (String topic : stream.topics) {
+                topicRates.merge(topic, stream.maxRate, Math::min);
+            }
+        }
+        controllers.put(appName, this);
+    }
+
+    /**
+     * Get the controller of an application.
+     *
+     * @param appName name of the application.
+     * @return the controller, or null if it has not been created in this JVM.
+     */
+    @Nullable
+    public static StreamRateController get(@Nonnull String appName) {
+        return controllers.get(appName);
+    }
+
+    /**
+     * Get the current rate of a topic.
+     *
+     * @param topic name of the topic.
+     * @return maximum number of messages per second each partition of the topic provides.
+     * Topics not accepted by any stream are limited by spark.streaming.kafka.maxRatePerPartition.
+     */
+    public long getRate(@Nonnull String topic) {
+        return topicRates.getOrDefault(topic, defaultRate);
+    }
+
+    /**
+     * @return current rates of the topics accepted by the streams.
+     */
+    @Nonnull
+    public Map<String, Long> getRates() {
+        return new TreeMap<>(topicRates);
+    }
+
+    /**
+     * Record the number of messages of each topic in a batch. Called on the driver when the batch is generated.
+     *
+     * @param batchTime    time of the batch in milliseconds.
+     * @param offsetRanges offset ranges of the batch.
+     */
+    public void onBatchReceived(long batchTime, @Nonnull OffsetRange[] offsetRanges) {
+        if (!enabled) {
+            return;
+        }
+        final Map<String, Long> counts = new HashMap<>();
+        for (OffsetRange range : offsetRanges) {
+            counts.merge(range.topic(), range.untilOffset() - range.fromOffset(), Long::sum);
+        }
+        received.put(batchTime, counts);
+    }
+
+    /**
+     * Update the estimations with the processing time of a batch, and adjust the rates.
+     *
+     * @param batchTime          time of the batch in milliseconds.
+     * @param outputOpDurations  durations in milliseconds of the output operations of the batch,
+     *                           by the descriptions of the operations, which contain the stacks creating them.
+     */
+    public synchronized void onBatchCompleted(long batchTime, @Nonnull Map<String, Long> outputOpDurations) {
+        if (!enabled) {
+            return;
+        }
+        final Map<String, Long> counts = received.remove(batchTime);
+        received.keySet().removeIf(time -> time < batchTime);
+        if (counts == null) {
+            return;
+        }
+
+        for (StreamState stream : streams) {
+            // Output operations of a stream are created in methods of its class.
+            long durationMs = -1;
+            for (Map.Entry<String, Long> op : outputOpDurations.entrySet()) {
+                if (op.getKey().contains(stream.className + ".")) {
+                    durationMs = Math.max(durationMs, 0) + op.getValue();
+                }
+            }
+            if (durationMs < 0) {
+                continue;
+            }
+            long numMessages = 0;
+            for (String topic : stream.topics) {
+                numMessages += counts.getOrDefault(topic, 0L);
+            }
+            if (numMessages == 0) {
+                stream.overheadMs = smooth(stream.overheadMs, durationMs);
+            } else {
+                final double costPerMessageMs = Math.max(durationMs - stream.overheadMs, 1.0) / numMessages;
+                stream.costPerMessageMs = stream.costPerMessageMs < 0
+                        ? costPerMessageMs
+                        : smooth(stream.costPerMessageMs, costPerMessageMs);
+            }
+        }
+        updateRates();
+    }
+
+    private static double smooth(double estimation, double measurement) {
+        return SMOOTHING * measurement + (1 - SMOOTHING) * estimation;
+    }
+
+    private void updateRates() {
+        int numMeasured = 0;
+        for (StreamState stream : streams) {
+            if (stream.costPerMessageMs >= 0) {
+                ++numMeasured;
+            }
+        }
+        if (numMeasured == 0) {
+            return;
+        }
+        // Output operations of streams run one after another, so each stream shares the batch duration.
+        final double shareMs = batchDurationMs * utilization / numMeasured;
+        final double batchSeconds = batchDurationMs / 1000.0;
+
+        final Map<String, Long> rates = new HashMap<>();
+        for (StreamState stream : streams) {
+            final long rate;
+            if (stream.costPerMessageMs < 0) {
+                rate = stream.maxRate;
+            } else {
+                final double numMessages = Math.max(shareMs - stream.overheadMs, 0) / stream.costPerMessageMs;
+                final double perPartition = numMessages / (batchSeconds * numPartitions * stream.topics.size());
+                rate = Math.max(minRate, Math.min(stream.maxRate, (long) perPartition));
+            }
+            for (String topic : stream.topics) {
+                rates.merge(topic, rate, Math::min);
+            }
+        }
+        topicRates.putAll(rates);
+    }
+
+    /**
+     * The PartitionConfig class provides rates of a controller to a Kafka direct stream.
+     */
+    public static class PartitionConfig extends PerPartitionConfig {
+
+        private static final long serialVersionUID = -5304928384710394245L;
+
+        private final String appName;
+
+        /**
+         * @param appName name of the application whose controller decides the rates.
+         */
+        public PartitionConfig(@Nonnull String appName) {
+            this.appName = appName;
+        }
+
+        @Override
+        public long maxRatePerPartition(TopicPartition topicPartition) {
+            final StreamRateController controller = get(appName);
+            return controller == null ? UNLIMITED : controller.getRate(topicPartition.topic());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.spark.Partitioner;
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner;
+import org.cripac.isee.vpe.util.logging.Logger;
+import scala.Tuple2;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * The TrackletAffinityPartitioner class partitions RDDs keyed by (task ID, tracklet ID)
+ * the same way as {@link KeyAffinityPartitioner} partitions Kafka records with affinity keys.
+ * Streams joining data of tracklets can use it to join without shuffling,
+ * if the input RDDs are aligned with Kafka partitions (see {@link SystemPropertyCenter#isKafkaAffinityAligned()}),
+ * and the topics have as many partitions as the partitioner (see {@link #matchesTopics(SystemPropertyCenter,
+ * Logger, DataType...)}).
+ */
+public class TrackletAffinityPartitioner extends Partitioner {
+
+    private static final long serialVersionUID = -2207236571529412876L;
+
+    private final int numPartitions;
+
+    /**
+     * @param numPartitions number of partitions of the Kafka topics.
+     */
+    public TrackletAffinityPartitioner(int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    @Override
+    public int numPartitions() {
+        return numPartitions;
+    }
+
+    /**
+     * Check whether the Kafka topics of some data types have as many partitions as this partitioner.
+     * {@link KeyAffinityPartitioner} places records by the actual number of partitions of each topic,
+     * and existing topics are not changed to the configured number, so they may differ.
+     * Topics not existing yet are to be created with the configured number, and are considered matching.
+     *
+     * @param propCenter properties of the system.
+     * @param logger     logger to report mismatching topics with.
+     * @param types      data types whose topics are to be checked.
+     * @return whether all the topics match.
+     */
+    public boolean matchesTopics(@Nonnull SystemPropertyCenter propCenter,
+                                 @Nonnull Logger logger,
+                                 @Nonnull DataType... types) {
+        boolean matches = true;
+        for (DataType type : types) {
+            final int topicPartitions = KafkaHelper.getNumPartitions(propCenter.zkConn,
+                    propCenter.zkSessionTimeoutMs,
+                    propCenter.zkConnectionTimeoutMS,
+                    type.name());
+            if (topicPartitions >= 0 && topicPartitions != numPartitions) {
+                logger.warn("Topic " + type.name() + " has " + topicPartitions + " partitions but "
+                        + numPartitions + " are configured in kafka.partitions");
+                matches = false;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @param key a tuple of a task ID and a {@link Tracklet.Identifier} or a tracklet serial number.
+     * @return the index of the partition.
+     */
+    @Override
+    public int getPartition(Object key) {
+        final Tuple2<?, ?> tuple = (Tuple2<?, ?>) key;
+        final Object trackletKey = tuple._2();
+        final int serialNumber = trackletKey instanceof Tracklet.Identifier
+                ? ((Tracklet.Identifier) trackletKey).serialNumber
+                : (Integer) trackletKey;
+        return KeyAffinityPartitioner.partitionOf((UUID) tuple._1(), serialNumber, numPartitions);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TrackletAffinityPartitioner
+                && ((TrackletAffinityPartitioner) other).numPartitions == numPartitions;
+    }
+
+    @Override
+    public int hashCode() {
+        return numPartitions;
+    }
+}
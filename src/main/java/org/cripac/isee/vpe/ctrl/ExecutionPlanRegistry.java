@@ -0,0 +1,179 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.ctrl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The ExecutionPlanRegistry class stores execution plans in HDFS, keyed by plan IDs,
+ * so that messages of the same command can refer to their shared plan by ID
+ * instead of each carrying a full copy of it.
+ * <p>
+ * A plan is stored once when it is registered, before any of its nodes is executed.
+ * The state of a plan in a message is then fully described by the set of its executed nodes
+ * (see {@link ExecutionPlan#getExecutedNodes()}). Stored plans are cached in each executor.
+ * <p>
+ * Plans are not tracked till all their nodes are executed, so a plan is deleted once it has been stored
+ * for a time-to-live, which should be longer than any task could take. Expired plans are swept
+ * by the registry registering plans, at most once in a sweep interval.
+ */
+public class ExecutionPlanRegistry {
+
+    /**
+     * Maximum number of plans cached in memory.
+     */
+    private static final int CACHE_SIZE = 1024;
+    /**
+     * Maximum interval between sweeps of expired plans.
+     */
+    private static final long SWEEP_INTERVAL_MS = 3600 * 1000;
+
+    private final String planDir;
+    private final long ttlMs;
+    private final FileSystem hdfs;
+    private volatile long lastSweepTime = 0;
+    private final Cache<String, byte[]> planCache = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    /**
+     * Create a registry storing plans in the given directory.
+     *
+     * @param planDir HDFS directory to store plans in.
+     * @param ttlMs   time in milliseconds to keep each plan for, or non-positive to keep plans forever.
+     * @throws IOException on failure connecting to HDFS.
+     */
+    public ExecutionPlanRegistry(@Nonnull String planDir, long ttlMs) throws IOException {
+        this.planDir = planDir;
+        this.ttlMs = ttlMs;
+        this.hdfs = new HDFSFactory().produce();
+    }
+
+    /**
+     * Get the directory in which plans are stored for the given system properties.
+     *
+     * @param propCenter system properties.
+     * @return an HDFS directory.
+     */
+    public static String getPlanDir(@Nonnull SystemPropertyCenter propCenter) {
+        return propCenter.metadataDir + "/_plans";
+    }
+
+    /**
+     * Store a plan and assign an ID to it. No node of the plan should have been executed.
+     * If the plan has already been registered, nothing is done.
+     *
+     * @param plan the plan to register.
+     * @return ID of the plan.
+     * @throws IOException on failure writing to HDFS.
+     */
+    @Nonnull
+    public String register(@Nonnull ExecutionPlan plan) throws IOException {
+        if (plan.getID() != null) {
+            return plan.getID();
+        }
+        assert plan.getExecutedNodes().isEmpty();
+
+        final String planID = UUID.randomUUID().toString();
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteStream)) {
+            plan.writeTo(out);
+        }
+        final byte[] bytes = byteStream.toByteArray();
+        try (FSDataOutputStream outputStream = hdfs.create(new Path(planDir + "/" + planID))) {
+            outputStream.write(bytes);
+        }
+        planCache.put(planID, bytes);
+        plan.setID(planID);
+
+        final long now = System.currentTimeMillis();
+        if (ttlMs > 0 && now - lastSweepTime >= Math.min(ttlMs, SWEEP_INTERVAL_MS)) {
+            sweep(now);
+        }
+        return planID;
+    }
+
+    /**
+     * Delete plans stored for longer than the time-to-live.
+     *
+     * @param now current time in milliseconds.
+     * @return number of plans deleted.
+     * @throws IOException on failure listing or deleting plans in HDFS.
+     */
+    public synchronized int sweep(long now) throws IOException {
+        lastSweepTime = now;
+        int numDeleted = 0;
+        for (FileStatus status : hdfs.listStatus(new Path(planDir))) {
+            if (status.isFile() && now - status.getModificationTime() > ttlMs
+                    && hdfs.delete(status.getPath(), false)) {
+                planCache.invalidate(status.getPath().getName());
+                ++numDeleted;
+            }
+        }
+        return numDeleted;
+    }
+
+    /**
+     * Restore a plan from its ID and the set of its executed nodes.
+     * Each call returns a new plan object, so the returned plan can be modified freely.
+     *
+     * @param planID        ID of a registered plan.
+     * @param executedNodes IDs of the nodes executed.
+     * @return the restored plan.
+     * @throws IOException            on failure reading the plan from HDFS or on malformed data.
+     * @throws ClassNotFoundException on failure finding the class of some execution data.
+     */
+    @Nonnull
+    public ExecutionPlan resolve(@Nonnull String planID,
+                                 @Nonnull BitSet executedNodes) throws IOException, ClassNotFoundException {
+        final byte[] bytes;
+        try {
+            bytes = planCache.get(planID, () -> {
+                try (FSDataInputStream inputStream = hdfs.open(new Path(planDir + "/" + planID))) {
+                    return IOUtils.toByteArray(inputStream);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException("Cannot load execution plan " + planID, e.getCause());
+        }
+        final ExecutionPlan plan;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            plan = ExecutionPlan.readFrom(in);
+        }
+        plan.setID(planID);
+        plan.markExecuted(executedNodes);
+        return plan;
+    }
+}
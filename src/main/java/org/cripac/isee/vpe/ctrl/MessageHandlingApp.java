@@ -39,8 +39,9 @@ import org.cripac.isee.vpe.data.GraphDatabaseConnector;
 import org.cripac.isee.vpe.data.HDFSReader;
 import org.cripac.isee.vpe.debug.FakeDatabaseConnector;
 import org.cripac.isee.util.Singleton;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducer;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducerFactory;
+import org.cripac.isee.vpe.util.codec.TaskDataCodec;
+import org.cripac.isee.vpe.util.codec.TaskDataCodecHelper;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
 import org.cripac.isee.vpe.util.logging.Logger;
 
 import java.io.Serializable;
@@ -63,8 +64,9 @@ public class MessageHandlingApp extends SparkStreamingApp {
     public static final String APP_NAME = "message-handling";
     private static final long serialVersionUID = 4894389080346176479L;
 
-    private Singleton<ByteArrayProducer> producerSingleton;
+    private Properties producerProp;
     private Singleton<HDFSReader> hdfsReaderSingleton;
+    private TaskDataCodec codec;
 
     /**
      * The constructor method. It sets the configurations, but does not run
@@ -76,10 +78,11 @@ public class MessageHandlingApp extends SparkStreamingApp {
     public MessageHandlingApp(SystemPropertyCenter propCenter) throws Exception {
         super(propCenter, APP_NAME);
 
-        Properties producerProp = propCenter.getKafkaProducerProp(false);
-        producerSingleton = new Singleton<>(new ByteArrayProducerFactory(producerProp), ByteArrayProducer.class);
+        producerProp = propCenter.getKafkaProducerProp(false);
 
         hdfsReaderSingleton = new Singleton<>(HDFSReader::new, HDFSReader.class);
+
+        codec = TaskDataCodecHelper.getCodec(propCenter);
     }
 
     public static void main(String[] args) throws Exception {
@@ -155,8 +158,18 @@ public class MessageHandlingApp extends SparkStreamingApp {
                 }));
     }
 
+    /**
+     * Register the plan of a command if plan registry is enabled,
+     * so that messages of the command refer to the plan by ID instead of carrying it.
+     */
+    private void registerPlan(ExecutionPlan plan) throws Exception {
+        if (planRegistrySingleton != null) {
+            planRegistrySingleton.getInst().register(plan);
+        }
+    }
+
     private void handle(String cmd, Map<String, Serializable> param) throws Exception {
-        final KafkaProducer<String, byte[]> producer = producerSingleton.getInst();
+        final KafkaProducer<String, byte[]> producer = KafkaProducerPool.getProducer(producerProp);
         final Logger logger = loggerSingleton.getInst();
         final ExecutionPlan plan = new ExecutionPlan();
         // Process stored videos.
@@ -175,13 +188,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                 trackingNode.outputTo(trackletSavingNode.createInputPort(
                         DataManagingApp.TrackletSavingStream.PED_TRACKLET_SAVING_PORT));
 
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final TaskData taskData = new TaskData(
                             trackingNode.createInputPort(HDFSVideoTrackingStream.VIDEO_URL_PORT),
                             plan,
                             path.toString());
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
@@ -201,13 +215,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                 attrRecogNode.outputTo(attrSavingNode.createInputPort(
                         DataManagingApp.AttrSavingStream.PED_ATTR_SAVING_PORT));
 
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final TaskData taskData = new TaskData(
                             trackingNode.createInputPort(HDFSVideoTrackingStream.VIDEO_URL_PORT),
                             plan,
                             path.toString());
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
@@ -234,13 +249,14 @@ public class MessageHandlingApp extends SparkStreamingApp {
                 reidNode.outputTo(idRankSavingNode.createInputPort(
                         DataManagingApp.IDRankSavingStream.PED_IDRANK_SAVING_PORT));
 
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final TaskData taskData = new TaskData(
                             trackingNode.createInputPort(HDFSVideoTrackingStream.VIDEO_URL_PORT),
                             plan,
                             path.toString());
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
@@ -253,6 +269,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
 
                 String trackletIdx = (String) param.get(Parameter.TRACKLET_INDEX);
                 final GraphDatabaseConnector dbConnector = new FakeDatabaseConnector();
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final Tracklet.Identifier id = new Tracklet.Identifier(
@@ -264,7 +281,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             attrRecogNode.createInputPort(PedestrianAttrRecogApp.RecogStream.TRACKLET_PORT),
                             plan,
                             url);
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
@@ -283,6 +300,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
 
                 String trackletIdx = (String) param.get(Parameter.TRACKLET_INDEX);
                 final GraphDatabaseConnector dbConnector = new FakeDatabaseConnector();
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final Tracklet.Identifier id = new Tracklet.Identifier(
@@ -296,7 +314,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
                                     reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_PORT)),
                             plan,
                             url);
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
@@ -311,6 +329,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
 
                 String trackletIdx = (String) param.get(Parameter.TRACKLET_INDEX);
                 final GraphDatabaseConnector dbConnector = new FakeDatabaseConnector();
+                registerPlan(plan);
                 videoPaths.forEach(path -> {
                     final String taskID = UUID.randomUUID().toString();
                     final Tracklet.Identifier id = new Tracklet.Identifier(
@@ -332,7 +351,7 @@ public class MessageHandlingApp extends SparkStreamingApp {
                             reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_ATTR_PORT),
                             plan,
                             info);
-                    sendWithLog(taskID, taskData, producer, logger);
+                    sendWithLog(taskID, taskData, producer, codec, logger);
                 });
                 break;
             }
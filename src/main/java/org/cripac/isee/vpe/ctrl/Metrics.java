@@ -0,0 +1,77 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.ctrl;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Metrics class holds named counters of the current JVM.
+ * Counters are created on first use and reported periodically by {@link MonitorThread}.
+ */
+public class Metrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Add a value to a counter.
+     *
+     * @param name  name of the counter.
+     * @param delta value to add.
+     */
+    public static void add(@Nonnull String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Increase a counter by one.
+     *
+     * @param name name of the counter.
+     */
+    public static void increment(@Nonnull String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Get the current value of a counter.
+     *
+     * @param name name of the counter.
+     * @return value of the counter, or 0 if it has never been used.
+     */
+    public static long get(@Nonnull String name) {
+        final LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * @return current values of all the counters, sorted by name.
+     */
+    @Nonnull
+    public static SortedMap<String, Long> snapshot() {
+        final SortedMap<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        return snapshot;
+    }
+}
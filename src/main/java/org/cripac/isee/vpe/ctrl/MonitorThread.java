@@ -22,7 +22,9 @@ import com.google.gson.Gson;
 import com.sun.management.OperatingSystemMXBean;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.cripac.isee.util.Singleton;
 import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
 import org.cripac.isee.vpe.util.logging.Logger;
 
 import javax.management.InstanceNotFoundException;
@@ -31,6 +33,7 @@ import javax.management.ReflectionException;
 import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Map;
 
 public class MonitorThread extends Thread {
 
@@ -44,6 +47,7 @@ public class MonitorThread extends Thread {
         int procCpuLoad;
         int sysCpuLoad;
         DevInfo[] devInfos;
+        Map<String, Long> counters;
 
         private static class DevInfo {
             int fanSpeed;
@@ -92,7 +96,7 @@ public class MonitorThread extends Thread {
     public MonitorThread(Logger logger, SystemPropertyCenter propCenter)
             throws MalformedObjectNameException, ReflectionException, InstanceNotFoundException {
         this.logger = logger;
-        this.reportProducer = new KafkaProducer<>(propCenter.getKafkaProducerProp(true));
+        this.reportProducer = KafkaProducerPool.getProducer(propCenter.getKafkaProducerProp(true));
 
         String nodeName1;
         try {
@@ -172,6 +176,13 @@ public class MonitorThread extends Thread {
             }
             logger.info(stringBuilder.toString());
 
+            report.counters = Metrics.snapshot();
+            Singleton.getCreationLatencies().forEach((key, latency) ->
+                    report.counters.put("singleton." + key + ".create-ms", latency));
+            if (!report.counters.isEmpty()) {
+                logger.info("Counters: " + report.counters);
+            }
+
             this.reportProducer.send(new ProducerRecord<>(REPORT_TOPIC, nodeName, new Gson().toJson(report)));
 
             try {
@@ -30,8 +30,14 @@ import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.apache.log4j.Level;
 import org.apache.spark.launcher.SparkLauncher;
+import org.cripac.isee.vpe.common.DataType;
 import org.cripac.isee.vpe.util.hdfs.HadoopHelper;
+import org.cripac.isee.vpe.util.codec.PayloadCompression;
+import org.cripac.isee.vpe.util.codec.TaskDataCodecHelper;
 import org.cripac.isee.vpe.util.kafka.EvenlyDistributingPartitioner;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
+import org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner;
+import org.cripac.isee.vpe.util.kafka.LagAwarePartitioner;
 import org.cripac.isee.vpe.util.logging.ConsoleLogger;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.xml.sax.SAXException;
@@ -72,6 +78,20 @@ public class SystemPropertyCenter implements Serializable {
     private int kafkaRequestTimeoutMs = 60000;
     private int kafkaFetchTimeoutMs = 60000;
     public String kafkaLocationStrategy = "PreferBrokers";
+    /* Compression type of Kafka producers (none, gzip, snappy or lz4) */
+    public String kafkaCompressionType = "lz4";
+    /* Total memory Kafka producers can use to buffer records waiting to be sent.
+     * It is never set below the maximum size of a request.
+     */
+    public long kafkaBufferMemory = 33554432;
+    /* Batching of the shared producers sending data between applications. */
+    public int kafkaBatchSize = 65536;
+    public int kafkaLingerMs = 5;
+    /* Batching of the shared producers sending reports of loggers and monitors. */
+    public int kafkaReportBatchSize = 16384;
+    public int kafkaReportLingerMs = 0;
+    /* Number of Kafka producers shared by all the users of the same configuration in a JVM. */
+    public int kafkaProducerPoolSize = 1;
     /* The maximum number of messages per second that each partition will
      * accept in the direct Kafka input stream. 0 or null means not limited.
      */
@@ -79,6 +99,25 @@ public class SystemPropertyCenter implements Serializable {
     public String maxRatePerPartition = null;
     /* Spark properties */
     public String checkpointRootDir = "checkpoint";
+    /* How applications restart: "checkpoint" recovers the DStream graph from Spark checkpoints,
+     * while "external" rebuilds the graph and resumes from Kafka offsets and stream states
+     * saved under stateRootDir.
+     */
+    public String restartMode = "checkpoint";
+    public String stateRootDir = "state";
+    /* Interval of saving stream states in continuous runtime (ms) */
+    public long stateSaveIntervalMs = 10000;
+    /* Whether to create singletons of streams in parallel when applications start */
+    public boolean warmUpEnable = false;
+    /* When Spark Streaming applications commit Kafka offsets of a batch: "on-receive" when the batch is
+     * generated, or "on-completion" after all output operations of the batch have finished.
+     * In the latter mode, an application stops on the first failed batch, so that it is replayed on restart.
+     */
+    public String offsetCommitMode = "on-receive";
+    /* Whether to send data which fail to be processed to the dead-letter topic of their data type,
+     * instead of only logging the failures.
+     */
+    public boolean deadLetterEnable = false;
     public String metadataDir = "/metadata";
     public String sparkMaster = "local[*]";
     public String sparkDeployMode = "client";
@@ -130,6 +169,91 @@ public class SystemPropertyCenter implements Serializable {
     public boolean verbose = false;
     /* Whether to enable task controller. */
     public boolean taskControllerEnable = true;
+    /* Codec for encoding TaskData sent through Kafka ("java" or "binary").
+     * Messages in either format can always be decoded, so applications can be switched one by one.
+     */
+    public String taskDataCodec = TaskDataCodecHelper.JAVA;
+    /* Whether to store execution plans in a registry on HDFS and let messages refer to them by ID.
+     * This only takes effect with the binary TaskData codec.
+     */
+    public boolean planRegistryEnable = false;
+    /* Time in milliseconds to keep each registered execution plan for. It should be longer than any task takes.
+     * Non-positive values mean keeping plans forever.
+     */
+    public long planTTLMs = 7L * 24 * 3600 * 1000;
+    /* Whether to wait for the acknowledgement of each record output asynchronously by streams.
+     * Otherwise, acknowledgements are only waited for when a batch of outputs is flushed.
+     */
+    public boolean outputWaitAck = false;
+    /* Compression applied by the platform to TaskData messages of each data type before sending to Kafka,
+     * so that Kafka size limits apply to compressed sizes. Data types not in the map are not compressed.
+     * Tracklets carry raw image patches, so they are compressed by default,
+     * while small messages like attributes are not worth compressing.
+     */
+    public EnumMap<DataType, PayloadCompression> payloadCompressions = new EnumMap<>(DataType.class);
+
+    {
+        payloadCompressions.put(DataType.TRACKLET, new PayloadCompression(PayloadCompression.Method.DEFLATE, 1));
+    }
+
+    /* Data types whose records are partitioned in Kafka by task ID and tracklet serial number,
+     * so that data of the same tracklet are in the partitions with the same index in different topics.
+     * Records of other types are spread evenly. Empty means all the records are spread evenly.
+     */
+    public EnumSet<DataType> kafkaAffinityTypes = EnumSet.noneOf(DataType.class);
+    /* Whether to send records without affinity keys to partitions whose consumers are less behind.
+     * Lags are those of the consumer groups listed, and sampled at the interval.
+     */
+    public boolean kafkaLagAware = false;
+    public String kafkaLagGroups = "pedestrian-tracking,pedestrian-attr-recog,pedestrian-reid-using-attr,data-managing";
+    public long kafkaLagSampleIntervalMs = 5000;
+    /* Number of threads processing data of each stream in a JVM, and maximum number of data
+     * admitted to be processed at the same time, by name of the stream.
+     * Streams not specified use as many threads as processors, and admit twice the number of threads.
+     */
+    private HashMap<String, Integer> streamThreads = new HashMap<>();
+    private HashMap<String, Integer> streamAdmission = new HashMap<>();
+    /* Maximum number of messages per second that each Kafka partition accepts for each stream, by name of
+     * the stream. Streams not specified are limited by spark.streaming.kafka.maxRatePerPartition.
+     */
+    private HashMap<String, Long> streamMaxRates = new HashMap<>();
+    /* Whether to adjust the rate of each stream so that its batches are processed within its share of
+     * the batch duration, according to the processing time of previous batches.
+     * Rates are kept within [rateControlMinRate, maximum rate of the stream].
+     */
+    public boolean rateControlEnable = false;
+    public double rateControlUtilization = 0.8;
+    public long rateControlMinRate = 1;
+    /* Runtime of applications: "spark" for Spark Streaming micro-batches, or "continuous" for a long-lived
+     * Kafka consumer loop processing each record as soon as it is polled. Only streams providing handlers
+     * for all their ports can run continuously.
+     */
+    public String runtime = "spark";
+    public long continuousPollMs = 100;
+    /* Whether to scale the executors of each Spark Streaming application between bounds according to
+     * the lag of its Kafka consumer group and the measured processing capacity of its executors.
+     * Executors are added so that the lag is expected to be drained within autoscaleDrainMs
+     * while executors stay below autoscaleUtilization, and removed one at a time after
+     * autoscaleScaleDownRounds consecutive decisions needing fewer executors.
+     * Bounds can be set per application by name, and default to [numExecutors, autoscaleMaxExecutors].
+     */
+    public boolean autoscaleEnable = false;
+    public long autoscaleIntervalMs = 10000;
+    public long autoscaleDrainMs = 60000;
+    public double autoscaleUtilization = 0.7;
+    public int autoscaleScaleDownRounds = 6;
+    public int autoscaleMaxStep = 4;
+    public int autoscaleMaxExecutors = 10;
+    private HashMap<String, Integer> autoscaleMinExecutorsByApp = new HashMap<>();
+    private HashMap<String, Integer> autoscaleMaxExecutorsByApp = new HashMap<>();
+
+    /* Prefix of properties setting payload compression of each data type, like vpe.payload.compression.tracklet */
+    private static final String PAYLOAD_COMPRESSION_PREFIX = "vpe.payload.compression.";
+    private static final String STREAM_THREADS_PREFIX = "vpe.stream.threads.";
+    private static final String STREAM_ADMISSION_PREFIX = "vpe.stream.admission.";
+    private static final String STREAM_MAX_RATE_PREFIX = "vpe.stream.max.rate.";
+    private static final String AUTOSCALE_MIN_EXECUTORS_PREFIX = "vpe.autoscale.min.executors.";
+    private static final String AUTOSCALE_MAX_EXECUTORS_PREFIX = "vpe.autoscale.max.executors.";
 
     /* Subclasses can continue to analyze this property storage */
     protected Properties sysProps = new Properties();
@@ -312,6 +436,24 @@ public class SystemPropertyCenter implements Serializable {
                 case "spark.checkpoint.dir":
                     checkpointRootDir = (String) entry.getValue();
                     break;
+                case "vpe.restart.mode":
+                    restartMode = (String) entry.getValue();
+                    break;
+                case "vpe.state.dir":
+                    stateRootDir = (String) entry.getValue();
+                    break;
+                case "vpe.state.save.interval.ms":
+                    stateSaveIntervalMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.warm.up.enable":
+                    warmUpEnable = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "vpe.offset.commit.mode":
+                    offsetCommitMode = (String) entry.getValue();
+                    break;
+                case "vpe.dead.letter.enable":
+                    deadLetterEnable = Boolean.parseBoolean((String) entry.getValue());
+                    break;
                 case "vpe.metadata.dir":
                     metadataDir = (String) entry.getValue();
                     break;
@@ -380,6 +522,115 @@ public class SystemPropertyCenter implements Serializable {
                 case "vpe.task.controller.enable":
                     taskControllerEnable = Boolean.parseBoolean((String) entry.getValue());
                     break;
+                case "vpe.taskdata.codec":
+                    taskDataCodec = (String) entry.getValue();
+                    break;
+                case "vpe.plan.registry.enable":
+                    planRegistryEnable = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "vpe.plan.ttl.ms":
+                    planTTLMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.output.wait.ack":
+                    outputWaitAck = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "kafka.compression.type":
+                    kafkaCompressionType = (String) entry.getValue();
+                    break;
+                case "kafka.buffer.memory":
+                    kafkaBufferMemory = Long.parseLong((String) entry.getValue());
+                    break;
+                case "kafka.batch.size":
+                    kafkaBatchSize = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "kafka.linger.ms":
+                    kafkaLingerMs = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "kafka.report.batch.size":
+                    kafkaReportBatchSize = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "kafka.report.linger.ms":
+                    kafkaReportLingerMs = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "vpe.kafka.affinity.types":
+                    kafkaAffinityTypes = EnumSet.noneOf(DataType.class);
+                    for (String type : ((String) entry.getValue()).split(",")) {
+                        if (!type.trim().isEmpty()) {
+                            kafkaAffinityTypes.add(DataType.valueOf(type.trim().toUpperCase()));
+                        }
+                    }
+                    break;
+                case "vpe.kafka.lag.aware":
+                    kafkaLagAware = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "vpe.kafka.lag.groups":
+                    kafkaLagGroups = (String) entry.getValue();
+                    break;
+                case "vpe.kafka.lag.sample.interval.ms":
+                    kafkaLagSampleIntervalMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.rate.control.enable":
+                    rateControlEnable = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "vpe.rate.control.utilization":
+                    rateControlUtilization = Double.parseDouble((String) entry.getValue());
+                    break;
+                case "vpe.rate.control.min.rate":
+                    rateControlMinRate = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.runtime":
+                    runtime = (String) entry.getValue();
+                    break;
+                case "vpe.continuous.poll.ms":
+                    continuousPollMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.enable":
+                    autoscaleEnable = Boolean.parseBoolean((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.interval.ms":
+                    autoscaleIntervalMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.drain.ms":
+                    autoscaleDrainMs = Long.parseLong((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.utilization":
+                    autoscaleUtilization = Double.parseDouble((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.scale.down.rounds":
+                    autoscaleScaleDownRounds = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.max.step":
+                    autoscaleMaxStep = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "vpe.autoscale.max.executors":
+                    autoscaleMaxExecutors = Integer.parseInt((String) entry.getValue());
+                    break;
+                case "vpe.kafka.producer.pool.size":
+                    kafkaProducerPoolSize = Integer.parseInt((String) entry.getValue());
+                    break;
+                default:
+                    final String key = (String) entry.getKey();
+                    if (key.startsWith(PAYLOAD_COMPRESSION_PREFIX)) {
+                        final DataType dataType =
+                                DataType.valueOf(key.substring(PAYLOAD_COMPRESSION_PREFIX.length()).toUpperCase());
+                        payloadCompressions.put(dataType, PayloadCompression.parse((String) entry.getValue()));
+                    } else if (key.startsWith(STREAM_THREADS_PREFIX)) {
+                        streamThreads.put(key.substring(STREAM_THREADS_PREFIX.length()),
+                                Integer.parseInt((String) entry.getValue()));
+                    } else if (key.startsWith(STREAM_ADMISSION_PREFIX)) {
+                        streamAdmission.put(key.substring(STREAM_ADMISSION_PREFIX.length()),
+                                Integer.parseInt((String) entry.getValue()));
+                    } else if (key.startsWith(STREAM_MAX_RATE_PREFIX)) {
+                        streamMaxRates.put(key.substring(STREAM_MAX_RATE_PREFIX.length()),
+                                Long.parseLong((String) entry.getValue()));
+                    } else if (key.startsWith(AUTOSCALE_MIN_EXECUTORS_PREFIX)) {
+                        autoscaleMinExecutorsByApp.put(key.substring(AUTOSCALE_MIN_EXECUTORS_PREFIX.length()),
+                                Integer.parseInt((String) entry.getValue()));
+                    } else if (key.startsWith(AUTOSCALE_MAX_EXECUTORS_PREFIX)) {
+                        autoscaleMaxExecutorsByApp.put(key.substring(AUTOSCALE_MAX_EXECUTORS_PREFIX.length()),
+                                Integer.parseInt((String) entry.getValue()));
+                    }
+                    break;
             }
             sysProps.remove(entry);
         }
@@ -481,6 +732,14 @@ public class SystemPropertyCenter implements Serializable {
         return launcher;
     }
 
+    /**
+     * Get the configuration of Kafka producers.
+     * Producers sending strings are used for reports, while the others are used for data.
+     * The two kinds are batched separately, and each is shared through {@link KafkaProducerPool}.
+     *
+     * @param isStringValue whether the values to send are strings.
+     * @return the configuration.
+     */
     public Properties getKafkaProducerProp(boolean isStringValue) {
         Properties producerProp = new Properties();
         producerProp.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers);
@@ -488,13 +747,90 @@ public class SystemPropertyCenter implements Serializable {
         producerProp.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
         producerProp.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG,
                 isStringValue ? StringSerializer.class : ByteArraySerializer.class);
-        producerProp.put(ProducerConfig.BUFFER_MEMORY_CONFIG, kafkaSendMaxSize);
+        producerProp.put(ProducerConfig.BUFFER_MEMORY_CONFIG, Math.max(kafkaBufferMemory, kafkaSendMaxSize));
         producerProp.put(ProducerConfig.REQUEST_TIMEOUT_MS_CONFIG, kafkaRequestTimeoutMs);
-        producerProp.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, "lz4");
-        producerProp.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, EvenlyDistributingPartitioner.class);
+        producerProp.put(ProducerConfig.COMPRESSION_TYPE_CONFIG, kafkaCompressionType);
+        if (kafkaLagAware) {
+            producerProp.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, LagAwarePartitioner.class);
+            producerProp.put(LagAwarePartitioner.LAG_GROUPS_CONFIG, kafkaLagGroups);
+            producerProp.put(LagAwarePartitioner.SAMPLE_INTERVAL_CONFIG, kafkaLagSampleIntervalMs);
+        } else {
+            producerProp.put(ProducerConfig.PARTITIONER_CLASS_CONFIG, kafkaAffinityTypes.isEmpty()
+                    ? EvenlyDistributingPartitioner.class : KeyAffinityPartitioner.class);
+        }
+        producerProp.put(ProducerConfig.BATCH_SIZE_CONFIG, isStringValue ? kafkaReportBatchSize : kafkaBatchSize);
+        producerProp.put(ProducerConfig.LINGER_MS_CONFIG, isStringValue ? kafkaReportLingerMs : kafkaLingerMs);
+        producerProp.put(KafkaProducerPool.POOL_SIZE_CONFIG, kafkaProducerPoolSize);
         return producerProp;
     }
 
+    /**
+     * Get the number of threads processing data of a stream in a JVM.
+     *
+     * @param streamName name of the stream.
+     * @return the number of threads.
+     */
+    public int getStreamThreads(@Nonnull String streamName) {
+        return Math.max(1, streamThreads.getOrDefault(streamName, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Get the maximum number of data of a stream admitted to be processed at the same time in a JVM.
+     *
+     * @param streamName name of the stream.
+     * @return the admission limit, which is never less than the number of threads.
+     */
+    public int getStreamAdmission(@Nonnull String streamName) {
+        final int numThreads = getStreamThreads(streamName);
+        return Math.max(numThreads, streamAdmission.getOrDefault(streamName, 2 * numThreads));
+    }
+
+    /**
+     * Get the maximum number of messages per second that each Kafka partition accepts for a stream.
+     *
+     * @param streamName name of the stream.
+     * @return the maximum rate, or 0 if not limited.
+     */
+    public long getStreamMaxRate(@Nonnull String streamName) {
+        final Long rate = streamMaxRates.get(streamName);
+        if (rate != null) {
+            return Math.max(0, rate);
+        }
+        return maxRatePerPartition == null ? 0 : Math.max(0, Long.parseLong(maxRatePerPartition));
+    }
+
+    /**
+     * Get the minimum number of executors the autoscaler keeps for an application.
+     *
+     * @param appName name of the application.
+     * @return the minimum number of executors, at least 1.
+     */
+    public int getAutoscaleMinExecutors(@Nonnull String appName) {
+        return Math.max(1, autoscaleMinExecutorsByApp.getOrDefault(appName, numExecutors));
+    }
+
+    /**
+     * Get the maximum number of executors the autoscaler allocates for an application.
+     *
+     * @param appName name of the application.
+     * @return the maximum number of executors, at least the minimum.
+     */
+    public int getAutoscaleMaxExecutors(@Nonnull String appName) {
+        return Math.max(getAutoscaleMinExecutors(appName),
+                autoscaleMaxExecutorsByApp.getOrDefault(appName, autoscaleMaxExecutors));
+    }
+
+    /**
+     * Whether partitions of input RDDs are aligned with Kafka partitions,
+     * so that streams can join data partitioned by {@link KeyAffinityPartitioner} without shuffling.
+     * This requires affinity partitioning to be enabled and repartitioning to be disabled.
+     *
+     * @return whether input RDDs are aligned with Kafka partitions.
+     */
+    public boolean isKafkaAffinityAligned() {
+        return !kafkaAffinityTypes.isEmpty() && repartition < 0;
+    }
+
     public Properties getKafkaConsumerProp(String group, boolean isStringValue) {
         Properties consumerProp = new Properties();
         consumerProp.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaBootstrapServers);
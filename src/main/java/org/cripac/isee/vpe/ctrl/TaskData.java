@@ -18,11 +18,15 @@
 package org.cripac.isee.vpe.ctrl;
 
 import com.google.gson.Gson;
+import org.cripac.isee.util.SerializationHelper;
 import org.cripac.isee.vpe.common.DataType;
 import org.cripac.isee.vpe.common.Stream;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 
@@ -169,6 +173,47 @@ public class TaskData implements Serializable, Cloneable {
 
         private int nodeIDCounter = 0;
 
+        /**
+         * ID of the plan in {@link ExecutionPlanRegistry}, or null if the plan is not registered.
+         */
+        private String id = null;
+
+        /**
+         * @return ID of the plan in {@link ExecutionPlanRegistry}, or null if the plan is not registered.
+         */
+        @Nullable
+        public String getID() {
+            return id;
+        }
+
+        void setID(@Nonnull String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return a bitset whose set bits are the IDs of the executed nodes.
+         */
+        @Nonnull
+        public BitSet getExecutedNodes() {
+            final BitSet executedNodes = new BitSet(nodeIDCounter);
+            nodes.values().stream()
+                    .filter(Node::isExecuted)
+                    .forEach(node -> executedNodes.set(node.id));
+            return executedNodes;
+        }
+
+        /**
+         * Mark nodes as executed.
+         *
+         * @param executedNodes a bitset whose set bits are the IDs of the nodes to mark.
+         */
+        public void markExecuted(@Nonnull BitSet executedNodes) {
+            executedNodes.stream()
+                    .mapToObj(nodes::get)
+                    .filter(Objects::nonNull)
+                    .forEach(Node::markExecuted);
+        }
+
         /**
          * Combine two execution plans. If a node is marked executed in either
          * plan, the corresponding node in the combined plan is also marked
@@ -177,9 +222,9 @@ public class TaskData implements Serializable, Cloneable {
          * @param planToCombine Another plan to combine on this plan.
          */
         public void combine(@Nonnull ExecutionPlan planToCombine) {
-            planToCombine.nodes.values().stream()
-                    .filter(Node::isExecuted)
-                    .forEach(node -> this.nodes.get(node.id).markExecuted());
+            final BitSet newlyExecuted = planToCombine.getExecutedNodes();
+            newlyExecuted.andNot(getExecutedNodes());
+            markExecuted(newlyExecuted);
         }
 
         /*
@@ -192,6 +237,160 @@ public class TaskData implements Serializable, Cloneable {
             return new Gson().toJson(this);
         }
 
+        /**
+         * Copy the plan, so that nodes can be marked executed in the copy while the original stays intact,
+         * e.g. to be diverted or processed again on failure. Execution data are shared with the original.
+         *
+         * @return a copy of the plan, with the same ID and nodes of the same IDs.
+         */
+        @Nonnull
+        public ExecutionPlan copy() {
+            final ExecutionPlan copy = new ExecutionPlan();
+            copy.nodeIDCounter = nodeIDCounter;
+            copy.id = id;
+            for (Node node : nodes.values()) {
+                final Node nodeCopy = new Node(node.id, node.outputType, node.execData);
+                if (node.executed) {
+                    nodeCopy.markExecuted();
+                }
+                copy.nodes.put(node.id, nodeCopy);
+            }
+            for (Node node : nodes.values()) {
+                if (node.executed) {
+                    continue;
+                }
+                final Node nodeCopy = copy.nodes.get(node.id);
+                for (Node.Port port : node.outputPorts) {
+                    nodeCopy.outputPorts.add(copy.nodes.get(port.getNode().id).createInputPort(port.prototype));
+                }
+            }
+            return copy;
+        }
+
+        /**
+         * Get a node in this plan by its ID.
+         *
+         * @param id ID of the node.
+         * @return the node with the given ID, or null if there is no such node.
+         */
+        @Nullable
+        public Node getNode(int id) {
+            return nodes.get(id);
+        }
+
+        /**
+         * Write the plan in a compact binary form, which can be read back with {@link #readFrom(DataInput)}.
+         * Executed nodes are written without their execution data and output ports,
+         * since these have already been cleared on execution.
+         *
+         * @param out the output to write the plan to.
+         * @throws IOException on failure writing to the output.
+         */
+        public void writeTo(@Nonnull DataOutput out) throws IOException {
+            out.writeInt(nodeIDCounter);
+            out.writeInt(nodes.size());
+            for (Node node : nodes.values()) {
+                out.writeInt(node.id);
+                out.writeUTF(node.outputType.name());
+                out.writeBoolean(node.executed);
+                if (node.executed) {
+                    continue;
+                }
+                writeExecData(out, node.execData);
+                out.writeInt(node.outputPorts.size());
+                for (Node.Port port : node.outputPorts) {
+                    out.writeInt(port.getNode().id);
+                    out.writeUTF(port.prototype.name);
+                    out.writeUTF(port.prototype.inputType.name());
+                }
+            }
+        }
+
+        /**
+         * Read a plan written by {@link #writeTo(DataOutput)}.
+         *
+         * @param in the input to read the plan from.
+         * @return the plan read.
+         * @throws IOException            on failure reading from the input or on malformed data.
+         * @throws ClassNotFoundException on failure finding the class of some execution data.
+         */
+        @Nonnull
+        public static ExecutionPlan readFrom(@Nonnull DataInput in) throws IOException, ClassNotFoundException {
+            final ExecutionPlan plan = new ExecutionPlan();
+            plan.nodeIDCounter = in.readInt();
+            final int numNodes = in.readInt();
+            // Output ports may refer to nodes not read yet, so links are resolved after all the nodes are created.
+            final Map<Node, List<Map.Entry<Integer, Stream.Port>>> pendingLinks = new HashMap<>();
+            for (int i = 0; i < numNodes; ++i) {
+                final int id = in.readInt();
+                final DataType outputType = DataType.valueOf(in.readUTF());
+                final boolean executed = in.readBoolean();
+                final Node node;
+                if (executed) {
+                    node = new Node(id, outputType, null);
+                    node.markExecuted();
+                } else {
+                    node = new Node(id, outputType, readExecData(in));
+                    final int numPorts = in.readInt();
+                    final List<Map.Entry<Integer, Stream.Port>> links = new ArrayList<>(numPorts);
+                    for (int j = 0; j < numPorts; ++j) {
+                        final int targetID = in.readInt();
+                        final String portName = in.readUTF();
+                        final DataType portType = DataType.valueOf(in.readUTF());
+                        links.add(new AbstractMap.SimpleEntry<>(targetID, new Stream.Port(portName, portType)));
+                    }
+                    pendingLinks.put(node, links);
+                }
+                plan.nodes.put(id, node);
+            }
+            for (Map.Entry<Node, List<Map.Entry<Integer, Stream.Port>>> entry : pendingLinks.entrySet()) {
+                for (Map.Entry<Integer, Stream.Port> link : entry.getValue()) {
+                    final Node target = plan.nodes.get(link.getKey());
+                    if (target == null) {
+                        throw new IOException("Execution plan refers to missing node " + link.getKey());
+                    }
+                    entry.getKey().outputPorts.add(target.createInputPort(link.getValue()));
+                }
+            }
+            return plan;
+        }
+
+        private static final byte EXEC_DATA_NULL = 0;
+        private static final byte EXEC_DATA_STRING = 1;
+        private static final byte EXEC_DATA_SERIALIZED = 2;
+
+        private static void writeExecData(@Nonnull DataOutput out,
+                                          @Nullable Serializable execData) throws IOException {
+            if (execData == null) {
+                out.writeByte(EXEC_DATA_NULL);
+            } else if (execData instanceof String) {
+                out.writeByte(EXEC_DATA_STRING);
+                out.writeUTF((String) execData);
+            } else {
+                final byte[] bytes = SerializationHelper.serialize(execData);
+                out.writeByte(EXEC_DATA_SERIALIZED);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        @Nullable
+        private static Serializable readExecData(@Nonnull DataInput in) throws IOException, ClassNotFoundException {
+            final byte tag = in.readByte();
+            switch (tag) {
+                case EXEC_DATA_NULL:
+                    return null;
+                case EXEC_DATA_STRING:
+                    return in.readUTF();
+                case EXEC_DATA_SERIALIZED:
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    return SerializationHelper.deserialize(bytes);
+                default:
+                    throw new IOException("Unknown execution data tag " + tag);
+            }
+        }
+
         /**
          * Add a node to the execution plan. If it has been added previously with no
          * execution data, the new execution data will be added to the previous node.
@@ -211,8 +410,8 @@ public class TaskData implements Serializable, Cloneable {
          * @param execData   Data for execution of the node.
          * @return The new added node.
          */
-        Node addNode(@Nonnull DataType outputType,
-                     @Nullable Serializable execData) {
+        public Node addNode(@Nonnull DataType outputType,
+                            @Nullable Serializable execData) {
             Node node = new Node(nodeIDCounter++, outputType, execData);
             nodes.put(node.id, node);
             return node;
@@ -296,6 +495,13 @@ public class TaskData implements Serializable, Cloneable {
                 this.execData = execData;
             }
 
+            /**
+             * @return ID of this node in the execution plan.
+             */
+            public int getID() {
+                return id;
+            }
+
             /**
              * @return Successor nodes of this node.
              */
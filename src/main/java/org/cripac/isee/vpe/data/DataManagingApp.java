@@ -43,8 +43,6 @@ import org.cripac.isee.util.SerializationHelper;
 import org.cripac.isee.util.Singleton;
 import org.cripac.isee.vpe.util.hdfs.HDFSFactory;
 import org.cripac.isee.vpe.util.hdfs.HadoopHelper;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducer;
-import org.cripac.isee.vpe.util.kafka.ByteArrayProducerFactory;
 import org.cripac.isee.vpe.util.kafka.KafkaHelper;
 import org.cripac.isee.vpe.util.logging.Logger;
 import org.cripac.isee.vpe.util.logging.SynthesizedLogger;
@@ -57,6 +55,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.cripac.isee.util.SerializationHelper.serialize;
@@ -131,11 +130,13 @@ public class DataManagingApp extends SparkStreamingApp {
 
     public static class VideoCuttingStream extends Stream {
 
+        public static final String NAME = "video-cutting";
         public final static Port VIDEO_URL_PORT = new Port("video-url-for-cutting", DataType.URL);
         private static final long serialVersionUID = -6187153660239066646L;
         public static final DataType OUTPUT_TYPE = DataType.FRAME_ARRAY;
 
         int maxFramePerFragment;
+        private final BoundedExecutor executor;
 
         /**
          * Initialize necessary components of a Stream object.
@@ -146,76 +147,84 @@ public class DataManagingApp extends SparkStreamingApp {
         public VideoCuttingStream(AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
             maxFramePerFragment = propCenter.maxFramePerFragment;
+            executor = new BoundedExecutor(NAME, propCenter);
         }
 
         /**
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
             this.filter(globalStreamMap, VIDEO_URL_PORT)
                     .foreachRDD(rdd -> rdd.foreachPartition(kvIter -> {
-                        synchronized (VideoCuttingStream.class) {
-                            final Logger logger = loggerSingleton.getInst();
-                            ParallelExecutor.execute(kvIter, kv -> {
-                                try {
-                                    new RobustExecutor<Void, Void>(() -> {
-                                        final UUID taskID = kv._1();
-                                        final TaskData taskData = kv._2();
-
-                                        final FileSystem hdfs = HDFSFactory.newInstance();
-                                        FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(
-                                                hdfs.open(new Path((String) taskData.predecessorRes))
-                                        );
-
-                                        Frame[] fragments = new Frame[maxFramePerFragment];
-                                        int cnt = 0;
-                                        final ExecutionPlan.Node curNode = taskData.getDestNode(VIDEO_URL_PORT);
-                                        assert curNode != null;
-                                        final List<ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
-                                        curNode.markExecuted();
-                                        while (true) {
-                                            Frame frame;
-                                            try {
-                                                frame = frameGrabber.grabImage();
-                                            } catch (FrameGrabber.Exception e) {
-                                                logger.error("On grabImage: " + e);
-                                                if (cnt > 0) {
-                                                    Frame[] lastFragments = new Frame[cnt];
-                                                    System.arraycopy(fragments, 0, lastFragments, 0, cnt);
-                                                    output(outputPorts, taskData.executionPlan, lastFragments, taskID);
-                                                }
-                                                break;
+                        final Logger logger = loggerSingleton.getInst();
+                        executor.execute(kvIter, kv -> {
+                            try {
+                                new RobustExecutor<Void, Void>(() -> {
+                                    final UUID taskID = kv._1();
+                                    final TaskData taskData = kv._2();
+
+                                    final FileSystem hdfs = HDFSFactory.newInstance();
+                                    FFmpegFrameGrabber frameGrabber = new FFmpegFrameGrabber(
+                                            hdfs.open(new Path((String) taskData.predecessorRes))
+                                    );
+
+                                    Frame[] fragments = new Frame[maxFramePerFragment];
+                                    int cnt = 0;
+                                    // Mark the current node executed in a copy of the plan,
+                                    // leaving the received data intact for retries.
+                                    final ExecutionPlan plan = taskData.executionPlan.copy();
+                                    final ExecutionPlan.Node curNode =
+                                            plan.getNode(taskData.getDestNode(VIDEO_URL_PORT).getID());
+                                    assert curNode != null;
+                                    final List<ExecutionPlan.Node.Port> outputPorts = curNode.getOutputPorts();
+                                    curNode.markExecuted();
+                                    while (true) {
+                                        Frame frame;
+                                        try {
+                                            frame = frameGrabber.grabImage();
+                                        } catch (FrameGrabber.Exception e) {
+                                            logger.error("On grabImage: " + e);
+                                            if (cnt > 0) {
+                                                Frame[] lastFragments = new Frame[cnt];
+                                                System.arraycopy(fragments, 0, lastFragments, 0, cnt);
+                                                output(outputPorts, plan, lastFragments, taskID);
                                             }
-                                            if (frame == null) {
-                                                if (cnt > 0) {
-                                                    Frame[] lastFragments = new Frame[cnt];
-                                                    System.arraycopy(fragments, 0, lastFragments, 0, cnt);
-                                                    output(outputPorts, taskData.executionPlan, lastFragments, taskID);
-                                                }
-                                                break;
+                                            break;
+                                        }
+                                        if (frame == null) {
+                                            if (cnt > 0) {
+                                                Frame[] lastFragments = new Frame[cnt];
+                                                System.arraycopy(fragments, 0, lastFragments, 0, cnt);
+                                                output(outputPorts, plan, lastFragments, taskID);
                                             }
+                                            break;
+                                        }
 
-                                            fragments[cnt++] = frame;
-                                            if (cnt >= maxFramePerFragment) {
-                                                output(outputPorts, taskData.executionPlan, fragments, taskID);
-                                                cnt = 0;
-                                            }
+                                        fragments[cnt++] = frame;
+                                        if (cnt >= maxFramePerFragment) {
+                                            output(outputPorts, plan, fragments, taskID);
+                                            cnt = 0;
                                         }
-                                    }).execute();
-                                } catch (Throwable t) {
-                                    logger.error("On cutting video", t);
-                                }
-                            });
-                        }
+                                    }
+                                }).execute();
+                            } catch (Throwable t) {
+                                logger.error("On cutting video", t);
+                            }
+                        });
                     }));
         }
 
+        @Override
+        public String getName() {
+            return NAME;
+        }
+
         @Override
         public List<Port> getPorts() {
             return Collections.singletonList(VIDEO_URL_PORT);
@@ -235,6 +244,8 @@ public class DataManagingApp extends SparkStreamingApp {
     static class TrackletPackingThread implements Runnable {
 
         final static String JOB_TOPIC = "tracklet-packing-job";
+        // Name of the file in the directory of a task recording the number of tracklets of the task.
+        final static String NUM_TRACKLETS_FILE = "_num-tracklets";
 
         final Properties consumerProperties;
         final String metadataDir;
@@ -255,6 +266,108 @@ public class DataManagingApp extends SparkStreamingApp {
             dbConnector = new Neo4jConnector();
         }
 
+        /**
+         * Pack the tracklets of a task into a HAR if all of them have been saved.
+         * HDFS and database steps are composed asynchronously,
+         * so no thread is held while a step waits to be retried.
+         *
+         * @param hdfs         the HDFS to pack in.
+         * @param taskID       ID of the task.
+         * @param videoID      ID of the video the tracklets are from.
+         * @param numTracklets number of tracklets of the task, or negative if unknown to the job,
+         *                     in which case it is read from the record left by saving a tracklet knowing it.
+         * @return a future completed when the packing finishes or is found unnecessary.
+         */
+        private CompletableFuture<Void> pack(FileSystem hdfs, String taskID, String videoID, int numTracklets) {
+            final String videoRoot = metadataDir + "/" + videoID;
+            final String taskRoot = videoRoot + "/" + taskID;
+
+            if (numTracklets < 0) {
+                // Tracklets output before their videos are fully tracked do not know the number of tracklets.
+                return new RobustExecutor<Void, Integer>(
+                        (Function0<Integer>) () ->
+                                HadoopHelper.retrieveInt(new Path(taskRoot, NUM_TRACKLETS_FILE), -1, hdfs)
+                ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync().thenCompose(total -> {
+                    if (total < 0) {
+                        // A later tracklet knowing the number will check packing again.
+                        logger.info("Task " + taskID + "(" + videoID + ") does not know its number of tracklets yet.");
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    return pack(hdfs, taskID, videoID, total);
+                });
+            }
+
+            return new RobustExecutor<Void, Boolean>(
+                    (Function0<Boolean>) () -> hdfs.exists(new Path(videoRoot + "/" + taskID + ".har"))
+            ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync().thenCompose(harExists -> {
+                if (harExists) {
+                    // Packing has been finished in a previous request.
+                    return new RobustExecutor<Void, Boolean>(
+                            (Function0<Boolean>) () -> hdfs.exists(new Path(videoRoot + "/" + taskID))
+                    ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync().thenCompose(taskRootExists -> {
+                        if (!taskRootExists) {
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        // But seems to have failed to delete the task root.
+                        // Now do it again.
+                        return new RobustExecutor<Void, Void>(() ->
+                                hdfs.delete(new Path(taskRoot), true)
+                        ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync();
+                    });
+                }
+
+                // If all the tracklets from a task are saved,
+                // it's time to pack them into a HAR!
+                return new RobustExecutor<Void, ContentSummary>(
+                        (Function0<ContentSummary>) () -> hdfs.getContentSummary(new Path(taskRoot))
+                ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync().thenCompose(contentSummary -> {
+                    final long dirCnt = contentSummary.getDirectoryCount();
+                    // Decrease one for directory counter.
+                    if (dirCnt - 1 != numTracklets) {
+                        logger.info("Task " + taskID + "(" + videoID + ") need "
+                                + (numTracklets - dirCnt + 1) + "/" + numTracklets + " more tracklets!");
+                        return CompletableFuture.<Void>completedFuture(null);
+                    }
+                    logger.info("Starting to pack tracklets for task " + taskID
+                            + "(" + videoID + ")! The directory consumes "
+                            + contentSummary.getSpaceConsumed() + " bytes.");
+
+                    CompletableFuture<Void> packed = new RobustExecutor<Void, Void>(() -> {
+                        final HadoopArchives arch = new HadoopArchives(HadoopHelper.getDefaultConf());
+                        final ArrayList<String> harPackingOptions = new ArrayList<>();
+                        harPackingOptions.add("-archiveName");
+                        harPackingOptions.add(taskID + ".har");
+                        harPackingOptions.add("-p");
+                        harPackingOptions.add(taskRoot);
+                        harPackingOptions.add(videoRoot);
+                        int ret = arch.run(Arrays.copyOf(harPackingOptions.toArray(),
+                                harPackingOptions.size(), String[].class));
+                        if (ret < 0) {
+                            throw new IOException("Packing tracklets for task "
+                                    + taskID + "(" + videoID + ") failed.");
+                        }
+                    }).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync()
+                            .thenRun(() -> logger.info("Task " + taskID + "(" + videoID + ") packed!"));
+
+                    // Set the HAR path to all the tracklets from this video, one after another.
+                    for (int i = 0; i < numTracklets; ++i) {
+                        final int idx = i;
+                        packed = packed.thenCompose(ignored -> new RobustExecutor<Integer, Void>(
+                                (VoidFunction<Integer>) id -> dbConnector.setTrackletSavingPath(
+                                        new Tracklet.Identifier(videoID, id).toString(),
+                                        videoRoot + "/" + taskID + ".har/" + id))
+                                .withCircuitBreaker(CircuitBreaker.NEO4J)
+                                .executeAsync(idx));
+                    }
+
+                    // Delete the original folder recursively.
+                    return packed.thenCompose(ignored -> new RobustExecutor<Void, Void>(() ->
+                            hdfs.delete(new Path(taskRoot), true)
+                    ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync());
+                });
+            });
+        }
+
         @Override
         public void run() {
             while (running.get()) {
@@ -281,89 +394,23 @@ public class DataManagingApp extends SparkStreamingApp {
                         logger.info("Packing thread received " + taskMap.keySet().size() + " jobs.");
                         //TODO(Ken Yu): Make sure whether executing HAR packing in parallel is faster.
                         //TODO(Ken Yu): Find the best parallelism.
-                        ParallelExecutor.execute(taskMap.entrySet(), 4, kv -> {
+                        ParallelExecutor.executeAsync(taskMap.entrySet(), 4, kv -> {
+                            final String taskID = kv.getKey();
+                            final Tuple2<Tracklet.Identifier, Integer> info;
                             try {
-                                final String taskID = kv.getKey();
-                                final byte[] value = kv.getValue();
                                 //final Tuple2<String, Integer> info = SerializationHelper.deserialize(value);
                                 //final String videoID = info._1();
                                 // Modified "String" in Tuple2 to "Tracklet.Identifier" on 2017/04/26
-                                final Tuple2<Tracklet.Identifier, Integer> info = SerializationHelper.deserialize(value);
-                                final Tracklet.Identifier trackletID = info._1();
-                                final String videoID = trackletID.videoID;
-                                final int numTracklets = info._2();
-                                final String videoRoot = metadataDir + "/" + videoID;
-                                final String taskRoot = videoRoot + "/" + taskID;
-
-                                final boolean harExists = new RobustExecutor<Void, Boolean>(
-                                        (Function0<Boolean>) () ->
-                                                hdfs.exists(new Path(videoRoot + "/" + taskID + ".har"))
-                                ).execute();
-                                if (harExists) {
-                                    // Packing has been finished in a previous request.
-                                    final boolean taskRootExists = new RobustExecutor<Void, Boolean>(
-                                            (Function0<Boolean>) () ->
-                                                    hdfs.exists(new Path(videoRoot + "/" + taskID))
-                                    ).execute();
-                                    if (taskRootExists) {
-                                        // But seems to have failed to delete the task root.
-                                        // Now do it again.
-                                        new RobustExecutor<Void, Void>(() ->
-                                                hdfs.delete(new Path(taskRoot), true)
-                                        ).execute();
-                                    }
-                                    return;
-                                }
-
-                                // If all the tracklets from a task are saved,
-                                // it's time to pack them into a HAR!
-                                final ContentSummary contentSummary = new RobustExecutor<Void, ContentSummary>(
-                                        (Function0<ContentSummary>) () -> hdfs.getContentSummary(new Path(taskRoot))
-                                ).execute();
-                                final long dirCnt = contentSummary.getDirectoryCount();
-                                // Decrease one for directory counter.
-                                if (dirCnt - 1 == numTracklets) {
-                                    logger.info("Starting to pack tracklets for task " + taskID
-                                            + "(" + videoID + ")! The directory consumes "
-                                            + contentSummary.getSpaceConsumed() + " bytes.");
-
-                                    new RobustExecutor<Void, Void>(() -> {
-                                        final HadoopArchives arch = new HadoopArchives(HadoopHelper.getDefaultConf());
-                                        final ArrayList<String> harPackingOptions = new ArrayList<>();
-                                        harPackingOptions.add("-archiveName");
-                                        harPackingOptions.add(taskID + ".har");
-                                        harPackingOptions.add("-p");
-                                        harPackingOptions.add(taskRoot);
-                                        harPackingOptions.add(videoRoot);
-                                        int ret = arch.run(Arrays.copyOf(harPackingOptions.toArray(),
-                                                harPackingOptions.size(), String[].class));
-                                        if (ret < 0) {
-                                            throw new IOException("Packing tracklets for task "
-                                                    + taskID + "(" + videoID + ") failed.");
-                                        }
-                                    }).execute();
-
-                                    logger.info("Task " + taskID + "(" + videoID + ") packed!");
-
-                                    // Set the HAR path to all the tracklets from this video.
-                                    for (int i = 0; i < numTracklets; ++i) {
-                                        new RobustExecutor<Integer, Void>((VoidFunction<Integer>) idx ->
-                                                dbConnector.setTrackletSavingPath(
-                                                        new Tracklet.Identifier(videoID, idx).toString(),
-                                                        videoRoot + "/" + taskID + ".har/" + idx)).execute(i);
-                                    }
-
-                                    // Delete the original folder recursively.
-                                    new RobustExecutor<Void, Void>(() ->
-                                            new HDFSFactory().produce().delete(new Path(taskRoot), true)
-                                    ).execute();
-                                } else {
-                                    logger.info("Task " + taskID + "(" + videoID + ") need "
-                                            + (numTracklets - dirCnt + 1) + "/" + numTracklets + " more tracklets!");
-                                }
+                                info = SerializationHelper.deserialize(kv.getValue());
                             } catch (Exception e) {
                                 logger.error("On trying to pack tracklets", e);
+                                return CompletableFuture.completedFuture(null);
                             }
+                            return pack(hdfs, taskID, info._1().videoID, info._2())
+                                    .exceptionally(t -> {
+                                        logger.error("On trying to pack tracklets", t);
+                                        return null;
+                                    });
                         });
                         final long end = System.currentTimeMillis();
 
@@ -400,77 +447,103 @@ public class DataManagingApp extends SparkStreamingApp {
                 new Port("pedestrian-tracklet-saving", DataType.TRACKLET);
         private static final long serialVersionUID = 2820895755662980265L;
         private final String metadataDir;
-        private final Singleton<ByteArrayProducer> packingJobProducerSingleton;
+        private final BoundedExecutor executor;
 
         TrackletSavingStream(@Nonnull AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
 
             metadataDir = propCenter.metadataDir;
-            packingJobProducerSingleton = new Singleton<>(
-                    new ByteArrayProducerFactory(propCenter.getKafkaProducerProp(false)),
-                    ByteArrayProducer.class);
+            executor = new BoundedExecutor(NAME, propCenter);
         }
 
         /**
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
             // Save tracklets.
-            this.filter(globalStreamMap, PED_TRACKLET_SAVING_PORT)
-                    .foreachRDD(rdd -> rdd.foreachPartition(kvIter -> {
-                        synchronized (TrackletSavingStream.class) {
-                            final Logger logger = loggerSingleton.getInst();
-                            ParallelExecutor.execute(kvIter, kv -> {
-                                try {
-                                    final FileSystem hdfs = HDFSFactory.newInstance();
-                                    final UUID taskID = kv._1();
-                                    final TaskData taskData = kv._2();
-                                    final TrackletOrURL trackletOrURL = (TrackletOrURL) taskData.predecessorRes;
-                                    final Tracklet tracklet = trackletOrURL.getTracklet();
-                                    final int numTracklets = tracklet.numTracklets;
-
-                                    if (trackletOrURL.isStored()) {
-                                        // The tracklet has already been stored at HDFS.
-                                        logger.debug("Tracklet has already been stored at " + trackletOrURL.getURL()
-                                                + ". Skipping.");
-                                        return;
-                                    } else {
-                                        final String videoRoot = metadataDir + "/" + tracklet.id.videoID;
-                                        final String taskRoot = videoRoot + "/" + taskID;
-                                        final String storeDir = taskRoot + "/" + tracklet.id.serialNumber;
-                                        final Path storePath = new Path(storeDir);
-                                        new RobustExecutor<Void, Void>(() -> {
-                                            if (hdfs.exists(storePath)
-                                                    || hdfs.exists(new Path(videoRoot + "/" + taskID + ".har"))) {
-                                                logger.warn("Duplicated storing request for " + tracklet.id);
-                                            } else {
-                                                hdfs.mkdirs(new Path(storeDir));
-                                                HadoopHelper.storeTracklet(storeDir, tracklet, hdfs);
-                                            }
-                                        }).execute();
-                                    }
+            forEachPartition(globalStreamMap, PED_TRACKLET_SAVING_PORT, this::saveTracklets);
+        }
 
-                                    // Check packing.
-                                    new RobustExecutor<Void, Void>(() ->
-                                            KafkaHelper.sendWithLog(TrackletPackingThread.JOB_TOPIC,
-                                                    taskID.toString(),
-                                                    serialize(new Tuple2<>(tracklet.id, numTracklets)),
-                                                    packingJobProducerSingleton.getInst(),
-                                                    logger)
-                                    ).execute();
-                                    hdfs.close();
-                                } catch (Exception e) {
-                                    logger.error("During storing tracklets.", e);
+        @Override
+        public Map<Port, DataHandler> getHandlers() {
+            return Collections.singletonMap(PED_TRACKLET_SAVING_PORT, this::saveTracklets);
+        }
+
+        /**
+         * Store tracklets into HDFS, and notify the packing thread.
+         * The HDFS and Kafka steps of each tracklet are composed asynchronously,
+         * so no thread is held while a step waits to be retried.
+         *
+         * @param kvIter pairs of task IDs and TaskData containing tracklets.
+         * @throws Exception on failure getting the logger or the executor being interrupted.
+         */
+        private void saveTracklets(Iterator<Tuple2<UUID, TaskData>> kvIter) throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            executor.executeAsync(kvIter, kv -> {
+                final UUID taskID = kv._1();
+                final TaskData taskData = kv._2();
+                final TrackletOrURL trackletOrURL = (TrackletOrURL) taskData.predecessorRes;
+
+                if (trackletOrURL.isStored()) {
+                    // The tracklet has already been stored at HDFS.
+                    logger.debug("Tracklet has already been stored at " + trackletOrURL.getURL()
+                            + ". Skipping.");
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                final CompletableFuture<Tracklet> stored = new RobustExecutor<Void, Tracklet>(
+                        (Function0<Tracklet>) () -> {
+                            final Tracklet tracklet = trackletOrURL.getTracklet();
+                            final String videoRoot = metadataDir + "/" + tracklet.id.videoID;
+                            final String taskRoot = videoRoot + "/" + taskID;
+                            final String storeDir = taskRoot + "/" + tracklet.id.serialNumber;
+                            // The instance is cached and shared, so it is not closed here.
+                            final FileSystem hdfs = HDFSFactory.get();
+                            if (hdfs.exists(new Path(storeDir))
+                                    || hdfs.exists(new Path(videoRoot + "/" + taskID + ".har"))) {
+                                logger.warn("Duplicated storing request for " + tracklet.id);
+                            } else {
+                                if (tracklet.numTracklets >= 0) {
+                                    // Record the number of tracklets for packing jobs of tracklets not knowing it.
+                                    final Path numTrackletsPath =
+                                            new Path(taskRoot, TrackletPackingThread.NUM_TRACKLETS_FILE);
+                                    if (!hdfs.exists(numTrackletsPath)) {
+                                        HadoopHelper.storeInt(numTrackletsPath, tracklet.numTracklets, hdfs);
+                                    }
                                 }
-                            });
+                                hdfs.mkdirs(new Path(storeDir));
+                                HadoopHelper.storeTracklet(storeDir, tracklet, hdfs);
+                            }
+                            return tracklet;
                         }
-                    }));
+                ).withCircuitBreaker(CircuitBreaker.HDFS).executeAsync();
+
+                // Check packing.
+                return stored.thenCompose(tracklet -> new RobustExecutor<Void, Void>(() ->
+                        KafkaHelper.sendWithLog(TrackletPackingThread.JOB_TOPIC,
+                                taskID.toString(),
+                                serialize(new Tuple2<>(tracklet.id, tracklet.numTracklets)),
+                                getProducer(),
+                                logger)
+                ).withCircuitBreaker(CircuitBreaker.KAFKA).executeAsync()).handle((ignored, t) -> {
+                    if (t != null) {
+                        logger.error("During storing tracklets.", t);
+                        divert(PED_TRACKLET_SAVING_PORT, taskID, taskData);
+                    }
+                    return null;
+                });
+            });
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         @Override
@@ -486,47 +559,71 @@ public class DataManagingApp extends SparkStreamingApp {
                 new Port("pedestrian-attr-saving", DataType.ATTRIBUTES);
         private static final long serialVersionUID = 858443725387544606L;
         private final Singleton<GraphDatabaseConnector> dbConnSingleton;
+        private final BoundedExecutor executor;
 
         AttrSavingStream(@Nonnull AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
 
             dbConnSingleton = new Singleton<>(FakeDatabaseConnector::new, FakeDatabaseConnector.class);
+            executor = new BoundedExecutor(NAME, propCenter);
         }
 
         /**
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
             // Display the attributes.
             // TODO Modify the streaming steps from here to store the meta data.
-            this.filter(globalStreamMap, PED_ATTR_SAVING_PORT)
-                    .foreachRDD(rdd -> rdd.foreachPartition(kvIter -> {
-                        synchronized (AttrSavingStream.class) {
-                            final Logger logger = loggerSingleton.getInst();
-                            ParallelExecutor.execute(kvIter, res -> {
-                                try {
-                                    final TaskData taskData = res._2();
-                                    final Attributes attr = (Attributes) taskData.predecessorRes;
-
-                                    logger.debug("Received " + res._1() + ": " + attr);
-
-                                    new RobustExecutor<Void, Void>(() ->
-                                            dbConnSingleton.getInst().setPedestrianAttributes(attr.trackletID.toString(), attr)
-                                    ).execute();
-
-                                    logger.debug("Saved " + res._1() + ": " + attr);
-                                } catch (Exception e) {
-                                    logger.error("When decompressing attributes", e);
-                                }
-                            });
-                        }
-                    }));
+            forEachPartition(globalStreamMap, PED_ATTR_SAVING_PORT, this::saveAttributes);
+        }
+
+        @Override
+        public Map<Port, DataHandler> getHandlers() {
+            return Collections.singletonMap(PED_ATTR_SAVING_PORT, this::saveAttributes);
+        }
+
+        @Override
+        public void warmUp() throws Exception {
+            super.warmUp();
+            dbConnSingleton.warmUp();
+        }
+
+        /**
+         * Save attributes into the database.
+         *
+         * @param kvIter pairs of task IDs and TaskData containing attributes.
+         * @throws Exception on failure getting the logger or the executor being interrupted.
+         */
+        private void saveAttributes(Iterator<Tuple2<UUID, TaskData>> kvIter) throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            executor.execute(kvIter, res -> {
+                try {
+                    final TaskData taskData = res._2();
+                    final Attributes attr = (Attributes) taskData.predecessorRes;
+
+                    logger.debug("Received " + res._1() + ": " + attr);
+
+                    new RobustExecutor<Void, Void>(() ->
+                            dbConnSingleton.getInst().setPedestrianAttributes(attr.trackletID.toString(), attr)
+                    ).withCircuitBreaker(CircuitBreaker.NEO4J).execute();
+
+                    logger.debug("Saved " + res._1() + ": " + attr);
+                } catch (Exception e) {
+                    logger.error("When decompressing attributes", e);
+                    divert(PED_ATTR_SAVING_PORT, res._1(), res._2());
+                }
+            });
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         @Override
@@ -541,44 +638,62 @@ public class DataManagingApp extends SparkStreamingApp {
         public static final Port PED_IDRANK_SAVING_PORT =
                 new Port("pedestrian-idrank-saving", DataType.IDRANK);
         private static final long serialVersionUID = -6469177153696762040L;
+        private final BoundedExecutor executor;
 
         public IDRankSavingStream(@Nonnull AppPropertyCenter propCenter) throws Exception {
             super(APP_NAME, propCenter);
+            executor = new BoundedExecutor(NAME, propCenter);
         }
 
         /**
          * Add streaming actions to the global {@link TaskData} stream.
          * This global stream contains pre-deserialized TaskData messages, so as to save time.
          *
-         * @param globalStreamMap A map of streams. The key of an entry is the topic name,
-         *                        which must be one of the {@link DataType}.
-         *                        The value is a filtered stream.
+         * @param globalStreamMap A map of streams. The key of an entry is an input port
+         *                        of the streams in the application.
+         *                        The value is the stream of data destined to the port.
          */
         @Override
-        public void addToGlobalStream(Map<DataType, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
             // Display the id ranks.
             // TODO Modify the streaming steps from here to store the meta data.
-            this.filter(globalStreamMap, PED_IDRANK_SAVING_PORT)
-                    .foreachRDD(rdd -> rdd.foreachPartition(kvIter -> {
-                        synchronized (IDRankSavingStream.class) {
-                            final Logger logger = loggerSingleton.getInst();
-                            ParallelExecutor.execute(kvIter, kv -> {
-                                try {
-                                    final TaskData taskData = kv._2();
-                                    final int[] idRank = (int[]) taskData.predecessorRes;
-                                    String rankStr = "";
-                                    for (int id : idRank) {
-                                        rankStr = rankStr + id + " ";
-                                    }
-                                    logger.info("Metadata saver received: " + kv._1()
-                                            + ": Pedestrian IDRANK rank: " + rankStr);
-                                    //TODO(Ken Yu): Save IDs to database.
-                                } catch (Exception e) {
-                                    logger.error("When decompressing IDRANK", e);
-                                }
-                            });
-                        }
-                    }));
+            forEachPartition(globalStreamMap, PED_IDRANK_SAVING_PORT, this::saveIDRanks);
+        }
+
+        @Override
+        public Map<Port, DataHandler> getHandlers() {
+            return Collections.singletonMap(PED_IDRANK_SAVING_PORT, this::saveIDRanks);
+        }
+
+        /**
+         * Save ID ranks.
+         *
+         * @param kvIter pairs of task IDs and TaskData containing ID ranks.
+         * @throws Exception on failure getting the logger or the executor being interrupted.
+         */
+        private void saveIDRanks(Iterator<Tuple2<UUID, TaskData>> kvIter) throws Exception {
+            final Logger logger = loggerSingleton.getInst();
+            executor.execute(kvIter, kv -> {
+                try {
+                    final TaskData taskData = kv._2();
+                    final int[] idRank = (int[]) taskData.predecessorRes;
+                    String rankStr = "";
+                    for (int id : idRank) {
+                        rankStr = rankStr + id + " ";
+                    }
+                    logger.info("Metadata saver received: " + kv._1()
+                            + ": Pedestrian IDRANK rank: " + rankStr);
+                    //TODO(Ken Yu): Save IDs to database.
+                } catch (Exception e) {
+                    logger.error("When decompressing IDRANK", e);
+                    divert(PED_IDRANK_SAVING_PORT, kv._1(), kv._2());
+                }
+            });
+        }
+
+        @Override
+        public String getName() {
+            return NAME;
         }
 
         @Override
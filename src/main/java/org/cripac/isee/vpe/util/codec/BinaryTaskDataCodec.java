@@ -0,0 +1,472 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.alg.pedestrian.attr.Attributes;
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.util.SerializationHelper;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.TrackletOrURL;
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.ctrl.ExecutionPlanRegistry;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The BinaryTaskDataCodec class encodes {@link TaskData} with a hand-written schema-based binary format.
+ * Common results ({@link Tracklet}, {@link TrackletOrURL}, {@link Attributes}, strings and integer arrays)
+ * are written field by field, so no class descriptors are written into the messages.
+ * Other results fall back to Java serialization.
+ * <p>
+ * Bounding boxes of a tracklet are placed at the tail of the message. On encoding, patches are written straight
+ * into the output array; on decoding, patches are kept as slices of the received message
+ * (see {@link Tracklet.BoundingBox#wrapPatch(ByteBuffer)}) until they are actually used.
+ * <p>
+ * Plans registered in an {@link ExecutionPlanRegistry} are written as references (plan ID and executed nodes).
+ * <p>
+ * Every message starts with a magic byte and a version byte. Messages are written in {@link #VERSION},
+ * while messages of all the versions since {@link #MIN_VERSION} can be read, so that applications
+ * of different versions can talk to each other during a rolling upgrade. Fields missing in older versions
+ * take the values they implicitly had then. Decoders reject versions they do not know,
+ * so the format can be evolved by increasing {@link #VERSION}.
+ */
+public class BinaryTaskDataCodec implements TaskDataCodec {
+
+    private static final long serialVersionUID = 2383458960173615842L;
+
+    /**
+     * The first byte of every message. It never collides with the first byte of a Java serialization stream.
+     */
+    static final byte MAGIC = (byte) 0x56;
+    /**
+     * Current version of the format.
+     */
+    static final byte VERSION = 4;
+    /**
+     * Oldest version of the format that can still be decoded.
+     */
+    static final byte MIN_VERSION = 1;
+    /**
+     * First version placing bounding boxes at the tail of the message. Older versions write them inline.
+     */
+    private static final byte VERSION_BOXES_AT_TAIL = 2;
+    /**
+     * First version tagging the plan, which may be a reference. Older versions always write the plan inline.
+     */
+    private static final byte VERSION_PLAN_REFERENCE = 3;
+    /**
+     * First version writing the frame stride of tracklets. Tracklets of older versions have a stride of 1.
+     */
+    private static final byte VERSION_FRAME_STRIDE = 4;
+
+    static final byte PLAN_INLINE = 0;
+    static final byte PLAN_REFERENCE = 1;
+
+    static final byte RES_NULL = 0;
+    static final byte RES_STRING = 1;
+    static final byte RES_INT_ARRAY = 2;
+    static final byte RES_TRACKLET = 3;
+    static final byte RES_TRACKLET_OR_URL = 4;
+    static final byte RES_ATTRIBUTES = 5;
+    static final byte RES_SERIALIZED = 6;
+
+    /**
+     * Float fields of {@link Attributes}, sorted by name so that the order is stable across JVMs.
+     */
+    private static final Field[] ATTR_FIELDS;
+
+    static {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : Attributes.class.getFields()) {
+            if (field.getType() == float.class) {
+                fields.add(field);
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        ATTR_FIELDS = fields.toArray(new Field[fields.size()]);
+    }
+
+    @Nonnull
+    @Override
+    public byte[] encode(@Nonnull TaskData taskData) throws IOException {
+        final ByteArrayOutputStream headerStream = new ByteArrayOutputStream(256);
+        final Tracklet bulkTracklet;
+        try (DataOutputStream out = new DataOutputStream(headerStream)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            writePlan(out, taskData.executionPlan);
+            out.writeInt(taskData.destPorts.size());
+            for (ExecutionPlan.Node.Port port : taskData.destPorts.values()) {
+                out.writeInt(port.getNode().getID());
+                out.writeUTF(port.prototype.name);
+                out.writeUTF(port.prototype.inputType.name());
+            }
+            bulkTracklet = writeResult(out, taskData.predecessorRes);
+        }
+        if (bulkTracklet == null || bulkTracklet.locationSequence == null) {
+            return headerStream.toByteArray();
+        }
+
+        // Bounding boxes are written at the tail of the message, directly into an array of the exact size,
+        // so each patch is copied only once on the way to Kafka.
+        int size = headerStream.size();
+        for (Tracklet.BoundingBox box : bulkTracklet.locationSequence) {
+            size += Integer.BYTES * 5 + box.getPatchLength();
+        }
+        final byte[] bytes = new byte[size];
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        buf.put(headerStream.toByteArray());
+        for (Tracklet.BoundingBox box : bulkTracklet.locationSequence) {
+            buf.putInt(box.hasPatch() ? box.getPatchLength() : -1);
+            box.writeTo(buf);
+        }
+        assert !buf.hasRemaining();
+        return bytes;
+    }
+
+    @Nonnull
+    @Override
+    public TaskData decode(@Nonnull byte[] bytes) throws IOException, ClassNotFoundException {
+        return decode(bytes, null);
+    }
+
+    /**
+     * Decode a TaskData from bytes produced by {@link #encode(TaskData)},
+     * resolving plan references with the given registry.
+     *
+     * @param bytes    bytes representing a TaskData.
+     * @param registry registry for resolving plans referred to by ID.
+     *                 It can be null if plans are known to be carried in the messages.
+     * @return the decoded TaskData.
+     * @throws IOException            on failure decoding or on malformed data,
+     *                                or if the message refers to a plan by ID but no registry is given.
+     * @throws ClassNotFoundException on failure finding the class of some object in the TaskData.
+     */
+    @Nonnull
+    public TaskData decode(@Nonnull byte[] bytes,
+                           @Nullable ExecutionPlanRegistry registry) throws IOException, ClassNotFoundException {
+        if (!canDecode(bytes)) {
+            throw new IOException("Not a message encoded by " + getClass().getSimpleName());
+        }
+        final byte version = bytes[1];
+        if (version < MIN_VERSION || version > VERSION) {
+            throw new IOException("Unsupported TaskData format version " + version
+                    + " (supporting versions " + MIN_VERSION + " to " + VERSION + ")");
+        }
+        final ByteArrayInputStream byteStream = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+        try (DataInputStream in = new DataInputStream(byteStream)) {
+            final ExecutionPlan plan = version < VERSION_PLAN_REFERENCE
+                    ? ExecutionPlan.readFrom(in)
+                    : readPlan(in, registry);
+            final int numDestPorts = in.readInt();
+            final List<ExecutionPlan.Node.Port> destPorts = new ArrayList<>(numDestPorts);
+            for (int i = 0; i < numDestPorts; ++i) {
+                final int nodeID = in.readInt();
+                final Stream.Port prototype = new Stream.Port(in.readUTF(), DataType.valueOf(in.readUTF()));
+                final ExecutionPlan.Node node = plan.getNode(nodeID);
+                if (node == null) {
+                    throw new IOException("Destination port refers to missing node " + nodeID);
+                }
+                destPorts.add(node.createInputPort(prototype));
+            }
+            final Serializable result = readResult(in, version);
+            if (version < VERSION_BOXES_AT_TAIL) {
+                return new TaskData(destPorts, plan, result);
+            }
+
+            final Tracklet bulkTracklet = result instanceof Tracklet ? (Tracklet) result
+                    : result instanceof TrackletOrURL ? ((TrackletOrURL) result).peekTracklet()
+                    : null;
+            if (bulkTracklet != null && bulkTracklet.locationSequence != null) {
+                final int offset = bytes.length - byteStream.available();
+                readBoundingBoxes(ByteBuffer.wrap(bytes, offset, bytes.length - offset), bulkTracklet);
+            }
+            return new TaskData(destPorts, plan, result);
+        }
+    }
+
+    @Override
+    public boolean canDecode(@Nonnull byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * Write a plan. Registered plans are written as references, containing only the plan ID and
+     * the set of executed nodes. Other plans are written in full.
+     */
+    private static void writePlan(@Nonnull DataOutput out, @Nonnull ExecutionPlan plan) throws IOException {
+        final String planID = plan.getID();
+        if (planID == null) {
+            out.writeByte(PLAN_INLINE);
+            plan.writeTo(out);
+        } else {
+            out.writeByte(PLAN_REFERENCE);
+            out.writeUTF(planID);
+            final long[] executedNodes = plan.getExecutedNodes().toLongArray();
+            out.writeInt(executedNodes.length);
+            for (long word : executedNodes) {
+                out.writeLong(word);
+            }
+        }
+    }
+
+    @Nonnull
+    private static ExecutionPlan readPlan(@Nonnull DataInput in,
+                                          @Nullable ExecutionPlanRegistry registry)
+            throws IOException, ClassNotFoundException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case PLAN_INLINE:
+                return ExecutionPlan.readFrom(in);
+            case PLAN_REFERENCE: {
+                final String planID = in.readUTF();
+                final long[] executedNodes = new long[in.readInt()];
+                for (int i = 0; i < executedNodes.length; ++i) {
+                    executedNodes[i] = in.readLong();
+                }
+                if (registry == null) {
+                    throw new IOException("Cannot resolve execution plan " + planID + " without a plan registry");
+                }
+                return registry.resolve(planID, BitSet.valueOf(executedNodes));
+            }
+            default:
+                throw new IOException("Unknown execution plan tag " + tag);
+        }
+    }
+
+    /**
+     * Read the bounding boxes at the tail of a message.
+     * Patches are not copied, but refer to slices of the message.
+     */
+    private static void readBoundingBoxes(@Nonnull ByteBuffer buf, @Nonnull Tracklet tracklet) throws IOException {
+        try {
+            for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+                final int patchLength = buf.getInt();
+                final Tracklet.BoundingBox box = new Tracklet.BoundingBox();
+                box.x = buf.getInt();
+                box.y = buf.getInt();
+                box.width = buf.getInt();
+                box.height = buf.getInt();
+                if (patchLength >= 0) {
+                    final ByteBuffer slice = buf.slice();
+                    slice.limit(patchLength);
+                    box.wrapPatch(slice);
+                    buf.position(buf.position() + patchLength);
+                }
+                tracklet.locationSequence[i] = box;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Truncated bounding boxes in tracklet " + tracklet.id, e);
+        }
+    }
+
+    /**
+     * Write a result. The bounding boxes of a tracklet are not written here, but appended to the message later.
+     *
+     * @return the tracklet whose bounding boxes are to be appended, or null if there is none.
+     */
+    @Nullable
+    private static Tracklet writeResult(@Nonnull DataOutput out, @Nullable Serializable result) throws IOException {
+        if (result == null) {
+            out.writeByte(RES_NULL);
+        } else if (result instanceof String) {
+            out.writeByte(RES_STRING);
+            out.writeUTF((String) result);
+        } else if (result instanceof int[]) {
+            final int[] array = (int[]) result;
+            out.writeByte(RES_INT_ARRAY);
+            out.writeInt(array.length);
+            for (int v : array) {
+                out.writeInt(v);
+            }
+        } else if (result instanceof Tracklet) {
+            out.writeByte(RES_TRACKLET);
+            writeTracklet(out, (Tracklet) result);
+            return (Tracklet) result;
+        } else if (result instanceof TrackletOrURL) {
+            final TrackletOrURL trackletOrURL = (TrackletOrURL) result;
+            out.writeByte(RES_TRACKLET_OR_URL);
+            writeNullableString(out, trackletOrURL.getURL());
+            final Tracklet tracklet = trackletOrURL.peekTracklet();
+            out.writeBoolean(tracklet != null);
+            if (tracklet != null) {
+                writeTracklet(out, tracklet);
+            }
+            return tracklet;
+        } else if (result.getClass() == Attributes.class) {
+            out.writeByte(RES_ATTRIBUTES);
+            writeAttributes(out, (Attributes) result);
+        } else {
+            final byte[] bytes = SerializationHelper.serialize(result);
+            out.writeByte(RES_SERIALIZED);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        return null;
+    }
+
+    @Nullable
+    private static Serializable readResult(@Nonnull DataInput in, byte version)
+            throws IOException, ClassNotFoundException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case RES_NULL:
+                return null;
+            case RES_STRING:
+                return in.readUTF();
+            case RES_INT_ARRAY: {
+                final int[] array = new int[in.readInt()];
+                for (int i = 0; i < array.length; ++i) {
+                    array[i] = in.readInt();
+                }
+                return array;
+            }
+            case RES_TRACKLET:
+                return readTracklet(in, version);
+            case RES_TRACKLET_OR_URL: {
+                final String url = readNullableString(in);
+                final Tracklet tracklet = in.readBoolean() ? readTracklet(in, version) : null;
+                return new TrackletOrURL(tracklet, url);
+            }
+            case RES_ATTRIBUTES:
+                return readAttributes(in);
+            case RES_SERIALIZED: {
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return SerializationHelper.deserialize(bytes);
+            }
+            default:
+                throw new IOException("Unknown result tag " + tag);
+        }
+    }
+
+    private static void writeNullableString(@Nonnull DataOutput out, @Nullable String str) throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    @Nullable
+    private static String readNullableString(@Nonnull DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeIdentifier(@Nonnull DataOutput out, @Nullable Tracklet.Identifier id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            out.writeUTF(id.videoID);
+            out.writeInt(id.serialNumber);
+        }
+    }
+
+    @Nullable
+    private static Tracklet.Identifier readIdentifier(@Nonnull DataInput in) throws IOException {
+        return in.readBoolean() ? new Tracklet.Identifier(in.readUTF(), in.readInt()) : null;
+    }
+
+    private static void writeTracklet(@Nonnull DataOutput out, @Nonnull Tracklet tracklet) throws IOException {
+        writeIdentifier(out, tracklet.id);
+        out.writeInt(tracklet.numTracklets);
+        out.writeInt(tracklet.startFrameIndex);
+        out.writeInt(tracklet.frameStride);
+        out.writeInt(tracklet.locationSequence == null ? -1 : tracklet.locationSequence.length);
+    }
+
+    /**
+     * Read a tracklet. Since {@link #VERSION_BOXES_AT_TAIL}, its bounding boxes are not read here,
+     * but later by {@link #readBoundingBoxes(ByteBuffer, Tracklet)}.
+     */
+    @Nonnull
+    private static Tracklet readTracklet(@Nonnull DataInput in, byte version) throws IOException {
+        final Tracklet tracklet = new Tracklet();
+        tracklet.id = readIdentifier(in);
+        tracklet.numTracklets = in.readInt();
+        tracklet.startFrameIndex = in.readInt();
+        tracklet.frameStride = version < VERSION_FRAME_STRIDE ? 1 : in.readInt();
+        final int numBoxes = in.readInt();
+        tracklet.locationSequence = numBoxes < 0 ? null : new Tracklet.BoundingBox[numBoxes];
+        if (version < VERSION_BOXES_AT_TAIL && numBoxes > 0) {
+            readInlineBoundingBoxes(in, tracklet);
+        }
+        return tracklet;
+    }
+
+    /**
+     * Read bounding boxes written inline with their tracklet before {@link #VERSION_BOXES_AT_TAIL}.
+     */
+    private static void readInlineBoundingBoxes(@Nonnull DataInput in, @Nonnull Tracklet tracklet)
+            throws IOException {
+        for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+            final Tracklet.BoundingBox box = new Tracklet.BoundingBox();
+            box.x = in.readInt();
+            box.y = in.readInt();
+            box.width = in.readInt();
+            box.height = in.readInt();
+            final int patchLength = in.readInt();
+            if (patchLength >= 0) {
+                box.patchData = new byte[patchLength];
+                in.readFully(box.patchData);
+            }
+            tracklet.locationSequence[i] = box;
+        }
+    }
+
+    private static void writeAttributes(@Nonnull DataOutput out, @Nonnull Attributes attr) throws IOException {
+        writeIdentifier(out, attr.trackletID);
+        out.writeInt(ATTR_FIELDS.length);
+        try {
+            for (Field field : ATTR_FIELDS) {
+                out.writeFloat(field.getFloat(attr));
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot access attribute fields", e);
+        }
+    }
+
+    @Nonnull
+    private static Attributes readAttributes(@Nonnull DataInput in) throws IOException {
+        final Attributes attr = new Attributes();
+        attr.trackletID = readIdentifier(in);
+        final int numFields = in.readInt();
+        if (numFields != ATTR_FIELDS.length) {
+            throw new IOException("Attribute schema mismatch: got " + numFields
+                    + " fields but expecting " + ATTR_FIELDS.length + ": " + Arrays.toString(ATTR_FIELDS));
+        }
+        try {
+            for (Field field : ATTR_FIELDS) {
+                field.setFloat(attr, in.readFloat());
+            }
+        } catch (IllegalAccessException e) {
+            throw new IOException("Cannot access attribute fields", e);
+        }
+        return attr;
+    }
+}
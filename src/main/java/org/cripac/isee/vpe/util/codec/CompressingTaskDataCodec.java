@@ -0,0 +1,132 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.TaskData;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The CompressingTaskDataCodec class compresses the output of another codec,
+ * with compression settings chosen by the data type of each message.
+ * If compression does not make a message smaller, the message is sent uncompressed.
+ * <p>
+ * The sizes of messages before and after compression are counted in {@link Metrics}
+ * under "payload.[data type].raw-bytes" and "payload.[data type].sent-bytes".
+ */
+public class CompressingTaskDataCodec implements TaskDataCodec {
+
+    private static final long serialVersionUID = 5017954108264316623L;
+
+    /**
+     * The first byte of every compressed message.
+     * It never collides with the first byte of other codecs.
+     */
+    static final byte MAGIC = (byte) 0x43;
+
+    private static final int HEADER_SIZE = 2 + Integer.BYTES;
+
+    private final TaskDataCodec codec;
+    private final EnumMap<DataType, PayloadCompression> compressions;
+
+    /**
+     * Create a codec compressing the output of another codec.
+     *
+     * @param codec        the codec to compress the output of.
+     * @param compressions compression settings of each data type.
+     *                     Data types not in the map are not compressed.
+     */
+    public CompressingTaskDataCodec(@Nonnull TaskDataCodec codec,
+                                    @Nonnull Map<DataType, PayloadCompression> compressions) {
+        this.codec = codec;
+        this.compressions = compressions.isEmpty()
+                ? new EnumMap<>(DataType.class)
+                : new EnumMap<>(compressions);
+    }
+
+    @Nonnull
+    @Override
+    public byte[] encode(@Nonnull TaskData taskData) throws IOException {
+        final byte[] raw = codec.encode(taskData);
+        final PayloadCompression compression =
+                compressions.getOrDefault(taskData.outputType, PayloadCompression.NONE);
+        byte[] res = raw;
+        if (compression.isEnabled()) {
+            final byte[] compressed = compression.compress(raw);
+            if (compressed.length + HEADER_SIZE < raw.length) {
+                res = ByteBuffer.allocate(HEADER_SIZE + compressed.length)
+                        .put(MAGIC)
+                        .put((byte) compression.method.ordinal())
+                        .putInt(raw.length)
+                        .put(compressed)
+                        .array();
+            }
+        }
+        Metrics.add("payload." + taskData.outputType + ".raw-bytes", raw.length);
+        Metrics.add("payload." + taskData.outputType + ".sent-bytes", res.length);
+        return res;
+    }
+
+    @Nonnull
+    @Override
+    public TaskData decode(@Nonnull byte[] bytes) throws IOException, ClassNotFoundException {
+        return TaskDataCodecHelper.decode(bytes);
+    }
+
+    @Override
+    public boolean canDecode(@Nonnull byte[] bytes) {
+        return isCompressed(bytes);
+    }
+
+    /**
+     * Check whether a message is compressed by this codec.
+     *
+     * @param bytes a message.
+     * @return whether the message is compressed by this codec.
+     */
+    static boolean isCompressed(@Nonnull byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    /**
+     * Decompress a message produced by this codec.
+     *
+     * @param bytes a compressed message.
+     * @return the message before compression.
+     * @throws IOException on malformed data.
+     */
+    @Nonnull
+    static byte[] decompress(@Nonnull byte[] bytes) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(bytes);
+        buf.get();
+        final byte methodOrdinal = buf.get();
+        final PayloadCompression.Method[] methods = PayloadCompression.Method.values();
+        if (methodOrdinal < 0 || methodOrdinal >= methods.length) {
+            throw new IOException("Unknown compression method " + methodOrdinal);
+        }
+        final int originalLength = buf.getInt();
+        return PayloadCompression.decompress(methods[methodOrdinal],
+                bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, originalLength);
+    }
+}
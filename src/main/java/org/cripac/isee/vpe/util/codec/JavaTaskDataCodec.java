@@ -0,0 +1,57 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.util.SerializationHelper;
+import org.cripac.isee.vpe.ctrl.TaskData;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * The JavaTaskDataCodec class encodes {@link TaskData} with plain Java serialization.
+ * Its output carries no extra header, so it stays compatible with applications
+ * that directly call {@link SerializationHelper#deserialize(byte[])}.
+ */
+public class JavaTaskDataCodec implements TaskDataCodec {
+
+    private static final long serialVersionUID = -3206154585287512297L;
+
+    /**
+     * Java serialization streams always start with these two bytes.
+     */
+    private static final byte STREAM_MAGIC_HIGH = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_LOW = (byte) 0xED;
+
+    @Nonnull
+    @Override
+    public byte[] encode(@Nonnull TaskData taskData) throws IOException {
+        return SerializationHelper.serialize(taskData);
+    }
+
+    @Nonnull
+    @Override
+    public TaskData decode(@Nonnull byte[] bytes) throws IOException, ClassNotFoundException {
+        return SerializationHelper.deserialize(bytes);
+    }
+
+    @Override
+    public boolean canDecode(@Nonnull byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == STREAM_MAGIC_HIGH && bytes[1] == STREAM_MAGIC_LOW;
+    }
+}
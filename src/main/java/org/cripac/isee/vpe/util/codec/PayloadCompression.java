@@ -0,0 +1,192 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The PayloadCompression class describes how the payload of messages of one data type
+ * is compressed by the application before being handed to Kafka.
+ * Compressing in the application makes Kafka size limits apply to the compressed size.
+ */
+public class PayloadCompression implements Serializable {
+
+    private static final long serialVersionUID = -2094720339637052712L;
+
+    /**
+     * Compression methods.
+     */
+    public enum Method {
+        /**
+         * Do not compress.
+         */
+        NONE,
+        /**
+         * Compress with the DEFLATE algorithm, supporting levels from 1 (fastest) to 9 (smallest).
+         */
+        DEFLATE
+    }
+
+    /**
+     * Upper bound of the ratio of the original size to the compressed size of DEFLATE,
+     * which encodes a run of 258 bytes in no less than 2 bits.
+     */
+    static final int MAX_DEFLATE_RATIO = 1032;
+
+    /**
+     * Initial size of the buffer for decompressing, which grows as data are inflated,
+     * so that the original length in a header only allocates memory for data actually received.
+     */
+    private static final int INITIAL_INFLATE_BUFFER_SIZE = 65536;
+
+    /**
+     * Settings that disable compression.
+     */
+    public static final PayloadCompression NONE = new PayloadCompression(Method.NONE, 0);
+
+    public final Method method;
+    public final int level;
+
+    public PayloadCompression(@Nonnull Method method, int level) {
+        this.method = method;
+        this.level = level;
+    }
+
+    /**
+     * Parse compression settings from a string like "deflate:1", "deflate" or "none".
+     * If the level is not given, the default level of the method is used.
+     *
+     * @param str string representing compression settings.
+     * @return the settings parsed.
+     * @throws IllegalArgumentException on unknown method or malformed level.
+     */
+    @Nonnull
+    public static PayloadCompression parse(@Nonnull String str) {
+        final String[] parts = str.trim().split(":");
+        final Method method = Method.valueOf(parts[0].trim().toUpperCase());
+        final int level = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : Deflater.DEFAULT_COMPRESSION;
+        return new PayloadCompression(method, level);
+    }
+
+    /**
+     * @return whether these settings enable compression.
+     */
+    public boolean isEnabled() {
+        return method != Method.NONE;
+    }
+
+    /**
+     * Compress bytes according to these settings.
+     *
+     * @param bytes bytes to compress.
+     * @return compressed bytes.
+     */
+    @Nonnull
+    public byte[] compress(@Nonnull byte[] bytes) {
+        switch (method) {
+            case DEFLATE: {
+                final Deflater deflater = new Deflater(level);
+                try {
+                    deflater.setInput(bytes);
+                    deflater.finish();
+                    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(bytes.length / 2 + 64);
+                    final byte[] buf = new byte[65536];
+                    while (!deflater.finished()) {
+                        outputStream.write(buf, 0, deflater.deflate(buf));
+                    }
+                    return outputStream.toByteArray();
+                } finally {
+                    deflater.end();
+                }
+            }
+            default:
+                return bytes;
+        }
+    }
+
+    /**
+     * Decompress bytes compressed with the given method.
+     *
+     * @param method         method used for compression.
+     * @param bytes          array containing compressed bytes.
+     * @param offset         offset of the compressed bytes in the array.
+     * @param length         length of the compressed bytes.
+     * @param originalLength length of the bytes before compression, as recorded in the message.
+     *                       It is checked against the length of the compressed bytes,
+     *                       which Kafka limits to the maximum fetch size.
+     * @return decompressed bytes.
+     * @throws IOException on malformed data, or if the original length cannot be
+     *                     produced by the method from the compressed bytes.
+     */
+    @Nonnull
+    public static byte[] decompress(@Nonnull Method method,
+                                    @Nonnull byte[] bytes,
+                                    int offset,
+                                    int length,
+                                    int originalLength) throws IOException {
+        switch (method) {
+            case NONE: {
+                final byte[] res = new byte[length];
+                System.arraycopy(bytes, offset, res, 0, length);
+                return res;
+            }
+            case DEFLATE: {
+                if (originalLength < 0 || originalLength > (long) length * MAX_DEFLATE_RATIO) {
+                    throw new IOException("Invalid original length " + originalLength
+                            + " of a compressed payload of " + length + " bytes");
+                }
+                final Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(bytes, offset, length);
+                    byte[] res = new byte[Math.min(originalLength, INITIAL_INFLATE_BUFFER_SIZE)];
+                    int filled = 0;
+                    while (filled < originalLength) {
+                        if (filled == res.length) {
+                            res = Arrays.copyOf(res, (int) Math.min(originalLength, 2L * res.length));
+                        }
+                        final int n = inflater.inflate(res, filled, res.length - filled);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new IOException("Compressed payload ends after "
+                                    + filled + " of " + originalLength + " bytes");
+                        }
+                        filled += n;
+                    }
+                    return res;
+                } catch (DataFormatException e) {
+                    throw new IOException("Malformed compressed payload", e);
+                } finally {
+                    inflater.end();
+                }
+            }
+            default:
+                throw new IOException("Unsupported compression method " + method);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method == Method.NONE ? "none" : method.name().toLowerCase() + ":" + level;
+    }
+}
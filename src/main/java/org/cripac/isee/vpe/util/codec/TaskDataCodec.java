@@ -0,0 +1,63 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.vpe.ctrl.TaskData;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The TaskDataCodec interface encodes {@link TaskData} into bytes to be sent through Kafka,
+ * and decodes them back. Each codec must be able to recognize its own output,
+ * so that applications using different codecs can still decode messages from each other.
+ *
+ * @see TaskDataCodecHelper
+ */
+public interface TaskDataCodec extends Serializable {
+    /**
+     * Encode a TaskData.
+     *
+     * @param taskData the TaskData to encode.
+     * @return bytes representing the TaskData.
+     * @throws IOException on failure encoding the TaskData.
+     */
+    @Nonnull
+    byte[] encode(@Nonnull TaskData taskData) throws IOException;
+
+    /**
+     * Decode a TaskData from bytes produced by {@link #encode(TaskData)}.
+     *
+     * @param bytes bytes representing a TaskData.
+     * @return the decoded TaskData.
+     * @throws IOException            on failure decoding or on malformed data.
+     * @throws ClassNotFoundException on failure finding the class of some object in the TaskData.
+     */
+    @Nonnull
+    TaskData decode(@Nonnull byte[] bytes) throws IOException, ClassNotFoundException;
+
+    /**
+     * Check whether the bytes are likely to be produced by this codec.
+     * Only the header of the bytes is checked.
+     *
+     * @param bytes bytes representing a TaskData.
+     * @return whether this codec can decode the bytes.
+     */
+    boolean canDecode(@Nonnull byte[] bytes);
+}
@@ -0,0 +1,117 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.vpe.ctrl.ExecutionPlanRegistry;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.ctrl.TaskData;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+
+/**
+ * The TaskDataCodecHelper class selects {@link TaskDataCodec}s by name,
+ * and decodes messages without knowing which codec produced them or whether they were compressed.
+ */
+public class TaskDataCodecHelper {
+    /**
+     * Name of the codec using Java serialization.
+     */
+    public static final String JAVA = "java";
+    /**
+     * Name of the codec using the compact binary format.
+     */
+    public static final String BINARY = "binary";
+
+    private static final JavaTaskDataCodec JAVA_CODEC = new JavaTaskDataCodec();
+    private static final BinaryTaskDataCodec BINARY_CODEC = new BinaryTaskDataCodec();
+
+    /**
+     * Get a codec by its name.
+     *
+     * @param name name of the codec ({@link #JAVA} or {@link #BINARY}).
+     * @return the codec.
+     * @throws IllegalArgumentException if there is no codec with the name.
+     */
+    @Nonnull
+    public static TaskDataCodec getCodec(@Nonnull String name) {
+        switch (name.toLowerCase()) {
+            case JAVA:
+                return JAVA_CODEC;
+            case BINARY:
+                return BINARY_CODEC;
+            default:
+                throw new IllegalArgumentException("Unknown TaskData codec: " + name);
+        }
+    }
+
+    /**
+     * Get the codec configured in system properties, compressing messages if configured.
+     *
+     * @param propCenter system properties.
+     * @return the codec.
+     * @throws IllegalArgumentException if there is no codec with the configured name.
+     */
+    @Nonnull
+    public static TaskDataCodec getCodec(@Nonnull SystemPropertyCenter propCenter) {
+        final TaskDataCodec codec = getCodec(propCenter.taskDataCodec);
+        if (propCenter.payloadCompressions.values().stream().anyMatch(PayloadCompression::isEnabled)) {
+            return new CompressingTaskDataCodec(codec, propCenter.payloadCompressions);
+        }
+        return codec;
+    }
+
+    /**
+     * Decode a TaskData encoded by any known codec. The codec is detected from the header of the bytes.
+     *
+     * @param bytes bytes representing a TaskData.
+     * @return the decoded TaskData.
+     * @throws IOException            on failure decoding, or if no codec recognizes the bytes.
+     * @throws ClassNotFoundException on failure finding the class of some object in the TaskData.
+     */
+    @Nonnull
+    public static TaskData decode(@Nonnull byte[] bytes) throws IOException, ClassNotFoundException {
+        return decode(bytes, null);
+    }
+
+    /**
+     * Decode a TaskData encoded by any known codec, resolving plan references with the given registry.
+     * The codec is detected from the header of the bytes.
+     *
+     * @param bytes    bytes representing a TaskData.
+     * @param registry registry for resolving plans referred to by ID. It can be null if no plan is registered.
+     * @return the decoded TaskData.
+     * @throws IOException            on failure decoding, or if no codec recognizes the bytes.
+     * @throws ClassNotFoundException on failure finding the class of some object in the TaskData.
+     */
+    @Nonnull
+    public static TaskData decode(@Nonnull byte[] bytes,
+                                  @Nullable ExecutionPlanRegistry registry) throws IOException, ClassNotFoundException {
+        if (CompressingTaskDataCodec.isCompressed(bytes)) {
+            return decode(CompressingTaskDataCodec.decompress(bytes), registry);
+        }
+        if (BINARY_CODEC.canDecode(bytes)) {
+            return BINARY_CODEC.decode(bytes, registry);
+        }
+        if (JAVA_CODEC.canDecode(bytes)) {
+            return JAVA_CODEC.decode(bytes);
+        }
+        throw new IOException("Cannot recognize the format of a TaskData message of " + bytes.length + " bytes");
+    }
+}
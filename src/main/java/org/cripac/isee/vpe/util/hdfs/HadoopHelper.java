@@ -32,11 +32,13 @@ import org.spark_project.guava.collect.DiscreteDomain;
 import org.spark_project.guava.collect.Range;
 
 import javax.annotation.Nonnull;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.BufferedReader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.UUID;
 
 import static org.bytedeco.javacpp.opencv_core.CV_8UC3;
 import static org.bytedeco.javacpp.opencv_imgcodecs.imdecode;
@@ -222,6 +224,44 @@ public class HadoopHelper {
         return trackletInfo;
     }
 
+    /**
+     * Store an integer into a small file in the HDFS, replacing the old one if any.
+     * The file is written aside then renamed, so readers never see a partial file.
+     *
+     * @param path  the path of the file.
+     * @param value the integer to store.
+     * @param hdfs  the HDFS to store to.
+     * @throws IOException on failure writing or renaming the file.
+     */
+    public static void storeInt(@Nonnull Path path, int value, @Nonnull FileSystem hdfs) throws IOException {
+        final Path tmpPath = new Path(path.getParent(), "." + path.getName() + "." + UUID.randomUUID());
+        try (FSDataOutputStream outputStream = hdfs.create(tmpPath)) {
+            outputStream.writeInt(value);
+        }
+        hdfs.delete(path, false);
+        if (!hdfs.rename(tmpPath, path)) {
+            hdfs.delete(tmpPath, false);
+            throw new IOException("Cannot rename " + tmpPath + " to " + path);
+        }
+    }
+
+    /**
+     * Retrieve an integer stored by {@link #storeInt(Path, int, FileSystem)}.
+     *
+     * @param path         the path of the file.
+     * @param defaultValue the value to return if the file does not exist.
+     * @param hdfs         the HDFS to retrieve from.
+     * @return the integer stored, or the default value if the file does not exist.
+     * @throws IOException on failure reading the file.
+     */
+    public static int retrieveInt(@Nonnull Path path, int defaultValue, @Nonnull FileSystem hdfs) throws IOException {
+        try (FSDataInputStream inputStream = hdfs.open(path)) {
+            return inputStream.readInt();
+        } catch (FileNotFoundException e) {
+            return defaultValue;
+        }
+    }
+
     /**
      * Store a tracklet to the HDFS.
      *
@@ -255,13 +295,13 @@ public class HadoopHelper {
         ContiguousSet.create(Range.closedOpen(0, tracklet.locationSequence.length), DiscreteDomain.integers())
                 .parallelStream()
                 // Find bounding boxes that contain patch data.
-                .filter(idx -> tracklet.locationSequence[idx].patchData != null)
+                .filter(idx -> tracklet.locationSequence[idx].hasPatch())
                 .forEach(idx -> {
                     final Tracklet.BoundingBox bbox = tracklet.locationSequence[idx];
 
                     // Use JavaCV to encode the image patch
                     // into JPEG, stored in the memory.
-                    final BytePointer inputPointer = new BytePointer(bbox.patchData);
+                    final BytePointer inputPointer = new BytePointer(bbox.getPatchData());
                     final opencv_core.Mat image = new opencv_core.Mat(bbox.height, bbox.width, CV_8UC3, inputPointer);
                     final BytePointer outputPointer = new BytePointer();
                     imencode(".jpg", image, outputPointer);
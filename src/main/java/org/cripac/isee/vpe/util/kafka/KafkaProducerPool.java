@@ -0,0 +1,133 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.kafka;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The KafkaProducerPool class shares Kafka producers among all the users in a JVM.
+ * <p>
+ * Producers are pooled by their configuration, so that streams, loggers and monitors
+ * on the same executor which send with the same configuration share the buffer memory,
+ * sender thread and broker connections of a small number of producers,
+ * instead of each creating their own.
+ * The size of each pool is read from {@link #POOL_SIZE_CONFIG} in the configuration,
+ * which is removed before the configuration is passed to Kafka.
+ * Producers in a pool are handed out in a round-robin manner.
+ * <p>
+ * Pooled producers are closed on JVM shutdown. Users must not close them by themselves.
+ */
+public final class KafkaProducerPool {
+
+    /**
+     * Configuration key of the number of producers in the pool of a configuration.
+     */
+    public static final String POOL_SIZE_CONFIG = "vpe.producer.pool.size";
+
+    private static final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(KafkaProducerPool::closeAll));
+    }
+
+    private static class Pool {
+        final KafkaProducer<?, ?>[] producers;
+        final AtomicInteger cursor = new AtomicInteger();
+
+        Pool(Properties config, int size) {
+            producers = new KafkaProducer<?, ?>[size];
+            for (int i = 0; i < size; ++i) {
+                producers[i] = new KafkaProducer<>(config);
+            }
+        }
+
+        KafkaProducer<?, ?> next() {
+            if (producers.length == 1) {
+                return producers[0];
+            }
+            return producers[(cursor.getAndIncrement() & Integer.MAX_VALUE) % producers.length];
+        }
+    }
+
+    private KafkaProducerPool() {
+    }
+
+    /**
+     * Generate the key of a configuration. Configurations with the same entries have the same key.
+     *
+     * @param config configuration of producers.
+     * @return the key of the configuration.
+     */
+    static String keyOf(@Nonnull Properties config) {
+        final TreeMap<String, String> sorted = new TreeMap<>();
+        config.forEach((k, v) -> sorted.put(k.toString(), v instanceof Class
+                ? ((Class<?>) v).getName() : String.valueOf(v)));
+        return sorted.toString();
+    }
+
+    /**
+     * Get a producer of the given configuration from the pool, creating the pool if it does not exist.
+     *
+     * @param config configuration of producers.
+     *               The pool size is read from {@link #POOL_SIZE_CONFIG}, which is 1 if not present.
+     * @param <K>    type of keys.
+     * @param <V>    type of values.
+     * @return a shared producer.
+     */
+    @Nonnull
+    public static <K, V> KafkaProducer<K, V> getProducer(@Nonnull Properties config) {
+        final Pool pool = pools.computeIfAbsent(keyOf(config), key -> {
+            final Properties kafkaConfig = new Properties();
+            kafkaConfig.putAll(config);
+            final Object size = kafkaConfig.remove(POOL_SIZE_CONFIG);
+            return new Pool(kafkaConfig, size == null ? 1 : Math.max(1, Integer.parseInt(size.toString())));
+        });
+        //noinspection unchecked
+        return (KafkaProducer<K, V>) pool.next();
+    }
+
+    /**
+     * @return number of producers currently created in all the pools.
+     */
+    public static int numProducers() {
+        return pools.values().stream().mapToInt(pool -> pool.producers.length).sum();
+    }
+
+    /**
+     * Close all the pooled producers, waiting for buffered records to be sent.
+     */
+    public static void closeAll() {
+        final Iterator<Pool> iterator = pools.values().iterator();
+        while (iterator.hasNext()) {
+            final Pool pool = iterator.next();
+            iterator.remove();
+            for (KafkaProducer<?, ?> producer : pool.producers) {
+                try {
+                    producer.close();
+                } catch (Exception ignored) {
+                    // Closing on shutdown. Nothing else to do.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.kafka;
+
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.utils.Utils;
+
+import javax.annotation.Nonnull;
+import java.util.UUID;
+
+/**
+ * The class KeyAffinityPartitioner puts records of the same task and tracklet on the same partition,
+ * so that data to be joined by tracklet, like tracklets and their attributes,
+ * are co-located in the partitions with the same index in different topics.
+ * <p>
+ * Records with affinity keys generated by {@link #affinityKey(UUID, int)} are partitioned by
+ * {@link #partitionOf(UUID, int, int)}. Other records are spread evenly
+ * like {@link EvenlyDistributingPartitioner} does.
+ */
+public class KeyAffinityPartitioner extends EvenlyDistributingPartitioner {
+
+    /**
+     * Separator between the task ID and the tracklet serial number in an affinity key.
+     */
+    public static final char SEPARATOR = '/';
+
+    /**
+     * Generate a record key which makes the record partitioned by task and tracklet.
+     *
+     * @param taskID       ID of the task.
+     * @param serialNumber serial number of the tracklet.
+     * @return the record key.
+     */
+    @Nonnull
+    public static String affinityKey(@Nonnull UUID taskID, int serialNumber) {
+        return taskID.toString() + SEPARATOR + serialNumber;
+    }
+
+    /**
+     * Get the task ID from a record key, which may or may not be an affinity key.
+     *
+     * @param key key of a record.
+     * @return the task ID.
+     */
+    @Nonnull
+    public static UUID taskIDOf(@Nonnull String key) {
+        final int sepIdx = key.indexOf(SEPARATOR);
+        return UUID.fromString(sepIdx < 0 ? key : key.substring(0, sepIdx));
+    }
+
+    /**
+     * Compute the partition of data of a tracklet in a task.
+     * This is shared by Kafka and Spark, so it must not depend on the JVM.
+     *
+     * @param taskID        ID of the task.
+     * @param serialNumber  serial number of the tracklet.
+     * @param numPartitions number of partitions.
+     * @return the index of the partition.
+     */
+    public static int partitionOf(@Nonnull UUID taskID, int serialNumber, int numPartitions) {
+        return Utils.toPositive(31 * taskID.hashCode() + serialNumber) % numPartitions;
+    }
+
+    /**
+     * Compute the partition for the given record.
+     *
+     * @param topic      The topic name
+     * @param key        The key to partition on (or null if no key)
+     * @param keyBytes   serialized key to partition on (or null if no key)
+     * @param value      The value to partition on or null
+     * @param valueBytes serialized value to partition on or null
+     * @param cluster    The current cluster metadata
+     */
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        if (key instanceof String) {
+            final String keyStr = (String) key;
+            final int sepIdx = keyStr.indexOf(SEPARATOR);
+            if (sepIdx >= 0) {
+                // Use all the partitions rather than the available ones, so that the result is stable.
+                return partitionOf(UUID.fromString(keyStr.substring(0, sepIdx)),
+                        Integer.parseInt(keyStr.substring(sepIdx + 1)),
+                        cluster.partitionsForTopic(topic).size());
+            }
+        }
+        return super.partition(topic, key, keyBytes, value, valueBytes, cluster);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.cripac.isee.vpe.ctrl.Metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The class LagAwarePartitioner sends records to partitions whose consumers are less behind.
+ * <p>
+ * The lag of each partition (end offset minus the offset committed by the consumer groups)
+ * is sampled periodically in a background thread. For each record, two random partitions are compared,
+ * and the one with less estimated backlog, which is the sampled lag plus the records sent to it
+ * since sampling, is chosen.
+ * When lag information of a topic is unavailable or outdated, records are spread evenly
+ * like {@link EvenlyDistributingPartitioner} does.
+ * Records with affinity keys are always partitioned by {@link KeyAffinityPartitioner}.
+ */
+public class LagAwarePartitioner extends KeyAffinityPartitioner {
+
+    /**
+     * Configuration key of the consumer groups (comma-separated) whose lags are considered.
+     */
+    public static final String LAG_GROUPS_CONFIG = "vpe.kafka.lag.groups";
+    /**
+     * Configuration key of the interval in milliseconds of sampling lags.
+     */
+    public static final String SAMPLE_INTERVAL_CONFIG = "vpe.kafka.lag.sample.interval.ms";
+
+    private static class LagSample {
+        final long[] lags;
+        final AtomicLongArray sentSinceSample;
+        final long sampleTime;
+
+        LagSample(long[] lags, long sampleTime) {
+            this.lags = lags;
+            this.sentSinceSample = new AtomicLongArray(lags.length);
+            this.sampleTime = sampleTime;
+        }
+    }
+
+    private final Map<String, LagSample> samples = new ConcurrentHashMap<>();
+    private final Map<String, KafkaConsumer<byte[], byte[]>> consumers = new HashMap<>();
+    private ScheduledExecutorService sampler;
+    private List<String> groups = Collections.emptyList();
+    private long sampleIntervalMs = 5000;
+    private Map<String, Object> consumerConfig;
+
+    @Override
+    public void configure(Map<String, ?> configs) {
+        super.configure(configs);
+        final Object groupsConfig = configs.get(LAG_GROUPS_CONFIG);
+        if (groupsConfig != null) {
+            final List<String> groups = new ArrayList<>();
+            for (String group : groupsConfig.toString().split(",")) {
+                if (!group.trim().isEmpty()) {
+                    groups.add(group.trim());
+                }
+            }
+            this.groups = groups;
+        }
+        final Object intervalConfig = configs.get(SAMPLE_INTERVAL_CONFIG);
+        if (intervalConfig != null) {
+            sampleIntervalMs = Long.parseLong(intervalConfig.toString());
+        }
+        if (groups.isEmpty()) {
+            // Without groups to watch, this partitioner works as its parent.
+            return;
+        }
+
+        consumerConfig = new HashMap<>();
+        consumerConfig.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, configs.get(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG));
+        consumerConfig.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
+        consumerConfig.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+        consumerConfig.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ByteArrayDeserializer.class);
+
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "kafka-lag-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleWithFixedDelay(this::sampleAll, 0, sampleIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private KafkaConsumer<byte[], byte[]> getConsumer(String group) {
+        return consumers.computeIfAbsent(group, g -> {
+            final Map<String, Object> config = new HashMap<>(consumerConfig);
+            config.put(ConsumerConfig.GROUP_ID_CONFIG, g);
+            return new KafkaConsumer<>(config);
+        });
+    }
+
+    /**
+     * Sample lags of all the topics this partitioner has been asked to partition.
+     * Called in the sampler thread only.
+     */
+    private void sampleAll() {
+        for (String topic : samples.keySet()) {
+            try {
+                final KafkaConsumer<byte[], byte[]> firstConsumer = getConsumer(groups.get(0));
+                final List<PartitionInfo> partitionInfos = firstConsumer.partitionsFor(topic);
+                final List<TopicPartition> partitions = new ArrayList<>();
+                for (PartitionInfo info : partitionInfos) {
+                    partitions.add(new TopicPartition(topic, info.partition()));
+                }
+                final Map<TopicPartition, Long> endOffsets = firstConsumer.endOffsets(partitions);
+                final long[] lags = new long[partitions.size()];
+                boolean anyCommitted = false;
+                for (String group : groups) {
+                    final KafkaConsumer<byte[], byte[]> consumer = getConsumer(group);
+                    for (TopicPartition partition : partitions) {
+                        final OffsetAndMetadata committed = consumer.committed(partition);
+                        if (committed != null && partition.partition() < lags.length) {
+                            anyCommitted = true;
+                            // A partition is as far behind as its slowest consumer group.
+                            lags[partition.partition()] = Math.max(lags[partition.partition()],
+                                    endOffsets.get(partition) - committed.offset());
+                        }
+                    }
+                }
+                if (anyCommitted) {
+                    samples.put(topic, new LagSample(lags, System.currentTimeMillis()));
+                }
+            } catch (Exception e) {
+                // Lag information stays outdated, so the partitioner falls back to even distribution.
+                Metrics.increment("kafka.lag-sample.failed");
+            }
+        }
+    }
+
+    /**
+     * Compute the partition for the given record.
+     *
+     * @param topic      The topic name
+     * @param key        The key to partition on (or null if no key)
+     * @param keyBytes   serialized key to partition on (or null if no key)
+     * @param value      The value to partition on or null
+     * @param valueBytes serialized value to partition on or null
+     * @param cluster    The current cluster metadata
+     */
+    @Override
+    public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+        if (sampler == null || (key instanceof String && ((String) key).indexOf(SEPARATOR) >= 0)) {
+            return super.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        }
+
+        final LagSample sample = samples.get(topic);
+        final int numPartitions = cluster.partitionsForTopic(topic).size();
+        if (sample == null
+                || sample.lags.length != numPartitions
+                || System.currentTimeMillis() - sample.sampleTime > 3 * sampleIntervalMs) {
+            // Register the topic for sampling, and fall back to even distribution for now.
+            samples.putIfAbsent(topic, new LagSample(new long[0], 0));
+            return super.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        }
+
+        final List<PartitionInfo> available = cluster.availablePartitionsForTopic(topic);
+        if (available.isEmpty()) {
+            return super.partition(topic, key, keyBytes, value, valueBytes, cluster);
+        }
+        final int first = available.get(ThreadLocalRandom.current().nextInt(available.size())).partition();
+        final int second = available.get(ThreadLocalRandom.current().nextInt(available.size())).partition();
+        final int chosen = backlogOf(sample, first) <= backlogOf(sample, second) ? first : second;
+        sample.sentSinceSample.incrementAndGet(chosen);
+        return chosen;
+    }
+
+    private static long backlogOf(LagSample sample, int partition) {
+        return sample.lags[partition] + sample.sentSinceSample.get(partition);
+    }
+
+    @Override
+    public void close() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+            try {
+                sampler.awaitTermination(sampleIntervalMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+            consumers.values().forEach(KafkaConsumer::close);
+            consumers.clear();
+        }
+        super.close();
+    }
+}
@@ -28,11 +28,11 @@ import org.apache.spark.SparkEnv;
 import org.cripac.isee.vpe.common.RobustExecutor;
 import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
 import org.cripac.isee.vpe.util.kafka.KafkaHelper;
+import org.cripac.isee.vpe.util.kafka.KafkaProducerPool;
 
 import javax.annotation.Nonnull;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Properties;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -98,20 +98,15 @@ public class SynthesizedLogger extends Logger {
         consoleLogger = new ConsoleLogger(this.level);
 
         checkTopic(reportTopic, propCenter);
-        Properties producerProp = propCenter.getKafkaProducerProp(true);
-        producer = new KafkaProducer<>(producerProp);
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        producer.close();
-        super.finalize();
+        // The producer is shared with other loggers and monitors, so it is not closed on finalizing.
+        producer = KafkaProducerPool.getProducer(propCenter.getKafkaProducerProp(true));
     }
 
     private void send(@Nonnull String message) {
         try {
             new RobustExecutor<Void, Void>(() -> {
-                synchronized (producer) {
+                // Keep reports of this logger in order without blocking other users of the shared producer.
+                synchronized (this) {
                     Future<RecordMetadata> metadataFuture =
                             producer.send(new ProducerRecord<>(reportTopic, username, message));
                     RecordMetadata recordMetadata = metadataFuture.get(5, TimeUnit.SECONDS);
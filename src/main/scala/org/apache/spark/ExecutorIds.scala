@@ -0,0 +1,33 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.apache.spark
+
+import javax.annotation.Nonnull
+
+/**
+  * The ExecutorIds object lists executors registered to a Spark context.
+  * It lives in the package of Spark, because executor IDs are only exposed to Spark itself.
+  * The public [[SparkStatusTracker#getExecutorInfos]] only tells hosts and ports of executors,
+  * which cannot be used to kill them.
+  */
+object ExecutorIds {
+  /**
+    * @param sc a Spark context.
+    * @return IDs of the executors currently registered to the context, excluding the driver.
+    */
+  def of(@Nonnull sc: SparkContext): Seq[String] = sc.getExecutorIds()
+}
@@ -30,6 +30,7 @@ import org.apache.kafka.common.security.JaasUtils
 import org.cripac.isee.util.SerializationHelper
 import org.cripac.isee.vpe.common.DataType
 import org.cripac.isee.vpe.ctrl.TaskData
+import org.cripac.isee.vpe.util.codec.TaskDataCodec
 import org.cripac.isee.vpe.util.logging.{ConsoleLogger, Logger}
 
 import scala.language.postfixOps
@@ -143,6 +144,52 @@ object KafkaHelper {
       extLogger)
   }
 
+  /**
+    * Send a TaskData encoded by the given codec to Kafka with provided producer with no log.
+    *
+    * @param key      key of the Kafka message.
+    * @param taskData the TaskData object to send.
+    * @param producer Kafka producer used to send the message.
+    * @param codec    codec for encoding the TaskData.
+    * @tparam K type of key.
+    */
+  def send[K](
+               @Nonnull key: K,
+               @Nonnull taskData: TaskData,
+               @Nonnull producer: KafkaProducer[K, Array[Byte]],
+               @Nonnull codec: TaskDataCodec
+             ): Unit = {
+    send(taskData.outputType.name(),
+      key,
+      codec encode taskData,
+      producer)
+  }
+
+  /**
+    * Send a TaskData encoded by the given codec to Kafka with provided producer.
+    * Debug info is output to given logger.
+    *
+    * @param key       key of the Kafka message.
+    * @param taskData  the TaskData object to send.
+    * @param producer  Kafka producer used to send the message.
+    * @param codec     codec for encoding the TaskData.
+    * @param extLogger logger for outputting debug info.
+    * @tparam K type of key.
+    */
+  def sendWithLog[K](
+                      @Nonnull key: K,
+                      @Nonnull taskData: TaskData,
+                      @Nonnull producer: KafkaProducer[K, Array[Byte]],
+                      @Nonnull codec: TaskDataCodec,
+                      @Nullable extLogger: Logger
+                    ): Unit = {
+    sendWithLog(taskData.outputType.name(),
+      key,
+      codec encode taskData,
+      producer,
+      extLogger)
+  }
+
   def createZkUtils(
                      zkServers: String,
                      sessionTimeout: Int,
@@ -175,6 +222,32 @@ object KafkaHelper {
         partitions, replicas))
   }
 
+  /**
+    * Get the number of partitions of a Kafka topic.
+    *
+    * @param zkServers         Zookeeper server addresses string in format x.x.x.x:x,x.x.x.x:x,...
+    * @param sessionTimeout    timeout of Zookeeper session.
+    * @param connectionTimeout timeout of Zookeeper connection.
+    * @param topic             name of the topic.
+    * @return number of partitions of the topic, or -1 if the topic does not exist.
+    */
+  def getNumPartitions(
+                        zkServers: String,
+                        sessionTimeout: Int,
+                        connectionTimeout: Int,
+                        topic: String
+                      ): Int = {
+    val zkUtils = createZkUtils(zkServers, sessionTimeout, connectionTimeout)
+    try {
+      zkUtils.getPartitionsForTopics(Seq(topic)).get(topic) match {
+        case Some(partitions) if partitions.nonEmpty => partitions.size
+        case _ => -1
+      }
+    } finally {
+      zkUtils.close()
+    }
+  }
+
   /**
     * Create a Kafka topic.
     *
@@ -0,0 +1,221 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.cripac.isee.vpe.util.spark
+
+import java.util.function.BiConsumer
+import javax.annotation.Nonnull
+
+import org.apache.spark._
+import org.apache.spark.api.java.{JavaPairRDD, JavaRDD}
+import org.apache.spark.rdd.RDD
+import org.apache.spark.scheduler.{SparkListener, SparkListenerExecutorAdded, SparkListenerExecutorRemoved}
+import org.apache.spark.streaming.api.java.JavaStreamingContext
+import org.apache.spark.streaming.kafka010.OffsetRange
+import org.apache.spark.streaming.scheduler.{StreamingListener, StreamingListenerBatchCompleted}
+import org.cripac.isee.vpe.common.ExecutorAutoscaler
+
+import scala.reflect.ClassTag
+
+/**
+  * The class SparkHelper provides methods for manipulating RDD partitions without shuffling,
+  * and for listening to Spark Streaming events.
+  * It is written in Scala because custom RDDs and streaming listeners cannot be implemented in Java.
+  */
+object SparkHelper {
+
+  /**
+    * Merge partitions of an RDD read from Kafka by the indices of their Kafka partitions,
+    * so that partition i of the result contains partition i of all the topics.
+    * The merging is narrow, i.e., no data is shuffled.
+    *
+    * @param rdd           an RDD from a Kafka direct stream, or derived from such an RDD without changing partitions.
+    * @param offsetRanges  offset ranges of the Kafka RDD.
+    * @param numPartitions number of partitions of the Kafka topics.
+    * @tparam T type of elements.
+    * @return the merged RDD.
+    */
+  def alignByKafkaPartition[T](@Nonnull rdd: JavaRDD[T],
+                               @Nonnull offsetRanges: Array[OffsetRange],
+                               numPartitions: Int): JavaRDD[T] = {
+    require(rdd.getNumPartitions == offsetRanges.length, "The RDD is not partitioned as offset ranges")
+    val groups = Array.tabulate(numPartitions)(i =>
+      offsetRanges.indices.filter(j => offsetRanges(j).partition % numPartitions == i).toArray)
+    new JavaRDD(new KafkaAlignedRDD(rdd.rdd, groups)(rdd.classTag))(rdd.classTag)
+  }
+
+  /**
+    * Declare that an RDD is already partitioned by a partitioner, without moving any data.
+    * Spark then joins RDDs declared with equal partitioners without shuffling.
+    * It is the caller's duty to make sure every record is in the partition the partitioner computes.
+    *
+    * @param rdd         an RDD whose records are placed as the partitioner computes.
+    * @param partitioner the partitioner to declare.
+    * @tparam K type of keys.
+    * @tparam V type of values.
+    * @return an RDD with the partitioner.
+    */
+  def assumePartitioned[K, V](@Nonnull rdd: JavaPairRDD[K, V],
+                              @Nonnull partitioner: Partitioner): JavaPairRDD[K, V] = {
+    require(rdd.getNumPartitions == partitioner.numPartitions,
+      "Number of partitions of the RDD does not match that of the partitioner")
+    new JavaPairRDD(new AssumedPartitionedRDD(rdd.rdd, partitioner)(rdd.kClassTag, rdd.vClassTag))(
+      rdd.kClassTag, rdd.vClassTag)
+  }
+
+  /**
+    * Listen to completion of batches on the driver.
+    *
+    * @param jssc    the streaming context.
+    * @param handler function called with the time of each completed batch in milliseconds,
+    *                and the durations in milliseconds of its output operations by their descriptions.
+    *                Descriptions contain the stacks where the output operations are created.
+    */
+  def onBatchCompleted(@Nonnull jssc: JavaStreamingContext,
+                       @Nonnull handler: BiConsumer[java.lang.Long, java.util.Map[String, java.lang.Long]]): Unit =
+    jssc.ssc.addStreamingListener(new StreamingListener {
+      override def onBatchCompleted(batchCompleted: StreamingListenerBatchCompleted): Unit = {
+        val info = batchCompleted.batchInfo
+        val durations = new java.util.HashMap[String, java.lang.Long]()
+        info.outputOperationInfos.values.foreach(op => op.duration.foreach { duration =>
+          val previous = durations.get(op.description)
+          durations.put(op.description, if (previous == null) duration else previous + duration)
+        })
+        handler.accept(info.batchTime.milliseconds, durations)
+      }
+    })
+
+  /**
+    * Listen to completion of batches on the driver, with the failures of their output operations.
+    *
+    * @param jssc    the streaming context.
+    * @param handler function called with the time of each completed batch in milliseconds,
+    *                and the failure reasons of its output operations, which is empty if all of them succeeded.
+    */
+  def onBatchCompletedWithFailures(@Nonnull jssc: JavaStreamingContext,
+                                   @Nonnull handler: BiConsumer[java.lang.Long, java.util.List[String]]): Unit =
+    jssc.ssc.addStreamingListener(new StreamingListener {
+      override def onBatchCompleted(batchCompleted: StreamingListenerBatchCompleted): Unit = {
+        val info = batchCompleted.batchInfo
+        val failures = new java.util.ArrayList[String]()
+        info.outputOperationInfos.values.foreach(op => op.failureReason.foreach(failures.add))
+        handler.accept(info.batchTime.milliseconds, failures)
+      }
+    })
+
+  /**
+    * Listen to completion of batches on the driver, with their sizes and processing time.
+    *
+    * @param jssc    the streaming context.
+    * @param handler function called with the number of records of each completed batch,
+    *                and its processing time in milliseconds.
+    */
+  def onBatchProcessed(@Nonnull jssc: JavaStreamingContext,
+                       @Nonnull handler: BiConsumer[java.lang.Long, java.lang.Long]): Unit =
+    jssc.ssc.addStreamingListener(new StreamingListener {
+      override def onBatchCompleted(batchCompleted: StreamingListenerBatchCompleted): Unit = {
+        val info = batchCompleted.batchInfo
+        info.processingDelay.foreach(delay => handler.accept(info.numRecords, delay))
+      }
+    })
+
+  /**
+    * Create an allocator adding and removing executors of a streaming context through its cluster manager.
+    * Executors registered before are listed from the context, and later ones are tracked by listening.
+    * Executors added last are removed first.
+    *
+    * @param jssc the streaming context.
+    * @return the allocator.
+    */
+  def executorAllocator(@Nonnull jssc: JavaStreamingContext): ExecutorAutoscaler.ExecutorAllocator = {
+    val sc = jssc.sparkContext.sc
+    val executorIds = new java.util.LinkedHashSet[String]()
+    // Listen before listing, so that no executor is missed in between.
+    sc.addSparkListener(new SparkListener {
+      override def onExecutorAdded(executorAdded: SparkListenerExecutorAdded): Unit =
+        executorIds.synchronized(executorIds.add(executorAdded.executorId))
+
+      override def onExecutorRemoved(executorRemoved: SparkListenerExecutorRemoved): Unit =
+        executorIds.synchronized(executorIds.remove(executorRemoved.executorId))
+    })
+    executorIds.synchronized {
+      import scala.collection.JavaConverters._
+      val added = executorIds.asScala.toList
+      executorIds.clear()
+      (ExecutorIds.of(sc) ++ added).foreach(executorIds.add)
+    }
+    new ExecutorAutoscaler.ExecutorAllocator {
+      override def getNumExecutors: Int = executorIds.synchronized(executorIds.size)
+
+      override def requestExecutors(num: Int): Boolean = sc.requestExecutors(num)
+
+      override def killExecutors(num: Int): Boolean = {
+        val toKill = executorIds.synchronized {
+          import scala.collection.JavaConverters._
+          executorIds.asScala.toSeq.takeRight(num)
+        }
+        toKill.nonEmpty && sc.killExecutors(toKill)
+      }
+    }
+  }
+}
+
+private class KafkaAlignedPartition(override val index: Int, val parents: Array[Partition]) extends Partition
+
+/**
+  * An RDD whose partition i is the union of partitions groups(i) of its parent.
+  */
+private class KafkaAlignedRDD[T: ClassTag](@transient var prev: RDD[T], groups: Array[Array[Int]])
+  extends RDD[T](prev.context, Seq(new NarrowDependency[T](prev) {
+    override def getParents(partitionId: Int): Seq[Int] = groups(partitionId)
+  })) {
+
+  override protected def getPartitions: Array[Partition] =
+    Array.tabulate[Partition](groups.length)(i => new KafkaAlignedPartition(i, groups(i).map(prev.partitions(_))))
+
+  override def compute(split: Partition, context: TaskContext): Iterator[T] =
+    split.asInstanceOf[KafkaAlignedPartition].parents.iterator
+      .flatMap(parent => firstParent[T].iterator(parent, context))
+
+  override protected def getPreferredLocations(split: Partition): Seq[String] =
+    split.asInstanceOf[KafkaAlignedPartition].parents.headOption
+      .map(parent => prev.preferredLocations(parent))
+      .getOrElse(Nil)
+
+  override def clearDependencies(): Unit = {
+    super.clearDependencies()
+    prev = null
+  }
+}
+
+/**
+  * An RDD identical to its parent but declaring a partitioner.
+  */
+private class AssumedPartitionedRDD[K: ClassTag, V: ClassTag](@transient var prev: RDD[(K, V)], part: Partitioner)
+  extends RDD[(K, V)](prev) {
+
+  override val partitioner: Option[Partitioner] = Some(part)
+
+  override protected def getPartitions: Array[Partition] = firstParent[(K, V)].partitions
+
+  override def compute(split: Partition, context: TaskContext): Iterator[(K, V)] =
+    firstParent[(K, V)].iterator(split, context)
+
+  override def clearDependencies(): Unit = {
+    super.clearDependencies()
+    prev = null
+  }
+}
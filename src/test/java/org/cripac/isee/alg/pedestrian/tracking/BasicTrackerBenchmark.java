@@ -0,0 +1,112 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.alg.pedestrian.tracking;
+
+import org.bytedeco.javacpp.opencv_core;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.OpenCVFrameConverter;
+
+import java.io.FileInputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.bytedeco.javacpp.avutil.AV_LOG_QUIET;
+import static org.bytedeco.javacpp.avutil.av_log_set_level;
+
+/**
+ * Measure frames per second and garbage produced when handing decoded frames to the native tracker,
+ * by copying each frame into a new byte array through a new Mat converter as before,
+ * and by {@link BasicTracker.FrameBuffer}. The tracker itself is not run, so the native tracker library
+ * is not needed.
+ * <p>
+ * Run with the path of a video as the only argument, or without arguments to use the test video.
+ */
+public class BasicTrackerBenchmark {
+
+    private interface HandOff {
+        long handOff(Frame frame);
+    }
+
+    private static void run(String name, String videoPath, HandOff handOff) throws Exception {
+        final com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(new FileInputStream(videoPath));
+        grabber.start();
+
+        long gcCount = 0;
+        long gcMs = 0;
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount -= gcBean.getCollectionCount();
+            gcMs -= gcBean.getCollectionTime();
+        }
+        final long threadID = Thread.currentThread().getId();
+        long allocated = -threadBean.getThreadAllocatedBytes(threadID);
+        long decodeNs = 0;
+        long handOffNs = 0;
+        long checksum = 0;
+        int numFrames = 0;
+        while (true) {
+            final long decodeStart = System.nanoTime();
+            final Frame frame = grabber.grabImage();
+            final long handOffStart = System.nanoTime();
+            decodeNs += handOffStart - decodeStart;
+            if (frame == null) {
+                break;
+            }
+            checksum += handOff.handOff(frame);
+            handOffNs += System.nanoTime() - handOffStart;
+            ++numFrames;
+        }
+        allocated += threadBean.getThreadAllocatedBytes(threadID);
+        for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += gcBean.getCollectionCount();
+            gcMs += gcBean.getCollectionTime();
+        }
+        grabber.stop();
+
+        System.out.println(String.format("%-12s frames=%d fps=%.1f hand-off=%.3fms/frame allocated=%dKB/frame"
+                        + " gc=%d (%dms) checksum=%d",
+                name, numFrames, numFrames * 1e9 / (decodeNs + handOffNs), handOffNs / 1e6 / numFrames,
+                allocated / 1024 / numFrames, gcCount, gcMs, checksum));
+    }
+
+    public static void main(String[] args) throws Exception {
+        final String videoPath = args.length > 0 ? args[0] : "src/test/resources/20131220184349-20131220184937.h264";
+        av_log_set_level(AV_LOG_QUIET);
+
+        final HandOff copying = frame -> {
+            final byte[] buf = new byte[frame.imageHeight * frame.imageWidth * frame.imageChannels];
+            final opencv_core.Mat cvFrame = new OpenCVFrameConverter.ToMat().convert(frame);
+            cvFrame.data().get(buf);
+            return buf[buf.length / 2];
+        };
+        final BasicTracker.FrameBuffer frameBuffer = new BasicTracker.FrameBuffer();
+        final HandOff direct = frame -> {
+            final ByteBuffer buf = frameBuffer.wrap(frame);
+            return buf.get(buf.capacity() / 2);
+        };
+
+        // The first round warms up the JIT and the decoder.
+        for (int round = 0; round < 2; ++round) {
+            run("copying", videoPath, copying);
+            run("direct", videoPath, direct);
+        }
+    }
+}
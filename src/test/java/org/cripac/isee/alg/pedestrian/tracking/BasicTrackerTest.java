@@ -67,4 +67,30 @@ public class BasicTrackerTest {
         Assert.assertEquals(3565, tracklets[1].startFrameIndex);
         Assert.assertEquals(4, tracklets[1].locationSequence.length);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void trackPipelined() throws Exception {
+        System.out.println("Performing pipelined tracking test...");
+
+        InputStream videoStream = new FileInputStream("src/test/resources/20131220184349-20131220184937.h264");
+        final BasicTracker.DecodingOptions options = new BasicTracker.DecodingOptions();
+        options.pipelineDepth = 4;
+        BasicTracker tracker = new BasicTracker(
+                IOUtils.toByteArray(new FileInputStream(
+                        "conf/" + PedestrianTrackingApp.APP_NAME + "/isee-basic/CAM01_0.conf")),
+                options,
+                new ConsoleLogger(Level.DEBUG));
+
+        long startTime = System.currentTimeMillis();
+        Tracklet[] tracklets = tracker.track(videoStream);
+        System.out.println("Tracked " + tracklets.length + " pedestrians in "
+                + (System.currentTimeMillis() - startTime) + "ms!");
+
+        // Results should be identical to tracking without pipelining.
+        Assert.assertEquals(2, tracklets.length);
+        Assert.assertEquals(3495, tracklets[0].startFrameIndex);
+        Assert.assertEquals(69, tracklets[0].locationSequence.length);
+        Assert.assertEquals(3565, tracklets[1].startFrameIndex);
+        Assert.assertEquals(4, tracklets[1].locationSequence.length);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.alg.pedestrian.tracking;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrackletStitcherTest {
+
+    /**
+     * Create a tracklet of a pedestrian walking right by one pixel per frame.
+     */
+    private static Tracklet walking(int startFrame, int endFrame, int y, int stride) {
+        final Tracklet tracklet = new Tracklet();
+        tracklet.startFrameIndex = startFrame;
+        tracklet.frameStride = stride;
+        tracklet.locationSequence = new Tracklet.BoundingBox[(endFrame - startFrame) / stride + 1];
+        for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+            final Tracklet.BoundingBox box = new Tracklet.BoundingBox();
+            box.x = startFrame + i * stride;
+            box.y = y;
+            box.width = 40;
+            box.height = 100;
+            tracklet.locationSequence[i] = box;
+        }
+        return tracklet;
+    }
+
+    @Test
+    public void joinsAcrossSegments() {
+        // Segments of frames [0, 110) and [100, 210).
+        final Tracklet[] tracklets = new TrackletStitcher().stitch(Arrays.asList(
+                new Tracklet[]{walking(50, 109, 0, 1), walking(10, 30, 300, 1)},
+                new Tracklet[]{walking(180, 209, 300, 1), walking(100, 150, 0, 1)}));
+
+        assertEquals(3, tracklets.length);
+        assertEquals(10, tracklets[0].startFrameIndex);
+        assertEquals(50, tracklets[1].startFrameIndex);
+        assertEquals(101, tracklets[1].locationSequence.length);
+        assertEquals(150, tracklets[1].locationSequence[100].x);
+        assertEquals(180, tracklets[2].startFrameIndex);
+        for (int i = 0; i < tracklets.length; ++i) {
+            assertEquals(i, tracklets[i].id.serialNumber);
+            assertEquals(3, tracklets[i].numTracklets);
+        }
+    }
+
+    @Test
+    public void keepsDistantTrackletsApart() {
+        final Tracklet[] tracklets = new TrackletStitcher().stitch(Arrays.asList(
+                new Tracklet[]{walking(50, 109, 0, 1)},
+                new Tracklet[]{walking(100, 150, 200, 1)}));
+        assertEquals(2, tracklets.length);
+    }
+
+    @Test
+    public void chainsSegmentsWithStride() {
+        final Tracklet[] tracklets = new TrackletStitcher().stitch(Arrays.asList(
+                new Tracklet[]{walking(0, 108, 0, 4)},
+                new Tracklet[]{walking(100, 208, 0, 4)},
+                new Tracklet[]{walking(200, 260, 0, 4)}));
+        assertEquals(1, tracklets.length);
+        assertEquals(0, tracklets[0].startFrameIndex);
+        assertEquals(66, tracklets[0].locationSequence.length);
+        assertEquals(260, tracklets[0].locationSequence[65].x);
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cripac.isee.vpe.alg.pedestrian.tracking;
+
+import org.apache.log4j.Level;
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.PedestrianTrackingApp.HDFSVideoTrackingStream;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.PedestrianTrackingApp.HDFSVideoTrackingStream.VideoSegment;
+import org.cripac.isee.vpe.common.Stream;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.ctrl.TaskData.ExecutionPlan;
+import org.cripac.isee.vpe.data.DataManagingApp;
+import org.cripac.isee.vpe.util.codec.TaskDataCodecHelper;
+import org.cripac.isee.vpe.util.logging.ConsoleLogger;
+import org.cripac.isee.vpe.util.logging.Logger;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.Serializable;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class PedestrianTrackingAppTest {
+
+    private static final String CONF_FILE = "isee-basic/CAM01_0.conf";
+    private static final byte[] CONF_BYTES = "tracking configuration".getBytes();
+
+    @Rule
+    public TemporaryFolder metadataDir = new TemporaryFolder();
+
+    private final Logger logger = new ConsoleLogger(Level.INFO);
+    private TestTrackingStream stream;
+
+    /**
+     * A tracking stream whose tracker finds some tracklets at the start of each segment,
+     * and which records the data output and diverted instead of sending them to Kafka.
+     * When tracking whole videos, all but the last tracklet are passed as finished before the end.
+     */
+    private static class TestTrackingStream extends HDFSVideoTrackingStream {
+        private static final long serialVersionUID = 5140583917240396212L;
+
+        final List<TaskData> outputs = Collections.synchronizedList(new ArrayList<>());
+        final List<TaskData> diverted = Collections.synchronizedList(new ArrayList<>());
+        int numTracklets = 1;
+        int failAt = Integer.MAX_VALUE;
+
+        TestTrackingStream(PedestrianTrackingApp.AppPropertyCenter propCenter) throws Exception {
+            super(propCenter);
+        }
+
+        @Override
+        byte[] getConf(ExecutionPlan.Node curNode) {
+            if (!CONF_FILE.equals(curNode.getExecData())) {
+                throw new IllegalArgumentException("Tracking configuration file is not specified for this node!");
+            }
+            return CONF_BYTES;
+        }
+
+        @Override
+        Tracklet[] track(TaskData taskData, byte[] confBytes, int startFrame, int numFrames,
+                         @Nullable Consumer<Tracklet> onFinished, Logger logger) {
+            assertArrayEquals(CONF_BYTES, confBytes);
+            final List<Tracklet> tracklets = new ArrayList<>();
+            for (int serial = 0; serial < numTracklets; ++serial) {
+                if (serial == failAt) {
+                    throw new IllegalStateException("Tracker failed before finishing tracklet " + serial);
+                }
+                final Tracklet tracklet = new Tracklet();
+                tracklet.startFrameIndex = startFrame;
+                tracklet.locationSequence = new Tracklet.BoundingBox[10];
+                for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+                    final Tracklet.BoundingBox box = new Tracklet.BoundingBox();
+                    box.x = startFrame + serial;
+                    box.width = 40;
+                    box.height = 100;
+                    tracklet.locationSequence[i] = box;
+                }
+                tracklet.id.serialNumber = serial;
+                tracklet.numTracklets = numTracklets;
+                if (onFinished != null && serial < numTracklets - 1) {
+                    onFinished.accept(tracklet);
+                } else {
+                    tracklets.add(tracklet);
+                }
+            }
+            return tracklets.toArray(new Tracklet[0]);
+        }
+
+        @Override
+        protected void output(Collection<ExecutionPlan.Node.Port> outputPorts,
+                              ExecutionPlan executionPlan,
+                              Serializable result,
+                              UUID taskID) throws Exception {
+            // Encode the output as if sending it, to check the plan can be carried on.
+            outputs.add(TaskDataCodecHelper.decode(TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY)
+                    .encode(new TaskData(outputPorts, executionPlan, result))));
+        }
+
+        @Override
+        protected void divert(@Nonnull Stream.Port port, @Nonnull UUID taskID, @Nonnull TaskData taskData) {
+            diverted.add(taskData);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final PedestrianTrackingApp.AppPropertyCenter propCenter = new PedestrianTrackingApp.AppPropertyCenter(
+                new String[]{"--system-property-file", "conf/system.properties"});
+        propCenter.metadataDir = metadataDir.getRoot().getPath();
+        propCenter.segmentFrames = 100;
+        propCenter.segmentOverlapFrames = 20;
+        propCenter.decodingOptions.frameStride = 1;
+        stream = new TestTrackingStream(propCenter);
+    }
+
+    /**
+     * Create a request of tracking a video and saving its tracklets, as sent by the message handling application.
+     */
+    private static TaskData createTaskData() throws Exception {
+        final ExecutionPlan plan = new ExecutionPlan();
+        final ExecutionPlan.Node trackingNode = plan.addNode(HDFSVideoTrackingStream.OUTPUT_TYPE, CONF_FILE);
+        final ExecutionPlan.Node trackletSavingNode =
+                plan.addNode(DataManagingApp.TrackletSavingStream.OUTPUT_TYPE);
+        trackingNode.outputTo(trackletSavingNode.createInputPort(
+                DataManagingApp.TrackletSavingStream.PED_TRACKLET_SAVING_PORT));
+        final TaskData taskData = new TaskData(trackingNode.createInputPort(HDFSVideoTrackingStream.VIDEO_URL_PORT),
+                plan, "hdfs:///videos/CAM01_0.mp4");
+        return TaskDataCodecHelper.decode(TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY).encode(taskData));
+    }
+
+    private List<Integer> outputSerialNumbers() {
+        final List<Integer> serialNumbers = new ArrayList<>();
+        for (TaskData output : stream.outputs) {
+            serialNumbers.add(((TrackletOrURL) output.predecessorRes).getTracklet().id.serialNumber);
+        }
+        return serialNumbers;
+    }
+
+    private static void assertOutputForSaving(TaskData output) {
+        assertTrue(output.destPorts.containsKey(DataManagingApp.TrackletSavingStream.PED_TRACKLET_SAVING_PORT));
+        assertEquals("CAM01_0", ((TrackletOrURL) output.predecessorRes).getTracklet().id.videoID);
+    }
+
+    /**
+     * Check the tracking node of the data is not yet executed and still carries its configuration and output ports,
+     * so that the data can be processed again.
+     */
+    private static void assertUntouched(TaskData taskData) {
+        final ExecutionPlan.Node trackingNode = taskData.getDestNode(HDFSVideoTrackingStream.VIDEO_URL_PORT);
+        assertNotNull(trackingNode);
+        assertFalse(trackingNode.isExecuted());
+        assertEquals(CONF_FILE, trackingNode.getExecData());
+        assertEquals(1, trackingNode.getOutputPorts().size());
+    }
+
+    @Test
+    public void outputsTrackletsOfWholeVideos() throws Exception {
+        final TaskData taskData = createTaskData();
+        stream.trackVideo(UUID.randomUUID(), taskData, logger);
+
+        assertUntouched(taskData);
+        assertTrue(stream.diverted.isEmpty());
+        assertEquals(1, stream.outputs.size());
+        assertOutputForSaving(stream.outputs.get(0));
+    }
+
+    @Test
+    public void outputsTrackletsOfSegments() throws Exception {
+        final List<VideoSegment> segments = stream.split(UUID.randomUUID(), createTaskData(), 250);
+        assertEquals(3, segments.size());
+
+        stream.trackSegments(segments, logger);
+        for (VideoSegment segment : segments) {
+            assertFalse(segment.failed);
+        }
+        stream.stitchAndOutput(segments, logger);
+
+        assertTrue(stream.diverted.isEmpty());
+        assertEquals(3, stream.outputs.size());
+        stream.outputs.forEach(PedestrianTrackingAppTest::assertOutputForSaving);
+    }
+
+    @Test
+    public void divertsUntouchedDataOfWholeVideos() throws Exception {
+        final UUID taskID = UUID.randomUUID();
+        stream.failAt = 0;
+        stream.trackVideo(taskID, createTaskData(), logger);
+
+        assertTrue(stream.outputs.isEmpty());
+        assertEquals(1, stream.diverted.size());
+        assertUntouched(stream.diverted.get(0));
+
+        // The diverted data can be replayed.
+        stream.failAt = Integer.MAX_VALUE;
+        stream.trackVideo(taskID, stream.diverted.get(0), logger);
+        assertEquals(1, stream.outputs.size());
+        assertOutputForSaving(stream.outputs.get(0));
+    }
+
+    @Test
+    public void divertsUntouchedDataOfSegments() throws Exception {
+        final List<VideoSegment> segments = stream.split(UUID.randomUUID(), createTaskData(), 250);
+        stream.failAt = 0;
+        stream.trackSegments(segments, logger);
+        stream.stitchAndOutput(segments, logger);
+
+        assertTrue(stream.outputs.isEmpty());
+        assertEquals(1, stream.diverted.size());
+        assertUntouched(stream.diverted.get(0));
+    }
+
+    @Test
+    public void skipsTrackletsOutputBeforeOnReplay() throws Exception {
+        final UUID taskID = UUID.randomUUID();
+        final File numOutputFile = new File(metadataDir.getRoot(), "CAM01_0/" + taskID + "/_num-output");
+        stream.numTracklets = 5;
+        stream.failAt = 3;
+        stream.trackVideo(taskID, createTaskData(), logger);
+
+        assertEquals(Arrays.asList(0, 1, 2), outputSerialNumbers());
+        assertEquals(1, stream.diverted.size());
+        assertUntouched(stream.diverted.get(0));
+        assertTrue(numOutputFile.exists());
+
+        // A replay failing again only outputs the tracklets not output before.
+        stream.failAt = 4;
+        stream.trackVideo(taskID, stream.diverted.get(0), logger);
+        assertEquals(Arrays.asList(0, 1, 2, 3), outputSerialNumbers());
+        assertEquals(2, stream.diverted.size());
+        assertUntouched(stream.diverted.get(1));
+
+        // A successful replay outputs the rest and removes the record.
+        stream.failAt = Integer.MAX_VALUE;
+        stream.trackVideo(taskID, stream.diverted.get(1), logger);
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4), outputSerialNumbers());
+        stream.outputs.forEach(PedestrianTrackingAppTest::assertOutputForSaving);
+        assertFalse(numOutputFile.exists());
+    }
+}
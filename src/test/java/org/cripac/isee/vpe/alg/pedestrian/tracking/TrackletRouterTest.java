@@ -0,0 +1,64 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.cripac.isee.vpe.alg.pedestrian.tracking;
+
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.util.codec.PayloadCompression;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrackletRouterTest {
+
+    /**
+     * Create a tracklet of 10 boxes of 100x100 pixels, whose patches are uniform or random.
+     */
+    private static Tracklet createTracklet(boolean compressible) {
+        final Random random = new Random(0);
+        final Tracklet tracklet = new Tracklet();
+        tracklet.locationSequence = new Tracklet.BoundingBox[10];
+        for (int i = 0; i < tracklet.locationSequence.length; ++i) {
+            final Tracklet.BoundingBox box = new Tracklet.BoundingBox();
+            box.width = 100;
+            box.height = 100;
+            box.patchData = new byte[box.width * box.height * 3];
+            if (!compressible) {
+                random.nextBytes(box.patchData);
+            }
+            tracklet.locationSequence[i] = box;
+        }
+        return tracklet;
+    }
+
+    @Test
+    public void routesByCompressedSize() {
+        final Tracklet compressible = createTracklet(true);
+        final Tracklet incompressible = createTracklet(false);
+        final long maxInlineSize = TrackletRouter.estimateEncodedSize(compressible) / 2;
+
+        final TrackletRouter rawRouter = new TrackletRouter(maxInlineSize);
+        assertEquals(TrackletRouter.Route.HDFS, rawRouter.route(compressible));
+
+        final TrackletRouter router = new TrackletRouter(maxInlineSize, PayloadCompression.parse("deflate:1"));
+        assertEquals(TrackletRouter.Route.INLINE, router.route(compressible));
+        assertEquals(TrackletRouter.Route.HDFS, router.route(incompressible));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        final String resource = "test-open";
+        final AtomicInteger calls = new AtomicInteger();
+        final RobustExecutor<Void, Void> executor = new RobustExecutor<Void, Void>((RobustExecutor.VoidFunction0) () -> {
+            calls.incrementAndGet();
+            throw new IOException("down");
+        }).withRetryPolicy(RetryPolicy.fixed(0, 0)).withCircuitBreaker(resource);
+
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; ++i) {
+            try {
+                executor.execute();
+                fail();
+            } catch (IOException e) {
+                assertFalse(e instanceof CircuitBreaker.OpenException);
+            }
+        }
+        assertTrue(CircuitBreaker.of(resource).isOpen());
+
+        try {
+            executor.execute();
+            fail();
+        } catch (CircuitBreaker.OpenException ignored) {
+        }
+        assertEquals(CircuitBreaker.FAILURE_THRESHOLD, calls.get());
+        assertEquals(1, Metrics.get("circuit." + resource + ".opened"));
+        assertEquals(1, Metrics.get("circuit." + resource + ".rejected"));
+    }
+
+    @Test
+    public void retriesWithinBudget() throws Exception {
+        final String resource = "test-budget";
+        final AtomicInteger calls = new AtomicInteger();
+        final RobustExecutor<Void, Void> executor = new RobustExecutor<Void, Void>(() -> {
+            if (calls.incrementAndGet() % 2 == 1) {
+                throw new IOException("hiccup");
+            }
+        }).withRetryPolicy(RetryPolicy.fixed(1, 0)).withCircuitBreaker(resource);
+
+        final int numTries = (int) CircuitBreaker.MAX_RETRY_TOKENS + 5;
+        int numFailed = 0;
+        for (int i = 0; i < numTries; ++i) {
+            calls.set(0);
+            try {
+                executor.execute();
+            } catch (IOException e) {
+                ++numFailed;
+            }
+        }
+        // Each success earns a fraction of a retry, so the budget runs out after the initial tokens.
+        assertTrue(numFailed > 0);
+        assertEquals(numFailed, Metrics.get("retry." + resource + ".budget-exhausted"));
+        assertFalse(CircuitBreaker.of(resource).isOpen());
+    }
+
+    @Test
+    public void backoffIsJitteredAndBounded() {
+        final RetryPolicy policy = RetryPolicy.backoff(3, 100, 300);
+        for (int i = 0; i < 100; ++i) {
+            final long first = policy.delayMs(0);
+            assertTrue(first >= 50 && first <= 100);
+            final long third = policy.delayMs(2);
+            assertTrue(third >= 150 && third <= 300);
+        }
+        assertTrue(policy.delayMs(3) < 0);
+    }
+}
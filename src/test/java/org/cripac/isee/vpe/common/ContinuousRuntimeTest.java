@@ -0,0 +1,181 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.log4j.Level;
+import org.apache.log4j.PropertyConfigurator;
+import org.cripac.isee.util.ResourceManager;
+import org.cripac.isee.vpe.alg.pedestrian.attr.PedestrianAttrRecogApp;
+import org.cripac.isee.vpe.alg.pedestrian.reid.PedestrianReIDUsingAttrApp;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.PedestrianTrackingApp;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.TrackletOrURL;
+import org.cripac.isee.vpe.ctrl.Metrics;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.debug.FakePedestrianTracker;
+import org.cripac.isee.vpe.util.kafka.KeyAffinityPartitioner;
+import org.cripac.isee.vpe.util.logging.ConsoleLogger;
+
+import java.util.*;
+
+import static org.cripac.isee.vpe.util.kafka.KafkaHelper.sendWithLog;
+
+/**
+ * Measure end-to-end latency of attribute recognition and ReID in continuous mode against a local Kafka.
+ * Tracklets are sent as if by the tracking application, and the time each task spends in each hop
+ * is computed from timestamps of the records it produces.
+ * <p>
+ * Run with the same arguments as the applications, and optionally a number of tracklets
+ * as the last argument.
+ */
+public class ContinuousRuntimeTest {
+
+    private static final Stream.Port TEST_IDRANK_RECV_PORT =
+            new Stream.Port("test-idrank-recv", DataType.IDRANK);
+
+    private static class Hops {
+        long sent = -1;
+        long attrProduced = -1;
+        long idRankProduced = -1;
+    }
+
+    private static long percentile(List<Long> values, double percentile) {
+        if (values.isEmpty()) {
+            return -1;
+        }
+        final List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(Math.max(0, (int) Math.ceil(percentile / 100 * sorted.size()) - 1));
+    }
+
+    private static void report(ConsoleLogger logger, String hop, List<Long> latencies) {
+        logger.info(String.format("%-24s n=%d p50=%dms p99=%dms max=%dms", hop, latencies.size(),
+                percentile(latencies, 50), percentile(latencies, 99), percentile(latencies, 100)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        PropertyConfigurator.configure(ResourceManager.getResource("/conf/log4j_local.properties").getPath());
+        final ConsoleLogger logger = new ConsoleLogger(Level.INFO);
+
+        int numTracklets = 100;
+        if (args.length % 2 == 1) {
+            numTracklets = Integer.parseInt(args[args.length - 1]);
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        if (args.length == 0) {
+            args = new String[]{"--system-property-file", "conf/system.properties"};
+        }
+
+        final PedestrianAttrRecogApp.AppPropertyCenter attrPropCenter =
+                new PedestrianAttrRecogApp.AppPropertyCenter(args);
+        attrPropCenter.runtime = SparkStreamingApp.CONTINUOUS_RUNTIME;
+        final SystemPropertyCenter reidPropCenter = new SystemPropertyCenter(args);
+        reidPropCenter.runtime = SparkStreamingApp.CONTINUOUS_RUNTIME;
+
+        final SparkStreamingApp attrApp = new PedestrianAttrRecogApp(attrPropCenter);
+        final SparkStreamingApp reidApp = new PedestrianReIDUsingAttrApp(reidPropCenter);
+        attrApp.initialize();
+        reidApp.initialize();
+        attrApp.start();
+        reidApp.start();
+
+        final KafkaConsumer<String, byte[]> consumer = new KafkaConsumer<>(
+                reidPropCenter.getKafkaConsumerProp(UUID.randomUUID().toString(), false));
+        consumer.subscribe(Arrays.asList(DataType.ATTRIBUTES.name(), DataType.IDRANK.name()));
+        // Join the group before sending, so that no result is missed.
+        consumer.poll(1000);
+
+        final KafkaProducer<String, byte[]> producer =
+                new KafkaProducer<>(reidPropCenter.getKafkaProducerProp(false));
+        final Map<UUID, Hops> hops = new HashMap<>();
+        final TrackletOrURL tracklet = new TrackletOrURL(new FakePedestrianTracker().track(null)[0]);
+        for (int i = 0; i < numTracklets; ++i) {
+            final TaskData.ExecutionPlan plan = new TaskData.ExecutionPlan();
+            final TaskData.ExecutionPlan.Node trackingNode =
+                    plan.addNode(PedestrianTrackingApp.HDFSVideoTrackingStream.OUTPUT_TYPE);
+            final TaskData.ExecutionPlan.Node recogNode =
+                    plan.addNode(PedestrianAttrRecogApp.RecogStream.OUTPUT_TYPE);
+            final TaskData.ExecutionPlan.Node reidNode =
+                    plan.addNode(PedestrianReIDUsingAttrApp.ReIDStream.OUTPUT_TYPE);
+            final TaskData.ExecutionPlan.Node recvNode = plan.addNode(DataType.NONE);
+            trackingNode.outputTo(recogNode.createInputPort(PedestrianAttrRecogApp.RecogStream.TRACKLET_PORT));
+            trackingNode.outputTo(reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.TRACKLET_PORT));
+            recogNode.outputTo(reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.ATTR_PORT));
+            reidNode.outputTo(recvNode.createInputPort(TEST_IDRANK_RECV_PORT));
+            // Marking the node executed clears its output ports.
+            final List<TaskData.ExecutionPlan.Node.Port> outputPorts = trackingNode.getOutputPorts();
+            trackingNode.markExecuted();
+
+            final UUID taskID = UUID.randomUUID();
+            final Hops taskHops = new Hops();
+            taskHops.sent = System.currentTimeMillis();
+            hops.put(taskID, taskHops);
+            sendWithLog(taskID.toString(), new TaskData(outputPorts, plan, tracklet),
+                    producer, null);
+        }
+        producer.flush();
+
+        int numDone = 0;
+        final long deadline = System.currentTimeMillis() + 60000;
+        while (numDone < numTracklets && System.currentTimeMillis() < deadline) {
+            for (ConsumerRecord<String, byte[]> rec : consumer.poll(100)) {
+                final Hops taskHops = hops.get(KeyAffinityPartitioner.taskIDOf(rec.key()));
+                if (taskHops == null) {
+                    continue;
+                }
+                if (DataType.valueOf(rec.topic()) == DataType.ATTRIBUTES) {
+                    taskHops.attrProduced = rec.timestamp();
+                } else if (taskHops.idRankProduced < 0) {
+                    taskHops.idRankProduced = rec.timestamp();
+                    ++numDone;
+                }
+            }
+        }
+        consumer.close();
+        producer.close();
+        attrApp.stop();
+        reidApp.stop();
+
+        final List<Long> recogLatencies = new ArrayList<>();
+        final List<Long> reidLatencies = new ArrayList<>();
+        final List<Long> endToEndLatencies = new ArrayList<>();
+        for (Hops taskHops : hops.values()) {
+            if (taskHops.attrProduced >= 0) {
+                recogLatencies.add(taskHops.attrProduced - taskHops.sent);
+            }
+            if (taskHops.idRankProduced >= 0) {
+                if (taskHops.attrProduced >= 0) {
+                    reidLatencies.add(taskHops.idRankProduced - taskHops.attrProduced);
+                }
+                endToEndLatencies.add(taskHops.idRankProduced - taskHops.sent);
+            }
+        }
+        logger.info("Completed " + numDone + " of " + numTracklets + " tasks.");
+        report(logger, "tracklet -> attributes", recogLatencies);
+        report(logger, "attributes -> ID rank", reidLatencies);
+        report(logger, "end to end", endToEndLatencies);
+        Metrics.snapshot().forEach((name, value) -> {
+            if (name.startsWith("continuous.") || name.startsWith("reid.")) {
+                logger.info(name + "=" + value);
+            }
+        });
+    }
+}
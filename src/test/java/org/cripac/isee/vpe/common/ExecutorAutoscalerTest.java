@@ -0,0 +1,132 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulate an application whose executors each process a fixed number of records per second,
+ * fed at a steady rate with a backfill burst, and check how the autoscaler follows the load.
+ */
+public class ExecutorAutoscalerTest {
+
+    private static final long INTERVAL_MS = 10000;
+    private static final long RECORDS_PER_EXECUTOR_PER_SEC = 100;
+
+    private static class SimulatedCluster implements ExecutorAutoscaler.ExecutorAllocator {
+        int numExecutors;
+        long endOffset = 0;
+        long committedOffset = 0;
+        int numScaleDowns = 0;
+
+        SimulatedCluster(int numExecutors) {
+            this.numExecutors = numExecutors;
+        }
+
+        @Override
+        public int getNumExecutors() {
+            return numExecutors;
+        }
+
+        @Override
+        public boolean requestExecutors(int num) {
+            numExecutors += num;
+            return true;
+        }
+
+        @Override
+        public boolean killExecutors(int num) {
+            numExecutors -= num;
+            ++numScaleDowns;
+            return true;
+        }
+
+        /**
+         * Receive records for an interval and process as many as the executors can.
+         *
+         * @return number of records processed.
+         */
+        long run(long arrivalPerSec) {
+            endOffset += arrivalPerSec * INTERVAL_MS / 1000;
+            final long processed = Math.min(endOffset - committedOffset,
+                    numExecutors * RECORDS_PER_EXECUTOR_PER_SEC * INTERVAL_MS / 1000);
+            committedOffset += processed;
+            return processed;
+        }
+    }
+
+    @Test
+    public void followsBackfillBurst() throws Exception {
+        final SimulatedCluster cluster = new SimulatedCluster(2);
+        final ExecutorAutoscaler autoscaler = new ExecutorAutoscaler("test",
+                () -> new ExecutorAutoscaler.LagSample(cluster.endOffset, cluster.committedOffset),
+                cluster, null, 2, 20, 2, INTERVAL_MS, 60000, 0.7, 6, 4);
+
+        long now = 0;
+        int maxExecutors = 0;
+        int numChanges = 0;
+        int lastTarget = autoscaler.update(now);
+        for (int round = 0; round < 200; ++round) {
+            // A burst of 10x the steady arrival rate between rounds 10 and 30.
+            final long arrivalPerSec = round >= 10 && round < 30 ? 1000 : 100;
+            final long processed = cluster.run(arrivalPerSec);
+            // Busy executors take the whole interval, idle ones proportionally less.
+            autoscaler.onBatchCompleted(processed,
+                    processed * 1000 / (cluster.numExecutors * RECORDS_PER_EXECUTOR_PER_SEC));
+            now += INTERVAL_MS;
+            final int target = autoscaler.update(now);
+            assertEquals(target, cluster.numExecutors);
+            assertTrue(target >= 2 && target <= 20);
+            maxExecutors = Math.max(maxExecutors, target);
+            if (target != lastTarget) {
+                ++numChanges;
+            }
+            lastTarget = target;
+        }
+
+        // Scaled up beyond the burst rate to drain the backlog.
+        assertTrue(maxExecutors > 10);
+        // The backlog has been drained, and the executors released.
+        assertEquals(cluster.endOffset, cluster.committedOffset);
+        assertEquals(2, cluster.numExecutors);
+        // Each scale-down removes one executor, so without flapping the changes are bounded
+        // by a few scale-ups plus one scale-down per executor added.
+        assertEquals(maxExecutors - 2, cluster.numScaleDowns);
+        assertTrue(numChanges <= cluster.numScaleDowns + 10);
+    }
+
+    @Test
+    public void waitsBeforeScalingDown() throws Exception {
+        final SimulatedCluster cluster = new SimulatedCluster(8);
+        final ExecutorAutoscaler autoscaler = new ExecutorAutoscaler("test",
+                () -> new ExecutorAutoscaler.LagSample(cluster.endOffset, cluster.committedOffset),
+                cluster, null, 2, 20, 8, INTERVAL_MS, 60000, 0.7, 6, 4);
+        autoscaler.update(0);
+        for (int round = 1; round < 6; ++round) {
+            final long processed = cluster.run(100);
+            autoscaler.onBatchCompleted(processed, processed * 1000 / (cluster.numExecutors * RECORDS_PER_EXECUTOR_PER_SEC));
+            assertEquals(8, autoscaler.update(round * INTERVAL_MS));
+        }
+        final long processed = cluster.run(100);
+        autoscaler.onBatchCompleted(processed, processed * 1000 / (cluster.numExecutors * RECORDS_PER_EXECUTOR_PER_SEC));
+        assertEquals(7, autoscaler.update(6 * INTERVAL_MS));
+    }
+}
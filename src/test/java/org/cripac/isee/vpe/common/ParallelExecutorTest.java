@@ -0,0 +1,214 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.spark.api.java.function.Function;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ParallelExecutor}.
+ * <p>
+ * Run the main method to benchmark the sliding window against lock-step batches on skewed workloads.
+ */
+public class ParallelExecutorTest {
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static List<Integer> range(int n) {
+        final List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            items.add(i);
+        }
+        return items;
+    }
+
+    @Test
+    public void boundsItemsInFlight() {
+        final AtomicInteger inFlight = new AtomicInteger(0);
+        final AtomicInteger maxInFlight = new AtomicInteger(0);
+        final ParallelExecutor.Stats stats = ParallelExecutor.execute(range(64), 4, i -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sleep(5);
+            inFlight.decrementAndGet();
+        });
+        assertEquals(64, stats.getCount());
+        assertEquals(4, maxInFlight.get());
+    }
+
+    @Test
+    public void slowItemDoesNotStallOthers() {
+        // One slow item among 40 short items, which only finishes after all the short items have finished.
+        // Lock-step batches of 4 would wait for the slow item before taking more short items.
+        final CountDownLatch shortItemsDone = new CountDownLatch(40);
+        final AtomicBoolean slowItemOvertaken = new AtomicBoolean(false);
+        final ParallelExecutor.Stats stats = ParallelExecutor.execute(range(41), 4, i -> {
+            if (i == 0) {
+                try {
+                    slowItemOvertaken.set(shortItemsDone.await(30, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                sleep(10);
+                shortItemsDone.countDown();
+            }
+        });
+        assertEquals(41, stats.getCount());
+        assertTrue(stats.toString(), slowItemOvertaken.get());
+    }
+
+    @Test
+    public void failureStopsTakingItems() {
+        final AtomicInteger processed = new AtomicInteger(0);
+        try {
+            ParallelExecutor.execute(range(1000), 2, i -> {
+                processed.incrementAndGet();
+                if (i == 3) {
+                    throw new IllegalStateException("item " + i);
+                }
+            });
+            fail("Failure is not rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("item 3", e.getMessage());
+        }
+        assertTrue(processed.get() < 1000);
+    }
+
+    @Test
+    public void cancellationInterruptsItems() throws InterruptedException {
+        final ParallelExecutor.Cancellation cancellation = new ParallelExecutor.Cancellation();
+        final AtomicInteger interrupted = new AtomicInteger(0);
+        final Thread canceller = new Thread(() -> {
+            sleep(100);
+            cancellation.cancel();
+        });
+        canceller.start();
+        final long start = System.nanoTime();
+        try {
+            ParallelExecutor.execute(range(100).iterator(), 4, i -> {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }, cancellation);
+            fail("Cancellation is not reported");
+        } catch (CancellationException ignored) {
+        }
+        canceller.join();
+        assertEquals(4, interrupted.get());
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+    }
+
+    @Test
+    public void asyncRetriesHoldNoThread() {
+        // Each item fails once and is retried after a delay, all on a single thread.
+        // Sleeping in the thread between retries would run the retry of an item
+        // before the first attempts of the items after it.
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+        final List<Integer> attemptOrder = Collections.synchronizedList(new ArrayList<>());
+        final ParallelExecutor.Stats stats = ParallelExecutor.executeAsync(range(32), 32, i -> {
+            final AtomicInteger attempts = new AtomicInteger(0);
+            return new RobustExecutor<Integer, Integer>((Function<Integer, Integer>) item -> {
+                final int attempt = attempts.incrementAndGet();
+                attemptOrder.add(attempt);
+                if (attempt == 1) {
+                    throw new IllegalStateException("First attempt of " + item);
+                }
+                return item;
+            }).withRetryPolicy(RetryPolicy.fixed(1, 500)).executeAsync(i, thread);
+        });
+        thread.shutdown();
+        assertEquals(32, stats.getCount());
+        assertEquals(0, stats.getNumFailed());
+        assertEquals(64, attemptOrder.size());
+        for (int i = 0; i < 32; ++i) {
+            assertEquals(attemptOrder.toString(), 1, (int) attemptOrder.get(i));
+        }
+    }
+
+    /**
+     * The implementation replaced by the sliding window, processing items in lock-step batches
+     * on the common fork-join pool.
+     */
+    private static <T> void executeLockStep(Iterator<T> items, int parallelism, Consumer<T> consumer) {
+        final ArrayList<T> dataBuf = new ArrayList<>(parallelism);
+        if (items.hasNext()) {
+            for (int i = 0; i < parallelism && items.hasNext(); ++i) {
+                dataBuf.add(items.next());
+            }
+            dataBuf.parallelStream().forEach(consumer);
+        }
+        while (items.hasNext()) {
+            for (int i = 0; i < parallelism; ++i) {
+                dataBuf.set(i, items.hasNext() ? items.next() : null);
+            }
+            dataBuf.parallelStream().filter(Objects::nonNull).forEach(consumer);
+        }
+    }
+
+    /**
+     * Benchmark the sliding window against lock-step batches.
+     * Item costs follow a Pareto distribution, like durations of videos or lengths of tracklets.
+     *
+     * @param args [parallelism [number of items]]
+     */
+    public static void main(String[] args) {
+        final int parallelism = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int numItems = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        final List<Long> costs = new ArrayList<>();
+        final java.util.Random random = new java.util.Random(0);
+        for (int i = 0; i < numItems; ++i) {
+            // Pareto with shape 1.5 and minimum 2ms, capped at 1s.
+            costs.add(Math.min(1000, (long) (2 / Math.pow(1 - random.nextDouble(), 1 / 1.5))));
+        }
+        final Consumer<Long> work = ParallelExecutorTest::sleep;
+
+        for (int round = 0; round < 3; ++round) {
+            long start = System.nanoTime();
+            executeLockStep(costs.iterator(), parallelism, work);
+            final double lockStepMs = (System.nanoTime() - start) / 1e6;
+
+            final ParallelExecutor.Stats stats = ParallelExecutor.execute(costs.iterator(), parallelism, work);
+            System.out.printf("Round %d: lock-step %.1fms, sliding window %.1fms (%s)%n",
+                    round, lockStepMs, stats.getWallNanos() / 1e6, stats);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.common;
+
+import org.apache.spark.streaming.api.java.JavaPairDStream;
+import org.apache.spark.streaming.kafka010.OffsetRange;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamRateControllerTest {
+
+    private static class VideoStream extends Stream {
+        private static final long serialVersionUID = 1L;
+
+        VideoStream(SystemPropertyCenter propCenter) throws Exception {
+            super("test", propCenter);
+        }
+
+        @Override
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        }
+
+        @Override
+        public String getName() {
+            return "video";
+        }
+
+        @Override
+        public List<Port> getPorts() {
+            return Collections.singletonList(new Port("video-port", DataType.URL));
+        }
+    }
+
+    private static class AttrStream extends Stream {
+        private static final long serialVersionUID = 1L;
+
+        AttrStream(SystemPropertyCenter propCenter) throws Exception {
+            super("test", propCenter);
+        }
+
+        @Override
+        public void addToGlobalStream(Map<Port, JavaPairDStream<UUID, TaskData>> globalStreamMap) {
+        }
+
+        @Override
+        public String getName() {
+            return "attr";
+        }
+
+        @Override
+        public List<Port> getPorts() {
+            return Collections.singletonList(new Port("attr-port", DataType.ATTRIBUTES));
+        }
+    }
+
+    private static String opDescription(Class<?> streamClass) {
+        return "org.apache.spark.streaming.api.java.AbstractJavaDStreamLike.foreachRDD(JavaDStreamLike.scala:42)\n"
+                + streamClass.getName() + ".addToGlobalStream(StreamRateControllerTest.java:40)";
+    }
+
+    @Test
+    public void ratesFollowProcessingTime() throws Exception {
+        SystemPropertyCenter propCenter = new SystemPropertyCenter("--system-property-file", "conf/system.properties");
+        propCenter.rateControlEnable = true;
+        propCenter.batchDuration = 1000;
+        propCenter.rateControlUtilization = 0.8;
+        propCenter.kafkaNumPartitions = 10;
+        propCenter.maxRatePerPartition = null;
+        StreamRateController controller = new StreamRateController("test",
+                Arrays.asList(new VideoStream(propCenter), new AttrStream(propCenter)), propCenter);
+        assertEquals(StreamRateController.UNLIMITED, controller.getRate(DataType.URL.name()));
+
+        controller.onBatchReceived(1000, new OffsetRange[]{
+                OffsetRange.create(DataType.URL.name(), 0, 0, 10),
+                OffsetRange.create(DataType.ATTRIBUTES.name(), 0, 0, 1024)});
+        Map<String, Long> durations = new HashMap<>();
+        durations.put(opDescription(VideoStream.class), 2000L);
+        durations.put(opDescription(AttrStream.class), 128L);
+        controller.onBatchCompleted(1000, durations);
+
+        // Each stream has 400ms. Videos cost 200ms each, so even one per partition per second is too many.
+        assertEquals(propCenter.rateControlMinRate, controller.getRate(DataType.URL.name()));
+        // Attributes cost 0.125ms each, so 3200 can be processed from 10 partitions in a second.
+        assertEquals(320, controller.getRate(DataType.ATTRIBUTES.name()));
+        // Topics no stream accepts are not limited.
+        assertEquals(StreamRateController.UNLIMITED, controller.getRate(DataType.COMMAND.name()));
+    }
+}
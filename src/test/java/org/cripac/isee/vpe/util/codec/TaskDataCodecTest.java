@@ -0,0 +1,203 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.codec;
+
+import org.cripac.isee.alg.pedestrian.attr.Attributes;
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.alg.pedestrian.attr.PedestrianAttrRecogApp;
+import org.cripac.isee.vpe.alg.pedestrian.reid.PedestrianReIDUsingAttrApp;
+import org.cripac.isee.vpe.alg.pedestrian.tracking.TrackletOrURL;
+import org.cripac.isee.vpe.common.DataType;
+import org.cripac.isee.vpe.ctrl.TaskData;
+import org.cripac.isee.vpe.debug.FakePedestrianTracker;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class TaskDataCodecTest {
+
+    private TaskData createTaskData() throws Exception {
+        TaskData.ExecutionPlan executionPlan = new TaskData.ExecutionPlan();
+        TaskData.ExecutionPlan.Node attrNode = executionPlan.addNode(DataType.ATTRIBUTES);
+        TaskData.ExecutionPlan.Node reidNode = executionPlan.addNode(DataType.IDRANK);
+        attrNode.outputTo(reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.ATTR_PORT));
+        Tracklet[] tracklets = new FakePedestrianTracker().track(new FileInputStream("pom.xml"));
+        return new TaskData(
+                Collections.singletonList(attrNode.createInputPort(PedestrianAttrRecogApp.RecogStream.TRACKLET_PORT)),
+                executionPlan,
+                new TrackletOrURL(tracklets[0]));
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        TaskData taskData = createTaskData();
+        ((TrackletOrURL) taskData.predecessorRes).getTracklet().frameStride = 2;
+        TaskDataCodec codec = TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY);
+        byte[] encoded = codec.encode(taskData);
+        TaskData decoded = TaskDataCodecHelper.decode(encoded);
+
+        assertTrue(decoded.destPorts.containsKey(PedestrianAttrRecogApp.RecogStream.TRACKLET_PORT));
+        TaskData.ExecutionPlan.Node attrNode = decoded.getDestNode(PedestrianAttrRecogApp.RecogStream.TRACKLET_PORT);
+        assertEquals(1, attrNode.getOutputPorts().size());
+        assertEquals(PedestrianReIDUsingAttrApp.ReIDStream.ATTR_PORT,
+                attrNode.getOutputPorts().get(0).prototype);
+
+        Tracklet expected = ((TrackletOrURL) taskData.predecessorRes).getTracklet();
+        Tracklet actual = ((TrackletOrURL) decoded.predecessorRes).getTracklet();
+        assertEquals(expected.id.toString(), actual.id.toString());
+        assertEquals(expected.startFrameIndex, actual.startFrameIndex);
+        assertEquals(expected.frameStride, actual.frameStride);
+        assertEquals(expected.locationSequence.length, actual.locationSequence.length);
+        for (int i = 0; i < expected.locationSequence.length; ++i) {
+            assertArrayEquals(expected.locationSequence[i].toBytes(), actual.locationSequence[i].toBytes());
+        }
+
+        // The binary format should not be larger than Java serialization.
+        assertTrue(encoded.length <= TaskDataCodecHelper.getCodec(TaskDataCodecHelper.JAVA).encode(taskData).length);
+    }
+
+    /**
+     * Write a message of an older version of the binary format by hand, with a tracklet as the result.
+     */
+    private byte[] encodeOldVersion(TaskData taskData, byte version) throws Exception {
+        final Tracklet tracklet = ((TrackletOrURL) taskData.predecessorRes).getTracklet();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BinaryTaskDataCodec.MAGIC);
+            out.writeByte(version);
+            if (version >= 3) {
+                out.writeByte(BinaryTaskDataCodec.PLAN_INLINE);
+            }
+            taskData.executionPlan.writeTo(out);
+            out.writeInt(taskData.destPorts.size());
+            for (TaskData.ExecutionPlan.Node.Port port : taskData.destPorts.values()) {
+                out.writeInt(port.getNode().getID());
+                out.writeUTF(port.prototype.name);
+                out.writeUTF(port.prototype.inputType.name());
+            }
+            out.writeByte(BinaryTaskDataCodec.RES_TRACKLET);
+            out.writeBoolean(true);
+            out.writeUTF(tracklet.id.videoID);
+            out.writeInt(tracklet.id.serialNumber);
+            out.writeInt(tracklet.numTracklets);
+            out.writeInt(tracklet.startFrameIndex);
+            out.writeInt(tracklet.locationSequence.length);
+            for (Tracklet.BoundingBox box : tracklet.locationSequence) {
+                if (version < 2) {
+                    out.writeInt(box.x);
+                    out.writeInt(box.y);
+                    out.writeInt(box.width);
+                    out.writeInt(box.height);
+                    out.writeInt(box.hasPatch() ? box.getPatchLength() : -1);
+                    if (box.hasPatch()) {
+                        out.write(box.getPatchData());
+                    }
+                }
+            }
+            if (version >= 2) {
+                for (Tracklet.BoundingBox box : tracklet.locationSequence) {
+                    out.writeInt(box.hasPatch() ? box.getPatchLength() : -1);
+                    out.write(box.toBytes());
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void decodeOldVersions() throws Exception {
+        TaskData taskData = createTaskData();
+        Tracklet expected = ((TrackletOrURL) taskData.predecessorRes).getTracklet();
+        for (byte version = BinaryTaskDataCodec.MIN_VERSION; version < BinaryTaskDataCodec.VERSION; ++version) {
+            TaskData decoded = TaskDataCodecHelper.decode(encodeOldVersion(taskData, version));
+            assertEquals(taskData.destPorts.keySet(), decoded.destPorts.keySet());
+            Tracklet actual = (Tracklet) decoded.predecessorRes;
+            assertEquals(expected.id.toString(), actual.id.toString());
+            assertEquals(expected.startFrameIndex, actual.startFrameIndex);
+            assertEquals(1, actual.frameStride);
+            assertEquals(expected.locationSequence.length, actual.locationSequence.length);
+            for (int i = 0; i < expected.locationSequence.length; ++i) {
+                assertArrayEquals(expected.locationSequence[i].toBytes(), actual.locationSequence[i].toBytes());
+            }
+        }
+    }
+
+    @Test
+    public void attributesRoundTrip() throws Exception {
+        Attributes attr = new Attributes();
+        attr.trackletID = new Tracklet.Identifier("video", 3);
+        attr.genderMale = 0.7f;
+        attr.genderFemale = 0.3f;
+        TaskData.ExecutionPlan executionPlan = new TaskData.ExecutionPlan();
+        TaskData.ExecutionPlan.Node reidNode = executionPlan.addNode(DataType.IDRANK);
+        TaskData taskData = new TaskData(
+                Collections.singletonList(reidNode.createInputPort(PedestrianReIDUsingAttrApp.ReIDStream.ATTR_PORT)),
+                executionPlan,
+                attr);
+        TaskData decoded = TaskDataCodecHelper.decode(
+                TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY).encode(taskData));
+        assertEquals(attr, decoded.predecessorRes);
+    }
+
+    @Test
+    public void compressedRoundTrip() throws Exception {
+        TaskData taskData = createTaskData();
+        TaskDataCodec codec = new CompressingTaskDataCodec(
+                TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY),
+                Collections.singletonMap(DataType.TRACKLET, PayloadCompression.parse("deflate:1")));
+        TaskData decoded = TaskDataCodecHelper.decode(codec.encode(taskData));
+        Tracklet expected = ((TrackletOrURL) taskData.predecessorRes).getTracklet();
+        Tracklet actual = ((TrackletOrURL) decoded.predecessorRes).getTracklet();
+        assertEquals(expected.locationSequence.length, actual.locationSequence.length);
+        for (int i = 0; i < expected.locationSequence.length; ++i) {
+            assertArrayEquals(expected.locationSequence[i].toBytes(), actual.locationSequence[i].toBytes());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidOriginalLengthOfCompressedPayload() throws Exception {
+        TaskDataCodec codec = new CompressingTaskDataCodec(
+                TaskDataCodecHelper.getCodec(TaskDataCodecHelper.BINARY),
+                Collections.singletonMap(DataType.TRACKLET, PayloadCompression.parse("deflate:1")));
+        byte[] encoded = codec.encode(createTaskData());
+        assertTrue(CompressingTaskDataCodec.isCompressed(encoded));
+        for (int originalLength : new int[]{-1, Integer.MAX_VALUE, encoded.length * 2000}) {
+            ByteBuffer.wrap(encoded, 2, Integer.BYTES).putInt(originalLength);
+            try {
+                TaskDataCodecHelper.decode(encoded);
+                fail("Decoded a payload claiming " + originalLength + " bytes");
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void javaCompatibility() throws Exception {
+        TaskData taskData = createTaskData();
+        byte[] encoded = TaskDataCodecHelper.getCodec(TaskDataCodecHelper.JAVA).encode(taskData);
+        TaskData decoded = TaskDataCodecHelper.decode(encoded);
+        assertEquals(taskData.destPorts.keySet(), decoded.destPorts.keySet());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.kafka;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.cripac.isee.vpe.ctrl.SystemPropertyCenter;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link KafkaProducerPool}.
+ * <p>
+ * Run the main method to benchmark the throughput of pooled producers against
+ * one producer per sender on the Kafka cluster configured in conf/system.properties.
+ */
+public class KafkaProducerPoolTest {
+
+    private static final String BENCHMARK_TOPIC = "producer-pool-benchmark";
+
+    @After
+    public void closePools() {
+        KafkaProducerPool.closeAll();
+    }
+
+    @Test
+    public void sharedByConfig() throws Exception {
+        SystemPropertyCenter propCenter = new SystemPropertyCenter("--system-property-file", "conf/system.properties");
+        KafkaProducer<String, byte[]> dataProducer = KafkaProducerPool.getProducer(propCenter.getKafkaProducerProp(false));
+        assertSame(dataProducer, KafkaProducerPool.getProducer(propCenter.getKafkaProducerProp(false)));
+
+        KafkaProducer<String, String> reportProducer = KafkaProducerPool.getProducer(propCenter.getKafkaProducerProp(true));
+        assertNotSame(dataProducer, reportProducer);
+        assertEquals(2, KafkaProducerPool.numProducers());
+    }
+
+    @Test
+    public void roundRobinInPool() throws Exception {
+        SystemPropertyCenter propCenter = new SystemPropertyCenter("--system-property-file", "conf/system.properties");
+        propCenter.kafkaProducerPoolSize = 2;
+        Properties config = propCenter.getKafkaProducerProp(false);
+        KafkaProducer<String, byte[]> first = KafkaProducerPool.getProducer(config);
+        KafkaProducer<String, byte[]> second = KafkaProducerPool.getProducer(config);
+        assertNotSame(first, second);
+        assertSame(first, KafkaProducerPool.getProducer(config));
+        assertEquals(2, KafkaProducerPool.numProducers());
+    }
+
+    private static double benchmark(List<KafkaProducer<String, byte[]>> producers,
+                                    int numRecords,
+                                    byte[] payload) throws InterruptedException {
+        final List<Thread> senders = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (KafkaProducer<String, byte[]> producer : producers) {
+            final Thread sender = new Thread(() -> {
+                for (int i = 0; i < numRecords; ++i) {
+                    producer.send(new ProducerRecord<>(BENCHMARK_TOPIC, String.valueOf(i), payload));
+                }
+                producer.flush();
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        return producers.size() * numRecords / seconds;
+    }
+
+    /**
+     * Benchmark pooled producers against private producers.
+     *
+     * @param args options of {@link SystemPropertyCenter}.
+     * @throws Exception on failure connecting to Kafka.
+     */
+    public static void main(String[] args) throws Exception {
+        final SystemPropertyCenter propCenter = new SystemPropertyCenter(args);
+        final int numSenders = 8;
+        final int numRecords = 20000;
+        final byte[] payload = new byte[4096];
+
+        final List<KafkaProducer<String, byte[]>> privateProducers = new ArrayList<>();
+        for (int i = 0; i < numSenders; ++i) {
+            privateProducers.add(new KafkaProducer<>(propCenter.getKafkaProducerProp(false)));
+        }
+        System.out.println("Private producers: "
+                + benchmark(privateProducers, numRecords, payload) + " records/s");
+        privateProducers.forEach(KafkaProducer::close);
+
+        for (int poolSize : new int[]{1, 2}) {
+            propCenter.kafkaProducerPoolSize = poolSize;
+            final Properties config = propCenter.getKafkaProducerProp(false);
+            final List<KafkaProducer<String, byte[]>> pooledProducers = new ArrayList<>();
+            for (int i = 0; i < numSenders; ++i) {
+                pooledProducers.add(KafkaProducerPool.getProducer(config));
+            }
+            System.out.println("Pooled producers (pool size " + poolSize + ", linger "
+                    + propCenter.kafkaLingerMs + "ms, batch " + propCenter.kafkaBatchSize + "B): "
+                    + benchmark(pooledProducers, numRecords, payload) + " records/s");
+        }
+        KafkaProducerPool.closeAll();
+    }
+}
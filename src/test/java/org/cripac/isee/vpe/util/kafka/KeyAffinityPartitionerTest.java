@@ -0,0 +1,49 @@
+/*
+ * This file is part of LaS-VPE Platform.
+ *
+ * LaS-VPE Platform is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LaS-VPE Platform is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LaS-VPE Platform.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.cripac.isee.vpe.util.kafka;
+
+import org.cripac.isee.alg.pedestrian.tracking.Tracklet;
+import org.cripac.isee.vpe.common.TrackletAffinityPartitioner;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyAffinityPartitionerTest {
+
+    @Test
+    public void keyRoundTrip() {
+        UUID taskID = UUID.randomUUID();
+        assertEquals(taskID, KeyAffinityPartitioner.taskIDOf(KeyAffinityPartitioner.affinityKey(taskID, 42)));
+        assertEquals(taskID, KeyAffinityPartitioner.taskIDOf(taskID.toString()));
+    }
+
+    @Test
+    public void sparkMatchesKafka() {
+        final int numPartitions = 10;
+        TrackletAffinityPartitioner partitioner = new TrackletAffinityPartitioner(numPartitions);
+        for (int i = 0; i < 100; ++i) {
+            UUID taskID = UUID.randomUUID();
+            Tracklet.Identifier id = new Tracklet.Identifier("video", i);
+            assertEquals(KeyAffinityPartitioner.partitionOf(taskID, i, numPartitions),
+                    partitioner.getPartition(new Tuple2<>(taskID, id)));
+        }
+    }
+}